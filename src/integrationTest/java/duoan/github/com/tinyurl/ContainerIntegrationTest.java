@@ -0,0 +1,36 @@
+package duoan.github.com.tinyurl;
+
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+/**
+ * PostgreSQL and Redis in containers, shared by every integration test for as long as the JVM runs, so that the
+ * application contexts Spring caches across test classes keep pointing at running containers. Skipped without
+ * Docker:
+ * <pre>./gradlew integrationTest</pre>
+ */
+@Testcontainers(disabledWithoutDocker = true)
+abstract class ContainerIntegrationTest {
+
+    @ServiceConnection
+    static final PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    static final GenericContainer<?> redis = new GenericContainer<>("redis:7-alpine").withExposedPorts(6379);
+
+    static {
+        // not before the Docker check, which runs before the test class is initialized
+        postgres.start();
+        redis.start();
+    }
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) {
+        // the connection factory is built from spring.data.redis, see TinyUrlApplication
+        registry.add("spring.data.redis.host", redis::getHost);
+        registry.add("spring.data.redis.port", () -> redis.getMappedPort(6379));
+    }
+}
@@ -0,0 +1,43 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs batch creates through {@link TinyUrlService} against PostgreSQL and Redis.
+ */
+@SpringBootTest
+class TinyUrlServiceIntegrationTest extends ContainerIntegrationTest {
+
+    @Autowired
+    TinyUrlService service;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void testCreatesShortUrlsInBatches() {
+        List<String> longUrls = List.of("https://example.com/batch/1", "https://example.com/batch/2",
+                "https://example.com/batch/1", "https://example.com/batch/3");
+
+        List<String> shortUrls = service.createShortUrls(longUrls);
+
+        assertEquals(4, shortUrls.size());
+        assertEquals(shortUrls.get(0), shortUrls.get(2));
+        assertEquals(3, Stream.of(shortUrls.get(0), shortUrls.get(1), shortUrls.get(3)).distinct().count());
+        assertEquals(shortUrls, service.createShortUrls(longUrls));
+        assertEquals(shortUrls.get(1), service.createShortUrl("https://example.com/batch/2"));
+        for (int i = 0; i < longUrls.size(); i++) {
+            assertEquals(longUrls.get(i), service.getLongUrl(shortUrls.get(i)));
+            assertEquals(longUrls.get(i), jdbcTemplate.queryForObject(
+                    "SELECT long_url FROM t_url_mappings WHERE short_url = ?", String.class, shortUrls.get(i)));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs {@link UrlMappingBulkTransfer}'s COPY against PostgreSQL.
+ */
+@SpringBootTest(properties = {
+        "tinyurl.bloom-filter.enabled=true",
+        "tinyurl.bulk-transfer.enabled=true",
+        // one worker, so that the conflicting line is imported after the one it conflicts with
+        "tinyurl.bulk-transfer.concurrency=1",
+        "tinyurl.bulk-transfer.batch-size=2"})
+class UrlMappingBulkTransferIntegrationTest extends ContainerIntegrationTest {
+
+    @TempDir
+    static Path directory;
+
+    @DynamicPropertySource
+    static void bulkTransferProperties(DynamicPropertyRegistry registry) {
+        registry.add("tinyurl.bloom-filter.snapshot-path", () -> directory.resolve("bloom-filter.bin").toString());
+        registry.add("tinyurl.bulk-transfer.directory", () -> directory.resolve("bulk-transfer").toString());
+    }
+
+    @Autowired
+    TinyUrlService service;
+
+    @Autowired
+    UrlMappingBulkTransfer bulkTransfer;
+
+    @Autowired
+    ShortUrlBloomFilter bloomFilter;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void testImportsAndExports() throws Exception {
+        Path bulkTransferDirectory = Files.createDirectories(directory.resolve("bulk-transfer"));
+        Files.writeString(bulkTransferDirectory.resolve("links.csv"), """
+                short_url,long_url,created_at
+                imp0,https://example.com/imported/0,2025-01-02 03:04:05
+                imp1,"https://example.com/imported/1?a=1,b=2",
+                ,https://example.com/imported/2
+                imp0,https://example.com/imported/conflict
+                not a short url,https://example.com/imported/3
+                """);
+
+        bulkTransfer.start("import", "links.csv", true);
+        Map<String, Object> imported = await();
+
+        assertEquals("done", imported.get("state"), imported.toString());
+        assertEquals(3L, imported.get("inserted"));
+        assertEquals(1L, imported.get("conflict"));
+        assertEquals(1L, imported.get("invalid"));
+        assertTrue(Files.exists(bulkTransferDirectory.resolve("links.csv.rejected")));
+        assertEquals("https://example.com/imported/1?a=1,b=2", jdbcTemplate.queryForObject(
+                "SELECT long_url FROM t_url_mappings WHERE short_url = 'imp1'", String.class));
+        String generated = jdbcTemplate.queryForObject(
+                "SELECT short_url FROM t_url_mappings WHERE long_url = 'https://example.com/imported/2'", String.class);
+        for (String shortUrl : List.of("imp0", "imp1", generated)) {
+            assertTrue(bloomFilter.mightContain(shortUrl), shortUrl);
+        }
+        assertEquals("https://example.com/imported/0", service.getLongUrl("imp0"));
+
+        bulkTransfer.start("export", "export", null);
+        Map<String, Object> exported = await();
+
+        assertEquals("done", exported.get("state"), exported.toString());
+        StringBuilder exportedLines = new StringBuilder();
+        try (Stream<Path> files = Files.list(bulkTransferDirectory.resolve("export"))) {
+            for (Path file : files.toList()) {
+                exportedLines.append(Files.readString(file));
+            }
+        }
+        String lines = exportedLines.toString();
+        assertTrue(lines.contains("imp0,https://example.com/imported/0,2025-01-02 03:04:05\n"), lines);
+        assertTrue(lines.contains("imp1,\"https://example.com/imported/1?a=1,b=2\","), lines);
+        assertThrows(IllegalArgumentException.class, () -> bulkTransfer.start("export", "../export", null));
+    }
+
+    private Map<String, Object> await() throws InterruptedException {
+        for (int i = 0; i < 600 && "running".equals(bulkTransfer.progress().get("state")); i++) {
+            Thread.sleep(100);
+        }
+        return bulkTransfer.progress();
+    }
+}
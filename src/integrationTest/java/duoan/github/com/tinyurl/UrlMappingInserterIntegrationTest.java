@@ -0,0 +1,49 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the SQL of {@link UrlMappingInserter}, which the unit tests stand in for, against PostgreSQL.
+ */
+@SpringBootTest
+class UrlMappingInserterIntegrationTest extends ContainerIntegrationTest {
+
+    @Autowired
+    UrlMappingInserter inserter;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Test
+    void testInserterKeepsStoredMappings() {
+        String longUrl = "https://example.com/inserter";
+        String otherLongUrl = "https://example.com/inserter/other";
+        assertEquals(Map.of(longUrl, "ins0"), insert(new UrlMappingInserter.Row("ins0", longUrl,
+                LongUrlDigest.of(longUrl).dbKey())));
+
+        // the long url is stored under its first short url, and that short url is taken
+        assertEquals(Map.of(longUrl, "ins0"), insert(new UrlMappingInserter.Row("ins1", longUrl,
+                LongUrlDigest.of(longUrl).dbKey())));
+        assertEquals(Map.of(), insert(new UrlMappingInserter.Row("ins0", otherLongUrl,
+                LongUrlDigest.of(otherLongUrl).dbKey())));
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT count(*) FROM t_url_mappings WHERE short_url LIKE 'ins%'",
+                Integer.class));
+    }
+
+    private Map<String, String> insert(UrlMappingInserter.Row row) {
+        return new TransactionTemplate(transactionManager).execute(status -> inserter.insert(List.of(row)));
+    }
+}
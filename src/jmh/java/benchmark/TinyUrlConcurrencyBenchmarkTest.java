@@ -0,0 +1,97 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fires {@link #concurrency} requests at once against a running server and waits for all of them, to compare the
+ * platform-thread pool with the virtual-thread mode at concurrency levels well above Tomcat's 200 threads.
+ * Run it once per mode:
+ * <pre>
+ * ./gradlew bootRun
+ * ./gradlew jmh -Pincludes=TinyUrlConcurrencyBenchmarkTest
+ * ./gradlew bootRun --args='--spring.profiles.active=dev,vthreads'
+ * ./gradlew jmh -Pincludes=TinyUrlConcurrencyBenchmarkTest
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TinyUrlConcurrencyBenchmarkTest {
+    private final String baseUrl = "http://localhost:8080/"; // Your local Spring Boot API URL
+
+    @Param({"200", "1000", "4000"})
+    public int concurrency;
+
+    private ExecutorService executor;
+    private HttpClient httpClient;
+    private final List<String> shortUrls = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        httpClient = HttpClient.newBuilder()
+                .executor(executor)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        // existing links, so redirects exercise the cache and database path instead of the 404 path
+        for (int i = 0; i < 1_000; i++) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "api/tinyurl"))
+                    .header("Content-Type", "text/plain")
+                    .POST(HttpRequest.BodyPublishers.ofString("https://www.example.com/concurrency/" + i))
+                    .build();
+            String shortUrl = httpClient.send(request, HttpResponse.BodyHandlers.ofString()).body();
+            shortUrls.add(shortUrl.substring(shortUrl.lastIndexOf('/') + 1));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int redirectBurst() {
+        CompletableFuture<?>[] responses = new CompletableFuture<?>[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            String shortUrl = shortUrls.get(ThreadLocalRandom.current().nextInt(shortUrls.size()));
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + shortUrl))
+                    .timeout(Duration.ofSeconds(30))
+                    .GET()
+                    .build();
+            responses[i] = httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+        }
+        CompletableFuture.allOf(responses).join();
+        return responses.length;
+    }
+
+    @Benchmark
+    public int createBurst() {
+        CompletableFuture<?>[] responses = new CompletableFuture<?>[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "api/tinyurl"))
+                    .timeout(Duration.ofSeconds(30))
+                    .header("Content-Type", "text/plain")
+                    .POST(HttpRequest.BodyPublishers.ofString(
+                            "https://www.example.com/some-very-long-url" + ThreadLocalRandom.current().nextLong()))
+                    .build();
+            responses[i] = httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+        }
+        CompletableFuture.allOf(responses).join();
+        return responses.length;
+    }
+}
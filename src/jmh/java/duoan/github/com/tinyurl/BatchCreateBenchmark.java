@@ -0,0 +1,69 @@
+package duoan.github.com.tinyurl;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates of {@value #LINES} new long urls per invocation, through {@link InProcessTinyUrl}'s standalone
+ * {@code MockMvc}: one {@code POST /api/tinyurl} each ({@code single}), or one NDJSON stream to
+ * {@code POST /api/tinyurl/batch} created {@code batchSize} at a time ({@code batch}). Scores are creates per
+ * millisecond; {@code dbRoundTripMicros} is what makes the difference, the stand-in database pays it per statement:
+ * <pre>./gradlew jmh -Pincludes=BatchCreateBenchmark</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BatchCreateBenchmark {
+    private static final int LINES = 500;
+
+    @Param({"single", "batch"})
+    public String mode;
+
+    @Param({"100", "500"})
+    public int batchSize;
+
+    @Param({"0", "500"})
+    public long dbRoundTripMicros;
+
+    private InProcessTinyUrl app;
+    private final AtomicLong next = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        TinyUrlProperties properties = new TinyUrlProperties();
+        properties.getBatchCreate().setBatchSize(batchSize);
+        app = new InProcessTinyUrl(dbRoundTripMicros, false, properties);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public Object create() throws Exception {
+        long first = next.getAndAdd(LINES);
+        if (mode.equals("single")) {
+            Object response = null;
+            for (int i = 0; i < LINES; i++) {
+                response = app.mockMvc.perform(MockMvcRequestBuilders.post("/api/tinyurl")
+                                .contentType(MediaType.TEXT_PLAIN)
+                                .content(longUrl(first + i)))
+                        .andReturn().getResponse();
+            }
+            return response;
+        }
+        StringBuilder lines = new StringBuilder(LINES * 64);
+        for (int i = 0; i < LINES; i++) {
+            lines.append("{\"longUrl\": \"").append(longUrl(first + i)).append("\"}\n");
+        }
+        return app.mockMvc.perform(MockMvcRequestBuilders.post("/api/tinyurl/batch")
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .content(lines.toString()))
+                .andReturn().getResponse().getContentAsString();
+    }
+
+    private static String longUrl(long i) {
+        return "https://www.example.com/batch/" + i;
+    }
+}
@@ -0,0 +1,83 @@
+package duoan.github.com.tinyurl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-row lock, lookup and insert-and-commit (what {@link TinyUrlService} does per create) against
+ * {@link UrlMappingBatchWriter}.
+ * Needs the Postgres from {@code compose.yaml}; the group commit only pays off with concurrent writers:
+ * <pre>./gradlew jmh -Pincludes=BatchInsertBenchmark -Pthreads=32</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BatchInsertBenchmark {
+
+    @Param({"per-row", "batch"})
+    public String mode;
+
+    private HikariDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate writeTransaction;
+    private UrlMappingBatchWriter batchWriter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(System.getProperty("jdbc.url", "jdbc:postgresql://localhost:5432/mydatabase"));
+        dataSource.setUsername(System.getProperty("jdbc.username", "myuser"));
+        dataSource.setPassword(System.getProperty("jdbc.password", "secret"));
+        dataSource.setMaximumPoolSize(10);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+        writeTransaction = new TransactionTemplate(transactionManager);
+        if (mode.equals("batch")) {
+            TinyUrlProperties properties = new TinyUrlProperties();
+            batchWriter = new UrlMappingBatchWriter(new UrlMappingInserter(jdbcTemplate), transactionManager, properties,
+                    new SimpleMeterRegistry());
+            batchWriter.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        if (batchWriter != null) {
+            batchWriter.stop();
+        }
+        dataSource.close();
+    }
+
+    @Benchmark
+    public String insert() throws Exception {
+        long id = ThreadLocalRandom.current().nextLong();
+        String shortUrl = ShortUrlCodec.encode(id);
+        String longUrl = "https://www.example.com/benchmark/" + id;
+        long longUrlDigest = LongUrlDigest.of(longUrl).dbKey();
+        if (batchWriter != null) {
+            return batchWriter.write(shortUrl, longUrl, longUrlDigest, ShardMap.CATALOG_SHARD).get();
+        }
+        return writeTransaction.execute(status -> {
+            jdbcTemplate.queryForObject("SELECT 1 FROM pg_advisory_xact_lock(?)", Integer.class, longUrlDigest);
+            List<String> existing = jdbcTemplate.queryForList(
+                    "SELECT short_url FROM t_url_mappings WHERE long_url_digest = ? AND long_url = ?",
+                    String.class, longUrlDigest, longUrl);
+            if (!existing.isEmpty()) {
+                return existing.getFirst();
+            }
+            jdbcTemplate.update("INSERT INTO t_url_mappings (short_url, long_url, long_url_digest, created_at)"
+                    + " VALUES (?, ?, ?, ?)", shortUrl, longUrl, longUrlDigest, Timestamp.from(Instant.now()));
+            return shortUrl;
+        });
+    }
+}
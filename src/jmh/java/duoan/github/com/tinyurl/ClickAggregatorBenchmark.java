@@ -0,0 +1,80 @@
+package duoan.github.com.tinyurl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost {@link ClickAggregator#record} adds to a redirect, against the redirect's own short url lookup as baseline.
+ * Short urls are drawn with a skew, a few links get most of the clicks, and a background thread drains every
+ * second so windows keep rotating. Compare with {@link RedirectBenchmark} for the rest of a redirect, and run with
+ * several threads for contention on the hot links:
+ * <pre>./gradlew jmh -Pincludes=ClickAggregatorBenchmark -Pthreads=8 -Pprofilers=gc</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClickAggregatorBenchmark {
+    private static final int DRAWS = 1 << 16;
+
+    /**
+     * Distinct links clicked, a small hot set stays in the CPU caches, a large one does not.
+     */
+    @Param({"1000", "100000"})
+    public int links;
+
+    private ClickAggregator aggregator;
+    private String[] shortUrls;
+    private ScheduledExecutorService drainer;
+
+    @State(Scope.Thread)
+    public static class Clicks {
+        private final int[] draws = new int[DRAWS];
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup(ClickAggregatorBenchmark benchmark) {
+            SplittableRandom random = new SplittableRandom();
+            int links = benchmark.links;
+            for (int i = 0; i < DRAWS; i++) {
+                // roughly Zipfian: link k is drawn about 1/k as often as link 1
+                draws[i] = (int) Math.min(links - 1, Math.exp(random.nextDouble() * Math.log(links)) - 1);
+            }
+        }
+
+        int next() {
+            return draws[next++ & (DRAWS - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        aggregator = new ClickAggregator(links);
+        shortUrls = new String[links];
+        for (int i = 0; i < links; i++) {
+            shortUrls[i] = ShortUrlCodec.encode(ShortUrlCodec.scramble(i));
+        }
+        drainer = Executors.newSingleThreadScheduledExecutor();
+        drainer.scheduleWithFixedDelay(aggregator::drain, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        drainer.shutdownNow();
+    }
+
+    @Benchmark
+    public String baseline(Clicks clicks) {
+        return shortUrls[clicks.next()];
+    }
+
+    @Benchmark
+    public String record(Clicks clicks) {
+        String shortUrl = shortUrls[clicks.next()];
+        aggregator.record(shortUrl);
+        return shortUrl;
+    }
+}
@@ -0,0 +1,144 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * {@link HotKeyTracker} under the Zipfian redirects of a {@link Workload}, ranked every second as configured by
+ * default:
+ * <ul>
+ *     <li>{@link #record}: counting a lookup, what tracking adds to every redirect. After the trial, the tracked top
+ *     {@code topK} is compared with the actual one of the workload.</li>
+ *     <li>{@link #redirect}: {@link TinyUrlService#getLongUrl} through {@link InProcessTinyUrl} with an L1 of
+ *     {@code l1MaximumSize} entries, with the top {@code topK} pinned besides it or not. The L1 hit ratio of each
+ *     iteration is printed.</li>
+ * </ul>
+ * <pre>./gradlew jmh -Pincludes=HotKeyTrackerBenchmark -Pthreads=4</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HotKeyTrackerBenchmark {
+    private static final int WORKLOAD_LENGTH = 1 << 20;
+
+    @Param({"100000"})
+    public int corpusSize;
+
+    @Param({"0.99", "1.2"})
+    public double zipfExponent;
+
+    @Param({"1000"})
+    public int topK;
+
+    @Param({"1000"})
+    public long l1MaximumSize;
+
+    /**
+     * Only changes {@link #redirect}.
+     */
+    @Param({"off", "on"})
+    public String pinning;
+
+    @Param({"42"})
+    public long seed;
+
+    private InProcessTinyUrl app;
+    private HotKeyTracker tracker;
+    private Workload workload;
+    private ScheduledExecutorService scheduler;
+    private double l1Hits;
+    private double l1Misses;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        TinyUrlProperties properties = new TinyUrlProperties();
+        properties.getCache().setL1MaximumSize(l1MaximumSize);
+        properties.getCache().getHeavyHitters().setTopK(topK);
+        tracker = new HotKeyTracker(properties, new SimpleMeterRegistry());
+        properties.getCache().getHeavyHitters().setEnabled(pinning.equals("on"));
+        app = new InProcessTinyUrl(0, false, properties);
+        app.createCorpus(corpusSize, seed);
+        workload = Workload.generate(corpusSize, zipfExponent, 1, 0, seed, WORKLOAD_LENGTH);
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().factory());
+        long interval = properties.getCache().getHeavyHitters().getInterval().toNanos();
+        scheduler.scheduleWithFixedDelay(() -> {
+            tracker.update();
+            if (app.hotKeyTracker != null) {
+                app.hotKeyTracker.update();
+            }
+        }, interval, interval, TimeUnit.NANOSECONDS);
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        l1Hits = app.cache.l1HitCount();
+        l1Misses = app.cache.l1MissCount();
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        double hits = app.cache.l1HitCount() - l1Hits;
+        double misses = app.cache.l1MissCount() - l1Misses;
+        if (hits + misses > 0) {
+            System.out.printf("%nL1 hit ratio of redirects: %.4f%n", hits / (hits + misses));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.shutdownNow();
+        tracker.update();
+        int[] reads = new int[corpusSize];
+        for (int i = 0; i < workload.length(); i++) {
+            reads[workload.key(i)]++;
+        }
+        Set<String> actual = IntStream.range(0, corpusSize).boxed()
+                .sorted(Comparator.comparingInt((Integer key) -> reads[key]).reversed())
+                .limit(topK)
+                .map(app.shortUrls::get)
+                .collect(Collectors.toSet());
+        if (!tracker.hotKeys().isEmpty()) {
+            long found = tracker.hotKeys().stream().filter(hotKey -> actual.contains(hotKey.shortUrl())).count();
+            System.out.printf("%nTracked %d of the actual top %d%n", found, topK);
+        }
+    }
+
+    /**
+     * A thread's position in the workload, threads start spread over it.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup(HotKeyTrackerBenchmark benchmark) {
+            next = (int) ((long) benchmark.threads.getAndIncrement() * 7919 * 1009 % WORKLOAD_LENGTH);
+        }
+
+        int next() {
+            int i = next;
+            next = (next + 1) & (WORKLOAD_LENGTH - 1);
+            return i;
+        }
+    }
+
+    @Benchmark
+    public void record(Cursor cursor) {
+        tracker.record(app.shortUrls.get(workload.key(cursor.next())));
+    }
+
+    @Benchmark
+    public String redirect(Cursor cursor) {
+        return app.service.getLongUrl(app.shortUrls.get(workload.key(cursor.next())));
+    }
+}
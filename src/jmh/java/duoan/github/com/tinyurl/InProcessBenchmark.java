@@ -0,0 +1,180 @@
+package duoan.github.com.tinyurl;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Each layer of the redirect and create path in process, driven by the same replayable {@link Workload} over a
+ * corpus created through the service, see {@link InProcessTinyUrl} for the stand-ins:
+ * <ul>
+ *     <li>{@link #hashUrl}: {@link UrlHashUtil#hashUrl} of the long url of every operation.</li>
+ *     <li>{@link #cache}: {@link TinyUrlCache} lookups, read through from the stand-in database without its
+ *     round-trip on a miss, and puts for creates.</li>
+ *     <li>{@link #service}: {@link TinyUrlService#getLongUrl} and {@link TinyUrlService#createShortUrl}.</li>
+ *     <li>{@link #controller}: the same through {@link TinyUrlController} in a standalone {@code MockMvc}, the
+ *     dispatch, argument resolution and the not-found advice included.</li>
+ * </ul>
+ * The {@code hits}, {@code misses} and {@code creates} counters give the mix each benchmark actually served; for
+ * {@link #cache} hits and misses are cache hits and misses, negative entries included. Results are written as JSON
+ * to compare runs:
+ * <pre>./gradlew jmh -Pincludes=InProcessBenchmark -Pthreads=4</pre>
+ * <pre>./gradlew jmh -Pincludes=InProcessBenchmark.service -Pjmh.params=zipfExponent=0.8,readRatio=0.9</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InProcessBenchmark {
+    private static final int WORKLOAD_LENGTH = 1 << 20;
+
+    @Param({"100000"})
+    public int corpusSize;
+
+    @Param({"0.99", "1.2"})
+    public double zipfExponent;
+
+    @Param({"0.95"})
+    public double readRatio;
+
+    @Param({"0.05"})
+    public double missRatio;
+
+    @Param({"0"})
+    public long dbRoundTripMicros;
+
+    @Param({"42"})
+    public long seed;
+
+    private InProcessTinyUrl app;
+    private Workload workload;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        app = new InProcessTinyUrl(dbRoundTripMicros);
+        app.createCorpus(corpusSize, seed);
+        workload = Workload.generate(corpusSize, zipfExponent, readRatio, missRatio, seed, WORKLOAD_LENGTH);
+    }
+
+    /**
+     * A thread's position in the workload, threads start spread over it, and what it served.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cursor {
+        public long hits;
+        public long misses;
+        public long creates;
+        private int next;
+        private int thread;
+        private long created;
+        private SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void setup(InProcessBenchmark benchmark) {
+            thread = benchmark.threads.getAndIncrement();
+            next = (int) ((long) thread * 7919 * 1009 % WORKLOAD_LENGTH);
+            random = new SplittableRandom(benchmark.seed + thread);
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+            creates = 0;
+        }
+
+        int next() {
+            int i = next;
+            next = (next + 1) & (WORKLOAD_LENGTH - 1);
+            return i;
+        }
+
+        String newLongUrl() {
+            // unique across threads and iterations, so every create stores a new mapping
+            return InProcessTinyUrl.longUrl(random, -(1 + thread + 1_000L * created++));
+        }
+    }
+
+    @Benchmark
+    public String hashUrl(Cursor cursor) {
+        int i = cursor.next();
+        return UrlHashUtil.hashUrl(workload.kind(i) == Workload.Kind.HIT
+                ? app.longUrls.get(workload.key(i)) : app.longUrls.get(i % corpusSize), 0);
+    }
+
+    @Benchmark
+    public Object cache(Cursor cursor) {
+        int i = cursor.next();
+        return switch (workload.kind(i)) {
+            case HIT, MISS -> {
+                String shortUrl = shortUrl(i);
+                Optional<String> longUrl = app.cache.getLongUrl(shortUrl);
+                if (longUrl.isPresent()) {
+                    cursor.hits++;
+                    yield longUrl;
+                }
+                cursor.misses++;
+                String loaded = app.findLongUrl(shortUrl).orElse(TinyUrlCache.NULL_LONG_URL);
+                app.cache.dualPutUrlMapping(shortUrl, loaded);
+                yield loaded;
+            }
+            case CREATE -> {
+                cursor.creates++;
+                String longUrl = cursor.newLongUrl();
+                String shortUrl = app.shortUrlGenerator.generate(longUrl);
+                app.cache.dualPutUrlMapping(shortUrl, longUrl, LongUrlDigest.of(longUrl));
+                yield shortUrl;
+            }
+        };
+    }
+
+    @Benchmark
+    public String service(Cursor cursor) {
+        int i = cursor.next();
+        if (workload.kind(i) == Workload.Kind.CREATE) {
+            cursor.creates++;
+            return app.service.createShortUrl(cursor.newLongUrl());
+        }
+        try {
+            String location = app.service.getLongUrl(shortUrl(i));
+            cursor.hits++;
+            return location;
+        } catch (TinyUrlNotFoundException e) {
+            cursor.misses++;
+            return null;
+        }
+    }
+
+    @Benchmark
+    public MockHttpServletResponse controller(Cursor cursor) throws Exception {
+        int i = cursor.next();
+        if (workload.kind(i) == Workload.Kind.CREATE) {
+            cursor.creates++;
+            return app.mockMvc.perform(MockMvcRequestBuilders.post("/api/tinyurl")
+                            .contentType(MediaType.TEXT_PLAIN)
+                            .content(cursor.newLongUrl()))
+                    .andReturn().getResponse();
+        }
+        MockHttpServletResponse response = app.mockMvc.perform(MockMvcRequestBuilders.get("/" + shortUrl(i)))
+                .andReturn().getResponse();
+        // not found redirects to the index page
+        if ("/".equals(response.getRedirectedUrl())) {
+            cursor.misses++;
+        } else {
+            cursor.hits++;
+        }
+        return response;
+    }
+
+    private String shortUrl(int i) {
+        return workload.kind(i) == Workload.Kind.HIT
+                ? app.shortUrls.get(workload.key(i)) : app.unknownShortUrls.get(workload.key(i));
+    }
+}
@@ -0,0 +1,247 @@
+package duoan.github.com.tinyurl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The redirect and create path wired by hand in process, with default properties unless given: a map stands in for
+ * Postgres, taking {@code dbRoundTripMicros} per query, and a {@link ConcurrentMapCacheManager} for Redis, which like
+ * Redis holds every mapping. Transactions are no-ops, and bean validation is not applied. Stage latencies are only
+ * recorded if {@code instrumented}, hot keys only tracked with {@code tinyurl.cache.heavy-hitters.enabled}, ranked
+ * whenever {@link #hotKeyTracker} is updated.
+ */
+final class InProcessTinyUrl {
+    private static final String SHORT_URL_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+    final TinyUrlCache cache;
+    final HotKeyTracker hotKeyTracker;
+    final TinyUrlService service;
+    final TinyUrlController controller;
+    final TinyUrlBatchController batchController;
+    final MockMvc mockMvc;
+    final ShortUrlGenerator shortUrlGenerator = new IdRangeShortUrlGenerator(new LocalIdBlockLeaser(), 1_000);
+    final List<String> shortUrls = new ArrayList<>();
+    final List<String> longUrls = new ArrayList<>();
+    /**
+     * Well-formed short urls which are not stored.
+     */
+    final List<String> unknownShortUrls = new ArrayList<>();
+    private final Map<String, UrlMapping> byShortUrl = new ConcurrentHashMap<>();
+    private final Map<Long, List<UrlMapping>> byLongUrlDigest = new ConcurrentHashMap<>();
+    private final long roundTripNanos;
+
+    InProcessTinyUrl(long dbRoundTripMicros) {
+        this(dbRoundTripMicros, false);
+    }
+
+    InProcessTinyUrl(long dbRoundTripMicros, boolean instrumented) {
+        this(dbRoundTripMicros, instrumented, new TinyUrlProperties());
+    }
+
+    InProcessTinyUrl(long dbRoundTripMicros, boolean instrumented, TinyUrlProperties properties) {
+        this.roundTripNanos = TimeUnit.MICROSECONDS.toNanos(dbRoundTripMicros);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        StaticListableBeanFactory beans = new StaticListableBeanFactory();
+        StageLatencies stageLatencies = null;
+        if (instrumented) {
+            stageLatencies = new StageLatencies(properties, meterRegistry);
+            beans.addBean("stageLatencies", stageLatencies);
+        }
+        this.hotKeyTracker = properties.getCache().getHeavyHitters().isEnabled()
+                ? new HotKeyTracker(properties, meterRegistry) : null;
+        this.cache = new TinyUrlCache(new CaffeineCacheManager(), new ConcurrentMapCacheManager(), properties, null,
+                stageLatencies, hotKeyTracker, meterRegistry);
+        this.service = new TinyUrlService(repository(), lookup(), inserter(), cache, shortUrlGenerator,
+                beans.getBeanProvider(UrlMappingBatchWriter.class), beans.getBeanProvider(ShortUrlBloomFilter.class),
+                beans.getBeanProvider(ShardRouter.class), beans.getBeanProvider(ReplicaPool.class),
+                beans.getBeanProvider(ClickCounter.class), beans.getBeanProvider(StageLatencies.class), properties,
+                new NoTransactionManager(), meterRegistry);
+        this.controller = new TinyUrlController(service, beans.getBeanProvider(ClickCounter.class),
+                beans.getBeanProvider(StageLatencies.class), beans.getBeanProvider(AdmissionController.class),
+                properties);
+        this.batchController = new TinyUrlBatchController(service, beans.getBeanProvider(AdmissionController.class),
+                new ObjectMapper(), properties, meterRegistry);
+        this.mockMvc = MockMvcBuilders
+                .standaloneSetup(controller, batchController)
+                .setControllerAdvice(new TinyUrlControllerAdvice(meterRegistry))
+                .build();
+    }
+
+    /**
+     * Creates {@code size} mappings through the service, which leaves all of them in L2 and the latest in L1, and as
+     * many unknown short urls.
+     */
+    void createCorpus(int size, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < size; i++) {
+            String longUrl = longUrl(random, i);
+            longUrls.add(longUrl);
+            shortUrls.add(service.createShortUrl(longUrl));
+        }
+        Set<String> stored = new HashSet<>(shortUrls);
+        char[] chars = new char[Constants.MAX_SHORT_URL_LENGTH];
+        while (unknownShortUrls.size() < size) {
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = SHORT_URL_ALPHABET.charAt(random.nextInt(SHORT_URL_ALPHABET.length()));
+            }
+            String shortUrl = new String(chars);
+            if (!stored.contains(shortUrl)) {
+                unknownShortUrls.add(shortUrl);
+            }
+        }
+    }
+
+    /**
+     * Urls of a few dozen to a couple hundred characters, like real ones.
+     */
+    static String longUrl(SplittableRandom random, long id) {
+        StringBuilder longUrl = new StringBuilder("https://www.example.com/articles/").append(id);
+        int params = random.nextInt(5);
+        for (int i = 0; i < params; i++) {
+            longUrl.append(i == 0 ? '?' : '&').append("utm_p").append(i).append('=')
+                    .append(Long.toHexString(random.nextLong()));
+        }
+        return UrlCanonicalizer.canonicalize(longUrl.toString());
+    }
+
+    /**
+     * @return the stored long url, without a round-trip
+     */
+    Optional<String> findLongUrl(String shortUrl) {
+        UrlMapping urlMapping = byShortUrl.get(shortUrl);
+        return urlMapping == null ? Optional.empty() : Optional.of(urlMapping.getLongUrl());
+    }
+
+    private UrlMappingRepository repository() {
+        return (UrlMappingRepository) Proxy.newProxyInstance(UrlMappingRepository.class.getClassLoader(),
+                new Class<?>[]{UrlMappingRepository.class},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.getName().equals("toString") ? "InMemoryUrlMappingRepository"
+                                : method.invoke(this, args);
+                    }
+                    roundTrip();
+                    return switch (method.getName()) {
+                        case "findByLongUrlDigest" -> byLongUrlDigest.getOrDefault((Long) args[0], List.of());
+                        case "findByLongUrlDigestIn" -> ((Collection<?>) args[0]).stream()
+                                .flatMap(digest -> byLongUrlDigest.getOrDefault((Long) digest, List.of()).stream())
+                                .toList();
+                        case "lockLongUrlDigest" -> 1;
+                        case "save" -> {
+                            save((UrlMapping) args[0]);
+                            yield args[0];
+                        }
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    };
+                });
+    }
+
+    private void save(UrlMapping urlMapping) {
+        byShortUrl.put(urlMapping.getShortUrl(), urlMapping);
+        byLongUrlDigest.computeIfAbsent(urlMapping.getLongUrlDigest(), k -> new CopyOnWriteArrayList<>())
+                .add(urlMapping);
+    }
+
+    /**
+     * Takes a round-trip for each of the lock, the lookup and the insert.
+     */
+    private UrlMappingInserter inserter() {
+        return new UrlMappingInserter(null) {
+            @Override
+            Map<String, String> insert(List<Row> rows) {
+                roundTrip();
+                roundTrip();
+                roundTrip();
+                Map<String, String> storedShortUrls = new HashMap<>();
+                synchronized (InProcessTinyUrl.this) {
+                    for (Row row : rows) {
+                        byLongUrlDigest.getOrDefault(row.longUrlDigest(), List.of()).stream()
+                                .filter(urlMapping -> urlMapping.getLongUrl().equals(row.longUrl()))
+                                .findFirst()
+                                .ifPresentOrElse(urlMapping -> storedShortUrls.put(row.longUrl(), urlMapping.getShortUrl()),
+                                        () -> {
+                                            if (!byShortUrl.containsKey(row.shortUrl())) {
+                                                save(new UrlMapping(row.shortUrl(), row.longUrl(), row.longUrlDigest()));
+                                                storedShortUrls.put(row.longUrl(), row.shortUrl());
+                                            }
+                                        });
+                    }
+                }
+                return storedShortUrls;
+            }
+        };
+    }
+
+    private UrlMappingLookup lookup() {
+        return new UrlMappingLookup() {
+            @Override
+            public Optional<String> findLongUrl(String shortUrl) {
+                roundTrip();
+                return InProcessTinyUrl.this.findLongUrl(shortUrl);
+            }
+
+            @Override
+            public Map<String, String> findLongUrls(Collection<String> shortUrls) {
+                roundTrip();
+                Map<String, String> longUrls = new HashMap<>();
+                shortUrls.forEach(shortUrl -> findLongUrl(shortUrl).ifPresent(longUrl -> longUrls.put(shortUrl, longUrl)));
+                return longUrls;
+            }
+
+            @Override
+            public boolean exists(String shortUrl) {
+                roundTrip();
+                return byShortUrl.containsKey(shortUrl);
+            }
+        };
+    }
+
+    private void roundTrip() {
+        if (roundTripNanos > 0) {
+            LockSupport.parkNanos(roundTripNanos);
+        }
+    }
+
+    private static final class NoTransactionManager extends AbstractPlatformTransactionManager {
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+}
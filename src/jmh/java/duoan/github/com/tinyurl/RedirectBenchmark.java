@@ -0,0 +1,75 @@
+package duoan.github.com.tinyurl;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.view.RedirectView;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-redirect work of {@link TinyUrlController#getLongURL} once the long url is known: the legacy decode, prefix
+ * and {@link RedirectView} render against writing the stored canonical url as a raw 302.
+ * Run with the gc profiler to see the allocations per redirect ({@code gc.alloc.rate.norm}):
+ * <pre>./gradlew jmh -Pincludes=RedirectBenchmark -Pprofilers=gc</pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RedirectBenchmark {
+
+    @Param({"https://www.example.com/some-very-long-url",
+            "https://www.example.com/search?q=spring+boot&page=2&sort=relevance&lang=en"})
+    public String url;
+
+    private final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/abcdefghi");
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+    private String legacyStoredUrl;
+    private String canonicalStoredUrl;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // as the legacy createShortUrl stored it
+        legacyStoredUrl = URLEncoder.encode(url.substring("https://".length()), StandardCharsets.UTF_8);
+        canonicalStoredUrl = UrlCanonicalizer.canonicalize(url);
+    }
+
+    @Benchmark
+    public HttpServletResponse legacy() throws Exception {
+        response.reset();
+        String longUrl = URLDecoder.decode(legacyStoredUrl, StandardCharsets.UTF_8);
+        if (!longUrl.startsWith("https")) {
+            longUrl = "https://" + longUrl;
+        }
+        RedirectView redirectView = new RedirectView(longUrl);
+        redirectView.setStatusCode(HttpStatus.FOUND);
+        redirectView.render(Map.of(), request, response);
+        return response;
+    }
+
+    @Benchmark
+    public HttpServletResponse raw() {
+        response.reset();
+        response.setStatus(HttpServletResponse.SC_FOUND);
+        response.setHeader(HttpHeaders.LOCATION, canonicalStoredUrl);
+        return response;
+    }
+
+    /**
+     * A mapping not migrated yet, converted on the fly by {@link UrlCanonicalizer#toLocation}.
+     */
+    @Benchmark
+    public HttpServletResponse rawFromLegacy() {
+        response.reset();
+        response.setStatus(HttpServletResponse.SC_FOUND);
+        response.setHeader(HttpHeaders.LOCATION, UrlCanonicalizer.toLocation(legacyStoredUrl));
+        return response;
+    }
+}
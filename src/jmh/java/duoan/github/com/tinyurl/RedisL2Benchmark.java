@@ -0,0 +1,118 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.data.redis.cache.RedisCacheConfiguration;
+import org.springframework.data.redis.cache.RedisCacheManager;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TinyUrlCache}'s L2 as {@code RedisCacheManager} (JDK serialized values, text keys, one round-trip per entry)
+ * against {@link BinaryRedisCacheManager}: dual writes of created mappings, and reads of {@link #batchSize} short
+ * urls. The Redis memory per mapping of each is printed after writing {@link #corpusSize} of them.
+ * Needs the Redis from {@code compose.yaml}, and flushes its database {@code redis.database} (15 by default):
+ * <pre>./gradlew jmh -Pincludes=RedisL2Benchmark -Pthreads=8</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RedisL2Benchmark {
+
+    @Param({"redis-cache-manager", "binary"})
+    public String l2;
+
+    @Param({"100000"})
+    public int corpusSize;
+
+    @Param({"32"})
+    public int batchSize;
+
+    private JedisConnectionFactory connectionFactory;
+    private BatchingCacheManager l2CacheManager;
+    private TinyUrlCache cache;
+    private final List<String> shortUrls = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                System.getProperty("redis.host", "localhost"), Integer.getInteger("redis.port", 6379));
+        configuration.setDatabase(Integer.getInteger("redis.database", 15));
+        connectionFactory = new JedisConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        Duration ttl = new TinyUrlProperties().getCache().getL2Ttl();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        CacheManager cacheManager = switch (l2) {
+            case "redis-cache-manager" -> {
+                RedisCacheManager redisCacheManager = RedisCacheManager.builder(connectionFactory)
+                        .cacheDefaults(RedisCacheConfiguration.defaultCacheConfig()
+                                .prefixCacheNameWith("v2:")
+                                .entryTtl(ttl))
+                        .build();
+                redisCacheManager.afterPropertiesSet();
+                yield redisCacheManager;
+            }
+            case "binary" -> new BinaryRedisCacheManager(connectionFactory, ttl, meterRegistry);
+            default -> throw new IllegalArgumentException(l2);
+        };
+        l2CacheManager = BatchingCacheManager.of(cacheManager);
+        cache = new TinyUrlCache(new CaffeineCacheManager(), cacheManager, new TinyUrlProperties(), meterRegistry);
+
+        long usedMemory;
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            connection.serverCommands().flushDb();
+            usedMemory = usedMemory(connection);
+        }
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < corpusSize; i++) {
+            String longUrl = InProcessTinyUrl.longUrl(random, i);
+            String shortUrl = ShortUrlCodec.encode(random.nextLong(1L << ShortUrlCodec.BITS));
+            shortUrls.add(shortUrl);
+            cache.dualPutUrlMapping(shortUrl, longUrl, LongUrlDigest.of(longUrl));
+        }
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            System.out.printf("%n%s: %.1f bytes of Redis memory per mapping%n", l2,
+                    (double) (usedMemory(connection) - usedMemory) / corpusSize);
+        }
+    }
+
+    private static long usedMemory(RedisConnection connection) {
+        return Long.parseLong(connection.serverCommands().info("memory").getProperty("used_memory"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            connection.serverCommands().flushDb();
+        }
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public String dualPut() {
+        String longUrl = "https://www.example.com/benchmark/" + ThreadLocalRandom.current().nextLong();
+        String shortUrl = ShortUrlCodec.encode(ThreadLocalRandom.current().nextLong(1L << ShortUrlCodec.BITS));
+        cache.dualPutUrlMapping(shortUrl, longUrl, LongUrlDigest.of(longUrl));
+        return shortUrl;
+    }
+
+    @Benchmark
+    public List<String> getAll() {
+        List<String> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(shortUrls.get(ThreadLocalRandom.current().nextInt(shortUrls.size())));
+        }
+        return l2CacheManager.getAll(TinyUrlCache.SHORT_URL_TO_LONG_URL, batch);
+    }
+}
@@ -0,0 +1,68 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Create-path cost of the two {@link ShortUrlGenerator}s, with the database round-trip simulated by parking
+ * for {@link #dbRoundTripMicros}. Run with more threads to see the contention on the id block counter:
+ * <pre>./gradlew jmh -Pincludes=ShortUrlGeneratorBenchmark -Pthreads=8</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShortUrlGeneratorBenchmark {
+
+    @Param({"hash", "id-range"})
+    public String generator;
+
+    @Param({"0", "200"})
+    public long dbRoundTripMicros;
+
+    private ShortUrlGenerator shortUrlGenerator;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        long roundTripNanos = TimeUnit.MICROSECONDS.toNanos(dbRoundTripMicros);
+        if (generator.equals("hash")) {
+            UrlMappingLookup lookup = (UrlMappingLookup) Proxy.newProxyInstance(
+                    UrlMappingLookup.class.getClassLoader(),
+                    new Class<?>[]{UrlMappingLookup.class},
+                    (proxy, method, args) -> {
+                        if (!method.getName().equals("exists")) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        roundTrip(roundTripNanos);
+                        return false;
+                    });
+            SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+            TinyUrlCache cache = new TinyUrlCache(new CaffeineCacheManager(), new ConcurrentMapCacheManager(),
+                    new TinyUrlProperties(), meterRegistry);
+            shortUrlGenerator = new HashShortUrlGenerator(cache, lookup, meterRegistry);
+        } else {
+            LocalIdBlockLeaser leaser = new LocalIdBlockLeaser();
+            shortUrlGenerator = new IdRangeShortUrlGenerator(size -> {
+                roundTrip(roundTripNanos);
+                return leaser.leaseBlock(size);
+            }, 1_000);
+        }
+    }
+
+    @Benchmark
+    public String generate() {
+        return shortUrlGenerator.generate("https://www.example.com/some-very-long-url" + ThreadLocalRandom.current().nextLong());
+    }
+
+    private static void roundTrip(long nanos) {
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@link StageLatencies} adds to a redirect:
+ * <ul>
+ *     <li>{@link #redirect}: {@link TinyUrlController#getLongURL} for short urls all in L1 with
+ *     {@link InProcessTinyUrl}, with the instrumentation off and on, which records and traces the L1, response and
+ *     total stages. The difference is mostly the clock reads of those stages, see {@link #nanoTime}.</li>
+ *     <li>{@link #trace}: the fixed cost of a traced request with one stage, which should stay within 100 ns on top
+ *     of its two clock reads, also with as many threads as cores.</li>
+ *     <li>{@link #record}: a single stage.</li>
+ * </ul>
+ * <pre>./gradlew jmh -Pincludes=StageLatenciesBenchmark -Pthreads=8</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StageLatenciesBenchmark {
+
+    @Param({"off", "on"})
+    public String instrumentation;
+
+    @Param({"10000"})
+    public int corpusSize;
+
+    private InProcessTinyUrl app;
+    private StageLatencies stageLatencies;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        app = new InProcessTinyUrl(0, instrumentation.equals("on"));
+        app.createCorpus(corpusSize, 42);
+        stageLatencies = new StageLatencies(new TinyUrlProperties(), new SimpleMeterRegistry());
+    }
+
+    @State(Scope.Thread)
+    public static class Response {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+    }
+
+    @Benchmark
+    public MockHttpServletResponse redirect(Response response) {
+        response.response.reset();
+        app.controller.getLongURL(app.shortUrls.get(ThreadLocalRandom.current().nextInt(corpusSize)),
+                response.response);
+        return response.response;
+    }
+
+    @Benchmark
+    public void trace() {
+        long start = stageLatencies.begin(StageLatencies.Operation.REDIRECT);
+        stageLatencies.record(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.L1, 500);
+        stageLatencies.end(StageLatencies.Operation.REDIRECT, "abcdefghi", start, start);
+    }
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public void record() {
+        stageLatencies.record(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.L1,
+                ThreadLocalRandom.current().nextLong(100, 10_000));
+    }
+}
@@ -0,0 +1,52 @@
+package duoan.github.com.tinyurl;
+
+import com.google.common.hash.Hashing;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UrlHashUtil#hashUrl} against the previous Guava/Base64 implementation.
+ * Run with the gc profiler to see the allocations per operation ({@code gc.alloc.rate.norm}):
+ * <pre>./gradlew jmh -Pincludes=UrlHashUtilBenchmark -Pprofilers=gc</pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UrlHashUtilBenchmark {
+
+    @Param({"www.example.com%2Fsome-very-long-url", "www.example.com%2Fsearch%3Fq%3Dspring%2Bboot%26page%3D2%26sort%3Drelevance%26lang%3Den"})
+    public String url;
+
+    @Param({"0", "1"})
+    public int salt;
+
+    private final char[] buffer = new char[Constants.MAX_SHORT_URL_LENGTH];
+
+    @Benchmark
+    public String legacy() {
+        byte[] hashBytes = Hashing.goodFastHash(160).hashString(url + salt, StandardCharsets.UTF_8).asBytes();
+        byte[] shiftedBytes = new byte[Constants.REQUIRED_BYTE_COUNT];
+        System.arraycopy(hashBytes, 0, shiftedBytes, 0, Constants.REQUIRED_BYTE_COUNT);
+        String base64Hash = Base64.getUrlEncoder().withoutPadding().encodeToString(shiftedBytes);
+        return base64Hash.substring(0, Constants.MAX_SHORT_URL_LENGTH);
+    }
+
+    @Benchmark
+    public String hashUrl() {
+        return UrlHashUtil.hashUrl(url, salt);
+    }
+
+    @Benchmark
+    public char[] hashUrlIntoBuffer() {
+        UrlHashUtil.hashUrl(url, salt, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public long hashUrlBits() {
+        return UrlHashUtil.hashUrlBits(url, salt);
+    }
+}
@@ -0,0 +1,114 @@
+package duoan.github.com.tinyurl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.persistence.EntityManagerFactory;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.jpa.repository.support.JpaRepositoryFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache miss of {@link TinyUrlService} (a read-only transaction around one lookup) through
+ * {@link JpaUrlMappingLookup} against {@link JdbcUrlMappingLookup}, the existence check of short url generation, and a
+ * lookup of {@link #batchSize} short urls at once. Needs the Postgres from {@code compose.yaml}; the gc profiler gives
+ * the allocation per lookup as {@code gc.alloc.rate.norm}:
+ * <pre>./gradlew jmh -Pincludes=UrlMappingLookupBenchmark -Pprofilers=gc</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UrlMappingLookupBenchmark {
+
+    @Param({"jpa", "jdbc"})
+    public String lookup;
+
+    @Param({"10000"})
+    public int corpusSize;
+
+    @Param({"32"})
+    public int batchSize;
+
+    private HikariDataSource dataSource;
+    private LocalContainerEntityManagerFactoryBean entityManagerFactory;
+    private TransactionTemplate readTransaction;
+    private UrlMappingLookup urlMappingLookup;
+    private final List<String> shortUrls = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(System.getProperty("jdbc.url", "jdbc:postgresql://localhost:5432/mydatabase"));
+        dataSource.setUsername(System.getProperty("jdbc.username", "myuser"));
+        dataSource.setPassword(System.getProperty("jdbc.password", "secret"));
+        dataSource.setMaximumPoolSize(10);
+        dataSource.addDataSourceProperty("prepareThreshold", "1");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+
+        entityManagerFactory = new LocalContainerEntityManagerFactoryBean();
+        entityManagerFactory.setDataSource(dataSource);
+        entityManagerFactory.setPackagesToScan(UrlMapping.class.getPackageName());
+        entityManagerFactory.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        entityManagerFactory.afterPropertiesSet();
+        EntityManagerFactory emf = entityManagerFactory.getObject();
+        readTransaction = new TransactionTemplate(new JpaTransactionManager(emf));
+        readTransaction.setReadOnly(true);
+        urlMappingLookup = switch (lookup) {
+            case "jpa" -> new JpaUrlMappingLookup(new JpaRepositoryFactory(
+                    SharedEntityManagerCreator.createSharedEntityManager(emf)).getRepository(UrlMappingRepository.class));
+            case "jdbc" -> new JdbcUrlMappingLookup(jdbcTemplate);
+            default -> throw new IllegalArgumentException(lookup);
+        };
+
+        SplittableRandom random = new SplittableRandom(42);
+        List<Object[]> rows = new ArrayList<>(corpusSize);
+        for (int i = 0; i < corpusSize; i++) {
+            String shortUrl = ShortUrlCodec.encode(random.nextLong(1L << 54));
+            String longUrl = InProcessTinyUrl.longUrl(random, i);
+            shortUrls.add(shortUrl);
+            rows.add(new Object[]{shortUrl, longUrl, LongUrlDigest.of(longUrl).dbKey(), Timestamp.from(Instant.now())});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO t_url_mappings (short_url, long_url, long_url_digest, created_at)"
+                + " VALUES (?, ?, ?, ?) ON CONFLICT DO NOTHING", rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        entityManagerFactory.destroy();
+        dataSource.close();
+    }
+
+    @Benchmark
+    public Optional<String> miss() {
+        String shortUrl = shortUrls.get(ThreadLocalRandom.current().nextInt(shortUrls.size()));
+        return readTransaction.execute(status -> urlMappingLookup.findLongUrl(shortUrl));
+    }
+
+    @Benchmark
+    public boolean exists() {
+        String shortUrl = shortUrls.get(ThreadLocalRandom.current().nextInt(shortUrls.size()));
+        return Boolean.TRUE.equals(readTransaction.execute(status -> urlMappingLookup.exists(shortUrl)));
+    }
+
+    @Benchmark
+    public Map<String, String> batch() {
+        List<String> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(shortUrls.get(ThreadLocalRandom.current().nextInt(shortUrls.size())));
+        }
+        return readTransaction.execute(status -> urlMappingLookup.findLongUrls(batch));
+    }
+}
@@ -0,0 +1,94 @@
+package duoan.github.com.tinyurl;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * A replayable stream of redirects and creates: the same parameters and seed give the same operations in the same
+ * order, so runs before and after a change measure the same traffic.
+ * <p>
+ * Redirects hit a corpus of stored short urls with Zipfian popularity, rank {@code r} drawn with probability
+ * proportional to {@code 1 / r^zipfExponent}, and ranks are shuffled over the corpus so that the hot keys are not
+ * the first ones created. A share of the redirects misses: it asks for short urls which do not exist, uniformly.
+ */
+final class Workload {
+    enum Kind {
+        /**
+         * A redirect of the corpus entry at {@link #key}.
+         */
+        HIT,
+        /**
+         * A redirect of the unknown short url at {@link #key}.
+         */
+        MISS,
+        CREATE
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private final byte[] kinds;
+    private final int[] keys;
+
+    private Workload(byte[] kinds, int[] keys) {
+        this.kinds = kinds;
+        this.keys = keys;
+    }
+
+    /**
+     * @param readRatio share of redirects, the rest are creates
+     * @param missRatio share of the redirects asking for short urls which do not exist
+     */
+    static Workload generate(int corpusSize, double zipfExponent, double readRatio, double missRatio, long seed,
+                             int length) {
+        SplittableRandom random = new SplittableRandom(seed);
+        double[] cdf = new double[corpusSize];
+        double sum = 0;
+        for (int rank = 0; rank < corpusSize; rank++) {
+            sum += 1 / Math.pow(rank + 1, zipfExponent);
+            cdf[rank] = sum;
+        }
+        int[] entryOfRank = new int[corpusSize];
+        for (int i = 0; i < corpusSize; i++) {
+            entryOfRank[i] = i;
+        }
+        for (int i = corpusSize - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = entryOfRank[i];
+            entryOfRank[i] = entryOfRank[j];
+            entryOfRank[j] = swap;
+        }
+
+        byte[] kinds = new byte[length];
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++) {
+            Kind kind;
+            if (random.nextDouble() >= readRatio) {
+                kind = Kind.CREATE;
+            } else if (random.nextDouble() < missRatio) {
+                kind = Kind.MISS;
+                keys[i] = random.nextInt(corpusSize);
+            } else {
+                kind = Kind.HIT;
+                int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                keys[i] = entryOfRank[Math.min(rank < 0 ? -rank - 1 : rank, corpusSize - 1)];
+            }
+            kinds[i] = (byte) kind.ordinal();
+        }
+        return new Workload(kinds, keys);
+    }
+
+    int length() {
+        return kinds.length;
+    }
+
+    Kind kind(int i) {
+        return KINDS[kinds[i]];
+    }
+
+    /**
+     * @return the corpus entry, or unknown short url, the operation at {@code i} asks for
+     */
+    int key(int i) {
+        return keys[i];
+    }
+}
@@ -0,0 +1,99 @@
+package db.migration;
+
+import duoan.github.com.tinyurl.UrlCanonicalizer;
+import lombok.extern.log4j.Log4j2;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites legacy long urls (URL-encoded, without {@code https://}) into their canonical, ready-to-emit form, see
+ * {@link UrlCanonicalizer}.
+ * <p>
+ * Runs in batches of {@value #BATCH_SIZE} rows, each committed on its own, so the table is never locked as a whole
+ * and a failed run resumes where it stopped. Rows whose canonical url is already stored for another short url, or
+ * would not fit the column, are skipped and logged; they keep redirecting through the on-the-fly conversion.
+ */
+@Log4j2
+public class V4__Canonicalize_long_urls extends BaseJavaMigration {
+    private static final int BATCH_SIZE = 1_000;
+    private static final int MAX_LONG_URL_LENGTH = 2048;
+
+    @Override
+    public boolean canExecuteInTransaction() {
+        return false;
+    }
+
+    @Override
+    public void migrate(Context context) throws SQLException {
+        Connection connection = context.getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT short_url, long_url FROM t_url_mappings WHERE short_url > ? ORDER BY short_url LIMIT ?");
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE t_url_mappings SET long_url = ? WHERE short_url = ?"
+                             + " AND NOT EXISTS (SELECT 1 FROM t_url_mappings WHERE long_url = ?)")) {
+            String lastShortUrl = "";
+            long converted = 0;
+            long skipped = 0;
+            while (true) {
+                List<String[]> legacyRows = new ArrayList<>();
+                int rows = 0;
+                select.setString(1, lastShortUrl);
+                select.setInt(2, BATCH_SIZE);
+                try (ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next()) {
+                        rows++;
+                        lastShortUrl = resultSet.getString(1);
+                        String longUrl = resultSet.getString(2);
+                        if (!UrlCanonicalizer.isCanonical(longUrl)) {
+                            legacyRows.add(new String[]{lastShortUrl, longUrl, UrlCanonicalizer.fromLegacy(longUrl)});
+                        }
+                    }
+                }
+                List<String[]> batch = new ArrayList<>(legacyRows.size());
+                for (String[] row : legacyRows) {
+                    if (row[2].length() > MAX_LONG_URL_LENGTH) {
+                        log.warn("Skipping {}: canonical url is longer than {} characters", row[0], MAX_LONG_URL_LENGTH);
+                        skipped++;
+                        continue;
+                    }
+                    update.setString(1, row[2]);
+                    update.setString(2, row[0]);
+                    update.setString(3, row[2]);
+                    update.addBatch();
+                    batch.add(row);
+                }
+                if (!batch.isEmpty()) {
+                    int[] updateCounts = update.executeBatch();
+                    for (int i = 0; i < updateCounts.length; i++) {
+                        if (updateCounts[i] == 0) {
+                            log.warn("Skipping {}: {} is already stored for another short url",
+                                    batch.get(i)[0], batch.get(i)[2]);
+                            skipped++;
+                        } else {
+                            converted++;
+                        }
+                    }
+                }
+                connection.commit();
+                if (rows < BATCH_SIZE) {
+                    break;
+                }
+            }
+            log.info("Canonicalized {} long urls, skipped {}", converted, skipped);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package db.migration;
+
+import lombok.extern.log4j.Log4j2;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Fills {@code long_url_digest} of the rows stored before it existed, with the database's
+ * {@code long_url_digest(text)}.
+ * <p>
+ * Walks the primary key in ranges of {@value #BATCH_SIZE} rows, each updated and committed on its own, so only a
+ * batch of rows is locked at a time and a failed run resumes where it stopped. Rows inserted meanwhile get their
+ * digest from the application or the insert trigger.
+ */
+@Log4j2
+public class V6__Backfill_long_url_digests extends BaseJavaMigration {
+    private static final int BATCH_SIZE = 5_000;
+
+    @Override
+    public boolean canExecuteInTransaction() {
+        return false;
+    }
+
+    @Override
+    public void migrate(Context context) throws SQLException {
+        Connection connection = context.getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement nextRange = connection.prepareStatement(
+                "SELECT max(short_url) FROM (SELECT short_url FROM t_url_mappings WHERE short_url > ?"
+                        + " ORDER BY short_url LIMIT ?) batch");
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE t_url_mappings SET long_url_digest = long_url_digest(long_url)"
+                             + " WHERE short_url > ? AND short_url <= ? AND long_url_digest IS NULL")) {
+            String lastShortUrl = "";
+            long backfilled = 0;
+            while (true) {
+                nextRange.setString(1, lastShortUrl);
+                nextRange.setInt(2, BATCH_SIZE);
+                String rangeEnd;
+                try (ResultSet resultSet = nextRange.executeQuery()) {
+                    resultSet.next();
+                    rangeEnd = resultSet.getString(1);
+                }
+                if (rangeEnd == null) {
+                    break;
+                }
+                update.setString(1, lastShortUrl);
+                update.setString(2, rangeEnd);
+                backfilled += update.executeUpdate();
+                connection.commit();
+                lastShortUrl = rangeEnd;
+            }
+            log.info("Backfilled the long url digest of {} url mappings", backfilled);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+}
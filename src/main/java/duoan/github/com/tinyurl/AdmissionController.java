@@ -0,0 +1,264 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how many requests run through {@link TinyUrlService} at once, and sheds the rest with a
+ * {@link TinyUrlOverloadedException} instead of letting them pile up on Tomcat threads and the pools behind.
+ * <p>
+ * The limit adapts to the latency of the admitted requests, like a gradient limiter: every {@code window}, the
+ * average latency of the window is compared to a long-term average over about {@value #LONG_WINDOWS} windows. While
+ * it stays within {@code rtt-tolerance} times the long-term one the limit grows by a fifth of its square root per
+ * window, as far as requests actually use it; beyond, it shrinks by the ratio of the two right away, down to half per
+ * window. The limit stays within {@code min-limit} and {@code max-limit}.
+ * <p>
+ * Creates are only admitted while fewer requests than {@code create-share} of the limit run, so they are shed
+ * first. Redirects over the limit wait up to {@code max-queue-time} for a request to finish, at most
+ * {@code queue-capacity} of them.
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(prefix = "tinyurl.admission", name = "enabled", havingValue = "true")
+class AdmissionController {
+    private static final String METRIC_PREFIX = "tinyurl.admission";
+    /**
+     * Windows the long-term latency is averaged over.
+     */
+    static final int LONG_WINDOWS = 600;
+    /**
+     * Share of its square root the limit grows by per window.
+     */
+    private static final double GROWTH_STEP = 0.2;
+    /**
+     * Windows with fewer samples are added to the next one.
+     */
+    private static final int MIN_WINDOW_SAMPLES = 10;
+
+    enum Priority {
+        REDIRECT, CREATE
+    }
+
+    private final TinyUrlProperties.Admission config;
+    private final LongSupplier clock;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition released = queueLock.newCondition();
+    private final long windowNanos;
+    private final long maxQueueNanos;
+    private final TinyUrlOverloadedException[] overloaded = new TinyUrlOverloadedException[Priority.values().length];
+    private final Counter[] rejected = new Counter[Priority.values().length];
+    private final Timer queueTime;
+
+    private final LongAdder windowRttNanos = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+    private final ReentrantLock windowLock = new ReentrantLock();
+    private volatile long windowStart;
+    // guarded by windowLock
+    private double estimatedLimit;
+    private volatile double shortRttNanos;
+    private volatile double longRttNanos;
+    private volatile int limit;
+    private volatile int createLimit;
+
+    @Autowired
+    AdmissionController(TinyUrlProperties properties, MeterRegistry meterRegistry) {
+        this(properties, meterRegistry, System::nanoTime);
+    }
+
+    AdmissionController(TinyUrlProperties properties, MeterRegistry meterRegistry, LongSupplier clock) {
+        this.config = properties.getAdmission();
+        if (config.getMinLimit() < 1 || config.getMinLimit() > config.getMaxLimit()) {
+            throw new IllegalStateException("tinyurl.admission.min-limit must be within 1 and max-limit");
+        }
+        this.clock = clock;
+        this.windowNanos = config.getWindow().toNanos();
+        this.maxQueueNanos = config.getMaxQueueTime().toNanos();
+        this.windowStart = clock.getAsLong();
+        setLimit(Math.clamp(config.getInitialLimit(), config.getMinLimit(), config.getMaxLimit()));
+        for (Priority priority : Priority.values()) {
+            String tag = priority.name().toLowerCase(Locale.ROOT);
+            overloaded[priority.ordinal()] = new TinyUrlOverloadedException(tag, config.getRetryAfter());
+            rejected[priority.ordinal()] = Counter.builder(METRIC_PREFIX + ".rejected")
+                    .description("Requests shed by the concurrency limit")
+                    .tag("priority", tag)
+                    .register(meterRegistry);
+        }
+        this.queueTime = Timer.builder(METRIC_PREFIX + ".queue")
+                .description("Time redirects over the limit waited to be admitted")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".limit", this, AdmissionController::limit)
+                .description("Requests admitted at once")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".in_flight", inFlight, AtomicInteger::get)
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".queued", queued, AtomicInteger::get)
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".rtt", this, a -> a.shortRttNanos / 1e9)
+                .description("Average latency of the admitted requests in the last window")
+                .tag("window", "short")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".rtt", this, a -> a.longRttNanos / 1e9)
+                .description("Long-term average latency of the admitted requests")
+                .tag("window", "long")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Admits a request, or sheds it.
+     *
+     * @return the admission time to pass to {@link #release}
+     * @throws TinyUrlOverloadedException if the request is shed
+     */
+    long acquire(Priority priority) {
+        if (tryAcquire(priority == Priority.REDIRECT ? limit : createLimit)) {
+            return clock.getAsLong();
+        }
+        if (priority == Priority.REDIRECT && maxQueueNanos > 0) {
+            return queue();
+        }
+        throw reject(priority);
+    }
+
+    /**
+     * Ends a request {@link #acquire} admitted, its latency from then on adjusts the limit.
+     */
+    void release(long admittedNanos) {
+        inFlight.decrementAndGet();
+        long now = clock.getAsLong();
+        windowRttNanos.add(now - admittedNanos);
+        windowSamples.increment();
+        if (queued.get() > 0) {
+            queueLock.lock();
+            try {
+                released.signal();
+            } finally {
+                queueLock.unlock();
+            }
+        }
+        if (now - windowStart >= windowNanos && windowLock.tryLock()) {
+            try {
+                updateLimit(now);
+            } finally {
+                windowLock.unlock();
+            }
+        }
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    private boolean tryAcquire(int max) {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= max) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                if (current + 1 > windowMaxInFlight.get()) {
+                    windowMaxInFlight.accumulateAndGet(current + 1, Math::max);
+                }
+                return true;
+            }
+        }
+    }
+
+    private long queue() {
+        if (queued.incrementAndGet() > config.getQueueCapacity()) {
+            queued.decrementAndGet();
+            throw reject(Priority.REDIRECT);
+        }
+        long start = clock.getAsLong();
+        queueLock.lock();
+        try {
+            long remaining = maxQueueNanos;
+            while (!tryAcquire(limit)) {
+                if (remaining <= 0) {
+                    throw reject(Priority.REDIRECT);
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject(Priority.REDIRECT);
+        } finally {
+            queueLock.unlock();
+            queued.decrementAndGet();
+        }
+        long admitted = clock.getAsLong();
+        queueTime.record(admitted - start, TimeUnit.NANOSECONDS);
+        return admitted;
+    }
+
+    private TinyUrlOverloadedException reject(Priority priority) {
+        rejected[priority.ordinal()].increment();
+        return overloaded[priority.ordinal()];
+    }
+
+    private void updateLimit(long now) {
+        long samples = windowSamples.sum();
+        if (samples < MIN_WINDOW_SAMPLES) {
+            return;
+        }
+        samples = windowSamples.sumThenReset();
+        double shortRtt = (double) windowRttNanos.sumThenReset() / samples;
+        int maxInFlight = windowMaxInFlight.getAndSet(inFlight.get());
+        windowStart = now;
+
+        double longRtt = longRttNanos == 0 ? shortRtt : longRttNanos + (shortRtt - longRttNanos) / LONG_WINDOWS;
+        if (longRtt > 2 * shortRtt) {
+            // latency dropped for good, do not hold on to the old baseline for another few hundred windows
+            longRtt *= 0.95;
+        }
+        shortRttNanos = shortRtt;
+        longRttNanos = longRtt;
+
+        double gradient = Math.clamp(config.getRttTolerance() * longRtt / shortRtt, 0.5, 1.0);
+        if (gradient == 1.0 && maxInFlight < estimatedLimit / 2) {
+            // the limit is not what holds requests back, growing it would not tell anything
+            return;
+        }
+        double newLimit;
+        if (gradient < 1.0) {
+            // right away, not stepped like an increase, or it would take several windows to relieve what slows down
+            newLimit = estimatedLimit * gradient;
+        } else {
+            newLimit = estimatedLimit + Math.sqrt(estimatedLimit) * GROWTH_STEP;
+        }
+        int previous = limit;
+        setLimit(Math.clamp(newLimit, config.getMinLimit(), config.getMaxLimit()));
+        if (limit <= previous / 2) {
+            log.warn("Concurrency limit halved from {} to {}: {} µs per request instead of {} µs", previous, limit,
+                    (long) shortRtt / 1_000, (long) longRtt / 1_000);
+        }
+    }
+
+    private void setLimit(double limit) {
+        this.estimatedLimit = limit;
+        this.limit = (int) limit;
+        this.createLimit = Math.max(1, (int) (limit * config.getCreateShare()));
+    }
+}
@@ -0,0 +1,58 @@
+package duoan.github.com.tinyurl;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A {@link CacheManager} which writes entries of several of its caches in one round-trip, and reads many keys of a
+ * cache at once. {@link #of} adapts other cache managers, such as the in-memory ones of tests, with a call per entry.
+ */
+interface BatchingCacheManager extends CacheManager {
+    void putAll(List<Entry> entries);
+
+    /**
+     * @return the values of {@code keys} in the same order, {@code null} for those not cached
+     */
+    List<String> getAll(String cacheName, List<String> keys);
+
+    record Entry(String cacheName, String key, String value) {
+    }
+
+    static BatchingCacheManager of(CacheManager cacheManager) {
+        return cacheManager instanceof BatchingCacheManager batching ? batching : new PerEntry(cacheManager);
+    }
+
+    record PerEntry(CacheManager cacheManager) implements BatchingCacheManager {
+        @Override
+        public Cache getCache(String name) {
+            return cacheManager.getCache(name);
+        }
+
+        @Override
+        public Collection<String> getCacheNames() {
+            return cacheManager.getCacheNames();
+        }
+
+        @Override
+        public void putAll(List<Entry> entries) {
+            for (Entry entry : entries) {
+                Objects.requireNonNull(getCache(entry.cacheName()), entry.cacheName()).put(entry.key(), entry.value());
+            }
+        }
+
+        @Override
+        public List<String> getAll(String cacheName, List<String> keys) {
+            Cache cache = Objects.requireNonNull(getCache(cacheName), cacheName);
+            List<String> values = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                values.add(cache.get(key, String.class));
+            }
+            return values;
+        }
+    }
+}
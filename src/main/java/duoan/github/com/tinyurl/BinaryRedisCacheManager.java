@@ -0,0 +1,237 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.types.Expiration;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * L2 of {@link TinyUrlCache} in Redis, in a compact binary form instead of {@code RedisCacheManager}'s JDK serialized
+ * values under {@code "<prefix><cache name>::<key>"} keys:
+ * <ul>
+ *     <li>values are the UTF-8 bytes of the long or short url;</li>
+ *     <li>S2L keys are the {@link TinyUrlCache#L2_KEY_PREFIX prefix}, {@code 's'} and the 8 bytes of
+ *     {@link ShortUrlCodec#pack}, L2S keys the prefix, {@code 'l'} and the 16 bytes of the {@link LongUrlDigest}. Keys
+ *     which do not pack, such as negative entries of malformed short urls, keep their text after {@code 'S'} or
+ *     {@code 'L'}.</li>
+ * </ul>
+ * {@link #putAll} writes the entries of a mapping in one pipelined round-trip, {@link #getAll} reads many keys with
+ * one {@code MGET}. Round-trips are counted as {@code tinyurl.cache.l2.round_trips} by operation.
+ */
+class BinaryRedisCacheManager implements BatchingCacheManager {
+    private static final byte[] PREFIX = TinyUrlCache.L2_KEY_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte PACKED_SHORT_URL = 's';
+    private static final byte SHORT_URL_TEXT = 'S';
+    private static final byte DIGEST = 'l';
+    private static final byte DIGEST_TEXT = 'L';
+    private static final int DIGEST_KEY_LENGTH = 22;
+
+    private final RedisConnectionFactory connectionFactory;
+    private final Expiration ttl;
+    private final Map<String, BinaryRedisCache> caches;
+    private final Counter getRoundTrips;
+    private final Counter putRoundTrips;
+    private final Counter evictRoundTrips;
+    private final Counter getAllRoundTrips;
+    private final Counter putAllRoundTrips;
+
+    BinaryRedisCacheManager(RedisConnectionFactory connectionFactory, Duration ttl, MeterRegistry meterRegistry) {
+        this.connectionFactory = connectionFactory;
+        this.ttl = Expiration.from(ttl);
+        this.caches = Map.of(
+                TinyUrlCache.SHORT_URL_TO_LONG_URL, new BinaryRedisCache(TinyUrlCache.SHORT_URL_TO_LONG_URL),
+                TinyUrlCache.LONG_URL_TO_SHORT_URL, new BinaryRedisCache(TinyUrlCache.LONG_URL_TO_SHORT_URL));
+        this.getRoundTrips = roundTrips(meterRegistry, "get");
+        this.putRoundTrips = roundTrips(meterRegistry, "put");
+        this.evictRoundTrips = roundTrips(meterRegistry, "evict");
+        this.getAllRoundTrips = roundTrips(meterRegistry, "get_all");
+        this.putAllRoundTrips = roundTrips(meterRegistry, "put_all");
+    }
+
+    private static Counter roundTrips(MeterRegistry meterRegistry, String operation) {
+        return Counter.builder("tinyurl.cache.l2.round_trips")
+                .description("Round-trips to the Redis L2")
+                .tag("operation", operation)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        return caches.get(name);
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return caches.keySet();
+    }
+
+    @Override
+    public void putAll(List<Entry> entries) {
+        putAllRoundTrips.increment();
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            connection.openPipeline();
+            for (Entry entry : entries) {
+                connection.stringCommands().set(key(entry.cacheName(), entry.key()), value(entry.value()), ttl,
+                        RedisStringCommands.SetOption.upsert());
+            }
+            connection.closePipeline();
+        }
+    }
+
+    @Override
+    public List<String> getAll(String cacheName, List<String> keys) {
+        if (keys.isEmpty()) {
+            return List.of();
+        }
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = key(cacheName, keys.get(i));
+        }
+        getAllRoundTrips.increment();
+        List<byte[]> rawValues;
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            rawValues = connection.stringCommands().mGet(rawKeys);
+        }
+        List<String> values = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            values.add(rawValues == null ? null : value(rawValues.get(i)));
+        }
+        return values;
+    }
+
+    static byte[] key(String cacheName, String key) {
+        switch (cacheName) {
+            case TinyUrlCache.SHORT_URL_TO_LONG_URL -> {
+                long packed = ShortUrlCodec.pack(key);
+                if (packed >= 0) {
+                    return prefixed(PACKED_SHORT_URL, Long.BYTES).putLong(packed).array();
+                }
+                return text(SHORT_URL_TEXT, key);
+            }
+            case TinyUrlCache.LONG_URL_TO_SHORT_URL -> {
+                if (key.length() == DIGEST_KEY_LENGTH) {
+                    try {
+                        byte[] digest = Base64.getUrlDecoder().decode(key);
+                        return prefixed(DIGEST, digest.length).put(digest).array();
+                    } catch (IllegalArgumentException e) {
+                        // not a LongUrlDigest#cacheKey, stored as it is
+                    }
+                }
+                return text(DIGEST_TEXT, key);
+            }
+            default -> throw new IllegalArgumentException("No L2 cache named " + cacheName);
+        }
+    }
+
+    static byte[] value(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String value(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] text(byte tag, String key) {
+        byte[] text = key.getBytes(StandardCharsets.UTF_8);
+        return prefixed(tag, text.length).put(text).array();
+    }
+
+    private static ByteBuffer prefixed(byte tag, int length) {
+        return ByteBuffer.allocate(PREFIX.length + 1 + length).put(PREFIX).put(tag);
+    }
+
+    private final class BinaryRedisCache extends AbstractValueAdaptingCache {
+        private final String name;
+
+        BinaryRedisCache(String name) {
+            super(false);
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Object getNativeCache() {
+            return connectionFactory;
+        }
+
+        @Override
+        protected Object lookup(Object key) {
+            getRoundTrips.increment();
+            try (RedisConnection connection = connectionFactory.getConnection()) {
+                return value(connection.stringCommands().get(key(name, (String) key)));
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T get(Object key, Callable<T> valueLoader) {
+            ValueWrapper cached = get(key);
+            if (cached != null) {
+                return (T) cached.get();
+            }
+            T value;
+            try {
+                value = valueLoader.call();
+            } catch (Exception e) {
+                throw new ValueRetrievalException(key, valueLoader, e);
+            }
+            put(key, value);
+            return value;
+        }
+
+        @Override
+        public void put(Object key, Object value) {
+            putRoundTrips.increment();
+            try (RedisConnection connection = connectionFactory.getConnection()) {
+                connection.stringCommands().set(key(name, (String) key), value((String) value), ttl,
+                        RedisStringCommands.SetOption.upsert());
+            }
+        }
+
+        @Override
+        public void evict(Object key) {
+            evictRoundTrips.increment();
+            try (RedisConnection connection = connectionFactory.getConnection()) {
+                connection.keyCommands().del(key(name, (String) key));
+            }
+        }
+
+        @Override
+        public void clear() {
+            boolean s2l = name.equals(TinyUrlCache.SHORT_URL_TO_LONG_URL);
+            clear(s2l ? PACKED_SHORT_URL : DIGEST);
+            clear(s2l ? SHORT_URL_TEXT : DIGEST_TEXT);
+        }
+
+        private void clear(byte tag) {
+            ScanOptions options = ScanOptions.scanOptions()
+                    .match(TinyUrlCache.L2_KEY_PREFIX + (char) tag + "*")
+                    .count(1_000)
+                    .build();
+            try (RedisConnection connection = connectionFactory.getConnection();
+                 Cursor<byte[]> keys = connection.keyCommands().scan(options)) {
+                keys.forEachRemaining(key -> connection.keyCommands().del(key));
+            }
+        }
+    }
+}
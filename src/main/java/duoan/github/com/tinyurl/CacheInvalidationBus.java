@@ -0,0 +1,177 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Broadcasts key-level invalidations of L1 entries between nodes, so that L1 does not have to expire entries early
+ * just because other nodes change them.
+ * <p>
+ * Invalidations are coalesced per cache and key and sent every {@code max-delay}, at most {@code batch-size} per
+ * message, through a {@link CacheInvalidationTransport}. Receivers drop the keys from their L1 and read them from L2
+ * again, which the sender wrote before publishing. Delivery is at most once, a node missing a message keeps the stale
+ * entry until L1 expires it, so the L1 expiry remains the upper bound of staleness.
+ * <p>
+ * The delivery lag, from the oldest invalidation of a message being published to it being applied on another node,
+ * is recorded as {@code tinyurl.cache.invalidation.lag}; it includes the clock offset between the two nodes.
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(name = "tinyurl.cache.invalidation.enabled", havingValue = "true")
+class CacheInvalidationBus {
+    private static final String METRIC_PREFIX = "tinyurl.cache.invalidation";
+
+    private final CacheInvalidationTransport transport;
+    private final TinyUrlProperties.Invalidation config;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final List<Consumer<Invalidation>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor;
+    private final Counter published;
+    private final Counter coalesced;
+    private final Counter sent;
+    private final Counter sendFailures;
+    private final Counter received;
+    private final Timer lag;
+    // guarded by this
+    private Set<Invalidation> pending = new LinkedHashSet<>();
+    private long pendingSinceMillis;
+
+    CacheInvalidationBus(CacheInvalidationTransport transport, TinyUrlProperties properties,
+                         MeterRegistry meterRegistry) {
+        this.transport = transport;
+        this.config = properties.getCache().getInvalidation();
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("cache-invalidation-publisher").factory());
+        this.published = Counter.builder(METRIC_PREFIX + ".published")
+                .description("Invalidations published by this node")
+                .register(meterRegistry);
+        this.coalesced = Counter.builder(METRIC_PREFIX + ".coalesced")
+                .description("Invalidations published again before the pending one was sent")
+                .register(meterRegistry);
+        this.sent = Counter.builder(METRIC_PREFIX + ".messages")
+                .description("Messages of invalidations sent")
+                .register(meterRegistry);
+        this.sendFailures = Counter.builder(METRIC_PREFIX + ".send_failures")
+                .description("Messages of invalidations which failed to be sent, their invalidations are lost")
+                .register(meterRegistry);
+        this.received = Counter.builder(METRIC_PREFIX + ".received")
+                .description("Invalidations received from other nodes")
+                .register(meterRegistry);
+        this.lag = Timer.builder(METRIC_PREFIX + ".lag")
+                .description("Time from publishing an invalidation to applying it on another node")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        transport.subscribe(this::receive);
+    }
+
+    @PostConstruct
+    void start() {
+        long interval = config.getMaxDelay().toNanos();
+        executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.NANOSECONDS);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+
+    void subscribe(Consumer<Invalidation> listener) {
+        listeners.add(listener);
+    }
+
+    void publish(String cacheName, String key) {
+        published.increment();
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                pendingSinceMillis = System.currentTimeMillis();
+            }
+            if (!pending.add(new Invalidation(cacheName, key))) {
+                coalesced.increment();
+            }
+        }
+    }
+
+    void flush() {
+        Set<Invalidation> invalidations;
+        long sinceMillis;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            invalidations = pending;
+            sinceMillis = pendingSinceMillis;
+            pending = new LinkedHashSet<>();
+        }
+        List<Invalidation> batch = new ArrayList<>(Math.min(invalidations.size(), config.getBatchSize()));
+        for (Invalidation invalidation : invalidations) {
+            batch.add(invalidation);
+            if (batch.size() == config.getBatchSize()) {
+                send(batch, sinceMillis);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            send(batch, sinceMillis);
+        }
+    }
+
+    /**
+     * One line per invalidation after a header line of the sender and publish time, keys never contain whitespace.
+     */
+    private void send(List<Invalidation> batch, long sinceMillis) {
+        StringBuilder message = new StringBuilder(batch.size() * 32)
+                .append(nodeId).append(' ').append(sinceMillis);
+        for (Invalidation invalidation : batch) {
+            message.append('\n').append(invalidation.cacheName()).append(' ').append(invalidation.key());
+        }
+        try {
+            transport.send(message.toString());
+            sent.increment();
+        } catch (RuntimeException e) {
+            log.warn("Failed to send {} cache invalidations", batch.size(), e);
+            sendFailures.increment();
+        }
+    }
+
+    private void receive(String message) {
+        try {
+            String[] lines = message.split("\n");
+            String[] header = lines[0].split(" ");
+            if (header[0].equals(nodeId)) {
+                return;
+            }
+            for (int i = 1; i < lines.length; i++) {
+                int separator = lines[i].indexOf(' ');
+                Invalidation invalidation = new Invalidation(lines[i].substring(0, separator),
+                        lines[i].substring(separator + 1));
+                listeners.forEach(listener -> listener.accept(invalidation));
+            }
+            received.increment(lines.length - 1);
+            lag.record(Math.max(0, System.currentTimeMillis() - Long.parseLong(header[1])), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            log.warn("Failed to apply cache invalidations {}", message, e);
+        }
+    }
+
+    record Invalidation(String cacheName, String key) {
+    }
+}
@@ -0,0 +1,15 @@
+package duoan.github.com.tinyurl;
+
+import java.util.function.Consumer;
+
+/**
+ * Broadcasts {@link CacheInvalidationBus} messages to every node, the sender included.
+ */
+interface CacheInvalidationTransport {
+    /**
+     * Fire and forget: nodes not connected at the time never receive the message.
+     */
+    void send(String message);
+
+    void subscribe(Consumer<String> receiver);
+}
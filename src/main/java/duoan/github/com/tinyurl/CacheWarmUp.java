@@ -0,0 +1,225 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms L1 up on startup with the short urls hot on the other nodes, so a new node does not start out missing into
+ * Redis and the replica.
+ * <p>
+ * Every node publishes the short urls hottest in its L1 every {@code publish-interval}, ranked by Caffeine's
+ * frequency sketch, as a Redis sorted set of its own which expires unless republished, and lists it in the
+ * {@value #HOT_KEYS_INDEX} sorted set, scored by its expiry, so that the warm-up finds the snapshots without scanning
+ * the keyspace. A node replaced in a rolling update leaves its snapshot behind for its successor. On startup the
+ * snapshots are merged by summed rank score and the top {@code max-keys} read from L2 into L1 by multi-gets, never
+ * from the database. This runs as an {@link ApplicationRunner}, and Spring only reports the node
+ * {@linkplain ReadinessState#ACCEPTING_TRAFFIC ready} once the runners returned, so readiness waits for the warm-up,
+ * but at most {@code time-budget}.
+ * <p>
+ * The L1 hit ratio of redirects over the first {@code startup-window} after becoming ready is published as
+ * {@code tinyurl.cache.startup.l1.hit_ratio}, tagged {@code start=warm} or {@code start=cold}, whether warm-up is
+ * enabled or not, to compare both.
+ */
+@Log4j2
+@Component
+class CacheWarmUp implements ApplicationRunner {
+    static final String HOT_KEYS_PREFIX = "tinyurl:hot-keys:";
+    static final String HOT_KEYS_INDEX = "tinyurl:hot-keys";
+    private static final String STAGING_PREFIX = "tinyurl:hot-keys-staging:";
+    private static final String METRIC_PREFIX = "tinyurl.cache";
+    /**
+     * Hot keys read from L2 per multi-get.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    private final TinyUrlCache cache;
+    private final StringRedisTemplate redisTemplate;
+    private final TinyUrlProperties.WarmUp config;
+    private final MeterRegistry meterRegistry;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Counter loaded;
+    private final Counter missed;
+    private volatile int total;
+
+    CacheWarmUp(TinyUrlCache cache, StringRedisTemplate redisTemplate, TinyUrlProperties properties,
+                MeterRegistry meterRegistry) {
+        this.cache = cache;
+        this.redisTemplate = redisTemplate;
+        this.config = properties.getCache().getWarmUp();
+        this.meterRegistry = meterRegistry;
+        this.loaded = Counter.builder(METRIC_PREFIX + ".warm_up.keys")
+                .description("Hot keys read from L2 into L1 on startup")
+                .tag("result", "loaded")
+                .register(meterRegistry);
+        this.missed = Counter.builder(METRIC_PREFIX + ".warm_up.keys")
+                .description("Hot keys read from L2 into L1 on startup")
+                .tag("result", "missed")
+                .register(meterRegistry);
+        meterRegistry.gauge(METRIC_PREFIX + ".warm_up.progress", this, w -> w.total == 0
+                ? 1 : (w.loaded.count() + w.missed.count()) / w.total);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        boolean warm = config.isEnabled() && warmUp() > 0;
+        StartupHitRatio hitRatio = new StartupHitRatio(System.nanoTime() + config.getStartupWindow().toNanos());
+        Gauge.builder(METRIC_PREFIX + ".startup.l1.hit_ratio", hitRatio, StartupHitRatio::get)
+                .description("L1 hit ratio of redirects over the first startup-window after becoming ready")
+                .tag("start", warm ? "warm" : "cold")
+                // nothing else references it, a weakly referenced one would read NaN after the next GC
+                .strongReference(true)
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the number of short urls loaded into L1
+     */
+    private long warmUp() {
+        long start = System.nanoTime();
+        long deadline = start + config.getTimeBudget().toNanos();
+        List<String> shortUrls;
+        try {
+            shortUrls = readHotKeys();
+        } catch (RuntimeException e) {
+            log.warn("Skipping the L1 warm-up, failed to read the hot keys", e);
+            return 0;
+        }
+        total = shortUrls.size();
+        int threads = Math.max(1, Math.min(config.getConcurrency(), Math.ceilDiv(shortUrls.size(), BATCH_SIZE)));
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                Thread.ofPlatform().daemon().name("cache-warm-up-", 0).factory());
+        try {
+            for (int thread = 0; thread < threads; thread++) {
+                int first = thread * BATCH_SIZE;
+                // batches interleaved, so the hottest keys go first on every thread
+                executor.execute(() -> {
+                    for (int i = first; i < shortUrls.size() && System.nanoTime() - deadline < 0;
+                         i += threads * BATCH_SIZE) {
+                        List<String> batch = shortUrls.subList(i, Math.min(i + BATCH_SIZE, shortUrls.size()));
+                        try {
+                            int batchLoaded = cache.warmUp(batch);
+                            loaded.increment(batchLoaded);
+                            missed.increment(batch.size() - batchLoaded);
+                        } catch (RuntimeException e) {
+                            log.warn("Stopping the L1 warm-up, failed to read L2", e);
+                            return;
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                log.warn("L1 warm-up ran out of its time budget of {}", config.getTimeBudget());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // a multi-get stuck on L2 must not hold readiness back, its daemon thread is left to finish on its own
+            executor.shutdownNow();
+        }
+        long loadedKeys = (long) loaded.count();
+        log.info("L1 warm-up loaded {} of {} hot keys in {} ms, {} missed in L2", loadedKeys, shortUrls.size(),
+                Duration.ofNanos(System.nanoTime() - start).toMillis(), (long) missed.count());
+        return loadedKeys;
+    }
+
+    private List<String> readHotKeys() {
+        Map<String, Double> scores = new HashMap<>();
+        Set<String> snapshots = redisTemplate.opsForZSet()
+                .rangeByScore(HOT_KEYS_INDEX, System.currentTimeMillis(), Double.POSITIVE_INFINITY);
+        if (snapshots != null) {
+            for (String snapshot : snapshots) {
+                Set<ZSetOperations.TypedTuple<String>> hotKeys = redisTemplate.opsForZSet()
+                        .reverseRangeWithScores(snapshot, 0, config.getMaxKeys() - 1);
+                if (hotKeys != null) {
+                    hotKeys.forEach(hotKey -> scores.merge(hotKey.getValue(), hotKey.getScore(), Double::sum));
+                }
+            }
+        }
+        return scores.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                .limit(config.getMaxKeys())
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    /**
+     * Replaces this node's snapshot with its current hot keys, scored from 1 for the hottest down towards 0.
+     */
+    @Scheduled(fixedDelayString = "${tinyurl.cache.warm-up.publish-interval:1m}",
+            initialDelayString = "${tinyurl.cache.warm-up.publish-interval:1m}")
+    void publish() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        List<String> hottest = cache.hottestShortUrls(config.getMaxKeys());
+        if (hottest.isEmpty()) {
+            return;
+        }
+        Set<ZSetOperations.TypedTuple<String>> hotKeys = new HashSet<>();
+        for (int rank = 0; rank < hottest.size(); rank++) {
+            hotKeys.add(ZSetOperations.TypedTuple.of(hottest.get(rank), 1 - (double) rank / hottest.size()));
+        }
+        String snapshot = HOT_KEYS_PREFIX + nodeId;
+        String staging = STAGING_PREFIX + nodeId;
+        Duration ttl = config.getPublishInterval().multipliedBy(3);
+        try {
+            // staged under a key the warm-up does not read, so it never reads a half-written snapshot
+            redisTemplate.opsForZSet().add(staging, hotKeys);
+            redisTemplate.rename(staging, snapshot);
+            redisTemplate.expire(snapshot, ttl);
+            long now = System.currentTimeMillis();
+            redisTemplate.opsForZSet().add(HOT_KEYS_INDEX, snapshot, now + ttl.toMillis());
+            // the snapshots of nodes gone for good
+            redisTemplate.opsForZSet().removeRangeByScore(HOT_KEYS_INDEX, Double.NEGATIVE_INFINITY, now);
+            redisTemplate.expire(HOT_KEYS_INDEX, ttl);
+        } catch (RuntimeException e) {
+            log.warn("Failed to publish {} hot keys to {}", hotKeys.size(), snapshot, e);
+        }
+    }
+
+    /**
+     * L1 hit ratio since it was created, frozen once {@code end} passed.
+     */
+    private final class StartupHitRatio {
+        private final long end;
+        private final double baseHits = cache.l1HitCount();
+        private final double baseMisses = cache.l1MissCount();
+        private double ratio = Double.NaN;
+        private boolean frozen;
+
+        StartupHitRatio(long end) {
+            this.end = end;
+        }
+
+        synchronized double get() {
+            if (!frozen) {
+                double hits = cache.l1HitCount() - baseHits;
+                double lookups = hits + cache.l1MissCount() - baseMisses;
+                ratio = lookups == 0 ? Double.NaN : hits / lookups;
+                frozen = System.nanoTime() - end >= 0;
+            }
+            return ratio;
+        }
+    }
+}
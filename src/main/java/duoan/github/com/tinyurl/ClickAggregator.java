@@ -0,0 +1,241 @@
+package duoan.github.com.tinyurl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process aggregation of redirects per short url and minute, drained by {@link ClickCounter}.
+ * <p>
+ * Clicks land in the current window, a map from short url to {@link LongAdder}, so counting a click on a link seen
+ * before is a lock-free map lookup and a striped increment, without allocating or even reading the clock: the
+ * window's minute is the bucket, and {@link #rollOver()}, called every second or so, retires the window once its
+ * minute has passed. Every {@link #drain()} retires it as well, and sums the retired windows once the clicks which
+ * entered them before have landed: each click registers with its window in a {@link LongAdder} of its own.
+ * <p>
+ * Memory is bounded by {@code maxTrackedLinks} per window. Once a window is full, it keeps its heavy hitters the
+ * space-saving way: clicks on links it does not track are counted in a Count-Min sketch, and a link whose estimate
+ * beats the smallest of {@value #EVICTION_SAMPLES} sampled tracked links replaces it, so a link which turns hot late
+ * in the minute is still counted from then on. Clicks of untracked and evicted links are cut off and only counted as
+ * such. Clicks on links a full window does not track take its lock.
+ */
+final class ClickAggregator {
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int EVICTION_SAMPLES = 8;
+
+    private final int maxTrackedLinks;
+    private final LongSupplier clock;
+    private final LongAdder cutOff = new LongAdder();
+    private volatile Window current;
+    // guarded by this
+    private List<Window> retired = new ArrayList<>();
+
+    ClickAggregator(int maxTrackedLinks) {
+        this(maxTrackedLinks, System::currentTimeMillis);
+    }
+
+    ClickAggregator(int maxTrackedLinks, LongSupplier clock) {
+        this.maxTrackedLinks = maxTrackedLinks;
+        this.clock = clock;
+        this.current = new Window(currentMinute());
+    }
+
+    void record(String shortUrl) {
+        Window window = enter();
+        try {
+            LongAdder clicks = window.clicks.get(shortUrl);
+            if (clicks == null) {
+                clicks = window.clicks.size() < maxTrackedLinks
+                        ? window.clicks.computeIfAbsent(shortUrl, k -> new LongAdder())
+                        : window.admit(shortUrl, cutOff);
+                if (clicks == null) {
+                    cutOff.increment();
+                    return;
+                }
+            }
+            clicks.increment();
+        } finally {
+            window.writers.decrement();
+        }
+    }
+
+    /**
+     * @return the current window, registered as written to, so that no drain sums it before the click is counted
+     */
+    private Window enter() {
+        while (true) {
+            Window window = current;
+            window.writers.increment();
+            if (window == current) {
+                return window;
+            }
+            // retired meanwhile, a drain may have waited for its writers already
+            window.writers.decrement();
+        }
+    }
+
+    /**
+     * Starts the window of the current minute if the clock moved past the current window's one.
+     */
+    synchronized void rollOver() {
+        Window window = current;
+        long minute = currentMinute();
+        // a clock stepping back keeps counting into the newer minute
+        if (minute > window.minute) {
+            retired.add(window);
+            current = new Window(minute);
+        }
+    }
+
+    private long currentMinute() {
+        return clock.getAsLong() / MINUTE_MILLIS;
+    }
+
+    /**
+     * Retires the current window and returns the clicks of every retired window, waiting for the clicks which entered
+     * one before it was retired to land.
+     *
+     * @return clicks per short url and minute, in key order
+     */
+    Map<Bucket, Long> drain() {
+        List<Window> drained;
+        synchronized (this) {
+            Window window = current;
+            retired.add(window);
+            current = new Window(Math.max(window.minute, currentMinute()));
+            drained = retired;
+            retired = new ArrayList<>();
+        }
+        // one minute's clicks may be spread over several windows
+        Map<Bucket, Long> clicks = new TreeMap<>();
+        for (Window window : drained) {
+            while (window.writers.sum() != 0) {
+                Thread.yield();
+            }
+            window.clicks.forEach((shortUrl, adder) ->
+                    clicks.merge(new Bucket(shortUrl, window.minute), adder.sum(), Long::sum));
+        }
+        return clicks;
+    }
+
+    /**
+     * @return the clicks cut off since the previous call
+     */
+    long takeCutOff() {
+        return cutOff.sumThenReset();
+    }
+
+    int trackedLinks() {
+        return current.clicks.size();
+    }
+
+    /**
+     * @param minute minutes since the epoch
+     */
+    record Bucket(String shortUrl, long minute) implements Comparable<Bucket> {
+        @Override
+        public int compareTo(Bucket other) {
+            int byShortUrl = shortUrl.compareTo(other.shortUrl);
+            return byShortUrl != 0 ? byShortUrl : Long.compare(minute, other.minute);
+        }
+
+        long startEpochMillis() {
+            return minute * MINUTE_MILLIS;
+        }
+    }
+
+    private static final class Window {
+        private static final int SKETCH_DEPTH = 4;
+
+        final long minute;
+        final ConcurrentHashMap<String, LongAdder> clicks = new ConcurrentHashMap<>();
+        // clicks which entered the window and are not counted yet
+        final LongAdder writers = new LongAdder();
+        // guarded by this, once the window is full: its tracked links, to sample eviction victims from
+        private String[] links;
+        // guarded by this, once the window is full: clicks on the links it does not track
+        private int[] sketch;
+
+        Window(long minute) {
+            this.minute = minute;
+        }
+
+        /**
+         * Called once the window is full.
+         *
+         * @return the clicks of {@code shortUrl} from now on, or {@code null} if it does not make it into the window
+         */
+        synchronized LongAdder admit(String shortUrl, LongAdder cutOff) {
+            LongAdder clicks = this.clicks.get(shortUrl);
+            if (clicks != null) {
+                return clicks;
+            }
+            if (links == null) {
+                links = this.clicks.keySet().toArray(String[]::new);
+                sketch = new int[SKETCH_DEPTH * Integer.highestOneBit(Math.max(16, links.length) * 2 - 1)];
+            }
+            if (links.length == 0) {
+                return null;
+            }
+            int seen = countUntracked(shortUrl);
+            int victim = 0;
+            long victimClicks = Long.MAX_VALUE;
+            for (int i = 0; i < EVICTION_SAMPLES; i++) {
+                int candidate = ThreadLocalRandom.current().nextInt(links.length);
+                long candidateClicks = this.clicks.get(links[candidate]).sum();
+                if (candidateClicks < victimClicks) {
+                    victim = candidate;
+                    victimClicks = candidateClicks;
+                }
+            }
+            if (seen <= victimClicks) {
+                return null;
+            }
+            // a click which read the victim's adder just before may still land on it, and get lost
+            cutOff.add(this.clicks.remove(links[victim]).sum());
+            links[victim] = shortUrl;
+            clicks = new LongAdder();
+            this.clicks.put(shortUrl, clicks);
+            return clicks;
+        }
+
+        /**
+         * Counts a click on a link the window does not track, with conservative updates.
+         *
+         * @return the estimated clicks on it since the window was full
+         */
+        private int countUntracked(String shortUrl) {
+            int width = sketch.length / SKETCH_DEPTH;
+            int hash = spread(shortUrl.hashCode());
+            int step = spread(hash + 0x9E3779B9) | 1;
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                min = Math.min(min, sketch[row * width + ((hash + row * step) & (width - 1))]);
+            }
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                int index = row * width + ((hash + row * step) & (width - 1));
+                if (sketch[index] == min) {
+                    sketch[index]++;
+                }
+            }
+            return min + 1;
+        }
+
+        /**
+         * Murmur3's finalizer, so that every bit of the hash code affects the counters picked.
+         */
+        private static int spread(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x85EBCA6B;
+            hash ^= hash >>> 13;
+            hash *= 0xC2B2AE35;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
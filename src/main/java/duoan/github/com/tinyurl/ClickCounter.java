@@ -0,0 +1,170 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts redirects per short url and minute without touching the database on the redirect path.
+ * <p>
+ * Clicks are aggregated in memory by {@link ClickAggregator} and drained every {@code flush-interval} into
+ * {@code t_url_clicks} as batched upserts of {@code flush-batch-size} rows, each its own transaction, in key order
+ * so that nodes flushing the same links never deadlock. Clicks of a failed flush are dropped and counted, like the
+ * ones cut off by {@code max-tracked-links}. With sharding, clicks are stored on the shard of their short url at the
+ * time, they do not move with the url mapping, so stats are summed over every shard.
+ * <p>
+ * Stats lag behind by up to one flush interval.
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(name = "tinyurl.clicks.enabled", havingValue = "true")
+class ClickCounter {
+    private static final String METRIC_PREFIX = "tinyurl.clicks";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate writeTransaction;
+    private final TransactionTemplate readTransaction;
+    private final ShardRouter shardRouter;
+    private final TinyUrlProperties.Clicks config;
+    private final ClickAggregator aggregator;
+    private final ScheduledExecutorService executor;
+    private final Counter flushed;
+    private final Counter cutOff;
+    private final Counter flushFailed;
+    private final Timer flushLatency;
+
+    ClickCounter(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                 ObjectProvider<ShardRouter> shardRouter, TinyUrlProperties properties, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+        this.shardRouter = shardRouter.getIfAvailable();
+        this.config = properties.getClicks();
+        this.aggregator = new ClickAggregator(config.getMaxTrackedLinks());
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("click-counter-flusher").factory());
+        this.flushed = Counter.builder(METRIC_PREFIX + ".flushed")
+                .description("Clicks written to t_url_clicks")
+                .register(meterRegistry);
+        this.cutOff = Counter.builder(METRIC_PREFIX + ".dropped")
+                .description("Clicks not counted")
+                .tag("reason", "cut_off")
+                .register(meterRegistry);
+        this.flushFailed = Counter.builder(METRIC_PREFIX + ".dropped")
+                .description("Clicks not counted")
+                .tag("reason", "flush_failed")
+                .register(meterRegistry);
+        this.flushLatency = Timer.builder(METRIC_PREFIX + ".flush")
+                .description("Time taken to upsert the clicks of a flush interval")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        meterRegistry.gauge(METRIC_PREFIX + ".tracked_links", aggregator, ClickAggregator::trackedLinks);
+    }
+
+    @PostConstruct
+    void start() {
+        // minute buckets are off by at most this second
+        executor.scheduleAtFixedRate(aggregator::rollOver, 1, 1, TimeUnit.SECONDS);
+        long interval = config.getFlushInterval().toMillis();
+        executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+
+    void record(String shortUrl) {
+        aggregator.record(shortUrl);
+    }
+
+    void flush() {
+        cutOff.increment(aggregator.takeCutOff());
+        Map<ClickAggregator.Bucket, Long> clicks = aggregator.drain();
+        if (clicks.isEmpty()) {
+            return;
+        }
+        Map<Integer, List<Map.Entry<ClickAggregator.Bucket, Long>>> byShard = new TreeMap<>();
+        for (Map.Entry<ClickAggregator.Bucket, Long> entry : clicks.entrySet()) {
+            int shard = shardRouter == null ? ShardMap.CATALOG_SHARD
+                    : shardRouter.route(entry.getKey().shortUrl()).shard();
+            byShard.computeIfAbsent(shard, k -> new ArrayList<>()).add(entry);
+        }
+        flushLatency.record(() -> byShard.forEach((shard, entries) -> {
+            for (int from = 0; from < entries.size(); from += config.getFlushBatchSize()) {
+                List<Map.Entry<ClickAggregator.Bucket, Long>> batch =
+                        entries.subList(from, Math.min(from + config.getFlushBatchSize(), entries.size()));
+                long batchClicks = batch.stream().mapToLong(Map.Entry::getValue).sum();
+                try {
+                    ShardContext.run(shard, () -> writeTransaction.executeWithoutResult(status -> upsert(batch)));
+                    flushed.increment(batchClicks);
+                } catch (RuntimeException e) {
+                    log.error("Failed to flush {} clicks on {} links to shard {}", batchClicks, batch.size(), shard, e);
+                    flushFailed.increment(batchClicks);
+                }
+            }
+        }));
+    }
+
+    private void upsert(List<Map.Entry<ClickAggregator.Bucket, Long>> batch) {
+        jdbcTemplate.update(con -> {
+            PreparedStatement ps = con.prepareStatement(
+                    "INSERT INTO t_url_clicks (short_url, bucket, clicks)"
+                            + " SELECT * FROM unnest(?::varchar[], ?::timestamp[], ?::bigint[])"
+                            + " ON CONFLICT (short_url, bucket)"
+                            + " DO UPDATE SET clicks = t_url_clicks.clicks + EXCLUDED.clicks");
+            ps.setArray(1, con.createArrayOf("varchar", batch.stream().map(e -> e.getKey().shortUrl()).toArray()));
+            ps.setArray(2, con.createArrayOf("timestamp", batch.stream()
+                    .map(e -> new Timestamp(e.getKey().startEpochMillis())).toArray()));
+            ps.setArray(3, con.createArrayOf("bigint", batch.stream().map(Map.Entry::getValue).toArray()));
+            return ps;
+        });
+    }
+
+    /**
+     * @return clicks on {@code shortUrl} per {@code granularity} bucket in {@code [from, to)}, buckets without clicks
+     * left out
+     */
+    ClickStats stats(String shortUrl, Instant from, Instant to, ClickStats.Granularity granularity) {
+        String sql = "SELECT date_trunc(?, bucket) AS bucket_start, sum(clicks) AS clicks FROM t_url_clicks"
+                + " WHERE short_url = ? AND bucket >= ? AND bucket < ? GROUP BY bucket_start ORDER BY bucket_start";
+        Map<Instant, Long> clicks = new TreeMap<>();
+        int shards = shardRouter == null ? 1 : shardRouter.shardCount();
+        for (int shard = 0; shard < shards; shard++) {
+            ShardContext.run(shard, () -> readTransaction.executeWithoutResult(status -> jdbcTemplate.query(sql,
+                    rs -> {
+                        clicks.merge(rs.getTimestamp("bucket_start").toInstant(), rs.getLong("clicks"), Long::sum);
+                    },
+                    granularity.name().toLowerCase(Locale.ROOT), shortUrl, Timestamp.from(from), Timestamp.from(to))));
+        }
+        List<ClickStats.Bucket> buckets = clicks.entrySet().stream()
+                .map(e -> new ClickStats.Bucket(e.getKey(), e.getValue()))
+                .toList();
+        long total = buckets.stream().mapToLong(ClickStats.Bucket::clicks).sum();
+        return new ClickStats(shortUrl, from, to, granularity, total, buckets);
+    }
+}
@@ -0,0 +1,25 @@
+package duoan.github.com.tinyurl;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Clicks on a short url in {@code [from, to)}, as returned by {@code GET /api/tinyurl/{shortUrl}/stats}.
+ */
+record ClickStats(String shortUrl, Instant from, Instant to, Granularity granularity, long total,
+                  List<Bucket> buckets) {
+
+    record Bucket(Instant start, long clicks) {
+    }
+
+    enum Granularity {
+        MINUTE(Duration.ofMinutes(1)), HOUR(Duration.ofHours(1)), DAY(Duration.ofDays(1));
+
+        final Duration length;
+
+        Granularity(Duration length) {
+            this.length = length;
+        }
+    }
+}
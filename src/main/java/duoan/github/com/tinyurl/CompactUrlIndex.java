@@ -0,0 +1,331 @@
+package duoan.github.com.tinyurl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Short url to long url map keyed by {@linkplain ShortUrlCodec#pack packed} short urls, holding millions of entries
+ * with a fixed, GC-invisible footprint.
+ * <p>
+ * The map is split into segments, each guarded by its own lock. A segment indexes its keys in an open-addressing
+ * table of primitive arrays ({@code long} key, {@code int} offset), and appends the UTF-8 bytes of the long urls to
+ * a log in an off-heap ring buffer. When the log or the index is full, the oldest record is evicted (FIFO). Entries
+ * read while they are in the oldest quarter of the log are moved to its head, which gives them a second chance like
+ * CLOCK's reference bit does, so hot entries stay while one-off ones age out.
+ * <p>
+ * Like the Caffeine L1, entries expire {@code expireAfterWrite} after they were put, however often they are read,
+ * so that mappings purged or changed through another node are eventually reloaded.
+ */
+class CompactUrlIndex {
+    /**
+     * Record header: packed key (8 bytes), length of the long url bytes (4 bytes) and write time (8 bytes).
+     */
+    private static final int HEADER_BYTES = 20;
+    private static final int WRITTEN_AT = Long.BYTES + Integer.BYTES;
+    private static final int WRAP = -1;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    CompactUrlIndex(int segmentCount, long arenaBytes, int maxEntries, Duration expireAfterWrite) {
+        this(segmentCount, arenaBytes, maxEntries, expireAfterWrite, System::nanoTime);
+    }
+
+    CompactUrlIndex(int segmentCount, long arenaBytes, int maxEntries, Duration expireAfterWrite,
+                    LongSupplier clock) {
+        if (Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("Segment count must be a power of two: " + segmentCount);
+        }
+        long segmentArenaBytes = arenaBytes / segmentCount;
+        if (segmentArenaBytes > Integer.MAX_VALUE || segmentArenaBytes < HEADER_BYTES) {
+            throw new IllegalArgumentException("Arena of " + arenaBytes + " bytes can not be split into "
+                    + segmentCount + " segments");
+        }
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = Long.SIZE - Integer.numberOfTrailingZeros(segmentCount);
+        int segmentMaxEntries = Math.max(1, maxEntries / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((int) segmentArenaBytes, segmentMaxEntries, expireAfterWrite.toNanos(), clock);
+        }
+    }
+
+    /**
+     * @return the long url stored for the packed short url, or {@code null}
+     */
+    String get(long key) {
+        if (key <= 0) {
+            return null;
+        }
+        long hash = mix(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * @return {@code false} if the long url is too large to be stored
+     */
+    boolean put(long key, String longUrl) {
+        if (key <= 0) {
+            return false;
+        }
+        long hash = mix(key);
+        return segmentFor(hash).put(key, hash, longUrl.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void remove(long key) {
+        if (key > 0) {
+            long hash = mix(key);
+            segmentFor(hash).remove(key, hash);
+        }
+    }
+
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    /**
+     * Off-heap bytes taken by records, including the padding wasted when the log wraps.
+     */
+    long arenaBytesUsed() {
+        long used = 0;
+        for (Segment segment : segments) {
+            used += segment.used;
+        }
+        return used;
+    }
+
+    long arenaBytesCapacity() {
+        long capacity = 0;
+        for (Segment segment : segments) {
+            capacity += segment.arena.capacity();
+        }
+        return capacity;
+    }
+
+    /**
+     * Heap bytes taken by the index arrays, independent of the number of entries.
+     */
+    long indexHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += (long) segment.keys.length * (Long.BYTES + Integer.BYTES);
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private static final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ByteBuffer arena;
+        private final int capacity;
+        private final int maxEntries;
+        private final long expireAfterWriteNanos;
+        private final LongSupplier clock;
+        /**
+         * Open addressing with linear probing, {@code 0} marks an empty slot (packed keys are never {@code 0}).
+         */
+        private final long[] keys;
+        private final int[] offsets;
+        private final int mask;
+        private volatile int count;
+        private volatile int used;
+        private int head;
+        private int tail;
+
+        Segment(int arenaBytes, int maxEntries, long expireAfterWriteNanos, LongSupplier clock) {
+            this.arena = ByteBuffer.allocateDirect(arenaBytes);
+            this.capacity = arenaBytes;
+            this.maxEntries = maxEntries;
+            this.expireAfterWriteNanos = expireAfterWriteNanos;
+            this.clock = clock;
+            // keep the load factor at or below 0.5
+            int slots = Integer.highestOneBit(Math.max(2, maxEntries) * 2 - 1) << 1;
+            this.keys = new long[slots];
+            this.offsets = new int[slots];
+            this.mask = slots - 1;
+        }
+
+        String get(long key, long hash) {
+            byte[] bytes;
+            lock.lock();
+            try {
+                int slot = find(key, hash);
+                if (slot < 0) {
+                    return null;
+                }
+                int offset = offsets[slot];
+                long writtenAt = arena.getLong(offset + WRITTEN_AT);
+                if (clock.getAsLong() - writtenAt >= expireAfterWriteNanos) {
+                    removeSlot(slot);
+                    return null;
+                }
+                bytes = new byte[arena.getInt(offset + Long.BYTES)];
+                arena.get(offset + HEADER_BYTES, bytes);
+                if (distanceFromTail(offset) < used / 4) {
+                    // second chance: move it away from the eviction end of the log, without renewing its write time
+                    removeSlot(slot);
+                    insert(key, hash, bytes, writtenAt);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        boolean put(long key, long hash, byte[] bytes) {
+            if (HEADER_BYTES + bytes.length > capacity) {
+                return false;
+            }
+            lock.lock();
+            try {
+                int slot = find(key, hash);
+                if (slot >= 0) {
+                    removeSlot(slot);
+                }
+                insert(key, hash, bytes, clock.getAsLong());
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(long key, long hash) {
+            lock.lock();
+            try {
+                int slot = find(key, hash);
+                if (slot >= 0) {
+                    removeSlot(slot);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void insert(long key, long hash, byte[] bytes, long writtenAt) {
+            while (count >= maxEntries) {
+                evictOldest();
+            }
+            int offset = append(key, bytes, writtenAt);
+            int slot = (int) hash & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            offsets[slot] = offset;
+            count++;
+        }
+
+        private int append(long key, byte[] bytes, long writtenAt) {
+            int recordBytes = HEADER_BYTES + bytes.length;
+            while (true) {
+                if (used == 0) {
+                    head = 0;
+                    tail = 0;
+                }
+                if (head >= tail && used < capacity) {
+                    // free space is [head, capacity) followed by [0, tail)
+                    if (capacity - head >= recordBytes) {
+                        break;
+                    }
+                    if (tail > 0 || used == 0) {
+                        // skip the end of the buffer, the record goes to the start
+                        if (capacity - head >= HEADER_BYTES) {
+                            arena.putLong(head, 0);
+                            arena.putInt(head + Long.BYTES, WRAP);
+                        }
+                        used += capacity - head;
+                        head = 0;
+                        continue;
+                    }
+                } else if (head < tail && tail - head >= recordBytes) {
+                    break;
+                }
+                evictOldest();
+            }
+            int offset = head;
+            arena.putLong(offset, key);
+            arena.putInt(offset + Long.BYTES, bytes.length);
+            arena.putLong(offset + WRITTEN_AT, writtenAt);
+            arena.put(offset + HEADER_BYTES, bytes);
+            head += recordBytes;
+            if (head == capacity) {
+                head = 0;
+            }
+            used += recordBytes;
+            return offset;
+        }
+
+        private void evictOldest() {
+            if (capacity - tail < HEADER_BYTES || arena.getInt(tail + Long.BYTES) == WRAP) {
+                used -= capacity - tail;
+                tail = 0;
+                return;
+            }
+            long key = arena.getLong(tail);
+            int recordBytes = HEADER_BYTES + arena.getInt(tail + Long.BYTES);
+            int slot = find(key, mix(key));
+            // the record may be stale, its key removed or rewritten further down the log
+            if (slot >= 0 && offsets[slot] == tail) {
+                removeSlot(slot);
+            }
+            used -= recordBytes;
+            tail += recordBytes;
+            if (tail == capacity) {
+                tail = 0;
+            }
+        }
+
+        private int distanceFromTail(int offset) {
+            return offset >= tail ? offset - tail : capacity - tail + offset;
+        }
+
+        private int find(long key, long hash) {
+            int slot = (int) hash & mask;
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Backward-shift deletion, keeps probe sequences intact without tombstones.
+         * The record stays in the log until the tail reaches it.
+         */
+        private void removeSlot(int slot) {
+            int hole = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (keys[next] == 0) {
+                    break;
+                }
+                int home = (int) mix(keys[next]) & mask;
+                boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+                if (!stays) {
+                    keys[hole] = keys[next];
+                    offsets[hole] = offsets[next];
+                    hole = next;
+                }
+            }
+            keys[hole] = 0;
+            count--;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package duoan.github.com.tinyurl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import java.time.Duration;
+
+/**
+ * Puts a {@link ConnectionBulkheadDataSource} sized to the pool in front of every Hikari pool.
+ */
+@Log4j2
+class ConnectionBulkheadPostProcessor implements BeanPostProcessor {
+    private final Duration acquireTimeout;
+
+    ConnectionBulkheadPostProcessor(Duration acquireTimeout) {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof HikariDataSource hikariDataSource) {
+            log.info("Limiting callers of data source '{}' to its {} connections", beanName,
+                    hikariDataSource.getMaximumPoolSize());
+            return new ConnectionBulkheadDataSource(hikariDataSource, hikariDataSource.getMaximumPoolSize(), acquireTimeout);
+        }
+        return bean;
+    }
+}
@@ -5,6 +5,10 @@ import lombok.experimental.UtilityClass;
 @UtilityClass
 public class Constants {
     static final int MAX_SHORT_URL_LENGTH = 9;
+    /**
+     * Of the canonical long url, as stored in {@code long_url}.
+     */
+    static final int MAX_LONG_URL_LENGTH = 2048;
     /**
      * Base64 character encodes 6 bits
      * A byte (8 bits) contributes to 1⅓ Base64 characters.
@@ -3,13 +3,20 @@ package duoan.github.com.tinyurl;
 import lombok.Getter;
 import lombok.Setter;
 import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.flywaydb.core.Flyway;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.jdbc.DataSourceBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
 import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
@@ -18,11 +25,50 @@ import org.springframework.stereotype.Component;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 @Configuration
 public class DataSourceConfig {
+    @Bean
+    @ConditionalOnProperty(name = "tinyurl.virtual-threads.connection-bulkhead.enabled", havingValue = "true")
+    static ConnectionBulkheadPostProcessor connectionBulkheadPostProcessor(
+            @Value("${tinyurl.virtual-threads.connection-bulkhead.acquire-timeout:5s}") Duration acquireTimeout) {
+        return new ConnectionBulkheadPostProcessor(acquireTimeout);
+    }
+
+    private static HikariDataSource pooledDataSource(String poolName,
+                                                     ReplicationDataSourceProperties.DatabaseConfig config) {
+        HikariDataSource dataSource = DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .url(config.getUrl())
+                .username(config.getUsername())
+                .password(config.getPassword())
+                .driverClassName(config.getDriverClassName())
+                .build();
+        dataSource.setPoolName(poolName);
+        dataSource.setMaximumPoolSize(config.getMaximumPoolSize());
+        // like spring.datasource.hikari.data-source-properties.prepareThreshold of the pools Spring Boot configures
+        dataSource.addDataSourceProperty("prepareThreshold", "1");
+        return dataSource;
+    }
+
+    /**
+     * Pools built here are not beans, so the post processor does not see them on its own.
+     */
+    private static DataSource withBulkhead(HikariDataSource pool,
+                                           ObjectProvider<ConnectionBulkheadPostProcessor> connectionBulkhead) {
+        return connectionBulkhead.stream()
+                .map(postProcessor -> (DataSource) postProcessor.postProcessAfterInitialization(pool,
+                        pool.getPoolName()))
+                .findFirst()
+                .orElse(pool);
+    }
+
     @Bean
     @Profile("local")
     @Primary
@@ -50,6 +96,7 @@ public class DataSourceConfig {
 
         @Bean
         @Primary
+        @ConfigurationProperties("spring.datasource.primary.hikari")
         DataSource primaryDataSource() {
             return primaryDataSourceProperties()
                     .initializeDataSourceBuilder()
@@ -58,6 +105,8 @@ public class DataSourceConfig {
         }
 
         @Bean
+        @Lazy
+        @ConfigurationProperties("spring.datasource.replica.hikari")
         DataSource replicaDataSource() {
             return replicaDataSourceProperties()
                     .initializeDataSourceBuilder()
@@ -65,15 +114,35 @@ public class DataSourceConfig {
                     .build();
         }
 
+        /**
+         * The replicas of {@code spring.datasource.replicas}, or else the single {@code spring.datasource.replica}.
+         */
+        @Bean
+        ReplicaPool replicaPool(@Qualifier("primaryDataSource") DataSource primaryDataSource,
+                                @Qualifier("replicaDataSource") ObjectProvider<DataSource> replicaDataSource,
+                                ReplicationDataSourceProperties replicationProperties,
+                                ObjectProvider<ConnectionBulkheadPostProcessor> connectionBulkhead,
+                                TinyUrlProperties properties, MeterRegistry meterRegistry) {
+            Map<String, DataSource> replicas = new LinkedHashMap<>();
+            List<ReplicationDataSourceProperties.DatabaseConfig> configs = replicationProperties.getReplicas();
+            if (configs.isEmpty()) {
+                replicas.put("replica", replicaDataSource.getObject());
+            }
+            for (int i = 0; i < configs.size(); i++) {
+                String name = "replica-" + i;
+                replicas.put(name, withBulkhead(pooledDataSource(name, configs.get(i)), connectionBulkhead));
+            }
+            return new ReplicaPool(primaryDataSource, replicas, properties, meterRegistry);
+        }
+
         @Bean
         DataSource replicationRoutingDataSource(
-                @Qualifier("primaryDataSource") DataSource primaryDataSource,
-                @Qualifier("replicaDataSource") DataSource replicaDataSource) {
+                @Qualifier("primaryDataSource") DataSource primaryDataSource, ReplicaPool replicaPool) {
             ReplicationRoutingDataSource routingDataSource = new ReplicationRoutingDataSource();
 
             Map<Object, Object> dataSources = new HashMap<>();
             dataSources.put("primary", primaryDataSource);
-            dataSources.put("replica", replicaDataSource);
+            dataSources.put("replica", replicaPool);
 
             routingDataSource.setTargetDataSources(dataSources);
             routingDataSource.setDefaultTargetDataSource(primaryDataSource);
@@ -86,6 +155,65 @@ public class DataSourceConfig {
             return new LazyConnectionDataSourceProxy(postgresClusterRoutingDataSource);
         }
     }
+
+    /**
+     * N primary/replica pairs from {@code spring.datasource.shards}, see {@link ShardRouter}.
+     */
+    @Configuration
+    @Profile("sharded")
+    @EnableConfigurationProperties(ReplicationDataSourceProperties.class)
+    class ShardedDataSourceConfig {
+
+        @Bean
+        ShardRoutingDataSource shardRoutingDataSource(
+                ReplicationDataSourceProperties properties,
+                ObjectProvider<ConnectionBulkheadPostProcessor> connectionBulkhead) {
+            List<ReplicationDataSourceProperties.ShardConfig> shards = properties.getShards();
+            if (shards.isEmpty()) {
+                throw new IllegalStateException("The sharded profile needs at least one spring.datasource.shards entry");
+            }
+            Map<Object, Object> dataSources = new HashMap<>();
+            for (int shard = 0; shard < shards.size(); shard++) {
+                ReplicationDataSourceProperties.ShardConfig config = shards.get(shard);
+                DataSource primary = withBulkhead(
+                        pooledDataSource("shard-" + shard + "-primary", config.getPrimary()), connectionBulkhead);
+                // without a replica, read-only transactions stay on the primary
+                DataSource replica = config.getReplica() == null
+                        ? primary
+                        : withBulkhead(pooledDataSource("shard-" + shard + "-replica", config.getReplica()),
+                        connectionBulkhead);
+                dataSources.put(ShardRoutingDataSource.lookupKey(shard, false), primary);
+                dataSources.put(ShardRoutingDataSource.lookupKey(shard, true), replica);
+            }
+            ShardRoutingDataSource routingDataSource = new ShardRoutingDataSource(shards.size());
+            routingDataSource.setTargetDataSources(dataSources);
+            // a shard outside of the configuration is a bug, not a reason to write to shard 0
+            routingDataSource.setLenientFallback(false);
+            return routingDataSource;
+        }
+
+        @Bean
+        @Primary
+        public DataSource dataSource(@Qualifier("shardRoutingDataSource") DataSource shardRoutingDataSource) {
+            return new LazyConnectionDataSourceProxy(shardRoutingDataSource);
+        }
+
+        /**
+         * Runs the migrations on every shard's primary, not only the one Flyway is configured with.
+         */
+        @Bean
+        FlywayMigrationStrategy shardedMigrationStrategy(ShardRoutingDataSource shardRoutingDataSource) {
+            return flyway -> {
+                for (int shard = 0; shard < shardRoutingDataSource.getShardCount(); shard++) {
+                    ShardContext.run(shard, () -> Flyway.configure()
+                            .configuration(flyway.getConfiguration())
+                            .dataSource(shardRoutingDataSource)
+                            .load()
+                            .migrate());
+                }
+            };
+        }
+    }
 }
 
 
@@ -97,6 +225,24 @@ class ReplicationDataSourceProperties {
     // Getters and Setters
     private DatabaseConfig primary = new DatabaseConfig();
     private DatabaseConfig replica = new DatabaseConfig();
+    /**
+     * Replicas read-only transactions are balanced over by {@link ReplicaPool}, replacing {@link #replica}.
+     */
+    private List<DatabaseConfig> replicas = new ArrayList<>();
+    /**
+     * Shards of the sharded profile, addressed by their index in this list.
+     */
+    private List<ShardConfig> shards = new ArrayList<>();
+
+    @Setter
+    @Getter
+    public static class ShardConfig {
+        private DatabaseConfig primary = new DatabaseConfig();
+        /**
+         * Optional, read-only transactions go to the primary without it.
+         */
+        private DatabaseConfig replica;
+    }
 
     @Setter
     @Getter
@@ -106,10 +252,14 @@ class ReplicationDataSourceProperties {
         private String username;
         private String password;
         private String driverClassName;
+        private int maximumPoolSize = 10;
     }
 }
 
 
+/**
+ * Routes read-only transactions to the {@link ReplicaPool}, everything else to the primary.
+ */
 class ReplicationRoutingDataSource extends AbstractRoutingDataSource {
 
     @Override
@@ -121,3 +271,33 @@ class ReplicationRoutingDataSource extends AbstractRoutingDataSource {
 }
 
 
+/**
+ * Routes to the primary or replica, by the read-only flag, of the shard bound in {@link ShardContext}.
+ */
+class ShardRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+    private final int shardCount;
+
+    ShardRoutingDataSource(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    static Integer lookupKey(int shard, boolean readOnly) {
+        return shard * 2 + (readOnly ? 1 : 0);
+    }
+
+    int getShardCount() {
+        return shardCount;
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return lookupKey(ShardContext.current(), TransactionSynchronizationManager.isCurrentTransactionReadOnly());
+    }
+
+    @Override
+    public void close() {
+        getResolvedDataSources().values().stream()
+                .distinct()
+                .forEach(dataSource -> ((HikariDataSource) dataSource).close());
+    }
+}
@@ -0,0 +1,66 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hashes the long url and re-salts it until the short url is neither cached nor stored.
+ * Every attempt costs a cache lookup and a database round-trip.
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(name = "tinyurl.short-url.generator", havingValue = "hash")
+class HashShortUrlGenerator implements ShortUrlGenerator {
+    /// After {@linkplain #COLLISON_LIMIT} tries of re-salting long urls to avoid collisions, give up.
+    private static final int COLLISON_LIMIT = 100;
+
+    private final TinyUrlCache cache;
+    private final UrlMappingLookup lookup;
+    private final Counter collisions;
+    private final Counter failures;
+
+    HashShortUrlGenerator(TinyUrlCache cache, UrlMappingLookup lookup, MeterRegistry meterRegistry) {
+        this.cache = cache;
+        this.lookup = lookup;
+        this.collisions = meterRegistry.counter("tinyurl.service.create.collisions");
+        this.failures = meterRegistry.counter("tinyurl.service.create.failures");
+    }
+
+    @Override
+    public String generate(String longUrl) {
+        return generate(longUrl, -1);
+    }
+
+    /**
+     * Overwrites the hash's slot bits, collisions are checked the same way.
+     */
+    @Override
+    public String generate(String longUrl, int slot) {
+        String shortUrl = null;
+        int attempt = 0;
+        do {
+            if (attempt > 0) {
+                log.warn("Collison for Url:{}, salt:{}, last shortUrl : {}", longUrl, attempt, shortUrl);
+                collisions.increment();
+            }
+            shortUrl = UrlHashUtil.hashUrl(longUrl, attempt);
+            if (slot >= 0) {
+                shortUrl = ShardMap.placeInSlot(shortUrl, slot);
+            }
+            // Check cache first
+            if (cache.getLongUrl(shortUrl).isEmpty()) {
+                // Double-check with DB (optional, depending on your false positive tolerance)
+                if (!lookup.exists(shortUrl)) {
+                    return shortUrl;
+                }
+            }
+            attempt++;
+        } while (attempt < COLLISON_LIMIT);
+        failures.increment();
+        // If we've exceeded the max retries, return null or handle error
+        throw new RuntimeException("Unable to generate unique short URL after " + COLLISON_LIMIT + " attempts.");
+    }
+}
@@ -0,0 +1,198 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Finds the short urls read most often lately, the heavy hitters of the skewed redirect traffic, which
+ * {@link TinyUrlCache} pins in L1.
+ * <p>
+ * Every lookup is counted in a Count-Min sketch of {@value #DEPTH} rows of {@code sketch-width} counters with
+ * conservative updates: only the smallest of a key's counters are incremented, which keeps the overestimates of the
+ * long tail down. A key whose estimate beats the smallest one of the current top {@code top-k} becomes a candidate,
+ * at most twice {@code top-k} of them. Every {@code interval} the candidates are ranked by their estimates, the top
+ * {@code top-k} kept and handed to the subscribers, and every {@code decay-interval} all counters are halved, so a
+ * link nobody reads any more drops out within a few of them.
+ * <p>
+ * Memory is bounded by the sketch, {@code 16 × sketch-width} bytes, and {@code 2 × top-k} candidate keys. Counting
+ * is lock-free and does not allocate; concurrent increments of the same counter may get lost, which only matters for
+ * keys read so often that it does not change their rank.
+ */
+@Log4j2
+@Component
+@Endpoint(id = "hotkeys")
+@ConditionalOnProperty(prefix = "tinyurl.cache.heavy-hitters", name = "enabled", havingValue = "true")
+class HotKeyTracker {
+    private static final String METRIC_PREFIX = "tinyurl.cache.heavy_hitters";
+    static final int DEPTH = 4;
+
+    private final AtomicIntegerArray counters;
+    private final int width;
+    private final int topK;
+    private final long decayIntervalNanos;
+    private final LongSupplier clock;
+    private final Set<String> candidates = ConcurrentHashMap.newKeySet();
+    private final List<Consumer<List<String>>> subscribers = new CopyOnWriteArrayList<>();
+    private volatile int threshold;
+    private volatile List<HotKey> hotKeys = List.of();
+    // only touched by update()
+    private long lastDecay;
+
+    @Autowired
+    HotKeyTracker(TinyUrlProperties properties, MeterRegistry meterRegistry) {
+        this(properties, meterRegistry, System::nanoTime);
+    }
+
+    HotKeyTracker(TinyUrlProperties properties, MeterRegistry meterRegistry, LongSupplier clock) {
+        TinyUrlProperties.HeavyHitters config = properties.getCache().getHeavyHitters();
+        if (Integer.bitCount(config.getSketchWidth()) != 1) {
+            throw new IllegalStateException("tinyurl.cache.heavy-hitters.sketch-width must be a power of two");
+        }
+        this.width = config.getSketchWidth();
+        this.counters = new AtomicIntegerArray(DEPTH * width);
+        this.topK = config.getTopK();
+        this.decayIntervalNanos = config.getDecayInterval().toNanos();
+        this.clock = clock;
+        this.lastDecay = clock.getAsLong();
+        Gauge.builder(METRIC_PREFIX + ".candidates", candidates, Set::size)
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".threshold", this, t -> t.threshold)
+                .description("Estimated reads a short url needs to become a candidate")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".sketch", this, t -> 4L * t.counters.length())
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    void subscribe(Consumer<List<String>> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Counts a lookup of {@code shortUrl}.
+     */
+    void record(String shortUrl) {
+        int hash = spread(shortUrl.hashCode());
+        int step = rehash(hash);
+        int min = min(hash, step);
+        if (min == Integer.MAX_VALUE) {
+            return;
+        }
+        for (int row = 0; row < DEPTH; row++) {
+            // raced by another increment, which counted for both
+            counters.compareAndSet(index(row, hash, step), min, min + 1);
+        }
+        if (min + 1 > threshold && !candidates.contains(shortUrl) && candidates.size() < 2 * topK) {
+            candidates.add(shortUrl);
+        }
+    }
+
+    /**
+     * @return the estimated lookups of {@code shortUrl}, never fewer than the actual ones since the last decays
+     */
+    int estimate(String shortUrl) {
+        int hash = spread(shortUrl.hashCode());
+        return min(hash, rehash(hash));
+    }
+
+    /**
+     * Ranks the candidates, keeps the top {@code top-k}, and passes their short urls to the subscribers, the
+     * hottest first.
+     */
+    @Scheduled(fixedDelayString = "${tinyurl.cache.heavy-hitters.interval:1s}")
+    void update() {
+        List<HotKey> ranked = new ArrayList<>(candidates.size());
+        for (String candidate : candidates) {
+            ranked.add(new HotKey(candidate, estimate(candidate)));
+        }
+        ranked.sort(Comparator.comparingLong(HotKey::count).reversed());
+        List<HotKey> top = new ArrayList<>(Math.min(topK, ranked.size()));
+        for (HotKey hotKey : ranked) {
+            if (top.size() < topK && hotKey.count() > 0) {
+                top.add(hotKey);
+            } else {
+                candidates.remove(hotKey.shortUrl());
+            }
+        }
+        int topThreshold = top.size() < topK ? 0 : (int) top.getLast().count();
+
+        long now = clock.getAsLong();
+        if (now - lastDecay >= decayIntervalNanos) {
+            lastDecay = now;
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, counters.get(i) >>> 1);
+            }
+            topThreshold >>>= 1;
+        }
+        threshold = topThreshold;
+        hotKeys = List.copyOf(top);
+
+        List<String> shortUrls = top.stream().map(HotKey::shortUrl).toList();
+        for (Consumer<List<String>> subscriber : subscribers) {
+            try {
+                subscriber.accept(shortUrls);
+            } catch (RuntimeException e) {
+                log.warn("Failed to pass {} hot keys on", shortUrls.size(), e);
+            }
+        }
+    }
+
+    /**
+     * The current top {@code top-k}, the hottest first, with their estimated lookups since the last decays.
+     */
+    @ReadOperation
+    public List<HotKey> hotKeys() {
+        return hotKeys;
+    }
+
+    private int min(int hash, int step) {
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters.get(index(row, hash, step)));
+        }
+        return min;
+    }
+
+    private int index(int row, int hash, int step) {
+        return row * width + ((hash + row * step) & (width - 1));
+    }
+
+    /**
+     * Murmur3's finalizer, so that every bit of the hash code affects the counters picked.
+     */
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Step between the rows' counters of a key, independent of its first one, so that keys sharing a counter in one
+     * row rarely do in the others.
+     */
+    private static int rehash(int hash) {
+        return spread(hash + 0x9E3779B9) | 1;
+    }
+
+    record HotKey(String shortUrl, long count) {
+    }
+}
@@ -0,0 +1,11 @@
+package duoan.github.com.tinyurl;
+
+/**
+ * Hands out disjoint blocks of numeric ids, so each node can allocate ids from memory without coordination.
+ */
+interface IdBlockLeaser {
+    /**
+     * @return the first id of a block of {@code size} ids no other caller (on any node) will ever receive
+     */
+    long leaseBlock(int size);
+}
@@ -0,0 +1,90 @@
+package duoan.github.com.tinyurl;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Every id is handed out once, so the short urls it generates never collide with each other and no existence check
+ * is needed. They may still equal a short url hashed before ids were used: its insert then fails on the primary key,
+ * and {@link TinyUrlService} retries the create with the next id.
+ * Ids come from blocks leased through {@link IdBlockLeaser}; within a block they are claimed with a lock-free counter
+ * and only the thread which exhausts a block goes back to the leaser.
+ */
+@Component
+@ConditionalOnProperty(name = "tinyurl.short-url.generator", havingValue = "id-range", matchIfMissing = true)
+class IdRangeShortUrlGenerator implements ShortUrlGenerator {
+    private final IdBlockLeaser leaser;
+    private final int blockSize;
+    private final AtomicReference<IdBlock> current = new AtomicReference<>(IdBlock.EMPTY);
+    // not a monitor, which would pin a virtual thread for the lease's database round-trip
+    private final ReentrantLock refillLock = new ReentrantLock();
+
+    IdRangeShortUrlGenerator(IdBlockLeaser leaser, TinyUrlProperties properties) {
+        this(leaser, properties.getShortUrl().getIdBlockSize());
+    }
+
+    IdRangeShortUrlGenerator(IdBlockLeaser leaser, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Id block size must be positive: " + blockSize);
+        }
+        this.leaser = leaser;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public String generate(String longUrl) {
+        return ShortUrlCodec.encode(ShortUrlCodec.scramble(nextId()));
+    }
+
+    /**
+     * The id is scrambled over the {@value ShardMap#CODE_BITS} bits below the slot, so ids stay collision-free up to
+     * 2<sup>42</sup>. Short urls generated before sharding were scrambled over all 54 bits, so one of them may equal
+     * a slotted short url; its insert then fails on the primary key of the owning shard, which stores both, and is
+     * retried like a hashed one.
+     */
+    @Override
+    public String generate(String longUrl, int slot) {
+        return ShortUrlCodec.encode((long) slot << ShardMap.CODE_BITS
+                | ShortUrlCodec.scramble(nextId(), ShardMap.CODE_BITS));
+    }
+
+    long nextId() {
+        while (true) {
+            IdBlock block = current.get();
+            long id = block.next.getAndIncrement();
+            if (id < block.end) {
+                return id;
+            }
+            refill(block);
+        }
+    }
+
+    private void refill(IdBlock exhausted) {
+        refillLock.lock();
+        try {
+            // Another thread may have refilled while we were waiting for the lock
+            if (current.get() == exhausted) {
+                long start = leaser.leaseBlock(blockSize);
+                current.set(new IdBlock(start, start + blockSize));
+            }
+        } finally {
+            refillLock.unlock();
+        }
+    }
+
+    private static final class IdBlock {
+        static final IdBlock EMPTY = new IdBlock(0, 0);
+
+        final AtomicLong next;
+        final long end;
+
+        IdBlock(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package duoan.github.com.tinyurl;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.stereotype.Component;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Reads only {@code long_url} through plain prepared statements, without the derived queries, entity hydration and
+ * persistence context of {@link UrlMappingRepository}, which stays for writes and bulk paths.
+ * <p>
+ * Every statement has a fixed text, a batch binds its short urls as one array, so the driver's per-connection
+ * statement cache keeps a single server-side prepared statement per lookup; {@code prepareThreshold=1} on the pools
+ * prepares them on first use.
+ */
+@Component
+@ConditionalOnProperty(name = "tinyurl.short-url.lookup", havingValue = "jdbc", matchIfMissing = true)
+class JdbcUrlMappingLookup implements UrlMappingLookup {
+    private final JdbcTemplate jdbcTemplate;
+
+    JdbcUrlMappingLookup(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public Optional<String> findLongUrl(String shortUrl) {
+        return jdbcTemplate.query("SELECT long_url FROM t_url_mappings WHERE short_url = ?",
+                rs -> rs.next() ? Optional.of(rs.getString(1)) : Optional.empty(), shortUrl);
+    }
+
+    @Override
+    public Map<String, String> findLongUrls(Collection<String> shortUrls) {
+        if (shortUrls.isEmpty()) {
+            return Map.of();
+        }
+        return jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT short_url, long_url FROM t_url_mappings WHERE short_url = ANY(?)");
+            statement.setArray(1, connection.createArrayOf("text", shortUrls.toArray()));
+            return statement;
+        }, rs -> {
+            Map<String, String> longUrls = HashMap.newHashMap(shortUrls.size());
+            while (rs.next()) {
+                longUrls.put(rs.getString(1), rs.getString(2));
+            }
+            return longUrls;
+        });
+    }
+
+    @Override
+    public boolean exists(String shortUrl) {
+        return Boolean.TRUE.equals(jdbcTemplate.query("SELECT 1 FROM t_url_mappings WHERE short_url = ?",
+                (ResultSetExtractor<Boolean>) ResultSet::next, shortUrl));
+    }
+}
@@ -0,0 +1,40 @@
+package duoan.github.com.tinyurl;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Looks up through {@link UrlMappingRepository}, loading whole {@link UrlMapping} entities.
+ */
+@Component
+@ConditionalOnProperty(name = "tinyurl.short-url.lookup", havingValue = "jpa")
+class JpaUrlMappingLookup implements UrlMappingLookup {
+    private final UrlMappingRepository repository;
+
+    JpaUrlMappingLookup(UrlMappingRepository repository) {
+        this.repository = repository;
+    }
+
+    @Override
+    public Optional<String> findLongUrl(String shortUrl) {
+        return repository.findByShortUrl(shortUrl).map(UrlMapping::getLongUrl);
+    }
+
+    @Override
+    public Map<String, String> findLongUrls(Collection<String> shortUrls) {
+        Map<String, String> longUrls = HashMap.newHashMap(shortUrls.size());
+        repository.findByShortUrlIn(shortUrls).forEach(urlMapping -> longUrls.put(urlMapping.getShortUrl(),
+                urlMapping.getLongUrl()));
+        return longUrls;
+    }
+
+    @Override
+    public boolean exists(String shortUrl) {
+        return repository.existsByShortUrl(shortUrl);
+    }
+}
@@ -0,0 +1,29 @@
+package duoan.github.com.tinyurl;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In-memory stand-in for {@link RedisCacheInvalidationTransport}, only delivers within a single JVM, on the sending
+ * thread. A {@link CacheInvalidationBus} ignores its own messages, so this only connects several buses sharing one
+ * transport, as in tests.
+ */
+@Component
+@ConditionalOnProperty(name = "tinyurl.cache.invalidation.transport", havingValue = "local")
+class LocalCacheInvalidationTransport implements CacheInvalidationTransport {
+    private final List<Consumer<String>> receivers = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void send(String message) {
+        receivers.forEach(receiver -> receiver.accept(message));
+    }
+
+    @Override
+    public void subscribe(Consumer<String> receiver) {
+        receivers.add(receiver);
+    }
+}
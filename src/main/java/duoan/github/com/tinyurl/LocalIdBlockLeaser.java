@@ -0,0 +1,28 @@
+package duoan.github.com.tinyurl;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-in for {@link PostgresIdBlockLeaser}, only unique within a single JVM.
+ */
+@Component
+@ConditionalOnProperty(name = "tinyurl.short-url.id-source", havingValue = "local")
+class LocalIdBlockLeaser implements IdBlockLeaser {
+    private final AtomicLong nextId;
+
+    LocalIdBlockLeaser() {
+        this(1);
+    }
+
+    LocalIdBlockLeaser(long firstId) {
+        this.nextId = new AtomicLong(firstId);
+    }
+
+    @Override
+    public long leaseBlock(int size) {
+        return nextId.getAndAdd(size);
+    }
+}
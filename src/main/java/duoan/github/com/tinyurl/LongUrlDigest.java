@@ -0,0 +1,41 @@
+package duoan.github.com.tinyurl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Leading 128 bits of the SHA-256 of a canonical long url, which stands in for the url wherever it would be a key.
+ * <ul>
+ *     <li>{@link #dbKey()}, the leading 64 bits, is stored in the indexed {@code long_url_digest} column. Different
+ *     urls may share it, so matches are verified against the stored url. The database computes the same value in
+ *     {@code long_url_digest(text)}, see {@code V5__add_long_url_digest_column.sql}.</li>
+ *     <li>{@link #cacheKey()}, all 128 bits, keys the long url to short url cache. Unlike a non-cryptographic hash,
+ *     collisions cannot be crafted to make one url's create return another url's short url.</li>
+ * </ul>
+ */
+record LongUrlDigest(long high, long low) {
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    static LongUrlDigest of(String longUrl) {
+        ByteBuffer digest = ByteBuffer.wrap(SHA_256.get().digest(longUrl.getBytes(StandardCharsets.UTF_8)));
+        return new LongUrlDigest(digest.getLong(), digest.getLong());
+    }
+
+    long dbKey() {
+        return high;
+    }
+
+    String cacheKey() {
+        byte[] bytes = ByteBuffer.allocate(Long.BYTES * 2).putLong(high).putLong(low).array();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,157 @@
+package duoan.github.com.tinyurl;
+
+import net.openhft.hashing.LongHashFunction;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe Bloom filter whose bit array lives in a direct buffer, outside the Java heap.
+ * Bits are set with atomic {@code getAndBitwiseOr}, so concurrent {@link #put}s never lose each other's bits
+ * and the number of set bits (which drives the {@linkplain #expectedFpp() false positive rate}) stays exact.
+ */
+class OffHeapBloomFilter {
+    // "TNY2", snapshots of the first version ("TNYB") were synced up to another column and are rebuilt
+    private static final int MAGIC = 0x544E5932;
+    private static final int HEADER_BYTES = 4 + 8 + 4 + 8;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final LongHashFunction HASH = LongHashFunction.xx3();
+
+    private final ByteBuffer bits;
+    private final long numBits;
+    private final int numHashes;
+    private final LongAdder bitsSet = new LongAdder();
+
+    private OffHeapBloomFilter(long numBits, int numHashes) {
+        if (numBits / 8 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter of " + numBits + " bits does not fit a direct buffer");
+        }
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.bits = ByteBuffer.allocateDirect((int) (numBits / 8)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static OffHeapBloomFilter create(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long numBits = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        numBits = Math.max(64, (numBits + 63) & ~63L);
+        int numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        return new OffHeapBloomFilter(numBits, numHashes);
+    }
+
+    boolean put(String key) {
+        long hash = HASH.hashChars(key);
+        boolean changed = false;
+        for (int i = 0; i < numHashes; i++) {
+            long bitIndex = bitIndex(hash, i);
+            int offset = (int) (bitIndex >>> 6) << 3;
+            long mask = 1L << (bitIndex & 63);
+            long previous = (long) LONGS.getAndBitwiseOr(bits, offset, mask);
+            if ((previous & mask) == 0) {
+                bitsSet.increment();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    boolean mightContain(String key) {
+        long hash = HASH.hashChars(key);
+        for (int i = 0; i < numHashes; i++) {
+            long bitIndex = bitIndex(hash, i);
+            int offset = (int) (bitIndex >>> 6) << 3;
+            if (((long) LONGS.getAcquire(bits, offset) & (1L << (bitIndex & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Kirsch-Mitzenmacher: derive the i-th probe from one 64-bit hash instead of hashing the key {@code k} times.
+     */
+    private long bitIndex(long hash, int i) {
+        long combined = hash + i * (Long.rotateLeft(hash, 32) | 1L);
+        return (combined & Long.MAX_VALUE) % numBits;
+    }
+
+    /**
+     * Probability that {@link #mightContain} answers {@code true} for a key which was never put.
+     */
+    double expectedFpp() {
+        return Math.pow((double) bitsSet.sum() / numBits, numHashes);
+    }
+
+    long bitsSet() {
+        return bitsSet.sum();
+    }
+
+    long sizeInBytes() {
+        return numBits / 8;
+    }
+
+    /**
+     * Writes the filter next to {@code path} and atomically moves it into place, so a crash never leaves half a snapshot.
+     */
+    void writeTo(Path path, long syncedUntilEpochMillis) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                    .putInt(MAGIC).putLong(numBits).putInt(numHashes).putLong(syncedUntilEpochMillis)
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            ByteBuffer body = bits.duplicate().clear();
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the filter and the high-water mark it was synced up to, or {@code null} if the snapshot does not match
+     * the requested dimensions
+     */
+    static Snapshot readFrom(Path path, long expectedInsertions, double fpp) throws IOException {
+        OffHeapBloomFilter expected = create(expectedInsertions, fpp);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC
+                    || header.getLong() != expected.numBits || header.getInt() != expected.numHashes) {
+                return null;
+            }
+            long syncedUntilEpochMillis = header.getLong();
+            ByteBuffer body = expected.bits.duplicate().clear();
+            while (body.hasRemaining()) {
+                if (channel.read(body) < 0) {
+                    return null;
+                }
+            }
+            for (int offset = 0; offset < expected.bits.capacity(); offset += 8) {
+                expected.bitsSet.add(Long.bitCount(expected.bits.getLong(offset)));
+            }
+            return new Snapshot(expected, syncedUntilEpochMillis);
+        }
+    }
+
+    record Snapshot(OffHeapBloomFilter filter, long syncedUntilEpochMillis) {
+    }
+}
@@ -0,0 +1,46 @@
+package duoan.github.com.tinyurl;
+
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Leases id blocks by atomically advancing the counter row in {@code t_id_blocks} on the primary.
+ * With sharding, the counter of the {@linkplain ShardMap#CATALOG_SHARD catalog shard} is the only one in use.
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(name = "tinyurl.short-url.id-source", havingValue = "postgres", matchIfMissing = true)
+class PostgresIdBlockLeaser implements IdBlockLeaser {
+    private static final String SHORT_URL_BLOCK = "short_url";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    PostgresIdBlockLeaser(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        // The lease must commit on its own: rolling it back with the caller's transaction would hand out the block twice.
+        // Callers lease before beginning their own transaction, see TinyUrlService, since waiting for this second
+        // connection while holding one can exhaust the pool.
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    @Override
+    public long leaseBlock(int size) {
+        // called while creating on the owning shard, the lease's own transaction goes to the catalog shard
+        Long start = ShardContext.call(ShardMap.CATALOG_SHARD, () -> transactionTemplate.execute(status ->
+                jdbcTemplate.queryForObject(
+                        "UPDATE t_id_blocks SET next_id = next_id + ? WHERE name = ? RETURNING next_id - ?",
+                        Long.class, size, SHORT_URL_BLOCK, size)));
+        if (start == null) {
+            throw new IllegalStateException("No id block counter named '" + SHORT_URL_BLOCK + "' in t_id_blocks");
+        }
+        log.info("Leased id block [{}, {})", start, start + size);
+        return start;
+    }
+}
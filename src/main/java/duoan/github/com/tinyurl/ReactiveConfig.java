@@ -0,0 +1,66 @@
+package duoan.github.com.tinyurl;
+
+import io.r2dbc.spi.ConnectionFactory;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonReactiveClient;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.config.Config;
+import org.redisson.config.SentinelServersConfig;
+import org.redisson.config.SingleServerConfig;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.util.StringUtils;
+
+/**
+ * Beans of the reactive stack, which serves instead of Tomcat with {@code spring.main.web-application-type=reactive}
+ * (the {@code reactive} profile). The R2DBC {@link ConnectionFactory} comes from Spring Boot's
+ * {@code spring.r2dbc.*} auto-configuration.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+class ReactiveConfig {
+
+    /**
+     * Tomcat is on the classpath for the servlet stack and would otherwise be picked for WebFlux too.
+     */
+    @Bean
+    NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+
+    /**
+     * Same Redis as {@link TinyUrlApplication#jedisConnectionFactory}. Values are raw bytes, as
+     * {@link BinaryRedisCacheManager} writes them.
+     */
+    @Bean(destroyMethod = "shutdown")
+    RedissonReactiveClient redissonReactiveClient(RedisProperties redisProperties) {
+        Config config = new Config();
+        config.setCodec(ByteArrayCodec.INSTANCE);
+        if (redisProperties.getSentinel() != null) {
+            SentinelServersConfig sentinelConfig = config.useSentinelServers()
+                    .setMasterName(redisProperties.getSentinel().getMaster());
+            for (String node : redisProperties.getSentinel().getNodes()) {
+                sentinelConfig.addSentinelAddress("redis://" + node);
+            }
+            if (StringUtils.hasText(redisProperties.getPassword())) {
+                sentinelConfig.setPassword(redisProperties.getPassword());
+            }
+        } else {
+            SingleServerConfig serverConfig = config.useSingleServer()
+                    .setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort());
+            if (StringUtils.hasText(redisProperties.getPassword())) {
+                serverConfig.setPassword(redisProperties.getPassword());
+            }
+        }
+        return Redisson.create(config).reactive();
+    }
+
+    @Bean
+    DatabaseClient databaseClient(ConnectionFactory connectionFactory) {
+        return DatabaseClient.create(connectionFactory);
+    }
+}
@@ -0,0 +1,102 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.validation.ConstraintViolationException;
+import jakarta.validation.constraints.Pattern;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.stereotype.Controller;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * {@link TinyUrlController} for the reactive stack ({@code reactive} profile). Redirects never block, creates still
+ * go through the blocking {@link TinyUrlService} on the bounded elastic scheduler.
+ * <p>
+ * Requests hop between threads here, so only their totals go to {@link StageLatencies}, not the per-thread traces
+ * behind the slow request log.
+ */
+@Controller
+@Validated
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+class ReactiveTinyUrlController {
+    private static final ResponseEntity<Void> REDIRECT_TO_INDEX = ResponseEntity.status(HttpStatus.FOUND)
+            .header(HttpHeaders.LOCATION, "/")
+            .build();
+
+    private final TinyUrlService tinyUrlService;
+    private final ReactiveTinyUrlService reactiveTinyUrlService;
+    private final StageLatencies stageLatencies;
+    private final MeterRegistry meterRegistry;
+
+    ReactiveTinyUrlController(TinyUrlService tinyUrlService, ReactiveTinyUrlService reactiveTinyUrlService,
+                              ObjectProvider<StageLatencies> stageLatencies, MeterRegistry meterRegistry) {
+        this.tinyUrlService = tinyUrlService;
+        this.reactiveTinyUrlService = reactiveTinyUrlService;
+        this.stageLatencies = stageLatencies.getIfAvailable();
+        this.meterRegistry = meterRegistry;
+    }
+
+    @GetMapping({"/"})
+    public String index() {
+        return "index";
+    }
+
+    @PostMapping("/api/tinyurl")
+    @ResponseBody
+    public Mono<String> createTinyUrl(@RequestBody String longUrl, ServerHttpRequest request) {
+        // Get the domain (protocol + host) from the incoming request
+        String domain = UriComponentsBuilder.fromUri(request.getURI()).replacePath(null).replaceQuery(null)
+                .toUriString();
+        Mono<String> shortUrl = Mono.fromCallable(() -> tinyUrlService.createShortUrl(longUrl))
+                .subscribeOn(Schedulers.boundedElastic())
+                // Create the full short URL by appending the domain to the path
+                .map(shortUrlPath -> domain + "/" + shortUrlPath);
+        return timed(StageLatencies.Operation.CREATE, shortUrl);
+    }
+
+    @GetMapping("/{shortUrl}")
+    public Mono<ResponseEntity<Void>> getLongURL(
+            @PathVariable
+            @Pattern(regexp = "^[a-zA-Z0-9_-]{1,9}$", message = "Invalid short URL format")
+            String shortUrl) {
+        return timed(StageLatencies.Operation.REDIRECT, reactiveTinyUrlService.getLongUrl(shortUrl)
+                .map(location -> ResponseEntity.status(HttpStatus.FOUND).header(HttpHeaders.LOCATION, location).build()));
+    }
+
+    /**
+     * Records the total of requests which succeed, like {@link StageLatencies#skip} leaves shed requests and unknown
+     * short urls out.
+     */
+    private <T> Mono<T> timed(StageLatencies.Operation operation, Mono<T> request) {
+        if (stageLatencies == null) {
+            return request;
+        }
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return request.doOnSuccess(response -> stageLatencies.record(operation, StageLatencies.Stage.TOTAL,
+                    System.nanoTime() - start));
+        });
+    }
+
+    // WebFlux has no flash attributes, so unlike TinyUrlControllerAdvice these redirect without a message
+
+    @ExceptionHandler(ConstraintViolationException.class)
+    ResponseEntity<Void> handleValidationException(ConstraintViolationException ex) {
+        meterRegistry.counter("tinyurl.controller.get.validationErrors").increment(ex.getConstraintViolations().size());
+        return REDIRECT_TO_INDEX;
+    }
+
+    @ExceptionHandler(TinyUrlNotFoundException.class)
+    ResponseEntity<Void> handleTinyUrlNotFoundException(TinyUrlNotFoundException ex) {
+        meterRegistry.counter("tinyurl.controller.get.not_found").increment();
+        return REDIRECT_TO_INDEX;
+    }
+}
@@ -0,0 +1,164 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonReactiveClient;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Non-blocking counterpart of {@link TinyUrlService#getLongUrl} for the reactive stack: L1 is read in place, L2
+ * through Redisson's reactive client and the database through R2DBC, so no thread waits on Redis or Postgres.
+ * <p>
+ * Reads and writes the same L2 entries as {@link TinyUrlCache} (the binary keys and values of
+ * {@link BinaryRedisCacheManager}, through scripts since Redisson's objects only take text names, and both entries of a
+ * mapping in one), and reports under the same metric names, so both stacks can serve side by side.
+ */
+@Log4j2
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+class ReactiveTinyUrlService {
+    private static final String METRIC_PREFIX = "tinyurl.service";
+    private static final String GET_SCRIPT = "return redis.call('get', KEYS[1])";
+    // the last argument is the ttl in milliseconds
+    private static final String PUT_SCRIPT =
+            "for i, key in ipairs(KEYS) do redis.call('set', key, ARGV[i], 'px', ARGV[#ARGV]) end";
+
+    private final TinyUrlCache cache;
+    private final RedissonReactiveClient redisson;
+    private final DatabaseClient databaseClient;
+    private final ShortUrlBloomFilter bloomFilter;
+    private final byte[] l2TtlMillis;
+    private final SingleFlight<String, String> longUrlLoads;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    ReactiveTinyUrlService(TinyUrlCache cache, RedissonReactiveClient redisson, DatabaseClient databaseClient,
+                           ObjectProvider<ShortUrlBloomFilter> bloomFilter, ObjectProvider<ShardRouter> shardRouter,
+                           TinyUrlProperties properties, MeterRegistry meterRegistry) {
+        if (shardRouter.getIfAvailable() != null) {
+            // it would look every short url up in the one database R2DBC connects to, and cache misses as NULL
+            throw new IllegalStateException("The reactive profile can not be combined with the sharded profile");
+        }
+        this.cache = cache;
+        this.redisson = redisson;
+        this.databaseClient = databaseClient;
+        this.bloomFilter = bloomFilter.getIfAvailable();
+        this.l2TtlMillis = Long.toString(properties.getCache().getL2Ttl().toMillis())
+                .getBytes(StandardCharsets.US_ASCII);
+        this.longUrlLoads = new SingleFlight<>("get", meterRegistry);
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @return the long url ready to be sent as the redirect's {@code Location}, or an error with
+     * {@link TinyUrlNotFoundException} if the short url does not exist
+     */
+    Mono<String> getLongUrl(String shortUrl) {
+        if (bloomFilter != null && !bloomFilter.mightContain(shortUrl)) {
+            count("get.not_found");
+            return Mono.error(new TinyUrlNotFoundException(shortUrl));
+        }
+        Mono<String> longUrl = cache.getLocalLongUrl(shortUrl)
+                .map(Mono::just)
+                .orElseGet(() -> getL2LongUrl(shortUrl))
+                .doOnNext(cachedLongUrl -> count("get.cache.hits"))
+                .switchIfEmpty(Mono.defer(() -> {
+                    count("get.cache.misses");
+                    // Concurrent misses for the same short url share a single database lookup
+                    return longUrlLoads.loadAsync(shortUrl, () -> loadLongUrl(shortUrl))
+                            .doOnNext(loadedLongUrl -> {
+                                if (!loadedLongUrl.equals(TinyUrlCache.NULL_LONG_URL)) {
+                                    count("get.db.hits");
+                                }
+                            });
+                }));
+        return longUrl
+                .filter(value -> !value.equals(TinyUrlCache.NULL_LONG_URL))
+                .map(UrlCanonicalizer::toLocation)
+                .switchIfEmpty(Mono.defer(() -> {
+                    count("get.not_found");
+                    return Mono.error(new TinyUrlNotFoundException(shortUrl));
+                }));
+    }
+
+    private Mono<String> getL2LongUrl(String shortUrl) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return redisson.getScript().<byte[]>eval(RScript.Mode.READ_ONLY, GET_SCRIPT, RScript.ReturnType.VALUE,
+                            List.of(BinaryRedisCacheManager.key(TinyUrlCache.SHORT_URL_TO_LONG_URL, shortUrl)))
+                    .map(BinaryRedisCacheManager::value)
+                    .doOnSuccess(value -> {
+                        cache.recordRemoteLongUrlLookup(value != null, System.nanoTime() - start);
+                        if (value != null) {
+                            // promote
+                            cache.putLocalUrlMapping(shortUrl, value);
+                        }
+                    })
+                    .onErrorResume(e -> {
+                        // a Redis outage degrades to database reads instead of failing the redirect
+                        log.warn("L2 lookup of {} failed", shortUrl, e);
+                        return Mono.empty();
+                    });
+        });
+    }
+
+    /**
+     * @return the long url, or {@link TinyUrlCache#NULL_LONG_URL} if there is none, after caching it in both levels
+     */
+    private Mono<String> loadLongUrl(String shortUrl) {
+        return databaseClient.sql("SELECT long_url FROM t_url_mappings WHERE short_url = $1")
+                .bind(0, shortUrl)
+                .map(row -> row.get(0, String.class))
+                .one()
+                .flatMap(longUrl -> putUrlMapping(shortUrl, longUrl)
+                        .thenReturn(longUrl))
+                .switchIfEmpty(Mono.defer(() -> {
+                    if (bloomFilter != null) {
+                        bloomFilter.recordFalsePositive();
+                    }
+                    // cache no data
+                    return putUrlMapping(shortUrl, TinyUrlCache.NULL_LONG_URL)
+                            .thenReturn(TinyUrlCache.NULL_LONG_URL);
+                }));
+    }
+
+    private Mono<Void> putUrlMapping(String shortUrl, String longUrl) {
+        List<Object> keys = new ArrayList<>(2);
+        List<Object> values = new ArrayList<>(3);
+        keys.add(BinaryRedisCacheManager.key(TinyUrlCache.SHORT_URL_TO_LONG_URL, shortUrl));
+        values.add(BinaryRedisCacheManager.value(longUrl));
+        if (longUrl.equals(TinyUrlCache.NULL_LONG_URL)) {
+            cache.putLocalUrlMapping(shortUrl, longUrl);
+        } else {
+            LongUrlDigest longUrlDigest = LongUrlDigest.of(longUrl);
+            cache.putLocalUrlMapping(shortUrl, longUrl, longUrlDigest);
+            keys.add(BinaryRedisCacheManager.key(TinyUrlCache.LONG_URL_TO_SHORT_URL, longUrlDigest.cacheKey()));
+            values.add(BinaryRedisCacheManager.value(shortUrl));
+        }
+        values.add(l2TtlMillis);
+        return redisson.getScript().eval(RScript.Mode.READ_WRITE, PUT_SCRIPT, RScript.ReturnType.VALUE, keys,
+                        values.toArray())
+                .then()
+                .onErrorResume(e -> {
+                    log.warn("L2 write of {} failed", shortUrl, e);
+                    return Mono.empty();
+                });
+    }
+
+    private void count(String name) {
+        counters.computeIfAbsent(name, n -> meterRegistry.counter(METRIC_PREFIX + "." + n)).increment();
+    }
+}
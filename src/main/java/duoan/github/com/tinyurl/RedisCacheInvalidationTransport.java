@@ -0,0 +1,52 @@
+package duoan.github.com.tinyurl;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Broadcasts over a Redis pub/sub channel, {@code tinyurl.cache.invalidation.channel}. The channel is only
+ * subscribed to, and the listener container started, by the first {@link #subscribe}.
+ */
+@Component
+@ConditionalOnProperty(name = "tinyurl.cache.invalidation.transport", havingValue = "redis", matchIfMissing = true)
+class RedisCacheInvalidationTransport implements CacheInvalidationTransport {
+    private final StringRedisTemplate redisTemplate;
+    private final ChannelTopic channel;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    RedisCacheInvalidationTransport(StringRedisTemplate redisTemplate, RedisConnectionFactory redisConnectionFactory,
+                                    TinyUrlProperties properties) {
+        this.redisTemplate = redisTemplate;
+        this.channel = ChannelTopic.of(properties.getCache().getInvalidation().getChannel());
+        this.listenerContainer = new RedisMessageListenerContainer();
+        this.listenerContainer.setConnectionFactory(redisConnectionFactory);
+    }
+
+    @Override
+    public void send(String message) {
+        redisTemplate.convertAndSend(channel.getTopic(), message);
+    }
+
+    @Override
+    public synchronized void subscribe(Consumer<String> receiver) {
+        listenerContainer.addMessageListener((message, pattern) ->
+                receiver.accept(new String(message.getBody(), StandardCharsets.UTF_8)), channel);
+        if (!listenerContainer.isRunning()) {
+            listenerContainer.afterPropertiesSet();
+            listenerContainer.start();
+        }
+    }
+
+    @PreDestroy
+    void stop() throws Exception {
+        listenerContainer.destroy();
+    }
+}
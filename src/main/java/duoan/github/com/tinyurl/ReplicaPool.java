@@ -0,0 +1,248 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * The replicas read-only transactions are spread over, as the {@code "replica"} target of
+ * {@link ReplicationRoutingDataSource}.
+ * <p>
+ * Each connection goes to the replica with the lowest {@code (outstanding + 1) * latency}: the connections it handed
+ * out and did not get back yet, weighted by a moving average of how long they were held. A replica lagging more than
+ * {@code max-lag} behind the primary, or failing its lag check, is ejected until it caught up again; with every
+ * replica ejected, reads go to the primary.
+ */
+@Log4j2
+class ReplicaPool extends AbstractDataSource implements AutoCloseable {
+    private static final String METRIC_PREFIX = "tinyurl.datasource.replica";
+    /**
+     * Weight of the latest hold time in the moving average.
+     */
+    private static final double LATENCY_DECAY = 0.2;
+    /**
+     * Assumed hold time of a replica nothing was read from yet.
+     */
+    private static final long INITIAL_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final DataSource primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final TinyUrlProperties.Replicas config;
+    private final ToLongFunction<DataSource> lagProbe;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService executor;
+    private final Counter primaryFallbacks;
+
+    ReplicaPool(DataSource primary, Map<String, DataSource> replicas, TinyUrlProperties properties,
+                MeterRegistry meterRegistry) {
+        this(primary, replicas, properties, meterRegistry, ReplicaPool::replayLagMillis, System::nanoTime);
+    }
+
+    /**
+     * @param lagProbe how many milliseconds a replica lags behind the primary
+     */
+    ReplicaPool(DataSource primary, Map<String, DataSource> replicas, TinyUrlProperties properties,
+                MeterRegistry meterRegistry, ToLongFunction<DataSource> lagProbe, LongSupplier clock) {
+        this.primary = primary;
+        this.config = properties.getReplicas();
+        this.lagProbe = lagProbe;
+        this.clock = clock;
+        replicas.forEach((name, dataSource) -> this.replicas.add(new Replica(name, dataSource, meterRegistry)));
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("replica-lag-checker").factory());
+        this.primaryFallbacks = Counter.builder(METRIC_PREFIX + ".primary_fallbacks")
+                .description("Read-only connections taken from the primary because every replica was ejected")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() {
+        long interval = config.getLagCheckInterval().toMillis();
+        executor.scheduleWithFixedDelay(this::checkLag, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() throws Exception {
+        executor.shutdownNow();
+        for (Replica replica : replicas) {
+            DataSource dataSource = replica.dataSource;
+            if (dataSource instanceof DelegatingDataSource delegating) {
+                dataSource = delegating.getTargetDataSource();
+            }
+            if (dataSource instanceof AutoCloseable closeable) {
+                closeable.close();
+            }
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connect(DataSource::getConnection);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return connect(dataSource -> dataSource.getConnection(username, password));
+    }
+
+    private Connection connect(Connector connector) throws SQLException {
+        Replica replica = choose();
+        if (replica == null) {
+            primaryFallbacks.increment();
+            return connector.connect(primary);
+        }
+        return replica.getConnection(connector);
+    }
+
+    /**
+     * @return the replica with the lowest latency-weighted outstanding connections, or {@code null} if all are ejected
+     */
+    private Replica choose() {
+        Replica best = null;
+        double bestScore = Double.MAX_VALUE;
+        // ties go to a random replica, not always the first one
+        int offset = ThreadLocalRandom.current().nextInt(replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((offset + i) % replicas.size());
+            if (replica.ejected) {
+                continue;
+            }
+            double score = (replica.outstanding.get() + 1) * replica.latencyNanos;
+            if (score < bestScore) {
+                best = replica;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    void checkLag() {
+        long maxLagMillis = config.getMaxLag().toMillis();
+        for (Replica replica : replicas) {
+            boolean ejected;
+            try {
+                replica.lagMillis = lagProbe.applyAsLong(replica.dataSource);
+                ejected = replica.lagMillis > maxLagMillis;
+                if (ejected != replica.ejected) {
+                    log.warn("{} replica {}, {} ms behind the primary", ejected ? "Ejecting" : "Readmitting",
+                            replica.name, replica.lagMillis);
+                }
+            } catch (RuntimeException e) {
+                ejected = true;
+                if (!replica.ejected) {
+                    log.warn("Ejecting replica {}, failed to check its lag", replica.name, e);
+                }
+            }
+            replica.ejected = ejected;
+        }
+    }
+
+    private static long replayLagMillis(DataSource dataSource) {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.setQueryTimeout(1);
+            // a replica which replayed everything it received is not lagging, even if the primary was idle since
+            try (ResultSet rs = statement.executeQuery("SELECT CASE"
+                    + " WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0"
+                    + " ELSE (EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000)::BIGINT END")) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final class Replica {
+        final String name;
+        final DataSource dataSource;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final Timer latency;
+        // moving average of the hold time, racing updates only lose a sample
+        volatile double latencyNanos = INITIAL_LATENCY_NANOS;
+        volatile long lagMillis;
+        volatile boolean ejected;
+
+        Replica(String name, DataSource dataSource, MeterRegistry meterRegistry) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.latency = Timer.builder(METRIC_PREFIX + ".latency")
+                    .description("Time read-only connections to a replica were held")
+                    .tag("replica", name)
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(meterRegistry);
+            Gauge.builder(METRIC_PREFIX + ".lag", this, r -> r.lagMillis / 1000.0)
+                    .description("Seconds a replica lags behind the primary, as of its last check")
+                    .tag("replica", name)
+                    .baseUnit("seconds")
+                    .register(meterRegistry);
+            Gauge.builder(METRIC_PREFIX + ".outstanding", outstanding, AtomicInteger::get)
+                    .description("Connections to a replica not returned yet")
+                    .tag("replica", name)
+                    .register(meterRegistry);
+            Gauge.builder(METRIC_PREFIX + ".ejected", this, r -> r.ejected ? 1 : 0)
+                    .description("Whether a replica is ejected from the read rotation")
+                    .tag("replica", name)
+                    .register(meterRegistry);
+        }
+
+        Connection getConnection(Connector connector) throws SQLException {
+            outstanding.incrementAndGet();
+            long start = clock.getAsLong();
+            Connection connection;
+            try {
+                connection = connector.connect(dataSource);
+            } catch (SQLException | RuntimeException e) {
+                outstanding.decrementAndGet();
+                throw e;
+            }
+            AtomicBoolean returned = new AtomicBoolean();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getTargetException();
+                        } finally {
+                            if (method.getName().equals("close") && returned.compareAndSet(false, true)) {
+                                returned(clock.getAsLong() - start);
+                            }
+                        }
+                    });
+        }
+
+        private void returned(long heldNanos) {
+            outstanding.decrementAndGet();
+            latency.record(heldNanos, TimeUnit.NANOSECONDS);
+            latencyNanos += LATENCY_DECAY * (heldNanos - latencyNanos);
+        }
+    }
+
+    private interface Connector {
+        Connection connect(DataSource dataSource) throws SQLException;
+    }
+}
@@ -0,0 +1,37 @@
+package duoan.github.com.tinyurl;
+
+import lombok.experimental.UtilityClass;
+
+import java.util.function.Supplier;
+
+/**
+ * The shard the current thread's next connection goes to, read by {@link ShardRoutingDataSource}.
+ * <p>
+ * A connection is picked once per transaction, on its first statement, so a shard has to be bound before that
+ * and stays in effect for the whole transaction. Without sharding the binding is ignored.
+ */
+@UtilityClass
+class ShardContext {
+    private final ThreadLocal<Integer> SHARD = ThreadLocal.withInitial(() -> ShardMap.CATALOG_SHARD);
+
+    int current() {
+        return SHARD.get();
+    }
+
+    <T> T call(int shard, Supplier<T> action) {
+        Integer previous = SHARD.get();
+        SHARD.set(shard);
+        try {
+            return action.get();
+        } finally {
+            SHARD.set(previous);
+        }
+    }
+
+    void run(int shard, Runnable action) {
+        call(shard, () -> {
+            action.run();
+            return null;
+        });
+    }
+}
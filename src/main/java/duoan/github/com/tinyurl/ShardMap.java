@@ -0,0 +1,138 @@
+package duoan.github.com.tinyurl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Which shard owns which short url, as a snapshot of the catalog in {@code t_shard_ranges}.
+ * <p>
+ * The code space is cut into {@value #SLOTS} slots by the leading {@value #SLOT_BITS} bits of a short url, its first
+ * two characters. Contiguous slot ranges are owned by one shard each. New short urls are generated into the slot of
+ * their long url's {@linkplain #slotOf(LongUrlDigest) digest}, so a redirect and the long url deduplication of a
+ * create both go to the single shard which owns that slot.
+ * <p>
+ * A range being moved by {@link ShardRangeMover} is {@link State#COPYING} while its rows are copied to the target
+ * shard, then {@link State#SWITCHING}: writes go to the target, and reads fall back to the source on a miss until the
+ * last rows written to the source during the switch are copied too.
+ */
+final class ShardMap {
+    static final int SLOT_BITS = 12;
+    static final int SLOTS = 1 << SLOT_BITS;
+    /**
+     * Bits of a short url below its slot.
+     */
+    static final int CODE_BITS = ShortUrlCodec.BITS - SLOT_BITS;
+    /**
+     * Holds {@code t_shard_ranges} and the id block counter, and is where Flyway's own history starts.
+     */
+    static final int CATALOG_SHARD = 0;
+
+    private final List<Range> ranges;
+    private final int[] shards = new int[SLOTS];
+    private final int[] fallbackShards = new int[SLOTS];
+
+    private ShardMap(List<Range> ranges) {
+        this.ranges = ranges;
+        for (Range range : ranges) {
+            Route route = range.route();
+            Arrays.fill(shards, range.slotFrom(), range.slotTo(), route.shard());
+            Arrays.fill(fallbackShards, range.slotFrom(), range.slotTo(), route.fallbackShard());
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException unless the ranges cover every slot exactly once, on one of {@code shardCount}
+     *                                  shards
+     */
+    static ShardMap of(List<Range> ranges, int shardCount) {
+        List<Range> sorted = ranges.stream().sorted(Comparator.comparingInt(Range::slotFrom)).toList();
+        int next = 0;
+        for (Range range : sorted) {
+            if (range.slotFrom() != next || range.slotTo() <= range.slotFrom()) {
+                throw new IllegalArgumentException("Shard ranges must cover slots [0, " + SLOTS + ") without gaps or"
+                        + " overlaps, found " + range + " after slot " + next);
+            }
+            checkShard(range, range.shard(), shardCount);
+            if (range.state() != State.OWNED) {
+                checkShard(range, range.targetShard(), shardCount);
+            }
+            next = range.slotTo();
+        }
+        if (next != SLOTS) {
+            throw new IllegalArgumentException("Shard ranges end at slot " + next + " instead of " + SLOTS);
+        }
+        return new ShardMap(sorted);
+    }
+
+    private static void checkShard(Range range, Integer shard, int shardCount) {
+        if (shard == null || shard < 0 || shard >= shardCount) {
+            throw new IllegalArgumentException(range + " refers to a shard outside of the " + shardCount
+                    + " configured ones");
+        }
+    }
+
+    /**
+     * @return the slot of a short url: its first two characters' 6-bit values, unknown or missing characters count
+     * as 0. Must match {@code short_url_slot(text)}, see {@code V9__create_shard_ranges_table.sql}.
+     */
+    static int slotOf(CharSequence shortUrl) {
+        int high = shortUrl.isEmpty() ? 0 : Math.max(ShortUrlCodec.valueOf(shortUrl.charAt(0)), 0);
+        int low = shortUrl.length() < 2 ? 0 : Math.max(ShortUrlCodec.valueOf(shortUrl.charAt(1)), 0);
+        return high << 6 | low;
+    }
+
+    static int slotOf(LongUrlDigest longUrlDigest) {
+        return (int) (longUrlDigest.high() >>> (Long.SIZE - SLOT_BITS));
+    }
+
+    /**
+     * @return {@code shortUrl} with its slot replaced by {@code slot}
+     */
+    static String placeInSlot(String shortUrl, int slot) {
+        long bits = ShortUrlCodec.decode(shortUrl);
+        if (bits < 0) {
+            throw new IllegalArgumentException("Not a " + Constants.MAX_SHORT_URL_LENGTH + " character short url: "
+                    + shortUrl);
+        }
+        return ShortUrlCodec.encode((long) slot << CODE_BITS | bits & ((1L << CODE_BITS) - 1));
+    }
+
+    Route route(int slot) {
+        return new Route(shards[slot], fallbackShards[slot]);
+    }
+
+    List<Range> ranges() {
+        return ranges;
+    }
+
+    /**
+     * @param fallbackShard where to look on a miss at {@code shard}, {@code -1} if nowhere
+     */
+    record Route(int shard, int fallbackShard) {
+        boolean hasFallback() {
+            return fallbackShard >= 0;
+        }
+    }
+
+    /**
+     * Slots {@code [slotFrom, slotTo)}, owned by {@code shard}, which is the source while moving to
+     * {@code targetShard}.
+     */
+    record Range(int slotFrom, int slotTo, int shard, Integer targetShard, State state) {
+        Route route() {
+            return switch (state) {
+                case OWNED, COPYING -> new Route(shard, -1);
+                case SWITCHING -> new Route(targetShard, shard);
+            };
+        }
+
+        boolean contains(int from, int to) {
+            return slotFrom <= from && to <= slotTo;
+        }
+    }
+
+    enum State {
+        OWNED, COPYING, SWITCHING
+    }
+}
@@ -0,0 +1,352 @@
+package duoan.github.com.tinyurl;
+
+import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves a slot range from its shard to another one while both keep serving, started through the
+ * {@code shardranges} actuator endpoint:
+ * <pre>
+ * curl -X POST localhost:8080/actuator/shardranges -H 'Content-Type: application/json' \
+ *      -d '{"slotFrom": 2048, "slotTo": 4096, "targetShard": 1}'
+ * </pre>
+ * <ol>
+ *     <li>The range is split off in the catalog and marked {@link ShardMap.State#COPYING}; it is still read and
+ *     written on the source shard.</li>
+ *     <li>Its rows are copied to the target in key order, then catch-up passes copy the rows inserted meanwhile until
+ *     a pass finds less than a batch. They follow {@code inserted_at}, not {@code created_at}: a row imported during
+ *     the move keeps the {@code created_at} of its source.</li>
+ *     <li>The range is marked {@link ShardMap.State#SWITCHING}: creates go to the target, and reads fall back to the
+ *     source. After {@code switch-delay}, once every node switched, the rows the source still took are copied.</li>
+ *     <li>The range is marked {@link ShardMap.State#OWNED} by the target, and after another {@code switch-delay} its
+ *     rows are deleted from the source.</li>
+ * </ol>
+ * Copies and deletes run on the primaries in batches of {@code move-batch-size} rows, rate limited by
+ * {@code max-move-rows-per-second}, and copies skip rows the target has already, so an interrupted move is resumed
+ * by starting it again. Only one node moves at a time, holding an advisory lock on the catalog shard.
+ * <p>
+ * While a range is switching, a create on a node which has not refreshed its shard map yet may store a second short
+ * url for a long url stored on the other shard; both keep redirecting.
+ */
+@Log4j2
+@Component
+@Profile("sharded")
+@Endpoint(id = "shardranges")
+class ShardRangeMover {
+    private static final String METRIC_PREFIX = "tinyurl.sharding.move";
+    // "turlshar", any constant shared by all nodes
+    private static final long ADVISORY_LOCK_KEY = 0x7475726C73686172L;
+    private static final String RANGE_PAGE = "SELECT short_url, long_url, long_url_digest, created_at"
+            + " FROM t_url_mappings WHERE short_url_slot(short_url) >= ? AND short_url_slot(short_url) < ?"
+            + " AND (short_url_slot(short_url), short_url) > (?, ?)";
+    private static final String RANGE_PAGE_ORDER = " ORDER BY short_url_slot(short_url), short_url LIMIT ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ShardRouter shardRouter;
+    private final TinyUrlProperties.Sharding config;
+    private final ExecutorService executor;
+    private final RateLimiter rateLimiter;
+    private final Counter copied;
+    private final Counter deleted;
+    private Future<?> currentMove;
+    private volatile String status = "idle";
+
+    ShardRangeMover(JdbcTemplate jdbcTemplate, ShardRouter shardRouter, TinyUrlProperties properties,
+                    MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.shardRouter = shardRouter;
+        this.config = properties.getSharding();
+        if (config.getSwitchDelay().compareTo(config.getRefreshInterval()) <= 0) {
+            throw new IllegalStateException("tinyurl.sharding.switch-delay must be longer than the refresh interval");
+        }
+        this.executor = Executors.newSingleThreadExecutor(
+                Thread.ofPlatform().daemon().name("shard-range-mover").factory());
+        this.rateLimiter = RateLimiter.create(config.getMaxMoveRowsPerSecond());
+        this.copied = Counter.builder(METRIC_PREFIX + ".copied")
+                .description("Url mappings inserted on the target shard of a move")
+                .register(meterRegistry);
+        this.deleted = Counter.builder(METRIC_PREFIX + ".deleted")
+                .description("Url mappings deleted from the source shard of a move")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @ReadOperation
+    public Map<String, Object> ranges() {
+        Map<String, Object> ranges = new LinkedHashMap<>();
+        ranges.put("shards", shardRouter.shardCount());
+        ranges.put("ranges", shardRouter.shardMap().ranges());
+        ranges.put("move", status);
+        return ranges;
+    }
+
+    @WriteOperation
+    public synchronized String move(int slotFrom, int slotTo, int targetShard) {
+        if (slotFrom < 0 || slotTo > ShardMap.SLOTS || slotFrom >= slotTo) {
+            throw new IllegalArgumentException("Slots [" + slotFrom + ", " + slotTo + ") are not within [0, "
+                    + ShardMap.SLOTS + ")");
+        }
+        if (targetShard < 0 || targetShard >= shardRouter.shardCount()) {
+            throw new IllegalArgumentException("No shard " + targetShard + " among the " + shardRouter.shardCount()
+                    + " configured ones");
+        }
+        if (currentMove != null && !currentMove.isDone()) {
+            throw new IllegalStateException("Already moving: " + status);
+        }
+        currentMove = executor.submit(() -> moveLocked(slotFrom, slotTo, targetShard));
+        return "Moving slots [" + slotFrom + ", " + slotTo + ") to shard " + targetShard;
+    }
+
+    private void moveLocked(int slotFrom, int slotTo, int targetShard) {
+        try {
+            Boolean moved = ShardContext.call(ShardMap.CATALOG_SHARD, () -> jdbcTemplate.execute(
+                    (ConnectionCallback<Boolean>) connection -> {
+                        if (!advisoryLock(connection, "pg_try_advisory_lock")) {
+                            return false;
+                        }
+                        try {
+                            moveRange(slotFrom, slotTo, targetShard);
+                            return true;
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            status("interrupted, start the same move again to resume");
+                            return true;
+                        } finally {
+                            advisoryLock(connection, "pg_advisory_unlock");
+                        }
+                    }));
+            if (Boolean.FALSE.equals(moved)) {
+                status("not started, another node is moving a range");
+            }
+        } catch (RuntimeException e) {
+            log.error("Moving slots [{}, {}) to shard {} failed", slotFrom, slotTo, targetShard, e);
+            status("failed: " + e.getMessage());
+        }
+    }
+
+    private void moveRange(int slotFrom, int slotTo, int targetShard) throws InterruptedException {
+        ShardMap.Range range = shardRouter.write(ShardMap.CATALOG_SHARD,
+                () -> startMove(slotFrom, slotTo, targetShard));
+        int sourceShard = range.shard();
+        shardRouter.refresh();
+
+        status("copying slots [" + slotFrom + ", " + slotTo + ") from shard " + sourceShard);
+        Instant copyStart = now(sourceShard);
+        copy(sourceShard, targetShard, slotFrom, slotTo, null);
+        Instant since = copyStart;
+        long caughtUp;
+        do {
+            status("catching up slots [" + slotFrom + ", " + slotTo + ") inserted since " + since);
+            Instant passStart = now(sourceShard);
+            caughtUp = copy(sourceShard, targetShard, slotFrom, slotTo, since.minus(config.getSwitchDelay()));
+            since = passStart;
+        } while (caughtUp >= config.getMoveBatchSize());
+
+        updateRange(slotFrom, sourceShard, targetShard, ShardMap.State.SWITCHING);
+        status("switching slots [" + slotFrom + ", " + slotTo + ") to shard " + targetShard);
+        Thread.sleep(config.getSwitchDelay().toMillis());
+        copy(sourceShard, targetShard, slotFrom, slotTo, since.minus(config.getSwitchDelay()));
+
+        updateRange(slotFrom, targetShard, null, ShardMap.State.OWNED);
+        status("waiting for every node to stop reading slots [" + slotFrom + ", " + slotTo + ") from shard "
+                + sourceShard);
+        Thread.sleep(config.getSwitchDelay().toMillis());
+        status("deleting slots [" + slotFrom + ", " + slotTo + ") from shard " + sourceShard);
+        delete(sourceShard, slotFrom, slotTo);
+        status("moved slots [" + slotFrom + ", " + slotTo + ") from shard " + sourceShard + " to shard "
+                + targetShard);
+    }
+
+    /**
+     * Splits {@code [slotFrom, slotTo)} off the owned range containing it and marks it as copying, or returns it if
+     * this move was started before.
+     */
+    private ShardMap.Range startMove(int slotFrom, int slotTo, int targetShard) {
+        List<ShardMap.Range> containing = jdbcTemplate.query(
+                "SELECT slot_from, slot_to, shard, target_shard, state FROM t_shard_ranges"
+                        + " WHERE slot_from <= ? AND slot_to > ? FOR UPDATE",
+                (rs, rowNum) -> new ShardMap.Range(rs.getInt("slot_from"), rs.getInt("slot_to"), rs.getInt("shard"),
+                        rs.getObject("target_shard", Integer.class), ShardMap.State.valueOf(rs.getString("state"))),
+                slotFrom, slotFrom);
+        if (containing.size() != 1) {
+            throw new IllegalStateException("No shard range contains slot " + slotFrom);
+        }
+        ShardMap.Range range = containing.getFirst();
+        if (range.state() != ShardMap.State.OWNED) {
+            if (range.slotFrom() == slotFrom && range.slotTo() == slotTo
+                    && range.targetShard() == targetShard) {
+                log.info("Resuming the move of {}", range);
+                return range;
+            }
+            throw new IllegalStateException("Slots [" + slotFrom + ", " + slotTo + ") overlap the move of " + range);
+        }
+        if (!range.contains(slotFrom, slotTo)) {
+            throw new IllegalStateException("Slots [" + slotFrom + ", " + slotTo + ") span more than " + range
+                    + ", move them one range at a time");
+        }
+        if (range.shard() == targetShard) {
+            throw new IllegalStateException("Slots [" + slotFrom + ", " + slotTo + ") are on shard " + targetShard
+                    + " already");
+        }
+        jdbcTemplate.update("DELETE FROM t_shard_ranges WHERE slot_from = ?", range.slotFrom());
+        String insert = "INSERT INTO t_shard_ranges (slot_from, slot_to, shard, target_shard, state)"
+                + " VALUES (?, ?, ?, ?, ?)";
+        if (range.slotFrom() < slotFrom) {
+            jdbcTemplate.update(insert, range.slotFrom(), slotFrom, range.shard(), null, "OWNED");
+        }
+        jdbcTemplate.update(insert, slotFrom, slotTo, range.shard(), targetShard, "COPYING");
+        if (slotTo < range.slotTo()) {
+            jdbcTemplate.update(insert, slotTo, range.slotTo(), range.shard(), null, "OWNED");
+        }
+        log.info("Moving slots [{}, {}) from shard {} to shard {}", slotFrom, slotTo, range.shard(), targetShard);
+        return new ShardMap.Range(slotFrom, slotTo, range.shard(), targetShard, ShardMap.State.COPYING);
+    }
+
+    private void updateRange(int slotFrom, int shard, Integer targetShard, ShardMap.State state) {
+        shardRouter.write(ShardMap.CATALOG_SHARD, () -> jdbcTemplate.update(
+                "UPDATE t_shard_ranges SET shard = ?, target_shard = ?, state = ?, updated_at = now()"
+                        + " WHERE slot_from = ?", shard, targetShard, state.name(), slotFrom));
+        shardRouter.refresh();
+    }
+
+    /**
+     * @param since only copy rows inserted since, or all rows if {@code null}
+     * @return the rows read from the source, which the target may have had already
+     */
+    private long copy(int sourceShard, int targetShard, int slotFrom, int slotTo, Instant since)
+            throws InterruptedException {
+        long rows = 0;
+        MovedRow last = null;
+        while (true) {
+            checkInterrupted();
+            MovedRow after = last;
+            // from the source's primary: a lagging replica would miss the latest rows
+            List<MovedRow> page = shardRouter.write(sourceShard, () -> page(slotFrom, slotTo, since, after));
+            if (page.isEmpty()) {
+                return rows;
+            }
+            rateLimiter.acquire(page.size());
+            int inserted = shardRouter.write(targetShard, () -> jdbcTemplate.update(con -> {
+                PreparedStatement ps = con.prepareStatement(
+                        "INSERT INTO t_url_mappings (short_url, long_url, long_url_digest, created_at)"
+                                + " SELECT * FROM unnest(?::varchar[], ?::varchar[], ?::bigint[], ?::timestamp[])"
+                                + " ON CONFLICT DO NOTHING");
+                ps.setArray(1, con.createArrayOf("varchar", page.stream().map(MovedRow::shortUrl).toArray()));
+                ps.setArray(2, con.createArrayOf("varchar", page.stream().map(MovedRow::longUrl).toArray()));
+                ps.setArray(3, con.createArrayOf("bigint", page.stream().map(MovedRow::longUrlDigest).toArray()));
+                ps.setArray(4, con.createArrayOf("timestamp", page.stream().map(MovedRow::createdAt).toArray()));
+                return ps;
+            }));
+            copied.increment(inserted);
+            rows += page.size();
+            last = page.getLast();
+            if (page.size() < config.getMoveBatchSize()) {
+                return rows;
+            }
+        }
+    }
+
+    /**
+     * The source's clock, which sets {@code inserted_at}, rather than this node's.
+     */
+    private Instant now(int sourceShard) {
+        return shardRouter.write(sourceShard,
+                () -> jdbcTemplate.queryForObject("SELECT LOCALTIMESTAMP", Timestamp.class)).toInstant();
+    }
+
+    private void delete(int sourceShard, int slotFrom, int slotTo) throws InterruptedException {
+        MovedRow last = null;
+        while (true) {
+            checkInterrupted();
+            MovedRow after = last;
+            List<MovedRow> page = shardRouter.write(sourceShard, () -> page(slotFrom, slotTo, null, after));
+            if (page.isEmpty()) {
+                return;
+            }
+            rateLimiter.acquire(page.size());
+            int deletedRows = shardRouter.write(sourceShard, () -> jdbcTemplate.update(con -> {
+                PreparedStatement ps = con.prepareStatement("DELETE FROM t_url_mappings WHERE short_url = ANY(?)");
+                ps.setArray(1, con.createArrayOf("varchar", page.stream().map(MovedRow::shortUrl).toArray()));
+                return ps;
+            }));
+            deleted.increment(deletedRows);
+            last = page.getLast();
+            if (page.size() < config.getMoveBatchSize()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the next rows of the range in {@code (slot, short_url)} order after {@code after}
+     */
+    private List<MovedRow> page(int slotFrom, int slotTo, Instant since, MovedRow after) {
+        String sql = RANGE_PAGE + (since == null ? "" : " AND inserted_at >= ?") + RANGE_PAGE_ORDER;
+        return jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(sql);
+            int i = 1;
+            ps.setInt(i++, slotFrom);
+            ps.setInt(i++, slotTo);
+            ps.setInt(i++, after == null ? -1 : ShardMap.slotOf(after.shortUrl()));
+            ps.setString(i++, after == null ? "" : after.shortUrl());
+            if (since != null) {
+                ps.setTimestamp(i++, Timestamp.from(since));
+            }
+            ps.setInt(i, config.getMoveBatchSize());
+            return ps;
+        }, (rs, rowNum) -> new MovedRow(rs.getString("short_url"), rs.getString("long_url"),
+                rs.getObject("long_url_digest", Long.class), rs.getTimestamp("created_at")));
+    }
+
+    private void status(String status) {
+        log.info("Shard range move: {}", status);
+        this.status = status;
+    }
+
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private static boolean advisoryLock(Connection connection, String function) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT " + function + "(?)")) {
+            ps.setLong(1, ADVISORY_LOCK_KEY);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    private record MovedRow(String shortUrl, String longUrl, Long longUrlDigest, Timestamp createdAt) {
+    }
+}
@@ -0,0 +1,137 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Routes url mappings to the shard owning their slot, see {@link ShardMap}.
+ * <p>
+ * The shard map is re-read from {@code t_shard_ranges} on the catalog shard's primary every
+ * {@code tinyurl.sharding.refresh-interval}; a catalog which does not fit the configured shards is logged and the
+ * previous map kept. Queries on a shard run in a transaction of their own with the shard bound, so that one request
+ * can read from two shards while a range is {@linkplain ShardMap.State#SWITCHING switching}.
+ */
+@Log4j2
+@Component
+@Profile("sharded")
+class ShardRouter {
+    private static final String METRIC_PREFIX = "tinyurl.sharding";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readTransaction;
+    private final TransactionTemplate writeTransaction;
+    private final int shardCount;
+    private final TinyUrlProperties.Sharding config;
+    private final ScheduledExecutorService executor;
+    private final Counter fallbackReads;
+    private volatile ShardMap shardMap;
+
+    ShardRouter(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                ShardRoutingDataSource shardRoutingDataSource, TinyUrlProperties properties,
+                MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        // a transaction per shard: the connection of an enclosing one is bound to the shard it started on
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.readTransaction.setReadOnly(true);
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.writeTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.shardCount = shardRoutingDataSource.getShardCount();
+        this.config = properties.getSharding();
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("shard-map-refresher").factory());
+        this.fallbackReads = Counter.builder(METRIC_PREFIX + ".fallback_reads")
+                .description("Reads of a switching range which missed on the target and went to the source shard")
+                .register(meterRegistry);
+        meterRegistry.gauge(METRIC_PREFIX + ".shards", this, ShardRouter::shardCount);
+        meterRegistry.gauge(METRIC_PREFIX + ".ranges", this, r -> r.shardMap.ranges().size());
+        meterRegistry.gauge(METRIC_PREFIX + ".moving_ranges", this, r -> r.shardMap.ranges().stream()
+                .filter(range -> range.state() != ShardMap.State.OWNED)
+                .count());
+    }
+
+    @PostConstruct
+    void start() {
+        // fail fast: without a valid catalog nothing can be routed
+        shardMap = loadShardMap();
+        log.info("Routing to {} shards by {} slot ranges", shardCount, shardMap.ranges().size());
+        long interval = config.getRefreshInterval().toMillis();
+        executor.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    void refresh() {
+        try {
+            shardMap = loadShardMap();
+        } catch (RuntimeException e) {
+            log.error("Failed to refresh the shard map, still routing by the previous one", e);
+        }
+    }
+
+    private ShardMap loadShardMap() {
+        // from the primary, a lagging replica would route writes to a range's old shard
+        List<ShardMap.Range> ranges = write(ShardMap.CATALOG_SHARD, () -> jdbcTemplate.query(
+                "SELECT slot_from, slot_to, shard, target_shard, state FROM t_shard_ranges",
+                (rs, rowNum) -> new ShardMap.Range(rs.getInt("slot_from"), rs.getInt("slot_to"), rs.getInt("shard"),
+                        rs.getObject("target_shard", Integer.class), ShardMap.State.valueOf(rs.getString("state")))));
+        return ShardMap.of(ranges, shardCount);
+    }
+
+    ShardMap shardMap() {
+        return shardMap;
+    }
+
+    int shardCount() {
+        return shardCount;
+    }
+
+    ShardMap.Route route(CharSequence shortUrl) {
+        return shardMap.route(ShardMap.slotOf(shortUrl));
+    }
+
+    ShardMap.Route route(LongUrlDigest longUrlDigest) {
+        return shardMap.route(ShardMap.slotOf(longUrlDigest));
+    }
+
+    /**
+     * Runs {@code query} in a read-only transaction on {@code route}'s shard, and again on its fallback shard if it
+     * found nothing there.
+     */
+    <T> T read(ShardMap.Route route, Supplier<T> query, Predicate<T> found) {
+        T result = read(route.shard(), query);
+        if (!found.test(result) && route.hasFallback()) {
+            fallbackReads.increment();
+            result = read(route.fallbackShard(), query);
+        }
+        return result;
+    }
+
+    <T> T read(int shard, Supplier<T> query) {
+        return ShardContext.call(shard, () -> readTransaction.execute(status -> query.get()));
+    }
+
+    <T> T write(int shard, Supplier<T> action) {
+        return ShardContext.call(shard, () -> writeTransaction.execute(status -> action.get()));
+    }
+}
@@ -0,0 +1,200 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Bloom filter of every stored short url, consulted before the caches and the database on redirects:
+ * a short url it rejects certainly does not exist and is answered with 404 straight away.
+ * <p>
+ * Until the filter is loaded (from its snapshot, or by streaming {@code t_url_mappings}) it lets everything through.
+ * Short urls created on this node are added immediately; those created on other nodes are picked up by the periodic
+ * catch-up scan over {@code inserted_at}, so for up to {@code refresh-interval} another node may answer 404
+ * for a short url which was just created. Not over {@code created_at}, which imported and moved rows keep from their
+ * source, so they would never be caught up.
+ * <p>
+ * {@code inserted_at} is the start of the inserting transaction, which may commit long after. The scan therefore
+ * reads the primary, whose replicas may not have caught up yet, and only moves past what no transaction still
+ * open can insert: rows are in the filter up to the start of the oldest transaction open before the scan.
+ * That bound relies on the application's own sessions being visible in {@code pg_stat_activity}.
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(name = "tinyurl.bloom-filter.enabled", havingValue = "true")
+class ShortUrlBloomFilter {
+    private static final String METRIC_PREFIX = "tinyurl.bloom_filter";
+    private static final int FETCH_SIZE = 10_000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate catchUpTransaction;
+    private final int shardCount;
+    private final TinyUrlProperties.BloomFilter config;
+    private final Path snapshotPath;
+    private final OffHeapBloomFilter filter;
+    private final Counter rejections;
+    private final Counter falsePositives;
+    private volatile boolean ready;
+    /**
+     * Rows inserted before this instant are in the filter; catch-up scans start {@code catch-up-margin} earlier
+     * to also cover the clock skew between shards.
+     */
+    private volatile Instant syncedUntil = Instant.EPOCH;
+
+    ShortUrlBloomFilter(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                        ObjectProvider<ShardRouter> shardRouter, TinyUrlProperties properties,
+                        MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        // not read-only, which would route the scan to a replica
+        this.catchUpTransaction = new TransactionTemplate(transactionManager);
+        ShardRouter router = shardRouter.getIfAvailable();
+        this.shardCount = router == null ? 1 : router.shardCount();
+        this.config = properties.getBloomFilter();
+        this.snapshotPath = Path.of(config.getSnapshotPath());
+        this.filter = loadSnapshot();
+        this.rejections = meterRegistry.counter(METRIC_PREFIX + ".rejections");
+        this.falsePositives = meterRegistry.counter(METRIC_PREFIX + ".false_positives");
+        meterRegistry.gauge(METRIC_PREFIX + ".expected_fpp", filter, OffHeapBloomFilter::expectedFpp);
+        meterRegistry.gauge(METRIC_PREFIX + ".bits_set", filter, OffHeapBloomFilter::bitsSet);
+        meterRegistry.gauge(METRIC_PREFIX + ".size_bytes", filter, OffHeapBloomFilter::sizeInBytes);
+    }
+
+    /**
+     * @return {@code false} only if {@code shortUrl} is certainly not stored
+     */
+    boolean mightContain(String shortUrl) {
+        if (!ready || filter.mightContain(shortUrl)) {
+            return true;
+        }
+        rejections.increment();
+        return false;
+    }
+
+    void put(String shortUrl) {
+        filter.put(shortUrl);
+    }
+
+    /**
+     * Called when a short url passed the filter but is not stored.
+     */
+    void recordFalsePositive() {
+        if (ready) {
+            falsePositives.increment();
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void load() {
+        Thread.ofPlatform().daemon().name("short-url-bloom-filter-loader").start(() -> {
+            long start = System.nanoTime();
+            long rows = catchUp();
+            ready = true;
+            log.info("Bloom filter ready after adding {} short urls in {} ms, expected fpp {}",
+                    rows, Duration.ofNanos(System.nanoTime() - start).toMillis(), filter.expectedFpp());
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${tinyurl.bloom-filter.refresh-interval:1s}")
+    void refresh() {
+        if (ready) {
+            catchUp();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${tinyurl.bloom-filter.snapshot-interval:5m}",
+            initialDelayString = "${tinyurl.bloom-filter.snapshot-interval:5m}")
+    @PreDestroy
+    void snapshot() {
+        if (!ready) {
+            return;
+        }
+        try {
+            filter.writeTo(snapshotPath, syncedUntil.toEpochMilli());
+            log.info("Bloom filter snapshot written to {}", snapshotPath);
+        } catch (IOException e) {
+            log.warn("Failed to write bloom filter snapshot to {}", snapshotPath, e);
+        }
+    }
+
+    private OffHeapBloomFilter loadSnapshot() {
+        if (Files.exists(snapshotPath)) {
+            try {
+                OffHeapBloomFilter.Snapshot snapshot = OffHeapBloomFilter.readFrom(
+                        snapshotPath, config.getExpectedInsertions(), config.getFpp());
+                if (snapshot != null) {
+                    syncedUntil = Instant.ofEpochMilli(snapshot.syncedUntilEpochMillis());
+                    log.info("Bloom filter snapshot loaded from {}, synced until {}", snapshotPath, syncedUntil);
+                    return snapshot.filter();
+                }
+                log.warn("Ignoring bloom filter snapshot {} built by a previous version or with different dimensions",
+                        snapshotPath);
+            } catch (IOException e) {
+                log.warn("Failed to read bloom filter snapshot {}, rebuilding from the database", snapshotPath, e);
+            }
+        }
+        return OffHeapBloomFilter.create(config.getExpectedInsertions(), config.getFpp());
+    }
+
+    /**
+     * Streams every short url inserted since {@link #syncedUntil} (minus the margin) into the filter, from every
+     * shard, or all of them on the first load.
+     */
+    private long catchUp() {
+        // rows inserted before inserted_at was added have none, only the first load sees them
+        Instant from = syncedUntil.equals(Instant.EPOCH) ? null : syncedUntil.minus(config.getCatchUpMargin());
+        long[] rows = {0};
+        Instant[] until = {Instant.MAX};
+        for (int shard = 0; shard < shardCount; shard++) {
+            ShardContext.run(shard, () -> catchUp(from, rows, until));
+        }
+        syncedUntil = until[0];
+        return rows[0];
+    }
+
+    private void catchUp(Instant from, long[] rows, Instant[] until) {
+        // pgjdbc only honours the fetch size, and streams instead of buffering every row, inside a transaction
+        catchUpTransaction.executeWithoutResult(status -> {
+            // taken before the scan: whatever commits after the scan's snapshot was started at or after it,
+            // this transaction included
+            Timestamp oldestOpen = jdbcTemplate.queryForObject("SELECT min(xact_start) FROM pg_stat_activity"
+                    + " WHERE datname = current_database() AND backend_type = 'client backend'", Timestamp.class);
+            if (oldestOpen != null && oldestOpen.toInstant().isBefore(until[0])) {
+                until[0] = oldestOpen.toInstant();
+            }
+            scan(from, rows);
+        });
+    }
+
+    private void scan(Instant from, long[] rows) {
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement("SELECT short_url FROM t_url_mappings"
+                    + (from == null ? "" : " WHERE inserted_at >= ?"));
+            ps.setFetchSize(FETCH_SIZE);
+            if (from != null) {
+                ps.setTimestamp(1, Timestamp.from(from));
+            }
+            return ps;
+        }, rs -> {
+            filter.put(rs.getString(1));
+            rows[0]++;
+        });
+    }
+}
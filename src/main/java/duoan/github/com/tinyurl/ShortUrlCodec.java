@@ -0,0 +1,112 @@
+package duoan.github.com.tinyurl;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Maps 54-bit numbers onto {@linkplain Constants#MAX_SHORT_URL_LENGTH 9} base64url characters and back.
+ * The most significant 6 bits become the first character, matching the layout of {@link UrlHashUtil#hashUrl}.
+ */
+@UtilityClass
+class ShortUrlCodec {
+    static final int BITS = Constants.MAX_SHORT_URL_LENGTH * 6;
+    static final long MASK = (1L << BITS) - 1;
+
+    private static final char[] TO_BASE64_URL = {
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+            'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+            'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '-', '_'
+    };
+    private static final byte[] FROM_BASE64_URL = new byte[128];
+
+    static {
+        java.util.Arrays.fill(FROM_BASE64_URL, (byte) -1);
+        for (int i = 0; i < TO_BASE64_URL.length; i++) {
+            FROM_BASE64_URL[TO_BASE64_URL[i]] = (byte) i;
+        }
+    }
+
+    String encode(long bits) {
+        char[] chars = new char[Constants.MAX_SHORT_URL_LENGTH];
+        encode(bits, chars);
+        return new String(chars);
+    }
+
+    void encode(long bits, char[] dst) {
+        for (int i = Constants.MAX_SHORT_URL_LENGTH - 1; i >= 0; i--) {
+            dst[i] = TO_BASE64_URL[(int) (bits & 0x3F)];
+            bits >>>= 6;
+        }
+    }
+
+    /**
+     * @return the 54 bits of a 9 character short url, or {@code -1} if it is not one
+     */
+    long decode(CharSequence shortUrl) {
+        if (shortUrl.length() != Constants.MAX_SHORT_URL_LENGTH) {
+            return -1;
+        }
+        long bits = 0;
+        for (int i = 0; i < Constants.MAX_SHORT_URL_LENGTH; i++) {
+            char c = shortUrl.charAt(i);
+            int value = c < 128 ? FROM_BASE64_URL[c] : -1;
+            if (value < 0) {
+                return -1;
+            }
+            bits = (bits << 6) | value;
+        }
+        return bits;
+    }
+
+    /**
+     * Packs a short url of 1 to 9 base64url characters into a positive long: the characters' 6-bit values in the low
+     * 54 bits and the length above them, so that e.g. {@code "A"} and {@code "AA"} stay distinct.
+     *
+     * @return the packed short url, or {@code -1} if it is not one
+     */
+    long pack(CharSequence shortUrl) {
+        int length = shortUrl.length();
+        if (length == 0 || length > Constants.MAX_SHORT_URL_LENGTH) {
+            return -1;
+        }
+        long bits = 0;
+        for (int i = 0; i < length; i++) {
+            char c = shortUrl.charAt(i);
+            int value = c < 128 ? FROM_BASE64_URL[c] : -1;
+            if (value < 0) {
+                return -1;
+            }
+            bits = (bits << 6) | value;
+        }
+        return ((long) length << BITS) | bits;
+    }
+
+    /**
+     * @return the 6-bit value of a base64url character, or {@code -1} if it is not one
+     */
+    int valueOf(char c) {
+        return c < 128 ? FROM_BASE64_URL[c] : -1;
+    }
+
+    /**
+     * Bijective mix of the 54-bit id space, so sequential ids do not turn into guessable, sequential short urls.
+     * Multiplying by an odd constant and xor-shifting right are both invertible modulo 2<sup>54</sup>.
+     */
+    long scramble(long id) {
+        return scramble(id, BITS);
+    }
+
+    /**
+     * {@link #scramble(long)} over the low {@code bits} bits only, a bijection of that smaller space.
+     */
+    long scramble(long id, int bits) {
+        long mask = (1L << bits) - 1;
+        long x = id & mask;
+        x = (x * 0x9E3779B97F4A7C15L) & mask;
+        x ^= x >>> 29;
+        x = (x * 0xBF58476D1CE4E5B9L) & mask;
+        x ^= x >>> 31;
+        return x;
+    }
+}
@@ -0,0 +1,15 @@
+package duoan.github.com.tinyurl;
+
+/**
+ * Generates the short url for a (canonical) long url which is not stored yet.
+ * The active implementation is selected by {@code tinyurl.short-url.generator}.
+ */
+interface ShortUrlGenerator {
+    String generate(String longUrl);
+
+    /**
+     * Like {@link #generate(String)}, but the short url falls into {@code slot} of the {@link ShardMap}, which is the
+     * slot of the long url's digest, so both are routed to the same shard.
+     */
+    String generate(String longUrl, int slot);
+}
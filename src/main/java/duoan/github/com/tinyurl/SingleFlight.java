@@ -0,0 +1,78 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.SneakyThrows;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller runs the loader, every caller arriving while it runs
+ * waits for and shares its result (or exception) instead of loading again.
+ * Nothing is cached, the next call after the load completed loads again.
+ */
+class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Counter coalesced;
+
+    SingleFlight(String name, MeterRegistry meterRegistry) {
+        this.coalesced = Counter.builder("tinyurl.single_flight.coalesced")
+                .description("Loads saved by waiting on an in-flight load of the same key")
+                .tag("name", name)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Loaders may sneaky-throw checked exceptions, which are shared like any other.
+     */
+    @SneakyThrows
+    V load(K key, Supplier<V> loader) {
+        CompletableFuture<V> leader = new CompletableFuture<>();
+        CompletableFuture<V> inFlightLoad = inFlight.putIfAbsent(key, leader);
+        if (inFlightLoad != null) {
+            coalesced.increment();
+            try {
+                return inFlightLoad.join();
+            } catch (CompletionException e) {
+                throw e.getCause();
+            }
+        }
+        try {
+            V value = loader.get();
+            leader.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // anything escaping without completing the leader would leave its followers waiting forever
+            leader.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, leader);
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #load(Object, Supplier)}: callers arriving while a load runs subscribe to its
+     * result instead of waiting for it. An empty load completes all of them empty.
+     */
+    Mono<V> loadAsync(K key, Supplier<Mono<V>> loader) {
+        return Mono.defer(() -> {
+            CompletableFuture<V> leader = new CompletableFuture<>();
+            CompletableFuture<V> inFlightLoad = inFlight.putIfAbsent(key, leader);
+            if (inFlightLoad != null) {
+                coalesced.increment();
+                // a follower going away must not cancel the load for the others
+                return Mono.fromFuture(inFlightLoad, true);
+            }
+            return loader.get()
+                    .doOnSuccess(leader::complete)
+                    .doOnError(leader::completeExceptionally)
+                    .doOnCancel(() -> leader.completeExceptionally(new CancellationException("leader cancelled")))
+                    .doFinally(signal -> inFlight.remove(key, leader));
+        });
+    }
+}
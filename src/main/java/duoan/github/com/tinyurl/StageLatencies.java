@@ -0,0 +1,312 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies of the stages of redirects and creates, recorded in place instead of through {@code @Timed} proxies.
+ * <p>
+ * Every stage has a preallocated histogram with HdrHistogram's log-linear buckets: 16 per power of two of
+ * nanoseconds, up to about a minute, so a bucket is at most 1/16 of its values wide. Recording is one atomic
+ * increment, into one of several stripes picked by thread so that concurrent requests rarely share one; nothing is
+ * locked or allocated. Every {@code export-interval} the stripes are summed up into cumulative counts, exported as a
+ * Prometheus-style histogram which can be added up across nodes:
+ * <ul>
+ *     <li>{@code tinyurl.stage.latency.bucket{operation, stage, le}}: requests whose stage took at most
+ *     {@code le} seconds;</li>
+ *     <li>{@code tinyurl.stage.latency.count}, and {@code tinyurl.stage.latency.sum} from the middle of each
+ *     bucket.</li>
+ * </ul>
+ * <pre>histogram_quantile(0.99, sum by (le) (rate(tinyurl_stage_latency_bucket_total{stage="db"}[5m])))</pre>
+ * Requests run between {@link #begin} and {@link #end} on one thread also add their stages up in a thread-local
+ * trace. Those slower than {@code slow-request-threshold} are counted, and at most one per
+ * {@code slow-request-sample-interval} is logged with its stage breakdown and kept for the {@code slowrequests}
+ * actuator endpoint.
+ */
+@Log4j2
+@Component
+@Endpoint(id = "slowrequests")
+@ConditionalOnProperty(prefix = "tinyurl.instrumentation", name = "enabled", havingValue = "true",
+        matchIfMissing = true)
+class StageLatencies {
+    private static final String METRIC_PREFIX = "tinyurl.stage";
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_NANOS = (1L << 36) - 1;
+    static final int BUCKETS = index(MAX_NANOS) + 1;
+    /**
+     * Upper bounds of the exported buckets, besides {@code +Inf}.
+     */
+    private static final long[] EXPORTED_BOUNDS = {
+            250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000, 100_000_000, 250_000_000,
+            500_000_000, 1_000_000_000, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L};
+    private static final int MAX_SLOW_REQUESTS = 32;
+    private static final int STAGES = Stage.values().length;
+    private static final int SLOTS = Operation.values().length * STAGES;
+
+    private static final ThreadLocal<Trace> TRACE = ThreadLocal.withInitial(Trace::new);
+
+    enum Operation {
+        REDIRECT(EnumSet.allOf(Stage.class)),
+        CREATE(EnumSet.complementOf(EnumSet.of(Stage.BLOOM_FILTER)));
+
+        private final Set<Stage> stages;
+
+        Operation(Set<Stage> stages) {
+            this.stages = stages;
+        }
+    }
+
+    enum Stage {
+        BLOOM_FILTER,
+        L1,
+        L2,
+        /**
+         * Database reads of cache misses, and the insert of creates.
+         */
+        DB,
+        /**
+         * Setting the redirect or the created short url on the response; the container writes it out afterwards.
+         */
+        RESPONSE,
+        TOTAL
+    }
+
+    private final AtomicLongArray counts;
+    private final int stripeMask;
+    private final long slowThresholdNanos;
+    private final long sampleIntervalNanos;
+    private final AtomicLong nextSampleNanos = new AtomicLong(System.nanoTime());
+    private final Counter[] slowRequestCounters = new Counter[Operation.values().length];
+    private final Deque<SlowRequest> slowRequests = new ArrayDeque<>();
+    private volatile long[][] exported = new long[SLOTS][EXPORTED_BOUNDS.length + 2];
+
+    StageLatencies(TinyUrlProperties properties, MeterRegistry meterRegistry) {
+        TinyUrlProperties.Instrumentation config = properties.getInstrumentation();
+        int stripes = Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1), 16);
+        this.counts = new AtomicLongArray(SLOTS * stripes * BUCKETS);
+        this.stripeMask = stripes - 1;
+        this.slowThresholdNanos = config.getSlowRequestThreshold().toNanos();
+        this.sampleIntervalNanos = config.getSlowRequestSampleInterval().toNanos();
+        for (Operation operation : Operation.values()) {
+            String operationTag = operation.name().toLowerCase(Locale.ROOT);
+            slowRequestCounters[operation.ordinal()] = Counter.builder(METRIC_PREFIX + ".slow_requests")
+                    .description("Requests slower than tinyurl.instrumentation.slow-request-threshold")
+                    .tag("operation", operationTag)
+                    .register(meterRegistry);
+            for (Stage stage : operation.stages) {
+                registerHistogram(meterRegistry, slot(operation, stage), operationTag,
+                        stage.name().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    private void registerHistogram(MeterRegistry meterRegistry, int slot, String operation, String stage) {
+        for (int bound = 0; bound <= EXPORTED_BOUNDS.length; bound++) {
+            int column = bound;
+            FunctionCounter.builder(METRIC_PREFIX + ".latency.bucket", this, s -> s.exported[slot][column])
+                    .description("Requests whose stage took at most le seconds")
+                    .tag("operation", operation)
+                    .tag("stage", stage)
+                    .tag("le", bound < EXPORTED_BOUNDS.length
+                            ? BigDecimal.valueOf(EXPORTED_BOUNDS[bound], 9).stripTrailingZeros().toPlainString()
+                            : "+Inf")
+                    .register(meterRegistry);
+        }
+        FunctionCounter.builder(METRIC_PREFIX + ".latency.count", this, s -> s.exported[slot][EXPORTED_BOUNDS.length])
+                .description("Requests through the stage")
+                .tag("operation", operation)
+                .tag("stage", stage)
+                .register(meterRegistry);
+        FunctionCounter.builder(METRIC_PREFIX + ".latency.sum", this,
+                        s -> s.exported[slot][EXPORTED_BOUNDS.length + 1] / 1e9)
+                .description("Time spent in the stage")
+                .baseUnit("seconds")
+                .tag("operation", operation)
+                .tag("stage", stage)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Starts tracing the stages of a request on the current thread.
+     *
+     * @return the start to pass to {@link #end}
+     */
+    long begin(Operation operation) {
+        Trace trace = TRACE.get();
+        trace.operation = operation;
+        Arrays.fill(trace.nanos, 0);
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the response and the total of the request {@link #begin} started, and samples it if it was slow,
+     * unless it was {@link #skip skipped}.
+     *
+     * @param key                the short or long url the request was about, for the slow request log
+     * @param responseStartNanos when the response was started, or 0 if it failed before
+     */
+    void end(Operation operation, String key, long startNanos, long responseStartNanos) {
+        Trace trace = TRACE.get();
+        if (trace.operation != operation) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (responseStartNanos != 0) {
+            record(operation, Stage.RESPONSE, now - responseStartNanos);
+        }
+        long nanos = now - startNanos;
+        record(operation, Stage.TOTAL, nanos);
+        trace.operation = null;
+        if (nanos < slowThresholdNanos) {
+            return;
+        }
+        slowRequestCounters[operation.ordinal()].increment();
+        long next = nextSampleNanos.get();
+        if (now - next >= 0 && nextSampleNanos.compareAndSet(next, now + sampleIntervalNanos)) {
+            sample(operation, key, trace.nanos);
+        }
+    }
+
+    /**
+     * Leaves the request {@link #begin} started out of the total: shed requests and unknown short urls are answered
+     * without the work of a redirect or a create, and would pull its percentiles down.
+     */
+    void skip() {
+        TRACE.get().operation = null;
+    }
+
+    void record(Operation operation, Stage stage, long nanos) {
+        int slot = slot(operation, stage);
+        int stripe = (int) Thread.currentThread().threadId() & stripeMask;
+        counts.getAndIncrement((slot * (stripeMask + 1) + stripe) * BUCKETS + index(nanos));
+        Trace trace = TRACE.get();
+        if (trace.operation == operation) {
+            trace.nanos[stage.ordinal()] += nanos;
+        }
+    }
+
+    /**
+     * Sums the stripes up into the exported counts.
+     */
+    @Scheduled(fixedDelayString = "${tinyurl.instrumentation.export-interval:5s}")
+    void export() {
+        long[][] next = new long[SLOTS][EXPORTED_BOUNDS.length + 2];
+        long[] buckets = new long[BUCKETS];
+        int stripes = stripeMask + 1;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            Arrays.fill(buckets, 0);
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                int offset = (slot * stripes + stripe) * BUCKETS;
+                for (int i = 0; i < BUCKETS; i++) {
+                    buckets[i] += counts.get(offset + i);
+                }
+            }
+            long cumulative = 0;
+            long sum = 0;
+            int bound = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                // a bucket only counts towards the bounds all of its values are within
+                while (bound < EXPORTED_BOUNDS.length && lowestValue(i + 1) - 1 > EXPORTED_BOUNDS[bound]) {
+                    next[slot][bound++] = cumulative;
+                }
+                cumulative += buckets[i];
+                sum += buckets[i] * ((lowestValue(i) + lowestValue(i + 1) - 1) / 2);
+            }
+            while (bound <= EXPORTED_BOUNDS.length) {
+                next[slot][bound++] = cumulative;
+            }
+            next[slot][EXPORTED_BOUNDS.length + 1] = sum;
+        }
+        exported = next;
+    }
+
+    /**
+     * The latest sampled slow requests, most recent first.
+     */
+    @ReadOperation
+    public synchronized List<SlowRequest> slowRequests() {
+        return new ArrayList<>(slowRequests);
+    }
+
+    private void sample(Operation operation, String key, long[] nanos) {
+        Map<String, Long> stageMicros = new LinkedHashMap<>();
+        for (Stage stage : operation.stages) {
+            if (stage != Stage.TOTAL) {
+                stageMicros.put(stage.name().toLowerCase(Locale.ROOT),
+                        TimeUnit.NANOSECONDS.toMicros(nanos[stage.ordinal()]));
+            }
+        }
+        SlowRequest slowRequest = new SlowRequest(operation.name().toLowerCase(Locale.ROOT), key, Instant.now(),
+                TimeUnit.NANOSECONDS.toMicros(nanos[Stage.TOTAL.ordinal()]), stageMicros);
+        log.warn("Slow {} of {} took {} µs: {}", slowRequest.operation(), key, slowRequest.totalMicros(),
+                stageMicros);
+        synchronized (this) {
+            if (slowRequests.size() == MAX_SLOW_REQUESTS) {
+                slowRequests.removeLast();
+            }
+            slowRequests.addFirst(slowRequest);
+        }
+    }
+
+    private static int slot(Operation operation, Stage stage) {
+        return operation.ordinal() * STAGES + stage.ordinal();
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} get a bucket each, above every power of two is split into
+     * {@link #SUB_BUCKETS} buckets.
+     */
+    static int index(long nanos) {
+        long value = Math.min(nanos, MAX_NANOS);
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the lowest value of a bucket, which is one above the highest value of the previous one
+     */
+    static long lowestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    record SlowRequest(String operation, String key, Instant at, long totalMicros, Map<String, Long> stageMicros) {
+    }
+
+    private static final class Trace {
+        private Operation operation;
+        private final long[] nanos = new long[STAGES];
+    }
+}
@@ -1,6 +1,7 @@
 package duoan.github.com.tinyurl;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.log4j.Log4j2;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
@@ -11,23 +12,23 @@ import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.cache.caffeine.CaffeineCacheManager;
-import org.springframework.cache.support.CompositeCacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
 import org.springframework.context.annotation.Primary;
-import org.springframework.data.redis.cache.RedisCacheConfiguration;
-import org.springframework.data.redis.cache.RedisCacheManager;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisSentinelConfiguration;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.jedis.JedisClientConfiguration;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.util.StringUtils;
+import redis.clients.jedis.JedisPoolConfig;
 
-import java.time.Duration;
 
 @Log4j2
 @SpringBootApplication
 @EnableCaching
+@EnableScheduling
 @EnableAspectJAutoProxy
 @EnableConfigurationProperties
 public class TinyUrlApplication {
@@ -38,6 +39,7 @@ public class TinyUrlApplication {
 
     @Bean
     JedisConnectionFactory jedisConnectionFactory(RedisProperties redisProperties) {
+        JedisClientConfiguration clientConfiguration = jedisClientConfiguration(redisProperties);
         if (redisProperties.getSentinel() != null) {
             RedisSentinelConfiguration sentinelConfig = new RedisSentinelConfiguration()
                     .master(redisProperties.getSentinel().getMaster());
@@ -50,39 +52,48 @@ public class TinyUrlApplication {
             if (StringUtils.hasText(redisProperties.getPassword())) {
                 sentinelConfig.setPassword(redisProperties.getPassword());
             }
-            return new JedisConnectionFactory(sentinelConfig);
+            return new JedisConnectionFactory(sentinelConfig, clientConfiguration);
         } else {
-            return new JedisConnectionFactory();
+            return new JedisConnectionFactory(
+                    new RedisStandaloneConfiguration(redisProperties.getHost(), redisProperties.getPort()),
+                    clientConfiguration);
         }
     }
 
-    @Bean("l2CacheManager")
-    RedisCacheManager l2CacheManager(RedisConnectionFactory redisConnectionFactory) {
-        return RedisCacheManager.builder(redisConnectionFactory)
-                // Expiration time for Redis cache
-                .cacheDefaults(RedisCacheConfiguration.defaultCacheConfig().entryTtl(Duration.ofDays(7)))
+    /**
+     * Sizes the Jedis pool from {@code spring.data.redis.jedis.pool.*}; the default of 8 connections is far too few
+     * once requests run on virtual threads.
+     */
+    private static JedisClientConfiguration jedisClientConfiguration(RedisProperties redisProperties) {
+        RedisProperties.Pool pool = redisProperties.getJedis().getPool();
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(pool.getMaxActive());
+        poolConfig.setMaxIdle(pool.getMaxIdle());
+        poolConfig.setMinIdle(pool.getMinIdle());
+        if (pool.getMaxWait() != null) {
+            poolConfig.setMaxWait(pool.getMaxWait());
+        }
+        return JedisClientConfiguration.builder()
+                .usePooling()
+                .poolConfig(poolConfig)
                 .build();
     }
 
+    @Bean("l2CacheManager")
+    BinaryRedisCacheManager l2CacheManager(RedisConnectionFactory redisConnectionFactory, TinyUrlProperties properties,
+                                           MeterRegistry meterRegistry) {
+        return new BinaryRedisCacheManager(redisConnectionFactory, properties.getCache().getL2Ttl(), meterRegistry);
+    }
+
+    @Primary
     @Bean("l1CacheManager")
-    CaffeineCacheManager l1CacheManager() {
-        // Local Cache with Caffeine
+    CaffeineCacheManager l1CacheManager(TinyUrlProperties properties) {
+        // Local Cache with Caffeine, TinyUrlCache registers its own refreshing caches on top
         CaffeineCacheManager caffeineCacheManager = new CaffeineCacheManager();
         caffeineCacheManager.setCaffeine(Caffeine.newBuilder()
-                .maximumSize(10_000)
-                .expireAfterWrite(Duration.ofMinutes(60)));
+                .maximumSize(properties.getCache().getL1MaximumSize())
+                .expireAfterWrite(properties.getCache().getL1ExpireAfterWrite()));
         caffeineCacheManager.setAllowNullValues(false);
         return caffeineCacheManager;
     }
-
-    @Primary
-    @Bean("tieredCacheManager")
-    CompositeCacheManager tieredCacheManager(
-            CaffeineCacheManager caffeineCacheManager,
-            RedisCacheManager redisCacheManager) {
-        CompositeCacheManager compositeCacheManager =
-                new CompositeCacheManager(caffeineCacheManager, redisCacheManager);
-        compositeCacheManager.setFallbackToNoOpCache(true);
-        return compositeCacheManager;
-    }
 }
@@ -0,0 +1,215 @@
+package duoan.github.com.tinyurl;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PostMapping;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates short urls in bulk from an NDJSON stream: one {@code {"longUrl": "..."}} per line in, and one
+ * {@code {"longUrl": "...", "shortUrl": "..."}} per non-blank line out, in the same order.
+ * <p>
+ * Lines are read, created with {@link TinyUrlService#createShortUrls} and answered {@code batch-size} at a time, so
+ * memory stays bounded however long the stream is, and answers arrive while the client is still sending. A line
+ * which could not be created is answered with an {@code error} instead, and the stream goes on: malformed lines,
+ * lines longer than {@code max-line-length}, long urls longer than {@link Constants#MAX_LONG_URL_LENGTH} once
+ * canonical, and every line of a batch the {@link AdmissionController} shed or the database failed, which can be
+ * sent again.
+ */
+@Log4j2
+@Controller
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+class TinyUrlBatchController {
+    private static final String METRIC_PREFIX = "tinyurl.controller.batch";
+
+    private final TinyUrlService tinyUrlService;
+    private final AdmissionController admissionController;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+    private final int maxLineLength;
+    private final Counter created;
+    private final Counter failed;
+
+    TinyUrlBatchController(TinyUrlService tinyUrlService, ObjectProvider<AdmissionController> admissionController,
+                           ObjectMapper objectMapper, TinyUrlProperties properties, MeterRegistry meterRegistry) {
+        this.tinyUrlService = tinyUrlService;
+        this.admissionController = admissionController.getIfAvailable();
+        this.objectMapper = objectMapper;
+        this.batchSize = properties.getBatchCreate().getBatchSize();
+        this.maxLineLength = properties.getBatchCreate().getMaxLineLength();
+        this.created = meterRegistry.counter(METRIC_PREFIX + ".lines", "result", "created");
+        this.failed = meterRegistry.counter(METRIC_PREFIX + ".lines", "result", "failed");
+    }
+
+    @PostMapping(value = "/api/tinyurl/batch", consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public void createTinyUrls(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String domain = TinyUrlController.domain(request);
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        BoundedLineReader reader = new BoundedLineReader(new BufferedReader(new InputStreamReader(
+                request.getInputStream(), StandardCharsets.UTF_8)), maxLineLength);
+        try (JsonGenerator generator = objectMapper.createGenerator(response.getOutputStream())) {
+            generator.setRootValueSeparator(null);
+            List<Line> batch = new ArrayList<>(batchSize);
+            String text;
+            while ((text = reader.readLine()) != null) {
+                if (text.isBlank()) {
+                    continue;
+                }
+                batch.add(reader.truncated()
+                        ? new Line(null, "Line longer than " + maxLineLength + " characters")
+                        : parse(text));
+                if (batch.size() == batchSize) {
+                    create(batch, domain, generator);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                create(batch, domain, generator);
+            }
+        }
+    }
+
+    private Line parse(String text) {
+        JsonNode json;
+        try {
+            json = objectMapper.readTree(text);
+        } catch (JsonProcessingException e) {
+            return new Line(null, "Malformed JSON");
+        }
+        JsonNode longUrl = json.path("longUrl");
+        if (!longUrl.isTextual() || longUrl.textValue().isBlank()) {
+            return new Line(null, "Expected {\"longUrl\": \"...\"}");
+        }
+        // what the service stores, see UrlCanonicalizer
+        if (UrlCanonicalizer.canonicalize(longUrl.textValue()).length() > Constants.MAX_LONG_URL_LENGTH) {
+            return new Line(longUrl.textValue(), "Long url longer than " + Constants.MAX_LONG_URL_LENGTH
+                    + " characters");
+        }
+        return new Line(longUrl.textValue(), null);
+    }
+
+    /**
+     * Creates the short urls of a batch, and writes one line per line of it.
+     */
+    private void create(List<Line> batch, String domain, JsonGenerator generator) throws IOException {
+        List<String> longUrls = batch.stream().filter(line -> line.error() == null).map(Line::longUrl).toList();
+        List<String> shortUrls = List.of();
+        String error = null;
+        try {
+            shortUrls = longUrls.isEmpty() ? List.of() : createShortUrls(longUrls);
+        } catch (TinyUrlOverloadedException e) {
+            error = e.getMessage();
+        } catch (RuntimeException e) {
+            log.warn("Failed to create a batch of {} short urls", longUrls.size(), e);
+            error = "Failed to create the short url";
+        }
+
+        int next = 0;
+        for (Line line : batch) {
+            generator.writeStartObject();
+            if (line.longUrl() != null) {
+                generator.writeStringField("longUrl", line.longUrl());
+            }
+            if (line.error() != null || error != null) {
+                generator.writeStringField("error", line.error() != null ? line.error() : error);
+                failed.increment();
+            } else {
+                generator.writeStringField("shortUrl", domain + "/" + shortUrls.get(next++));
+                created.increment();
+            }
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+        // sent now, not once the response buffer is full
+        generator.flush();
+    }
+
+    private List<String> createShortUrls(List<String> longUrls) {
+        if (admissionController == null) {
+            return tinyUrlService.createShortUrls(longUrls);
+        }
+        long admitted = admissionController.acquire(AdmissionController.Priority.CREATE);
+        try {
+            return tinyUrlService.createShortUrls(longUrls);
+        } finally {
+            admissionController.release(admitted);
+        }
+    }
+
+    /**
+     * Reads lines like {@link BufferedReader#readLine}, but holds at most {@code maxLength} characters of one: the
+     * rest of a longer line is skipped.
+     */
+    private static final class BoundedLineReader {
+        private final Reader in;
+        private final int maxLength;
+        private final StringBuilder line = new StringBuilder();
+        private boolean truncated;
+
+        BoundedLineReader(Reader in, int maxLength) {
+            this.in = in;
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * @return the next line without its line break, at most {@code maxLength} characters of it, or {@code null}
+         * at the end of the stream
+         */
+        String readLine() throws IOException {
+            line.setLength(0);
+            truncated = false;
+            int c;
+            while ((c = in.read()) >= 0 && c != '\n') {
+                // one more than the limit, which may be the '\r' of a line break
+                if (line.length() <= maxLength) {
+                    line.append((char) c);
+                } else {
+                    truncated = true;
+                }
+            }
+            if (c < 0 && line.isEmpty()) {
+                return null;
+            }
+            if (!truncated && !line.isEmpty() && line.charAt(line.length() - 1) == '\r') {
+                line.setLength(line.length() - 1);
+            }
+            if (line.length() > maxLength) {
+                truncated = true;
+                line.setLength(maxLength);
+            }
+            return line.toString();
+        }
+
+        /**
+         * @return whether the line {@link #readLine} returned last was longer than {@code maxLength}
+         */
+        boolean truncated() {
+            return truncated;
+        }
+    }
+
+    /**
+     * A line of the request: the long url to create, or why it cannot be.
+     */
+    private record Line(String longUrl, String error) {
+    }
+}
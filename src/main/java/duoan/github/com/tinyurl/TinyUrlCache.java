@@ -1,40 +1,588 @@
 package duoan.github.com.tinyurl;
 
-import io.micrometer.core.annotation.Timed;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.log4j.Log4j2;
-import org.springframework.cache.support.CompositeCacheManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Two-level cache of the url mappings: reads go to Caffeine (L1), then Redis (L2), and L2 hits are promoted into L1.
+ * Writes go to both levels.
+ * <p>
+ * L1 entries read after {@code l1-refresh-after-write} are reloaded from L2 in the background, so hot keys never
+ * fall off the {@code l1-expire-after-write} cliff, while cold ones still expire. If L2 lost the entry meanwhile,
+ * the refresh drops it from L1 too, and the next read loads it from the database: writing the L1 value back would
+ * resurrect a mapping which a purge or an invalidation racing with the refresh just removed.
+ * <p>
+ * With a {@link CacheInvalidationBus}, creates and purges drop the keys they change from the L1 of every other node,
+ * so that a negative entry cached elsewhere does not outlive the create of its short url.
+ * <p>
+ * With a {@link HotKeyTracker}, short url lookups are counted, and the mappings of the hottest short urls are pinned
+ * in a separate L1 map, where they are neither evicted nor expire, and reread from L2 every
+ * {@code l1-refresh-after-write}; if L2 lost them, they are unpinned. Creates, purges and invalidations update it
+ * like the rest of L1.
+ */
 @Log4j2
 @Service
-@Timed(value = "tinyurl.timed.cache", percentiles = {0.5, 0.95, 0.99}, description = "Time taken for cache")
 class TinyUrlCache {
-    private static final String SHORT_URL_TO_LONG_URL = "S2L";
-    private static final String LONG_URL_TO_SHORT_URL = "L2S";
+    /**
+     * Cached for short urls which do not exist.
+     */
+    static final String NULL_LONG_URL = "NULL";
+    /**
+     * Cached for long urls whose mapping was purged.
+     */
+    static final String NULL_SHORT_URL = "empty";
+    /**
+     * Prefix of all L2 keys, bumped whenever the cached values change their format so old entries are not read back.
+     * v2: long urls are canonical, see {@link UrlCanonicalizer}.
+     * v3: binary keys and UTF-8 values, see {@link BinaryRedisCacheManager}.
+     */
+    static final String L2_KEY_PREFIX = "v3:";
+    static final String SHORT_URL_TO_LONG_URL = "S2L";
+    static final String LONG_URL_TO_SHORT_URL = "L2S";
+    private static final String METRIC_PREFIX = "tinyurl.cache";
 
-    private final CompositeCacheManager tieredCacheManager;
+    private final BatchingCacheManager l2;
+    private final ExecutorService refreshExecutor;
+    private final Tier s2l;
+    private final Tier l2s;
+    private final CacheInvalidationBus invalidationBus;
+    private final HotKeyTracker hotKeyTracker;
 
-    TinyUrlCache(CompositeCacheManager tieredCacheManager) {
-        this.tieredCacheManager = tieredCacheManager;
+    TinyUrlCache(CaffeineCacheManager l1CacheManager, CacheManager l2CacheManager, TinyUrlProperties properties,
+                 MeterRegistry meterRegistry) {
+        this(l1CacheManager, l2CacheManager, properties, null, null, null, meterRegistry);
     }
 
-    Optional<String> getShortUrl(String longUrl) {
-        return Optional.ofNullable(tieredCacheManager.getCache(LONG_URL_TO_SHORT_URL))
-                .flatMap(cache -> Optional.ofNullable(cache.get(longUrl, String.class)));
+    @Autowired
+    TinyUrlCache(@Qualifier("l1CacheManager") CaffeineCacheManager l1CacheManager,
+                 @Qualifier("l2CacheManager") CacheManager l2CacheManager,
+                 TinyUrlProperties properties,
+                 @Nullable CacheInvalidationBus invalidationBus,
+                 @Nullable StageLatencies stageLatencies,
+                 @Nullable HotKeyTracker hotKeyTracker,
+                 MeterRegistry meterRegistry) {
+        TinyUrlProperties.Cache config = properties.getCache();
+        this.refreshExecutor = Executors.newFixedThreadPool(config.getRefreshThreads(),
+                Thread.ofPlatform().daemon().name("tinyurl-cache-refresh-", 0).factory());
+        CompactUrlIndex compactL1 = config.getCompactL1().isEnabled() ? compactL1(config, meterRegistry) : null;
+        this.l2 = BatchingCacheManager.of(l2CacheManager);
+        this.s2l = new Tier(SHORT_URL_TO_LONG_URL, StageLatencies.Operation.REDIRECT, l1CacheManager, compactL1, l2,
+                hotKeyTracker != null, config, refreshExecutor, stageLatencies, meterRegistry);
+        this.l2s = new Tier(LONG_URL_TO_SHORT_URL, StageLatencies.Operation.CREATE, l1CacheManager, null, l2,
+                false, config, refreshExecutor, stageLatencies, meterRegistry);
+        this.invalidationBus = invalidationBus;
+        this.hotKeyTracker = hotKeyTracker;
+        if (hotKeyTracker != null) {
+            hotKeyTracker.subscribe(s2l::pin);
+        }
+        if (invalidationBus != null) {
+            invalidationBus.subscribe(invalidation -> {
+                switch (invalidation.cacheName()) {
+                    case SHORT_URL_TO_LONG_URL -> s2l.evictL1(invalidation.key());
+                    case LONG_URL_TO_SHORT_URL -> l2s.evictL1(invalidation.key());
+                    default -> log.warn("Ignoring an invalidation of unknown cache {}", invalidation.cacheName());
+                }
+            });
+        }
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        refreshExecutor.shutdown();
+        refreshExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static CompactUrlIndex compactL1(TinyUrlProperties.Cache config, MeterRegistry meterRegistry) {
+        TinyUrlProperties.CompactL1 compactL1 = config.getCompactL1();
+        CompactUrlIndex index = new CompactUrlIndex(compactL1.getSegments(), compactL1.getArenaSize().toBytes(),
+                compactL1.getMaxEntries(), config.getL1ExpireAfterWrite());
+        String prefix = METRIC_PREFIX + ".l1.compact";
+        meterRegistry.gauge(prefix + ".entries", index, CompactUrlIndex::size);
+        meterRegistry.gauge(prefix + ".offheap.used.bytes", index, CompactUrlIndex::arenaBytesUsed);
+        meterRegistry.gauge(prefix + ".offheap.capacity.bytes", index, CompactUrlIndex::arenaBytesCapacity);
+        meterRegistry.gauge(prefix + ".heap.bytes", index, CompactUrlIndex::indexHeapBytes);
+        meterRegistry.gauge(prefix + ".bytes.per.entry", index, i -> i.size() == 0
+                ? 0 : (double) (i.arenaBytesUsed() + i.indexHeapBytes()) / i.size());
+        return index;
+    }
+
+    /**
+     * Long urls are cached by {@link LongUrlDigest#cacheKey()}, not by themselves, to keep up to 2 KB keys out of
+     * both levels.
+     */
+    Optional<String> getShortUrl(LongUrlDigest longUrlDigest) {
+        return l2s.get(longUrlDigest.cacheKey());
+    }
+
+    /**
+     * Looks many long urls up at once, like {@link #getLongUrls}.
+     *
+     * @return the cached short urls, {@link #NULL_SHORT_URL} included, by {@link LongUrlDigest#cacheKey()}
+     */
+    Map<String, String> getShortUrls(Collection<LongUrlDigest> longUrlDigests) {
+        return l2s.getAll(longUrlDigests.stream().map(LongUrlDigest::cacheKey).toList());
     }
 
     Optional<String> getLongUrl(String shortUrl) {
-        return Optional.ofNullable(tieredCacheManager.getCache(SHORT_URL_TO_LONG_URL))
-                .flatMap(cache -> Optional.ofNullable(cache.get(shortUrl, String.class)));
+        recordLookup(shortUrl);
+        return s2l.get(shortUrl);
     }
 
+    /**
+     * Looks many short urls up at once: L1 first, then the rest with one L2 multi-get, promoting what it found.
+     *
+     * @return the cached long urls, {@link #NULL_LONG_URL} included, of the short urls cached in either level
+     */
+    Map<String, String> getLongUrls(Collection<String> shortUrls) {
+        shortUrls.forEach(this::recordLookup);
+        return s2l.getAll(shortUrls);
+    }
+
+    private void recordLookup(String shortUrl) {
+        if (hotKeyTracker != null) {
+            hotKeyTracker.record(shortUrl);
+        }
+    }
+
+    /**
+     * Caches a mapping as read from the database, which other nodes may have cached as well: nothing is invalidated.
+     *
+     * @param longUrl the long url, or {@link #NULL_LONG_URL} to cache that the short url does not exist
+     */
     void dualPutUrlMapping(String shortUrl, String longUrl) {
-        Optional.ofNullable(tieredCacheManager.getCache(SHORT_URL_TO_LONG_URL))
-                .ifPresent(x -> x.put(shortUrl, longUrl));
-        Optional.ofNullable(tieredCacheManager.getCache(LONG_URL_TO_SHORT_URL))
-                .ifPresent(x -> x.put(longUrl, shortUrl));
+        if (longUrl.equals(NULL_LONG_URL)) {
+            s2l.put(shortUrl, longUrl);
+        } else {
+            putBoth(shortUrl, longUrl, LongUrlDigest.of(longUrl).cacheKey(), shortUrl);
+        }
+    }
+
+    /**
+     * Caches a created mapping, and drops the negative entries other nodes may hold for it from their L1.
+     */
+    void dualPutUrlMapping(String shortUrl, String longUrl, LongUrlDigest longUrlDigest) {
+        putBoth(shortUrl, longUrl, longUrlDigest.cacheKey(), shortUrl);
+        publishInvalidation(shortUrl, longUrlDigest);
+    }
+
+    /**
+     * Caches many created mappings like {@link #dualPutUrlMapping(String, String, LongUrlDigest)}, with one L2
+     * round-trip for all of them.
+     *
+     * @param shortUrls short urls by their long url
+     */
+    void dualPutUrlMappings(Map<String, String> shortUrls) {
+        List<BatchingCacheManager.Entry> entries = new ArrayList<>(2 * shortUrls.size());
+        Map<String, LongUrlDigest> longUrlDigests = HashMap.newHashMap(shortUrls.size());
+        shortUrls.forEach((longUrl, shortUrl) -> {
+            LongUrlDigest longUrlDigest = LongUrlDigest.of(longUrl);
+            longUrlDigests.put(shortUrl, longUrlDigest);
+            s2l.putL1(shortUrl, longUrl);
+            l2s.putL1(longUrlDigest.cacheKey(), shortUrl);
+            entries.add(new BatchingCacheManager.Entry(SHORT_URL_TO_LONG_URL, shortUrl, longUrl));
+            entries.add(new BatchingCacheManager.Entry(LONG_URL_TO_SHORT_URL, longUrlDigest.cacheKey(), shortUrl));
+        });
+        if (!entries.isEmpty()) {
+            l2.putAll(entries);
+        }
+        longUrlDigests.forEach(this::publishInvalidation);
+    }
+
+    /**
+     * Writes many mappings into L2 only, with one round-trip, for mappings no node is about to read, like the ones
+     * {@link UrlMappingBulkTransfer} imports.
+     *
+     * @param shortUrls short urls by their long url
+     */
+    void putL2UrlMappings(Map<String, String> shortUrls) {
+        if (shortUrls.isEmpty()) {
+            return;
+        }
+        List<BatchingCacheManager.Entry> entries = new ArrayList<>(2 * shortUrls.size());
+        shortUrls.forEach((longUrl, shortUrl) -> {
+            entries.add(new BatchingCacheManager.Entry(SHORT_URL_TO_LONG_URL, shortUrl, longUrl));
+            entries.add(new BatchingCacheManager.Entry(LONG_URL_TO_SHORT_URL, LongUrlDigest.of(longUrl).cacheKey(),
+                    shortUrl));
+        });
+        l2.putAll(entries);
+    }
+
+    /**
+     * Replaces a purged mapping with negative entries instead of evicting it, so that L1 refresh-ahead on other
+     * nodes picks them up instead of reading the purged mapping from the database again.
+     */
+    void invalidateUrlMapping(String shortUrl, String longUrl) {
+        LongUrlDigest longUrlDigest = LongUrlDigest.of(longUrl);
+        putBoth(shortUrl, NULL_LONG_URL, longUrlDigest.cacheKey(), NULL_SHORT_URL);
+        publishInvalidation(shortUrl, longUrlDigest);
+    }
+
+    /**
+     * Writes an S2L and an L2S entry to L1, then to L2 in one round-trip.
+     */
+    private void putBoth(String shortUrl, String longUrl, String longUrlKey, String shortUrlValue) {
+        s2l.putL1(shortUrl, longUrl);
+        l2s.putL1(longUrlKey, shortUrlValue);
+        l2.putAll(List.of(new BatchingCacheManager.Entry(SHORT_URL_TO_LONG_URL, shortUrl, longUrl),
+                new BatchingCacheManager.Entry(LONG_URL_TO_SHORT_URL, longUrlKey, shortUrlValue)));
+    }
+
+    private void publishInvalidation(String shortUrl, LongUrlDigest longUrlDigest) {
+        if (invalidationBus != null) {
+            invalidationBus.publish(SHORT_URL_TO_LONG_URL, shortUrl);
+            invalidationBus.publish(LONG_URL_TO_SHORT_URL, longUrlDigest.cacheKey());
+        }
+    }
+
+    /**
+     * @return up to {@code limit} short urls with a mapping in L1, most frequently read first: the
+     * {@link HotKeyTracker}'s top ones if tracked, then by Caffeine's frequency sketch; other mappings held by the
+     * {@link CompactUrlIndex} are not tracked and left out
+     */
+    List<String> hottestShortUrls(int limit) {
+        if (hotKeyTracker == null) {
+            return s2l.hottest(limit);
+        }
+        Set<String> hottest = new LinkedHashSet<>();
+        for (HotKeyTracker.HotKey hotKey : hotKeyTracker.hotKeys()) {
+            if (hottest.size() < limit && s2l.isPinned(hotKey.shortUrl())) {
+                hottest.add(hotKey.shortUrl());
+            }
+        }
+        for (String shortUrl : s2l.hottest(limit)) {
+            if (hottest.size() < limit) {
+                hottest.add(shortUrl);
+            }
+        }
+        return List.copyOf(hottest);
+    }
+
+    /**
+     * Reads the mappings of {@code shortUrls} from L2 into L1 with one multi-get, without counting them as lookups,
+     * see {@link CacheWarmUp}.
+     *
+     * @return how many of them L2 had a mapping for
+     */
+    int warmUp(List<String> shortUrls) {
+        return s2l.warmUp(shortUrls);
+    }
+
+    double l1HitCount() {
+        return s2l.l1Hits.count();
     }
 
+    double l1MissCount() {
+        return s2l.l1Misses.count();
+    }
+
+    /**
+     * L1 only, for callers which read L2 themselves without blocking, see {@link ReactiveTinyUrlService}.
+     */
+    Optional<String> getLocalLongUrl(String shortUrl) {
+        recordLookup(shortUrl);
+        return Optional.ofNullable(s2l.getL1(shortUrl));
+    }
+
+    /**
+     * Records an L2 lookup made outside of this cache under the same metrics as {@link #getLongUrl}.
+     */
+    void recordRemoteLongUrlLookup(boolean hit, long nanos) {
+        s2l.recordL2(hit, nanos);
+    }
+
+    void putLocalUrlMapping(String shortUrl, String longUrl) {
+        if (longUrl.equals(NULL_LONG_URL)) {
+            s2l.putL1(shortUrl, longUrl);
+        } else {
+            putLocalUrlMapping(shortUrl, longUrl, LongUrlDigest.of(longUrl));
+        }
+    }
+
+    void putLocalUrlMapping(String shortUrl, String longUrl, LongUrlDigest longUrlDigest) {
+        s2l.putL1(shortUrl, longUrl);
+        l2s.putL1(longUrlDigest.cacheKey(), shortUrl);
+    }
+
+    /**
+     * One cache name across both levels, with its own hit/miss counters per level. Its lookups are the L1 and L2
+     * stages of {@code operation}, redirects for short urls and creates for long urls.
+     * With a {@link CompactUrlIndex}, it holds the L1 mappings keyed by packed short url, and Caffeine only keeps
+     * what cannot go there. Pinned mappings are looked up before both.
+     */
+    private static final class Tier {
+        private final String name;
+        private final StageLatencies.Operation operation;
+        private final Cache l1;
+        private final CompactUrlIndex compactL1;
+        private final BatchingCacheManager l2CacheManager;
+        private final Cache l2;
+        private final Counter l1Hits;
+        private final Counter l1Misses;
+        private final Counter l2Hits;
+        private final Counter l2Misses;
+        private final StageLatencies stageLatencies;
+        private final Map<String, String> pinned;
+        private final Executor refreshExecutor;
+        private final long refreshAfterWriteNanos;
+        private volatile long pinnedRefreshed = System.nanoTime();
+
+        Tier(String name, StageLatencies.Operation operation, CaffeineCacheManager l1CacheManager,
+             CompactUrlIndex compactL1, BatchingCacheManager l2CacheManager, boolean pinning,
+             TinyUrlProperties.Cache config, Executor refreshExecutor, StageLatencies stageLatencies,
+             MeterRegistry meterRegistry) {
+            this.name = name;
+            this.operation = operation;
+            this.compactL1 = compactL1;
+            this.l2CacheManager = l2CacheManager;
+            this.l2 = Objects.requireNonNull(l2CacheManager.getCache(name), name);
+            l1CacheManager.registerCustomCache(name, Caffeine.newBuilder()
+                    .maximumSize(config.getL1MaximumSize())
+                    .expireAfterWrite(config.getL1ExpireAfterWrite())
+                    .refreshAfterWrite(config.getL1RefreshAfterWrite())
+                    .executor(refreshExecutor)
+                    .build(new L2Loader(l2)));
+            this.l1 = Objects.requireNonNull(l1CacheManager.getCache(name), name);
+            this.l1Hits = requests(meterRegistry, name, "l1", "hit");
+            this.l1Misses = requests(meterRegistry, name, "l1", "miss");
+            this.l2Hits = requests(meterRegistry, name, "l2", "hit");
+            this.l2Misses = requests(meterRegistry, name, "l2", "miss");
+            this.stageLatencies = stageLatencies;
+            this.pinned = pinning ? new ConcurrentHashMap<>() : null;
+            this.refreshExecutor = refreshExecutor;
+            this.refreshAfterWriteNanos = config.getL1RefreshAfterWrite().toNanos();
+            if (pinning) {
+                meterRegistry.gaugeMapSize(METRIC_PREFIX + ".l1.pinned.entries", Tags.of("cache", name), pinned);
+            }
+        }
+
+        Optional<String> get(String key) {
+            String value = getL1(key);
+            if (value != null) {
+                return Optional.of(value);
+            }
+
+            long l2Start = System.nanoTime();
+            value = l2.get(key, String.class);
+            recordL2(value != null, System.nanoTime() - l2Start);
+            if (value == null) {
+                return Optional.empty();
+            }
+            // promote
+            putL1(key, value);
+            return Optional.of(value);
+        }
+
+        String getL1(String key) {
+            long start = System.nanoTime();
+            String value = pinned == null ? null : pinned.get(key);
+            if (value == null && compactL1 != null) {
+                value = compactL1.get(ShortUrlCodec.pack(key));
+            }
+            if (value == null) {
+                value = l1.get(key, String.class);
+            }
+            if (stageLatencies != null) {
+                stageLatencies.record(operation, StageLatencies.Stage.L1, System.nanoTime() - start);
+            }
+            (value != null ? l1Hits : l1Misses).increment();
+            return value;
+        }
+
+        Map<String, String> getAll(Collection<String> keys) {
+            Map<String, String> values = HashMap.newHashMap(keys.size());
+            List<String> l1Misses = new ArrayList<>();
+            for (String key : keys) {
+                String value = getL1(key);
+                if (value != null) {
+                    values.put(key, value);
+                } else {
+                    l1Misses.add(key);
+                }
+            }
+            if (l1Misses.isEmpty()) {
+                return values;
+            }
+
+            long l2Start = System.nanoTime();
+            List<String> l2Values = l2CacheManager.getAll(name, l1Misses);
+            // one sample for the round-trip, its share per key would hide how long a batch waits for L2
+            if (stageLatencies != null) {
+                stageLatencies.record(operation, StageLatencies.Stage.L2, System.nanoTime() - l2Start);
+            }
+            for (int i = 0; i < l1Misses.size(); i++) {
+                String value = l2Values.get(i);
+                (value != null ? l2Hits : l2Misses).increment();
+                if (value != null) {
+                    // promote
+                    putL1(l1Misses.get(i), value);
+                    values.put(l1Misses.get(i), value);
+                }
+            }
+            return values;
+        }
+
+        int warmUp(List<String> keys) {
+            List<String> values = l2CacheManager.getAll(name, keys);
+            int loaded = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                String value = values.get(i);
+                if (value != null && !value.equals(NULL_LONG_URL)) {
+                    putL1(keys.get(i), value);
+                    loaded++;
+                }
+            }
+            return loaded;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<String> hottest(int limit) {
+            var nativeCache = (com.github.benmanes.caffeine.cache.Cache<Object, Object>) l1.getNativeCache();
+            return nativeCache.policy().eviction()
+                    .map(eviction -> eviction.hottest(limit).entrySet().stream()
+                            .filter(entry -> !NULL_LONG_URL.equals(entry.getValue()))
+                            .map(entry -> (String) entry.getKey())
+                            .toList())
+                    .orElse(List.of());
+        }
+
+        /**
+         * Pins the mappings of {@code keys}, and unpins the others, in the background. Mappings not pinned yet are
+         * read from L2, and all of them are reread every {@code l1-refresh-after-write}. Keys L2 lost are not pinned,
+         * or unpinned, like an L1 refresh drops them. A purge racing with the read may leave its mapping pinned until
+         * the next reread.
+         */
+        void pin(List<String> keys) {
+            refreshExecutor.execute(() -> {
+                pinned.keySet().retainAll(new HashSet<>(keys));
+                long now = System.nanoTime();
+                boolean refresh = now - pinnedRefreshed >= refreshAfterWriteNanos;
+                List<String> load = refresh ? keys : keys.stream().filter(key -> !pinned.containsKey(key)).toList();
+                if (load.isEmpty()) {
+                    return;
+                }
+                List<String> values;
+                try {
+                    values = l2CacheManager.getAll(name, load);
+                } catch (RuntimeException e) {
+                    log.warn("Failed to read {} hot keys to pin from L2", load.size(), e);
+                    return;
+                }
+                if (refresh) {
+                    pinnedRefreshed = now;
+                }
+                for (int i = 0; i < load.size(); i++) {
+                    String key = load.get(i);
+                    String value = values.get(i);
+                    if (value == null || value.equals(NULL_LONG_URL)) {
+                        pinned.remove(key);
+                    } else {
+                        pinned.put(key, value);
+                    }
+                }
+            });
+        }
+
+        boolean isPinned(String key) {
+            return pinned != null && pinned.containsKey(key);
+        }
+
+        void evictL1(String key) {
+            if (pinned != null) {
+                pinned.remove(key);
+            }
+            if (compactL1 != null) {
+                compactL1.remove(ShortUrlCodec.pack(key));
+            }
+            l1.evict(key);
+        }
+
+        void recordL2(boolean hit, long nanos) {
+            if (stageLatencies != null) {
+                stageLatencies.record(operation, StageLatencies.Stage.L2, nanos);
+            }
+            (hit ? l2Hits : l2Misses).increment();
+        }
+
+        void put(String key, String value) {
+            putL1(key, value);
+            l2.put(key, value);
+        }
+
+        void putL1(String key, String value) {
+            if (pinned != null) {
+                if (value.equals(NULL_LONG_URL)) {
+                    pinned.remove(key);
+                } else {
+                    pinned.replace(key, value);
+                }
+            }
+            if (compactL1 != null) {
+                if (!value.equals(NULL_LONG_URL)) {
+                    if (compactL1.put(ShortUrlCodec.pack(key), value)) {
+                        // the short url exists now, drop a negative entry cached before
+                        l1.evict(key);
+                        return;
+                    }
+                } else {
+                    // the short url was purged, it must not be served from the index any longer
+                    compactL1.remove(ShortUrlCodec.pack(key));
+                }
+            }
+            l1.put(key, value);
+        }
+
+        private static Counter requests(MeterRegistry meterRegistry, String name, String tier, String result) {
+            return Counter.builder(METRIC_PREFIX + ".requests")
+                    .tag("cache", name)
+                    .tag("tier", tier)
+                    .tag("result", result)
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Refresh-ahead of L1 entries from L2. Misses are not loaded here: Spring's {@code CaffeineCache} would
+     * otherwise read through on every L1 miss, bypassing {@link Tier#get}'s L2 lookup and metrics.
+     */
+    private record L2Loader(Cache l2) implements CacheLoader<Object, Object> {
+        @Override
+        public Object load(Object key) {
+            return null;
+        }
+
+        @Override
+        public Object reload(Object key, Object oldValue) {
+            Cache.ValueWrapper valueWrapper = l2.get(key);
+            // L2 evicted or expired it, or it was just removed: drop it from L1 as well, it is read through again
+            return valueWrapper == null ? null : valueWrapper.get();
+        }
+    }
 }
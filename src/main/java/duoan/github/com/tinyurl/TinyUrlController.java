@@ -1,30 +1,40 @@
 package duoan.github.com.tinyurl;
 
-import io.micrometer.core.annotation.Timed;
-import io.micrometer.observation.annotation.Observed;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.constraints.Pattern;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.servlet.view.RedirectView;
+import org.springframework.web.server.ResponseStatusException;
 
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
 
 
 @Controller
 @Validated
-@Observed(name = "tinyurl.observed.controller")
-@Timed(value = "tinyurl.timed.controller",
-        percentiles = {0.5, 0.95, 0.99},
-        description = "Time taken for controller")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 class TinyUrlController {
     private final TinyUrlService tinyUrlService;
+    private final ClickCounter clickCounter;
+    private final StageLatencies stageLatencies;
+    private final AdmissionController admissionController;
+    private final int maxStatsBuckets;
 
-    TinyUrlController(TinyUrlService tinyUrlService) {
+    TinyUrlController(TinyUrlService tinyUrlService, ObjectProvider<ClickCounter> clickCounter,
+                      ObjectProvider<StageLatencies> stageLatencies,
+                      ObjectProvider<AdmissionController> admissionController, TinyUrlProperties properties) {
         this.tinyUrlService = tinyUrlService;
+        this.clickCounter = clickCounter.getIfAvailable();
+        this.stageLatencies = stageLatencies.getIfAvailable();
+        this.admissionController = admissionController.getIfAvailable();
+        this.maxStatsBuckets = properties.getClicks().getMaxStatsBuckets();
     }
 
 
@@ -36,25 +46,124 @@ class TinyUrlController {
     @PostMapping("/api/tinyurl")
     @ResponseBody
     public String createTinyUrl(@RequestBody String longUrl, HttpServletRequest request) {
-        String shortUrlPath = tinyUrlService.createShortUrl(longUrl);
-        // Get the domain (protocol + host) from the incoming request
-        String domain = request.getRequestURL().toString().replace(request.getRequestURI(), "");
+        if (stageLatencies == null) {
+            return shortUrl(createShortUrl(longUrl), request);
+        }
+        long start = stageLatencies.begin(StageLatencies.Operation.CREATE);
+        long responseStart = 0;
+        try {
+            String shortUrlPath = createShortUrl(longUrl);
+            responseStart = System.nanoTime();
+            return shortUrl(shortUrlPath, request);
+        } catch (TinyUrlOverloadedException e) {
+            stageLatencies.skip();
+            throw e;
+        } finally {
+            stageLatencies.end(StageLatencies.Operation.CREATE, longUrl, start, responseStart);
+        }
+    }
+
+    private static String shortUrl(String shortUrlPath, HttpServletRequest request) {
         // Create the full short URL by appending the domain to the path
-        return domain + "/" + shortUrlPath;
+        return domain(request) + "/" + shortUrlPath;
     }
 
+    /**
+     * @return the domain (protocol + host) of the incoming request
+     */
+    static String domain(HttpServletRequest request) {
+        return request.getRequestURL().toString().replace(request.getRequestURI(), "");
+    }
+
+    /**
+     * Writes the 302 straight to the response: the stored long url is the {@code Location} already, so there is
+     * nothing to decode, and no view to resolve and render.
+     */
     @GetMapping("/{shortUrl}")
-    public RedirectView getLongURL(
+    public void getLongURL(
             @PathVariable
             @Pattern(regexp = "^[a-zA-Z0-9_-]{1,9}$", message = "Invalid short URL format")
-            String shortUrl) {
-        String longUrl = URLDecoder.decode(tinyUrlService.getLongUrl(shortUrl), StandardCharsets.UTF_8);
-        if (!longUrl.startsWith("https")) {
-            longUrl = "https://" + longUrl;
-        }
-        RedirectView redirectView = new RedirectView(longUrl);
-        redirectView.setStatusCode(HttpStatus.FOUND);  // Set 302 status code
-        return redirectView;
+            String shortUrl,
+            HttpServletResponse response) {
+        if (stageLatencies == null) {
+            redirect(response, getLongUrl(shortUrl));
+            return;
+        }
+        long start = stageLatencies.begin(StageLatencies.Operation.REDIRECT);
+        long responseStart = 0;
+        try {
+            String location = getLongUrl(shortUrl);
+            responseStart = System.nanoTime();
+            redirect(response, location);
+        } catch (TinyUrlOverloadedException | TinyUrlNotFoundException e) {
+            stageLatencies.skip();
+            throw e;
+        } finally {
+            stageLatencies.end(StageLatencies.Operation.REDIRECT, shortUrl, start, responseStart);
+        }
+    }
+
+    private String getLongUrl(String shortUrl) {
+        if (admissionController == null) {
+            return tinyUrlService.getLongUrl(shortUrl);
+        }
+        long admitted = admissionController.acquire(AdmissionController.Priority.REDIRECT);
+        try {
+            return tinyUrlService.getLongUrl(shortUrl);
+        } finally {
+            admissionController.release(admitted);
+        }
+    }
+
+    private String createShortUrl(String longUrl) {
+        if (admissionController == null) {
+            return tinyUrlService.createShortUrl(longUrl);
+        }
+        long admitted = admissionController.acquire(AdmissionController.Priority.CREATE);
+        try {
+            return tinyUrlService.createShortUrl(longUrl);
+        } finally {
+            admissionController.release(admitted);
+        }
+    }
+
+    private static void redirect(HttpServletResponse response, String location) {
+        response.setStatus(HttpServletResponse.SC_FOUND);
+        response.setHeader(HttpHeaders.LOCATION, location);
+    }
+
+    /**
+     * Clicks on a short url per minute, hour or day, by default hourly over the last 24 hours. Lags behind the
+     * redirects by up to one {@code tinyurl.clicks.flush-interval}.
+     */
+    @GetMapping("/api/tinyurl/{shortUrl}/stats")
+    @ResponseBody
+    public ClickStats getStats(
+            @PathVariable
+            @Pattern(regexp = "^[a-zA-Z0-9_-]{1,9}$", message = "Invalid short URL format")
+            String shortUrl,
+            @RequestParam(required = false) Instant from,
+            @RequestParam(required = false) Instant to,
+            @RequestParam(defaultValue = "hour") String granularity) {
+        if (clickCounter == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Click counting is disabled");
+        }
+        ClickStats.Granularity bucket;
+        try {
+            bucket = ClickStats.Granularity.valueOf(granularity.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown granularity: " + granularity);
+        }
+        Instant end = to == null ? Instant.now() : to;
+        Instant start = from == null ? end.minus(Duration.ofDays(1)) : from;
+        if (!start.isBefore(end)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "from must be before to");
+        }
+        if (Duration.between(start, end).dividedBy(bucket.length) >= maxStatsBuckets) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "More than " + maxStatsBuckets + " " + granularity + " buckets requested");
+        }
+        return clickCounter.stats(shortUrl, start, end, bucket);
     }
 
 
@@ -2,12 +2,17 @@ package duoan.github.com.tinyurl;
 
 import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.validation.ConstraintViolationException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 import org.springframework.web.servlet.view.RedirectView;
 
 @ControllerAdvice
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 class TinyUrlControllerAdvice {
 
     private final MeterRegistry meterRegistry;
@@ -29,4 +34,14 @@ class TinyUrlControllerAdvice {
         meterRegistry.counter("tinyurl.controller.get.not_found").increment();
         return new RedirectView("/");
     }
+
+    /**
+     * Shed requests are neither redirected nor rendered, just answered.
+     */
+    @ExceptionHandler(TinyUrlOverloadedException.class)
+    ResponseEntity<String> handleTinyUrlOverloadedException(TinyUrlOverloadedException ex) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, ex.getRetryAfter().toSeconds())))
+                .body(ex.getMessage());
+    }
 }
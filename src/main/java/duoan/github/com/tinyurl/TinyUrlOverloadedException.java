@@ -0,0 +1,20 @@
+package duoan.github.com.tinyurl;
+
+import java.time.Duration;
+
+/**
+ * A request shed by {@link AdmissionController}. Thrown over and over as the same instance, without a stack trace,
+ * so that shedding costs next to nothing.
+ */
+class TinyUrlOverloadedException extends RuntimeException {
+    private final Duration retryAfter;
+
+    TinyUrlOverloadedException(String priority, Duration retryAfter) {
+        super("Too many requests, " + priority + " shed", null, false, false);
+        this.retryAfter = retryAfter;
+    }
+
+    Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,475 @@
+package duoan.github.com.tinyurl;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@Setter
+@Getter
+@Component
+@ConfigurationProperties(prefix = "tinyurl")
+class TinyUrlProperties {
+    private ShortUrl shortUrl = new ShortUrl();
+    private BatchWrite batchWrite = new BatchWrite();
+    private BatchCreate batchCreate = new BatchCreate();
+    private BloomFilter bloomFilter = new BloomFilter();
+    private Cache cache = new Cache();
+    private VirtualThreads virtualThreads = new VirtualThreads();
+    private Purge purge = new Purge();
+    private Sharding sharding = new Sharding();
+    private Clicks clicks = new Clicks();
+    private Replicas replicas = new Replicas();
+    private Instrumentation instrumentation = new Instrumentation();
+    private Admission admission = new Admission();
+    private BulkTransfer bulkTransfer = new BulkTransfer();
+
+    @Setter
+    @Getter
+    public static class ShortUrl {
+        /**
+         * How short urls are generated, see {@link ShortUrlGenerator}.
+         */
+        private Generator generator = Generator.ID_RANGE;
+        /**
+         * Where {@link IdRangeShortUrlGenerator} leases its id blocks from.
+         */
+        private IdSource idSource = IdSource.POSTGRES;
+        /**
+         * Number of ids leased per round-trip to the id source.
+         */
+        private int idBlockSize = 1_000;
+        /**
+         * How cache misses and collision checks read the database, see {@link UrlMappingLookup}.
+         */
+        private Lookup lookup = Lookup.JDBC;
+    }
+
+    @Setter
+    @Getter
+    public static class BatchWrite {
+        /**
+         * Group-commit new url mappings through {@link UrlMappingBatchWriter} instead of one transaction per create.
+         */
+        private boolean enabled = false;
+        /**
+         * Flush as soon as this many creates are queued.
+         */
+        private int batchSize = 128;
+        /**
+         * Flush at the latest this long after the first create of a batch was queued.
+         */
+        private Duration maxDelay = Duration.ofMillis(5);
+        /**
+         * Creates beyond this many queued ones block until the writer catches up.
+         */
+        private int queueCapacity = 10_000;
+        /**
+         * A create whose batch did not commit within this long fails, the row may still be stored.
+         */
+        private Duration timeout = Duration.ofSeconds(10);
+    }
+
+    @Setter
+    @Getter
+    public static class BatchCreate {
+        /**
+         * Lines of an NDJSON stream {@link TinyUrlBatchController} creates at once, and holds in memory.
+         */
+        private int batchSize = 500;
+        /**
+         * Longer lines are answered with an error, only this much of one is held in memory.
+         */
+        private int maxLineLength = 8192;
+    }
+
+    @Setter
+    @Getter
+    public static class BloomFilter {
+        /**
+         * Reject unknown short urls with {@link ShortUrlBloomFilter} before looking at the caches or the database.
+         */
+        private boolean enabled = false;
+        /**
+         * Number of short urls the filter is sized for, the false positive rate grows beyond it.
+         */
+        private long expectedInsertions = 10_000_000;
+        /**
+         * False positive rate at {@link #expectedInsertions}.
+         */
+        private double fpp = 0.01;
+        /**
+         * Where the filter is snapshotted to, so restarts only need to catch up instead of scanning the whole table.
+         */
+        private String snapshotPath = "data/short-url-bloom-filter.bin";
+        private Duration refreshInterval = Duration.ofSeconds(1);
+        private Duration snapshotInterval = Duration.ofMinutes(5);
+        /**
+         * How far back catch-up scans re-read, to cover the clock skew between shards.
+         */
+        private Duration catchUpMargin = Duration.ofSeconds(30);
+    }
+
+    @Setter
+    @Getter
+    public static class Cache {
+        private long l1MaximumSize = 10_000;
+        private Duration l1ExpireAfterWrite = Duration.ofMinutes(60);
+        /**
+         * L1 entries read after this long are reloaded from L2 in the background, must be below the expiry.
+         */
+        private Duration l1RefreshAfterWrite = Duration.ofMinutes(45);
+        private Duration l2Ttl = Duration.ofDays(7);
+        private int refreshThreads = 2;
+        private CompactL1 compactL1 = new CompactL1();
+        private WarmUp warmUp = new WarmUp();
+        private Invalidation invalidation = new Invalidation();
+        private HeavyHitters heavyHitters = new HeavyHitters();
+    }
+
+    @Setter
+    @Getter
+    public static class HeavyHitters {
+        /**
+         * Track the most read short urls with {@link HotKeyTracker} and pin their mappings in L1, where they are
+         * neither evicted nor expire.
+         */
+        private boolean enabled = false;
+        /**
+         * Short urls pinned at most.
+         */
+        private int topK = 1_000;
+        /**
+         * Counters per row of the Count-Min sketch, a power of two; the sketch takes 16 bytes per counter. Estimates
+         * are off by about 2.7 / sketch-width of the reads since the last decays, at worst.
+         */
+        private int sketchWidth = 16_384;
+        /**
+         * How often the hot keys are ranked, and the pinned ones updated.
+         */
+        private Duration interval = Duration.ofSeconds(1);
+        /**
+         * All counts are halved this often, the half-life of a read.
+         */
+        private Duration decayInterval = Duration.ofSeconds(10);
+    }
+
+    @Setter
+    @Getter
+    public static class Invalidation {
+        /**
+         * Drop keys changed by creates and purges from the L1 of every node with {@link CacheInvalidationBus}.
+         */
+        private boolean enabled = false;
+        private InvalidationTransport transport = InvalidationTransport.REDIS;
+        /**
+         * Redis pub/sub channel of {@link RedisCacheInvalidationTransport}.
+         */
+        private String channel = "tinyurl:cache-invalidation";
+        /**
+         * Invalidations are coalesced and sent at most this long after being published.
+         */
+        private Duration maxDelay = Duration.ofMillis(10);
+        /**
+         * Invalidations per message.
+         */
+        private int batchSize = 500;
+    }
+
+    @Setter
+    @Getter
+    public static class WarmUp {
+        /**
+         * Publish the hot keys of L1 to Redis, and load the published ones into L1 on startup with
+         * {@link CacheWarmUp} before reporting ready.
+         */
+        private boolean enabled = false;
+        /**
+         * Hot keys published per node, and loaded on startup.
+         */
+        private int maxKeys = 5_000;
+        /**
+         * Readiness waits at most this long for the warm-up, the keys not loaded by then are left to the first reads.
+         */
+        private Duration timeBudget = Duration.ofSeconds(30);
+        /**
+         * Parallel L2 reads during the warm-up.
+         */
+        private int concurrency = 8;
+        /**
+         * Snapshots not republished for three intervals expire, so the ones of gone nodes drop out.
+         */
+        private Duration publishInterval = Duration.ofMinutes(1);
+        /**
+         * How long after becoming ready the L1 hit ratio is tracked as the startup hit ratio.
+         */
+        private Duration startupWindow = Duration.ofMinutes(5);
+    }
+
+    @Setter
+    @Getter
+    public static class CompactL1 {
+        /**
+         * Keep short url to long url mappings in {@link CompactUrlIndex} instead of Caffeine.
+         * Negative ("NULL") entries and short urls that cannot be packed stay in Caffeine. Entries expire after
+         * {@code l1-expire-after-write} too, but are not refreshed before.
+         */
+        private boolean enabled = false;
+        private int segments = 16;
+        /**
+         * Off-heap bytes for the long urls, split evenly between the segments.
+         */
+        private DataSize arenaSize = DataSize.ofMegabytes(256);
+        private int maxEntries = 2_000_000;
+    }
+
+    @Setter
+    @Getter
+    public static class VirtualThreads {
+        private PinningMonitor pinningMonitor = new PinningMonitor();
+        private ConnectionBulkhead connectionBulkhead = new ConnectionBulkhead();
+        /**
+         * Pinned sections shorter than this are not reported by {@link VirtualThreadPinningMonitor}.
+         */
+        private Duration pinningThreshold = Duration.ofMillis(20);
+    }
+
+    @Setter
+    @Getter
+    public static class PinningMonitor {
+        private boolean enabled = false;
+    }
+
+    @Setter
+    @Getter
+    public static class ConnectionBulkhead {
+        /**
+         * Queue callers in front of each Hikari pool with {@link ConnectionBulkheadDataSource}.
+         */
+        private boolean enabled = false;
+        private Duration acquireTimeout = Duration.ofSeconds(5);
+    }
+
+    @Setter
+    @Getter
+    public static class Purge {
+        /**
+         * Delete url mappings older than {@link #retention} in the background with {@link UrlMappingPurger}.
+         */
+        private boolean enabled = false;
+        private Duration retention = Duration.ofDays(3650);
+        private PurgeMode mode = PurgeMode.ROWS;
+        /**
+         * Pause between two purge passes.
+         */
+        private Duration interval = Duration.ofMinutes(1);
+        /**
+         * Expired rows read per keyset page.
+         */
+        private int chunkSize = 1_000;
+        /**
+         * Rows deleted per statement and transaction.
+         */
+        private int batchSize = 100;
+        /**
+         * Upper bound of the delete rate, the purger backs off below it while deletes get slow.
+         */
+        private double maxRowsPerSecond = 500;
+        /**
+         * Deletes pause while the replica replays more than this far behind the primary.
+         */
+        private Duration maxReplicaLag = Duration.ofSeconds(5);
+        /**
+         * A delete batch slower than this halves the delete rate, a proxy for the database pressure redirects feel.
+         */
+        private Duration maxBatchLatency = Duration.ofMillis(50);
+        /**
+         * {@link PurgeMode#PARTITIONS}: yearly partitions created ahead of the current year.
+         */
+        private int partitionsAhead = 2;
+    }
+
+    @Setter
+    @Getter
+    public static class Sharding {
+        /**
+         * How often every node re-reads the shard catalog, see {@link ShardRouter}.
+         */
+        private Duration refreshInterval = Duration.ofSeconds(1);
+        /**
+         * How long {@link ShardRangeMover} waits after changing a range's state before relying on it: every node has
+         * to refresh its shard map and finish the transactions it began under the old one. Also the margin of the
+         * catch-up copies for rows whose {@code inserted_at} lags behind their commit.
+         */
+        private Duration switchDelay = Duration.ofSeconds(10);
+        /**
+         * Rows copied or deleted per statement and transaction while moving a range.
+         */
+        private int moveBatchSize = 1_000;
+        /**
+         * Upper bound of the rows copied, and later deleted, per second while moving a range.
+         */
+        private double maxMoveRowsPerSecond = 5_000;
+    }
+
+    @Setter
+    @Getter
+    public static class Clicks {
+        /**
+         * Count redirects per short url and minute with {@link ClickCounter}, readable through the stats API.
+         */
+        private boolean enabled = false;
+        /**
+         * How often the aggregated clicks are written to {@code t_url_clicks}.
+         */
+        private Duration flushInterval = Duration.ofSeconds(5);
+        /**
+         * Links counted per flush interval, clicks on further links are cut off until the next flush.
+         */
+        private int maxTrackedLinks = 100_000;
+        /**
+         * Rows upserted per statement and transaction.
+         */
+        private int flushBatchSize = 500;
+        /**
+         * Upper bound of the buckets a stats request may span.
+         */
+        private int maxStatsBuckets = 10_080;
+    }
+
+    @Setter
+    @Getter
+    public static class Replicas {
+        /**
+         * Replicas lagging further behind the primary are ejected from {@link ReplicaPool} until they caught up.
+         */
+        private Duration maxLag = Duration.ofSeconds(5);
+        private Duration lagCheckInterval = Duration.ofSeconds(1);
+        /**
+         * Redirects missing on a replica are read again from the primary if this node created that short url this
+         * recently, so that the create is not cached as missing before the replica replayed it. Misses of short urls
+         * created through other nodes are only cached in L1, see {@code tinyurl.cache.invalidation}.
+         */
+        private Duration readYourWritesWindow = Duration.ofSeconds(5);
+    }
+
+    @Setter
+    @Getter
+    public static class Instrumentation {
+        /**
+         * Record the stages of redirects and creates in {@link StageLatencies}.
+         */
+        private boolean enabled = true;
+        /**
+         * How often the recorded latencies are summed up for the meter registry.
+         */
+        private Duration exportInterval = Duration.ofSeconds(5);
+        /**
+         * Requests taking longer are counted, and sampled with their stages.
+         */
+        private Duration slowRequestThreshold = Duration.ofMillis(100);
+        /**
+         * At most one slow request per interval is logged.
+         */
+        private Duration slowRequestSampleInterval = Duration.ofSeconds(1);
+    }
+
+    @Setter
+    @Getter
+    public static class Admission {
+        /**
+         * Limit the requests running through {@link TinyUrlService} at once with {@link AdmissionController}, and shed
+         * the rest with a 503.
+         */
+        private boolean enabled = false;
+        private int initialLimit = 100;
+        private int minLimit = 10;
+        private int maxLimit = 1_000;
+        /**
+         * Creates are shed once this share of the limit is used.
+         */
+        private double createShare = 0.5;
+        /**
+         * How long redirects over the limit may wait to be admitted, 0 to shed them right away.
+         */
+        private Duration maxQueueTime = Duration.ofMillis(10);
+        /**
+         * Redirects waiting beyond this many are shed right away.
+         */
+        private int queueCapacity = 100;
+        /**
+         * How often the limit is adjusted to the latency of the requests in between.
+         */
+        private Duration window = Duration.ofMillis(100);
+        /**
+         * How many times the long-term latency a window's latency may reach before the limit shrinks.
+         */
+        private double rttTolerance = 1.5;
+        /**
+         * Sent as {@code Retry-After} with shed requests.
+         */
+        private Duration retryAfter = Duration.ofSeconds(1);
+    }
+
+    @Setter
+    @Getter
+    public static class BulkTransfer {
+        /**
+         * Import and export url mappings as CSV files through the {@code bulktransfer} actuator endpoint, see
+         * {@link UrlMappingBulkTransfer}.
+         */
+        private boolean enabled = false;
+        /**
+         * The paths imported from and exported to are resolved against this directory, and may not leave it.
+         */
+        private String directory = "data/bulk-transfer";
+        /**
+         * Workers, and connections, per import or export; an export holds one more for its snapshot.
+         */
+        private int concurrency = 4;
+        /**
+         * Rows a worker copies into the staging table and inserts per transaction.
+         */
+        private int batchSize = 10_000;
+        /**
+         * Imported rows with a short url, whose long url is stored under another short url already: inserted as well
+         * if false, so that both short urls redirect, skipped if true.
+         */
+        private boolean skipStoredLongUrls = false;
+        /**
+         * How often progress is logged.
+         */
+        private Duration progressInterval = Duration.ofSeconds(10);
+    }
+
+    enum Generator {
+        HASH, ID_RANGE
+    }
+
+    enum IdSource {
+        POSTGRES, LOCAL
+    }
+
+    enum Lookup {
+        JDBC, JPA
+    }
+
+    enum InvalidationTransport {
+        REDIS, LOCAL
+    }
+
+    enum PurgeMode {
+        /**
+         * Delete expired rows in batches.
+         */
+        ROWS,
+        /**
+         * Drop yearly partitions of {@code t_url_mappings} once all of their rows expired, see
+         * {@code db/partitioning/partition_url_mappings.sql}.
+         */
+        PARTITIONS
+    }
+}
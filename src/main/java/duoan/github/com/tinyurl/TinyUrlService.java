@@ -1,127 +1,418 @@
 package duoan.github.com.tinyurl;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Log4j2
 @Service
 class TinyUrlService {
-    /// After {@linkplain #COLLISON_LIMIT} tries of re-salting long urls to avoid collisions, give up.
-    private static final int COLLISON_LIMIT = 100;
-    private static final String NULL_LONG_URL = "NULL";
     private static final String METRIC_PREFIX = "tinyurl.service";
+    /// Creates whose generated short url turns out to be taken are retried with a new one, this many times at most.
+    private static final int CREATE_ATTEMPTS = 3;
+    /// Short urls created through this node within the read-your-writes window, at most this many of them.
+    private static final int RECENT_CREATES_MAXIMUM_SIZE = 100_000;
 
     private final UrlMappingRepository repository;
+    private final UrlMappingLookup lookup;
+    private final UrlMappingInserter inserter;
     private final TinyUrlCache cache;
-    private final MeterRegistry meterRegistry;
+    private final ShortUrlGenerator shortUrlGenerator;
+    private final UrlMappingBatchWriter batchWriter;
+    private final ShortUrlBloomFilter bloomFilter;
+    private final ShardRouter shardRouter;
+    private final ClickCounter clickCounter;
+    private final StageLatencies stageLatencies;
+    private final boolean replicated;
+    private final Duration batchWriteTimeout;
+    private final Cache<String, Boolean> recentCreates;
+    private final TransactionTemplate writeTransaction;
+    private final TransactionTemplate readTransaction;
+    private final TransactionTemplate primaryReadTransaction;
+    private final SingleFlight<String, Optional<String>> longUrlLoads;
+    private final SingleFlight<String, String> shortUrlCreates;
+    private final Counter getNotFound;
+    private final Counter getCacheHits;
+    private final Counter getCacheMisses;
+    private final Counter getDbHits;
+    private final Counter getPrimaryReads;
+    private final Counter createCacheHits;
+    private final Counter createDbHits;
+    private final Counter createGenerated;
+    private final Counter createDigestCollisions;
+    private final Counter createCollisions;
 
-    // ThreadLocal for counters
-    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
-
-    TinyUrlService(UrlMappingRepository repository, TinyUrlCache cache, MeterRegistry meterRegistry) {
+    TinyUrlService(UrlMappingRepository repository, UrlMappingLookup lookup, UrlMappingInserter inserter,
+                   TinyUrlCache cache, ShortUrlGenerator shortUrlGenerator,
+                   ObjectProvider<UrlMappingBatchWriter> batchWriter, ObjectProvider<ShortUrlBloomFilter> bloomFilter,
+                   ObjectProvider<ShardRouter> shardRouter, ObjectProvider<ReplicaPool> replicaPool,
+                   ObjectProvider<ClickCounter> clickCounter, ObjectProvider<StageLatencies> stageLatencies,
+                   TinyUrlProperties properties,
+                   PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
         this.repository = repository;
+        this.lookup = lookup;
+        this.inserter = inserter;
         this.cache = cache;
-        this.meterRegistry = meterRegistry;
+        this.shortUrlGenerator = shortUrlGenerator;
+        this.batchWriter = batchWriter.getIfAvailable();
+        this.bloomFilter = bloomFilter.getIfAvailable();
+        this.shardRouter = shardRouter.getIfAvailable();
+        this.clickCounter = clickCounter.getIfAvailable();
+        this.stageLatencies = stageLatencies.getIfAvailable();
+        this.replicated = replicaPool.getIfAvailable() != null;
+        this.batchWriteTimeout = properties.getBatchWrite().getTimeout();
+        this.recentCreates = Caffeine.newBuilder()
+                .maximumSize(RECENT_CREATES_MAXIMUM_SIZE)
+                .expireAfterWrite(properties.getReplicas().getReadYourWritesWindow())
+                .build();
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+        // not read-only, so it is routed to the primary
+        this.primaryReadTransaction = new TransactionTemplate(transactionManager);
+        this.longUrlLoads = new SingleFlight<>("get", meterRegistry);
+        this.shortUrlCreates = new SingleFlight<>("create", meterRegistry);
+        this.getNotFound = meterRegistry.counter(METRIC_PREFIX + ".get.not_found");
+        this.getCacheHits = meterRegistry.counter(METRIC_PREFIX + ".get.cache.hits");
+        this.getCacheMisses = meterRegistry.counter(METRIC_PREFIX + ".get.cache.misses");
+        this.getDbHits = meterRegistry.counter(METRIC_PREFIX + ".get.db.hits");
+        this.getPrimaryReads = meterRegistry.counter(METRIC_PREFIX + ".get.primary_reads");
+        this.createCacheHits = meterRegistry.counter(METRIC_PREFIX + ".create.cache.hits");
+        this.createDbHits = meterRegistry.counter(METRIC_PREFIX + ".create.db.hits");
+        this.createGenerated = meterRegistry.counter(METRIC_PREFIX + ".create.generated");
+        this.createDigestCollisions = meterRegistry.counter(METRIC_PREFIX + ".create.digest.collisions");
+        this.createCollisions = meterRegistry.counter(METRIC_PREFIX + ".create.collisions");
     }
 
-    @Transactional(readOnly = true)
+    /**
+     * Only cache misses begin a transaction, read-only so that it goes to a replica.
+     *
+     * @return the long url, ready to be sent as the redirect's {@code Location}
+     */
     String getLongUrl(String shortUrl) {
+        if (bloomFilter != null && !mightContain(shortUrl)) {
+            getNotFound.increment();
+            throw new TinyUrlNotFoundException(shortUrl);
+        }
         Optional<String> cachedLongUrl = cache.getLongUrl(shortUrl);
         if (cachedLongUrl.isPresent()) {
-            count("get.cache.hits");
+            getCacheHits.increment();
             // no data
-            if (cachedLongUrl.get().equals(NULL_LONG_URL)) {
-                count("get.not_found");
+            if (cachedLongUrl.get().equals(TinyUrlCache.NULL_LONG_URL)) {
+                getNotFound.increment();
                 throw new TinyUrlNotFoundException(shortUrl);
             }
 
-            return cachedLongUrl.get();
+            recordClick(shortUrl);
+            return UrlCanonicalizer.toLocation(cachedLongUrl.get());
         }
-        count("get.cache.misses");
-        Optional<UrlMapping> optionalTinyUrlEntity = repository.findByShortUrl(shortUrl);
-        if (optionalTinyUrlEntity.isPresent()) {
-            count("get.db.hits");
-            UrlMapping urlMapping = optionalTinyUrlEntity.get();
-            cache.dualPutUrlMapping(urlMapping.getShortUrl(), urlMapping.getLongUrl());
-            return urlMapping.getLongUrl();
+        getCacheMisses.increment();
+        // Concurrent misses for the same short url share a single database lookup
+        Optional<String> longUrl = longUrlLoads.load(shortUrl, () -> loadLongUrl(shortUrl));
+        if (longUrl.isPresent()) {
+            getDbHits.increment();
+            recordClick(shortUrl);
+            return UrlCanonicalizer.toLocation(longUrl.get());
+        }
+        getNotFound.increment();
+        if (bloomFilter != null) {
+            bloomFilter.recordFalsePositive();
         }
-        // cache no data
-        count("get.not_found");
-        cache.dualPutUrlMapping(shortUrl, NULL_LONG_URL);
         throw new TinyUrlNotFoundException(shortUrl);
     }
 
-    @Transactional
-    @SneakyThrows
-    String createShortUrl(String longUrl) {
-        if (longUrl.startsWith("https://")) {
-            longUrl = longUrl.substring(8);  // Remove the "https://" (8 characters)
+    private boolean mightContain(String shortUrl) {
+        long start = System.nanoTime();
+        boolean mightContain = bloomFilter.mightContain(shortUrl);
+        recordStage(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.BLOOM_FILTER, start);
+        return mightContain;
+    }
+
+    private void recordStage(StageLatencies.Operation operation, StageLatencies.Stage stage, long startNanos) {
+        if (stageLatencies != null) {
+            stageLatencies.record(operation, stage, System.nanoTime() - startNanos);
+        }
+    }
+
+    private void recordClick(String shortUrl) {
+        if (clickCounter != null) {
+            clickCounter.record(shortUrl);
+        }
+    }
+
+    private Optional<String> loadLongUrl(String shortUrl) {
+        long start = System.nanoTime();
+        // with sharding, only the shard owning the short url's slot is asked
+        Optional<String> longUrl = shardRouter == null
+                ? readTransaction.execute(status -> lookup.findLongUrl(shortUrl))
+                : shardRouter.read(shardRouter.route(shortUrl), () -> lookup.findLongUrl(shortUrl),
+                Optional::isPresent);
+        // the replica may not have replayed this node's create of the short url yet, do not cache that as a miss
+        boolean confirmed = !replicated;
+        if (longUrl.isEmpty() && recentCreates.getIfPresent(shortUrl) != null) {
+            getPrimaryReads.increment();
+            confirmed = true;
+            longUrl = shardRouter == null
+                    ? primaryReadTransaction.execute(status -> lookup.findLongUrl(shortUrl))
+                    : shardRouter.write(shardRouter.route(shortUrl).shard(), () -> lookup.findLongUrl(shortUrl));
+        }
+        recordStage(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.DB, start);
+        if (longUrl.isPresent()) {
+            cache.dualPutUrlMapping(shortUrl, longUrl.get());
+            return longUrl;
+        }
+        // cache no data. A replica may also lag behind a create made through another node, which put the mapping in
+        // L2 already: its miss stays in this node's L1, where the creating node's invalidation drops it
+        if (confirmed) {
+            cache.dualPutUrlMapping(shortUrl, TinyUrlCache.NULL_LONG_URL);
+        } else {
+            cache.putLocalUrlMapping(shortUrl, TinyUrlCache.NULL_LONG_URL);
         }
-        longUrl = URLEncoder.encode(longUrl, StandardCharsets.UTF_8);
+        return Optional.empty();
+    }
+
+    @SneakyThrows
+    String createShortUrl(String rawLongUrl) {
+        // stored as it is redirected to, see UrlCanonicalizer
+        String longUrl = UrlCanonicalizer.canonicalize(rawLongUrl);
+        LongUrlDigest longUrlDigest = LongUrlDigest.of(longUrl);
 
         // directly return existing short url if exist long url
-        Optional<String> optionalCachedShortUrl = cache.getShortUrl(longUrl);
-        if (optionalCachedShortUrl.isPresent() && !optionalCachedShortUrl.get().equals("empty")) {
-            count("create.cache.hits");
+        Optional<String> optionalCachedShortUrl = cache.getShortUrl(longUrlDigest);
+        if (optionalCachedShortUrl.isPresent() && !optionalCachedShortUrl.get().equals(TinyUrlCache.NULL_SHORT_URL)) {
+            createCacheHits.increment();
             return optionalCachedShortUrl.get();
         }
 
-        Optional<UrlMapping> optionalTinyUrlEntity = repository.findByLongUrl(longUrl);
-        if (optionalTinyUrlEntity.isPresent()) {
-            count("create.db.hits");
-            UrlMapping urlMapping = optionalTinyUrlEntity.get();
-            cache.dualPutUrlMapping(urlMapping.getShortUrl(), urlMapping.getLongUrl());
-            return urlMapping.getShortUrl();
-        }
+        // Concurrent creates of the same long url share one lookup, and one insert if it is new
+        return shortUrlCreates.load(longUrl, () -> {
+            // with sharding, the long url's digest picks the shard, which also gets the new short url
+            ShardMap.Route route = shardRouter == null ? null : shardRouter.route(longUrlDigest);
+            long start = System.nanoTime();
+            String shortUrl = storeShortUrl(longUrl, longUrlDigest, route);
+            recordStage(StageLatencies.Operation.CREATE, StageLatencies.Stage.DB, start);
+            recentCreates.put(shortUrl, Boolean.TRUE);
+            if (bloomFilter != null) {
+                bloomFilter.put(shortUrl);
+            }
+            // add to cache
+            cache.dualPutUrlMapping(shortUrl, longUrl, longUrlDigest);
+            // TODO publish to Kafka for downstream notification
+            return shortUrl;
+        });
+    }
 
-        String shortUrl = generateShortUrl(longUrl);
-        // Store in DB (URL -> Short URL)
-        repository.save(new UrlMapping(shortUrl, longUrl));
-        // add to cache
-        cache.dualPutUrlMapping(shortUrl, longUrl);
-        // TODO publish to Kafka for downstream notification
+    /**
+     * A generated short url may be taken by another long url already, an id based one by a short url hashed before
+     * ids were used: its insert then fails, and the create is retried with a new short url.
+     */
+    private String storeShortUrl(String longUrl, LongUrlDigest longUrlDigest, ShardMap.Route route) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (batchWriter != null) {
+                    return findOrQueueShortUrl(longUrl, longUrlDigest, route);
+                }
+                // Generated before the transaction begins, even if the long url turns out to be stored: leasing an id
+                // block takes a connection of its own, and waiting for it while holding one can exhaust the pool
+                String shortUrl = generateShortUrl(longUrl, longUrlDigest, route);
+                if (route == null) {
+                    return writeTransaction.execute(status -> findOrSaveShortUrl(longUrl, longUrlDigest, shortUrl,
+                            null));
+                }
+                return shardRouter.write(route.shard(),
+                        () -> findOrSaveShortUrl(longUrl, longUrlDigest, shortUrl, route));
+            } catch (DataIntegrityViolationException e) {
+                if (attempt == CREATE_ATTEMPTS) {
+                    throw e;
+                }
+                log.warn("Generated short url already exists, retrying the create of {}", longUrl);
+                createCollisions.increment();
+            }
+        }
+    }
 
-        count("create.generated");
+    /**
+     * Creates the short urls of many long urls like {@link #createShortUrl} does for each, but a batch at a time: the
+     * cached ones are read with one L2 multi-get, the rest looked up with one query, and the new ones inserted with
+     * one multi-row insert, see {@link UrlMappingInserter}, and cached with one L2 round-trip. Long urls whose
+     * generated short url was taken meanwhile, and all of them with sharding, are created one by one.
+     *
+     * @return the short urls, in the order of {@code rawLongUrls}
+     */
+    List<String> createShortUrls(List<String> rawLongUrls) {
+        List<String> longUrls = new ArrayList<>(rawLongUrls.size());
+        Map<String, LongUrlDigest> longUrlDigests = LinkedHashMap.newLinkedHashMap(rawLongUrls.size());
+        for (String rawLongUrl : rawLongUrls) {
+            String longUrl = UrlCanonicalizer.canonicalize(rawLongUrl);
+            longUrls.add(longUrl);
+            longUrlDigests.computeIfAbsent(longUrl, LongUrlDigest::of);
+        }
 
-        return shortUrl;
+        Map<String, String> shortUrls = HashMap.newHashMap(longUrlDigests.size());
+        Map<String, String> cachedShortUrls = cache.getShortUrls(longUrlDigests.values());
+        List<String> uncached = new ArrayList<>();
+        longUrlDigests.forEach((longUrl, longUrlDigest) -> {
+            String cachedShortUrl = cachedShortUrls.get(longUrlDigest.cacheKey());
+            if (cachedShortUrl != null && !cachedShortUrl.equals(TinyUrlCache.NULL_SHORT_URL)) {
+                createCacheHits.increment();
+                shortUrls.put(longUrl, cachedShortUrl);
+            } else {
+                uncached.add(longUrl);
+            }
+        });
+        if (shardRouter != null) {
+            // every long url may go to another shard, see createShortUrl
+            uncached.forEach(longUrl -> shortUrls.put(longUrl, createShortUrl(longUrl)));
+        } else if (!uncached.isEmpty()) {
+            shortUrls.putAll(findOrInsertShortUrls(uncached, longUrlDigests));
+        }
+        return longUrls.stream().map(shortUrls::get).toList();
     }
 
-    private String generateShortUrl(String longUrl) {
-        String shortUrl = null;
-        int attempt = 0;
-        do {
-            if (attempt > 0) {
-                log.warn("Collison for Url:{}, salt:{}, last shortUrl : {}", longUrl, attempt, shortUrl);
-                count("create.collisions");
+    /**
+     * @return the short urls of {@code longUrls}, all of them
+     */
+    private Map<String, String> findOrInsertShortUrls(List<String> longUrls,
+                                                      Map<String, LongUrlDigest> longUrlDigests) {
+        // Outside the write transaction this lookup may hit a lagging replica, the insert resolves what it misses
+        Map<String, String> stored = readTransaction.execute(status -> findShortUrls(longUrls, longUrlDigests));
+        createDbHits.increment(stored.size());
+        Map<String, String> shortUrls = new HashMap<>(stored);
+        List<UrlMappingInserter.Row> rows = new ArrayList<>(longUrls.size() - stored.size());
+        for (String longUrl : longUrls) {
+            if (!stored.containsKey(longUrl)) {
+                rows.add(new UrlMappingInserter.Row(shortUrlGenerator.generate(longUrl), longUrl,
+                        longUrlDigests.get(longUrl).dbKey()));
             }
-            shortUrl = UrlHashUtil.hashUrl(longUrl, attempt);
-            // Check cache first
-            if (cache.getLongUrl(shortUrl).isEmpty()) {
-                // Double-check with DB (optional, depending on your false positive tolerance)
-                if (!repository.existsByShortUrl(shortUrl)) {
-                    return shortUrl;
+        }
+        if (!rows.isEmpty()) {
+            Map<String, String> inserted = writeTransaction.execute(status -> inserter.insert(rows));
+            for (UrlMappingInserter.Row row : rows) {
+                String shortUrl = inserted.get(row.longUrl());
+                if (shortUrl == null) {
+                    // short url taken by a different long url, only a generator without collision checks gets here
+                    shortUrls.put(row.longUrl(), createShortUrl(row.longUrl()));
+                    continue;
                 }
+                (shortUrl.equals(row.shortUrl()) ? createGenerated : createDbHits).increment();
+                recentCreates.put(shortUrl, Boolean.TRUE);
+                if (bloomFilter != null) {
+                    bloomFilter.put(shortUrl);
+                }
+                stored.put(row.longUrl(), shortUrl);
+                shortUrls.put(row.longUrl(), shortUrl);
             }
-            attempt++;
-        } while (attempt < COLLISON_LIMIT);
-        count("create.failures");
-        // If we've exceeded the max retries, return null or handle error
-        throw new RuntimeException("Unable to generate unique short URL after " + COLLISON_LIMIT + " attempts.");
+        }
+        cache.dualPutUrlMappings(stored);
+        return shortUrls;
     }
 
-    private void count(String name) {
-        counters.computeIfAbsent(name, n -> meterRegistry.counter(METRIC_PREFIX + "." + n)).increment();
+    /**
+     * Looks many long urls up at once, like {@link #findShortUrl}.
+     */
+    private Map<String, String> findShortUrls(List<String> longUrls, Map<String, LongUrlDigest> longUrlDigests) {
+        Set<Long> digests = new HashSet<>();
+        longUrls.forEach(longUrl -> digests.add(longUrlDigests.get(longUrl).dbKey()));
+        Set<String> wanted = new HashSet<>(longUrls);
+        Map<String, String> shortUrls = new HashMap<>();
+        for (UrlMapping candidate : repository.findByLongUrlDigestIn(digests)) {
+            if (wanted.contains(candidate.getLongUrl())) {
+                shortUrls.putIfAbsent(candidate.getLongUrl(), candidate.getShortUrl());
+            }
+        }
+        return shortUrls;
     }
 
+    private String findOrSaveShortUrl(String longUrl, LongUrlDigest longUrlDigest, String shortUrl,
+                                      ShardMap.Route route) {
+        // Until this transaction ends, creates of the same long url on any node wait here
+        repository.lockLongUrlDigest(longUrlDigest.dbKey());
+        Optional<String> existingShortUrl = findShortUrl(longUrl, longUrlDigest);
+        if (existingShortUrl.isEmpty() && route != null && route.hasFallback()) {
+            existingShortUrl = shardRouter.read(route.fallbackShard(), () -> findShortUrl(longUrl, longUrlDigest));
+        }
+        if (existingShortUrl.isPresent()) {
+            createDbHits.increment();
+            return existingShortUrl.get();
+        }
+
+        // Store in DB (URL -> Short URL)
+        repository.save(new UrlMapping(shortUrl, longUrl, longUrlDigest.dbKey()));
+        createGenerated.increment();
+        return shortUrl;
+    }
 
+    @SneakyThrows
+    private String findOrQueueShortUrl(String longUrl, LongUrlDigest longUrlDigest, ShardMap.Route route) {
+        // Outside a write transaction this lookup may hit a lagging replica, the batch insert resolves what it misses
+        Optional<String> existingShortUrl = route == null
+                ? findShortUrl(longUrl, longUrlDigest)
+                : shardRouter.read(route, () -> findShortUrl(longUrl, longUrlDigest), Optional::isPresent);
+        if (existingShortUrl.isPresent()) {
+            createDbHits.increment();
+            return existingShortUrl.get();
+        }
+
+        String shortUrl = generateShortUrl(longUrl, longUrlDigest, route);
+        String storedShortUrl;
+        try {
+            storedShortUrl = batchWriter.write(shortUrl, longUrl, longUrlDigest.dbKey(),
+                    route == null ? ShardMap.CATALOG_SHARD : route.shard())
+                    .get(batchWriteTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Batch write of " + shortUrl + " not committed within "
+                    + batchWriteTimeout, e);
+        }
+        (storedShortUrl.equals(shortUrl) ? createGenerated : createDbHits).increment();
+        return storedShortUrl;
+    }
+
+    private String generateShortUrl(String longUrl, LongUrlDigest longUrlDigest, ShardMap.Route route) {
+        if (route == null) {
+            return shortUrlGenerator.generate(longUrl);
+        }
+        // a generator checking for collisions has to ask the shard the short url will be stored on
+        return ShardContext.call(route.shard(),
+                () -> shortUrlGenerator.generate(longUrl, ShardMap.slotOf(longUrlDigest)));
+    }
+
+    /**
+     * Looks the long url up by its digest, and only takes a mapping with an equal long url: different long urls may
+     * share a digest.
+     */
+    private Optional<String> findShortUrl(String longUrl, LongUrlDigest longUrlDigest) {
+        List<UrlMapping> candidates = repository.findByLongUrlDigest(longUrlDigest.dbKey());
+        for (UrlMapping candidate : candidates) {
+            if (candidate.getLongUrl().equals(longUrl)) {
+                return Optional.of(candidate.getShortUrl());
+            }
+        }
+        if (!candidates.isEmpty()) {
+            createDigestCollisions.increment();
+        }
+        return Optional.empty();
+    }
 }
@@ -0,0 +1,95 @@
+package duoan.github.com.tinyurl;
+
+import lombok.experimental.UtilityClass;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Long urls are stored the way they are sent in the {@code Location} header of a redirect: with a lower case
+ * {@code http://} or {@code https://} scheme (https if none was given), and with everything that may not appear in
+ * a header or URI percent-encoded as UTF-8. Redirects then write the stored value as is.
+ * <p>
+ * Mappings stored before were URL-encoded without their {@code https://} prefix ("legacy"). They never contain
+ * {@code ://}, so {@link #toLocation} tells them apart with a prefix check and still converts them on the fly.
+ */
+@UtilityClass
+public class UrlCanonicalizer {
+    private static final String HTTPS = "https://";
+    private static final String HTTP = "http://";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * @return the ready-to-emit form of a long url as submitted by a user
+     */
+    public static String canonicalize(String url) {
+        String stripped = url.strip();
+        String withScheme;
+        if (stripped.regionMatches(true, 0, HTTPS, 0, HTTPS.length())) {
+            withScheme = stripped.startsWith(HTTPS) ? stripped : HTTPS + stripped.substring(HTTPS.length());
+        } else if (stripped.regionMatches(true, 0, HTTP, 0, HTTP.length())) {
+            withScheme = stripped.startsWith(HTTP) ? stripped : HTTP + stripped.substring(HTTP.length());
+        } else {
+            withScheme = HTTPS + stripped;
+        }
+        return percentEncode(withScheme);
+    }
+
+    /**
+     * @return whether a stored long url is in canonical form, as opposed to a legacy one
+     */
+    public static boolean isCanonical(String storedUrl) {
+        return storedUrl.startsWith(HTTPS) || storedUrl.startsWith(HTTP);
+    }
+
+    /**
+     * @return the {@code Location} header value of a stored long url, canonical or legacy
+     */
+    public static String toLocation(String storedUrl) {
+        return isCanonical(storedUrl) ? storedUrl : fromLegacy(storedUrl);
+    }
+
+    /**
+     * @return the canonical form of a legacy stored long url, redirecting where the legacy redirect did
+     */
+    public static String fromLegacy(String legacyUrl) {
+        String longUrl = URLDecoder.decode(legacyUrl, StandardCharsets.UTF_8);
+        if (!longUrl.startsWith("https")) {
+            longUrl = HTTPS + longUrl;
+        }
+        return canonicalize(longUrl);
+    }
+
+    /**
+     * Percent-encodes control characters, spaces, non-ASCII and the characters RFC 3986 does not allow anywhere in
+     * a URI. Existing escapes and reserved characters are kept, so encoding is idempotent.
+     */
+    private static String percentEncode(String url) {
+        int i = 0;
+        while (i < url.length() && !mustEncode(url.charAt(i))) {
+            i++;
+        }
+        if (i == url.length()) {
+            return url;
+        }
+        StringBuilder encoded = new StringBuilder(url.length() + 16).append(url, 0, i);
+        while (i < url.length()) {
+            int codePoint = url.codePointAt(i);
+            if (codePoint < 0x80 && !mustEncode((char) codePoint)) {
+                encoded.append((char) codePoint);
+            } else {
+                for (byte b : Character.toString(codePoint).getBytes(StandardCharsets.UTF_8)) {
+                    encoded.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+                }
+            }
+            i += Character.charCount(codePoint);
+        }
+        return encoded.toString();
+    }
+
+    private static boolean mustEncode(char c) {
+        return c <= ' ' || c >= 0x7F
+                || c == '"' || c == '<' || c == '>' || c == '\\' || c == '^' || c == '`'
+                || c == '{' || c == '|' || c == '}';
+    }
+}
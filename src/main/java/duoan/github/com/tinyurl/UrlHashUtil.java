@@ -1,27 +1,49 @@
 package duoan.github.com.tinyurl;
 
-import com.google.common.hash.Hashing;
 import lombok.experimental.UtilityClass;
 import lombok.extern.log4j.Log4j2;
-
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import net.openhft.hashing.LongHashFunction;
 
 @Log4j2
 @UtilityClass
 class UrlHashUtil {
+    /**
+     * One seeded hash function per salt, so re-salting never builds {@code url + salt}.
+     * Salts beyond the table (never reached by {@link HashShortUrlGenerator}) get a function on the fly.
+     */
+    private final LongHashFunction[] SALTED_HASHES = new LongHashFunction[128];
+
+    static {
+        for (int salt = 0; salt < SALTED_HASHES.length; salt++) {
+            SALTED_HASHES[salt] = LongHashFunction.xx3(salt);
+        }
+    }
 
     String hashUrl(String url, int salt) {
         if (url == null || url.isEmpty()) {
             return null;
         }
-        byte[] hashBytes = Hashing.goodFastHash(160).hashString(url + salt, StandardCharsets.UTF_8).asBytes();
-        byte[] shiftedBytes = new byte[Constants.REQUIRED_BYTE_COUNT];
-        System.arraycopy(hashBytes, 0, shiftedBytes, 0, Constants.REQUIRED_BYTE_COUNT);
-        // Encode to Base64
-        String base64Hash = Base64.getUrlEncoder().withoutPadding().encodeToString(shiftedBytes);
-        // Ensure it's exactly 9 characters
+        // the char[] does not escape, so the String is the only allocation once C2 kicks in
+        char[] chars = new char[Constants.MAX_SHORT_URL_LENGTH];
+        hashUrl(url, salt, chars);
+        return new String(chars);
+    }
+
+    /**
+     * Writes the short url for {@code url} into {@code dst} without allocating.
+     */
+    void hashUrl(String url, int salt, char[] dst) {
+        ShortUrlCodec.encode(hashUrlBits(url, salt), dst);
+    }
 
-        return base64Hash.substring(0, Constants.MAX_SHORT_URL_LENGTH);
+    /**
+     * @return the top {@linkplain ShortUrlCodec#BITS 54 bits} of a single 64-bit hash over the url's characters,
+     * read in place from the String
+     */
+    long hashUrlBits(String url, int salt) {
+        LongHashFunction hashFunction = salt >= 0 && salt < SALTED_HASHES.length
+                ? SALTED_HASHES[salt]
+                : LongHashFunction.xx3(salt);
+        return hashFunction.hashChars(url) >>> (Long.SIZE - ShortUrlCodec.BITS);
     }
 }
@@ -4,6 +4,7 @@ import jakarta.persistence.*;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.hibernate.annotations.ColumnDefault;
+import org.springframework.data.domain.Persistable;
 
 import java.time.Instant;
 
@@ -14,7 +15,7 @@ import java.time.Instant;
 @Table(name = "t_url_mappings")
 @Data
 @NoArgsConstructor
-public class UrlMapping {
+public class UrlMapping implements Persistable<String> {
     /**
      * We are using base64 to encode a long url,
      * hence 64**9 will be able store 18,014,398,509,481,984 [18 Quadrillion] entities
@@ -22,18 +23,46 @@ public class UrlMapping {
     @Id
     @Column(name = "short_url", nullable = false, unique = true, length = 9)
     private String shortUrl;
-    @Column(name = "long_url", nullable = false, unique = true, length = 2048)
+    @Column(name = "long_url", nullable = false, length = 2048)
     private String longUrl;
+    /**
+     * {@link LongUrlDigest#dbKey()} of the long url, indexed for deduplication instead of the long url itself.
+     */
+    @Column(name = "long_url_digest")
+    private Long longUrlDigest;
     /**
      * The urls will be expired when creationTime + 10 years
      */
     @Column(name = "created_at")
     @ColumnDefault("now()")
     private Instant createdAt;
+    /**
+     * Short urls are assigned, never generated by the database, so without this flag
+     * {@code save} would have to <code>SELECT</code> before every insert to tell new rows from existing ones.
+     */
+    @Transient
+    private boolean persisted;
 
-    public UrlMapping(String shortUrl, String longUrl) {
+    public UrlMapping(String shortUrl, String longUrl, long longUrlDigest) {
         this.shortUrl = shortUrl;
         this.longUrl = longUrl;
+        this.longUrlDigest = longUrlDigest;
         this.createdAt = Instant.now();
     }
+
+    @Override
+    public String getId() {
+        return shortUrl;
+    }
+
+    @Override
+    public boolean isNew() {
+        return !persisted;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markPersisted() {
+        this.persisted = true;
+    }
 }
@@ -0,0 +1,183 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group-commit write path for new url mappings.
+ * <p>
+ * Creates are queued into a bounded buffer and a single writer thread flushes them with {@link UrlMappingInserter},
+ * either when {@code batch-size} rows are queued or {@code max-delay} after the first row of the batch arrived. Each
+ * batch is one transaction, and a caller's future completes once it committed. Rows whose long url is stored already
+ * complete with the existing short url.
+ * <p>
+ * With sharding, each write names the shard owning its slot, and a batch is inserted as one transaction per shard.
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(name = "tinyurl.batch-write.enabled", havingValue = "true")
+class UrlMappingBatchWriter {
+    private static final String METRIC_PREFIX = "tinyurl.batch_write";
+
+    private final UrlMappingInserter inserter;
+    private final TransactionTemplate writeTransaction;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<PendingWrite> queue;
+    private final DistributionSummary batchSizes;
+    private final Timer flushLatency;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    UrlMappingBatchWriter(UrlMappingInserter inserter, PlatformTransactionManager transactionManager,
+                          TinyUrlProperties properties, MeterRegistry meterRegistry) {
+        TinyUrlProperties.BatchWrite config = properties.getBatchWrite();
+        this.inserter = inserter;
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        if (config.getBatchSize() < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + config.getBatchSize());
+        }
+        this.batchSize = config.getBatchSize();
+        this.maxDelayNanos = config.getMaxDelay().toNanos();
+        this.queue = new ArrayBlockingQueue<>(config.getQueueCapacity());
+        this.batchSizes = DistributionSummary.builder(METRIC_PREFIX + ".size")
+                .description("Rows per flushed batch")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        this.flushLatency = Timer.builder(METRIC_PREFIX + ".flush")
+                .description("Time taken to insert and commit a batch")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        meterRegistry.gauge(METRIC_PREFIX + ".queue", queue, BlockingQueue::size);
+        this.writer = new Thread(this::run, "url-mapping-batch-writer");
+        this.writer.setDaemon(true);
+    }
+
+    @PostConstruct
+    void start() {
+        writer.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        writer.interrupt();
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        // queued after the writer exited, or while it did not finish in time
+        List<PendingWrite> leftover = new ArrayList<>();
+        queue.drainTo(leftover);
+        leftover.forEach(w -> w.result.completeExceptionally(new IllegalStateException("Batch writer is stopped")));
+    }
+
+    /**
+     * @return the short url stored for {@code longUrl}: {@code shortUrl}, or the existing one if another create won
+     */
+    CompletableFuture<String> write(String shortUrl, String longUrl, long longUrlDigest, int shard)
+            throws InterruptedException {
+        if (!running) {
+            throw new IllegalStateException("Batch writer is stopped");
+        }
+        PendingWrite pendingWrite = new PendingWrite(shortUrl, longUrl, longUrlDigest, shard,
+                new CompletableFuture<>());
+        queue.put(pendingWrite);
+        // stop() may have been called meanwhile, and the writer may be gone already
+        if (!running && queue.remove(pendingWrite)) {
+            pendingWrite.result.completeExceptionally(new IllegalStateException("Batch writer is stopped"));
+        }
+        return pendingWrite.result;
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // stop() was called, flush what we have and drain the rest
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        batchSizes.record(batch.size());
+        flushLatency.record(() -> {
+            Map<Integer, List<PendingWrite>> byShard = new TreeMap<>();
+            for (PendingWrite w : batch) {
+                byShard.computeIfAbsent(w.shard, k -> new ArrayList<>()).add(w);
+            }
+            byShard.forEach((shard, writes) -> {
+                try {
+                    ShardContext.run(shard, () -> insert(writes));
+                } catch (RuntimeException e) {
+                    log.error("Failed to flush batch of {} url mappings to shard {}", writes.size(), shard, e);
+                    writes.forEach(w -> w.result.completeExceptionally(e));
+                }
+            });
+        });
+    }
+
+    private void insert(List<PendingWrite> batch) {
+        // The same long url queued twice within a batch is inserted once
+        Map<String, List<PendingWrite>> byLongUrl = new LinkedHashMap<>();
+        for (PendingWrite w : batch) {
+            byLongUrl.computeIfAbsent(w.longUrl, k -> new ArrayList<>(1)).add(w);
+        }
+        List<PendingWrite> rows = byLongUrl.values().stream().map(List::getFirst).toList();
+
+        Map<String, String> storedShortUrls = writeTransaction.execute(status -> inserter.insert(rows.stream()
+                .map(row -> new UrlMappingInserter.Row(row.shortUrl, row.longUrl, row.longUrlDigest))
+                .toList()));
+        for (PendingWrite row : rows) {
+            String storedShortUrl = storedShortUrls.get(row.longUrl);
+            for (PendingWrite w : byLongUrl.get(row.longUrl)) {
+                if (storedShortUrl != null) {
+                    w.result.complete(storedShortUrl);
+                } else {
+                    // short url taken by a different long url
+                    w.result.completeExceptionally(new DuplicateKeyException(
+                            "Short url '" + w.shortUrl + "' already exists"));
+                }
+            }
+        }
+    }
+
+    private record PendingWrite(String shortUrl, String longUrl, long longUrlDigest, int shard,
+                                CompletableFuture<String> result) {
+    }
+}
@@ -0,0 +1,723 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Imports and exports url mappings as CSV files through PostgreSQL's COPY, for corpora of hundreds of millions of
+ * rows which {@link UrlMappingRepository} would take days for. Started through the {@code bulktransfer} actuator
+ * endpoint, on files of the node it runs on, under its {@code directory}:
+ * <pre>
+ * curl -X POST localhost:8080/actuator/bulktransfer/import -H 'Content-Type: application/json' \
+ *      -d '{"path": "links.csv", "populateL2": true}'
+ * curl -X POST localhost:8080/actuator/bulktransfer/export -H 'Content-Type: application/json' \
+ *      -d '{"path": "export"}'
+ * curl localhost:8080/actuator/bulktransfer
+ * </pre>
+ * <b>Import</b> reads a CSV file, or every file of a directory, of {@code short_url,long_url,created_at} lines, see
+ * {@link UrlMappingCsv}; only the long url is required. Every file is split into {@code concurrency} byte ranges,
+ * read by as many workers in parallel. A worker validates and canonicalizes {@code batch-size} lines, hashes the
+ * missing short urls with {@link UrlHashUtil}, COPYs them into a temporary staging table and inserts them from there
+ * with one statement. Rows whose short url is stored already are skipped, and so are rows without a short url whose
+ * long url is stored ({@code skip-stored-long-urls} for the others). Skipped rows storing the same mapping count as
+ * existing; a generated short url taken by another long url is re-salted like {@link HashShortUrlGenerator} does,
+ * while an imported one is a conflict. Invalid and conflicting lines are written to {@code <path>.rejected} with
+ * their file offset and why. Every batch commits on its own, and existing rows are skipped, so an interrupted import
+ * is resumed by starting it again. With {@code populateL2}, the inserted mappings of a batch are written into L2 with
+ * one pipelined round-trip. Inserted short urls are put into this node's {@link ShortUrlBloomFilter}, the other
+ * nodes' filters pick them up with their catch-up on {@code inserted_at}.
+ * <p>
+ * <b>Export</b> writes every mapping into {@code concurrency} files {@code t_url_mappings-<n>.csv} of a directory,
+ * one per slot range, copied by workers in parallel from one exported snapshot, the way {@code pg_dump -j} does.
+ * <p>
+ * Progress and rows per second are logged every {@code progress-interval} and shown by the endpoint, the rows of all
+ * transfers are counted in {@code tinyurl.bulk_transfer.rows}. Imports do not take the advisory locks of creates: a
+ * create racing the import of the same long url may store a second short url for it, both of which redirect.
+ * Negative entries cached for imported short urls expire as usual. Not available with sharding.
+ */
+@Log4j2
+@Component
+@Endpoint(id = "bulktransfer")
+@ConditionalOnProperty(prefix = "tinyurl.bulk-transfer", name = "enabled", havingValue = "true")
+class UrlMappingBulkTransfer {
+    private static final String METRIC_PREFIX = "tinyurl.bulk_transfer";
+    private static final String STAGING_TABLE = "tmp_url_mappings_import";
+    /**
+     * Salts tried for a generated short url, as many as {@link HashShortUrlGenerator} tries.
+     */
+    private static final int MAX_SALT = 100;
+    private static final String INSERT_FROM_STAGING = "INSERT INTO t_url_mappings"
+            + " (short_url, long_url, long_url_digest, created_at)"
+            + " SELECT short_url, long_url, long_url_digest, coalesce(created_at, LOCALTIMESTAMP) FROM " + STAGING_TABLE
+            + " s WHERE NOT (s.generated OR ?) OR NOT EXISTS (SELECT 1 FROM t_url_mappings m"
+            + " WHERE m.long_url_digest = s.long_url_digest AND m.long_url = s.long_url)"
+            + " ON CONFLICT DO NOTHING RETURNING short_url";
+
+    enum Result {
+        INSERTED, EXISTING, CONFLICT, INVALID, EXPORTED
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final DataSource dataSource;
+    private final TinyUrlCache cache;
+    private final ShortUrlBloomFilter bloomFilter;
+    private final ShardRouter shardRouter;
+    private final TinyUrlProperties.BulkTransfer config;
+    private final Path directory;
+    private final ExecutorService executor;
+    private final Counter[] rows = new Counter[Result.values().length];
+    private Future<?> currentTransfer;
+    private volatile Transfer transfer;
+
+    UrlMappingBulkTransfer(JdbcTemplate jdbcTemplate, TinyUrlCache cache,
+                           ObjectProvider<ShortUrlBloomFilter> bloomFilter, ObjectProvider<ShardRouter> shardRouter,
+                           TinyUrlProperties properties, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.dataSource = Objects.requireNonNull(jdbcTemplate.getDataSource());
+        this.cache = cache;
+        this.bloomFilter = bloomFilter.getIfAvailable();
+        this.shardRouter = shardRouter.getIfAvailable();
+        this.config = properties.getBulkTransfer();
+        this.directory = Path.of(config.getDirectory()).toAbsolutePath().normalize();
+        this.executor = Executors.newSingleThreadExecutor(
+                Thread.ofPlatform().daemon().name("bulk-transfer").factory());
+        for (Result result : Result.values()) {
+            rows[result.ordinal()] = Counter.builder(METRIC_PREFIX + ".rows")
+                    .description("Url mappings imported or exported")
+                    .tag("operation", result == Result.EXPORTED ? "export" : "import")
+                    .tag("result", result.name().toLowerCase(Locale.ROOT))
+                    .register(meterRegistry);
+        }
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @ReadOperation
+    public Map<String, Object> progress() {
+        Transfer current = transfer;
+        return current == null ? Map.of("state", "idle") : current.describe();
+    }
+
+    @WriteOperation
+    public synchronized String start(@Selector String operation, String path, @Nullable Boolean populateL2) {
+        if (!operation.equals("import") && !operation.equals("export")) {
+            throw new IllegalArgumentException("Unknown operation " + operation + ", expected import or export");
+        }
+        if (shardRouter != null) {
+            throw new IllegalStateException("Bulk transfers are not available with sharding");
+        }
+        if (currentTransfer != null && !currentTransfer.isDone()) {
+            throw new IllegalStateException("Already running: " + transfer);
+        }
+        Path file = resolve(path);
+        if (operation.equals("import") && !Files.exists(file)) {
+            throw new IllegalArgumentException("No file " + path);
+        }
+        Transfer started = new Transfer(operation, file);
+        transfer = started;
+        currentTransfer = executor.submit(() -> run(started, operation.equals("import")
+                ? () -> importFiles(started, Boolean.TRUE.equals(populateL2))
+                : () -> exportFiles(started)));
+        return "Started the " + operation + " of " + path;
+    }
+
+    /**
+     * @return {@code path} within {@code directory}; the directory itself is not allowed either, the rejected lines
+     * of an import go next to what it reads
+     */
+    private Path resolve(String path) {
+        Path resolved = directory.resolve(path).normalize();
+        if (!resolved.startsWith(directory) || resolved.equals(directory)) {
+            throw new IllegalArgumentException("Path " + path + " is not within " + directory);
+        }
+        return resolved;
+    }
+
+    private void run(Transfer transfer, Callable<Void> operation) {
+        log.info("Starting the {} of {}", transfer.operation, transfer.path);
+        try {
+            operation.call();
+            transfer.finish("done");
+            log.info("Finished the {} of {}: {}", transfer.operation, transfer.path, transfer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            transfer.finish("interrupted, start it again to resume");
+        } catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            log.error("The {} of {} failed: {}", transfer.operation, transfer.path, transfer, cause);
+            transfer.finish("failed: " + cause.getMessage());
+        }
+    }
+
+    /**
+     * Runs the workers of a transfer, and logs its progress until they are done. A failed worker stops the others
+     * after their current batch.
+     */
+    private void runWorkers(Transfer transfer, List<Callable<Void>> workers) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(config.getConcurrency(),
+                workers.size())), Thread.ofPlatform().daemon().name("bulk-transfer-", 0).factory());
+        try {
+            List<Future<Void>> futures = new ArrayList<>(workers.size());
+            for (Callable<Void> worker : workers) {
+                futures.add(pool.submit(() -> {
+                    try {
+                        return worker.call();
+                    } catch (Exception e) {
+                        transfer.failed = true;
+                        throw e;
+                    }
+                }));
+            }
+            pool.shutdown();
+            while (!pool.awaitTermination(config.getProgressInterval().toMillis(), TimeUnit.MILLISECONDS)) {
+                log.info("The {} of {}: {}", transfer.operation, transfer.path, transfer);
+            }
+            ExecutionException failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // the first failure, not the workers it stopped
+                    if (failure == null || failure.getCause() instanceof InterruptedException) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void checkStopped(Transfer transfer) throws InterruptedException {
+        if (transfer.failed || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private void count(Transfer transfer, Result result, long count) {
+        if (count > 0) {
+            rows[result.ordinal()].increment(count);
+            transfer.rows[result.ordinal()].add(count);
+        }
+    }
+
+    // import
+
+    private Void importFiles(Transfer transfer, boolean populateL2) throws Exception {
+        List<Path> files;
+        if (Files.isDirectory(transfer.path)) {
+            try (Stream<Path> list = Files.list(transfer.path)) {
+                files = list.filter(Files::isRegularFile).sorted().toList();
+            }
+        } else {
+            files = List.of(transfer.path);
+        }
+        List<UrlMappingCsv.Split> splits = new ArrayList<>();
+        for (Path file : files) {
+            transfer.totalBytes += Files.size(file);
+            splits.addAll(UrlMappingCsv.split(file, config.getConcurrency()));
+        }
+        Path rejectedPath = transfer.path.resolveSibling(transfer.path.getFileName() + ".rejected");
+        try (BufferedWriter rejected = Files.newBufferedWriter(rejectedPath)) {
+            List<Callable<Void>> workers = new ArrayList<>(splits.size());
+            for (UrlMappingCsv.Split split : splits) {
+                workers.add(() -> importSplit(transfer, split, rejected, populateL2));
+            }
+            runWorkers(transfer, workers);
+        }
+        if (transfer.rows[Result.INVALID.ordinal()].sum() + transfer.rows[Result.CONFLICT.ordinal()].sum() == 0) {
+            Files.delete(rejectedPath);
+        }
+        return null;
+    }
+
+    private Void importSplit(Transfer transfer, UrlMappingCsv.Split split, BufferedWriter rejected,
+                             boolean populateL2) throws Exception {
+        try (UrlMappingCsv.LineReader reader = new UrlMappingCsv.LineReader(split)) {
+            List<ImportRow> batch = new ArrayList<>(config.getBatchSize());
+            long read = split.start();
+            String line;
+            String file = split.file().getFileName().toString();
+            while ((line = reader.readLine()) != null) {
+                boolean header = reader.lineStart() == 0 && line.startsWith("short_url,");
+                if (!header && !line.isBlank()) {
+                    ImportRow row = parse(line, file, reader.lineStart());
+                    if (row.invalid() == null) {
+                        batch.add(row);
+                    } else {
+                        reject(transfer, rejected, Result.INVALID, row.source(), row.invalid(), line);
+                    }
+                }
+                if (batch.size() == config.getBatchSize()) {
+                    checkStopped(transfer);
+                    importBatch(transfer, batch, rejected, populateL2);
+                    batch.clear();
+                    long position = Math.min(reader.position(), split.end());
+                    transfer.bytesRead.add(position - read);
+                    read = position;
+                }
+            }
+            if (!batch.isEmpty()) {
+                checkStopped(transfer);
+                importBatch(transfer, batch, rejected, populateL2);
+            }
+            transfer.bytesRead.add(split.end() - read);
+        }
+        return null;
+    }
+
+    /**
+     * @return the row of a line, {@link ImportRow#invalid()} tells why if it is not valid
+     */
+    private static ImportRow parse(String line, String file, long offset) {
+        List<String> fields = UrlMappingCsv.parse(line);
+        if (fields == null) {
+            return ImportRow.invalid(file, offset, "unclosed quote");
+        }
+        if (fields.size() > 3) {
+            return ImportRow.invalid(file, offset, "expected short_url,long_url,created_at");
+        }
+        String shortUrl = fields.size() == 1 ? "" : fields.get(0).strip();
+        String rawLongUrl = fields.get(fields.size() == 1 ? 0 : 1);
+        String createdAt = fields.size() == 3 ? fields.get(2).strip() : "";
+        if (!shortUrl.isEmpty() && ShortUrlCodec.pack(shortUrl) < 0) {
+            return ImportRow.invalid(file, offset, "short url is not 1 to " + Constants.MAX_SHORT_URL_LENGTH
+                    + " base64url characters");
+        }
+        if (rawLongUrl.isBlank()) {
+            return ImportRow.invalid(file, offset, "no long url");
+        }
+        String longUrl = UrlCanonicalizer.canonicalize(rawLongUrl);
+        if (longUrl.length() > Constants.MAX_LONG_URL_LENGTH) {
+            return ImportRow.invalid(file, offset, "long url longer than " + Constants.MAX_LONG_URL_LENGTH
+                    + " characters");
+        }
+        if (!createdAt.isEmpty()) {
+            try {
+                Timestamp.valueOf(createdAt);
+            } catch (IllegalArgumentException e) {
+                return ImportRow.invalid(file, offset, "created_at is not yyyy-mm-dd hh:mm:ss[.f]");
+            }
+        }
+        long longUrlDigest = LongUrlDigest.of(longUrl).dbKey();
+        return shortUrl.isEmpty()
+                ? new ImportRow(UrlHashUtil.hashUrl(longUrl, 0), longUrl, longUrlDigest, null, true, 0, file, offset,
+                null)
+                : new ImportRow(shortUrl, longUrl, longUrlDigest, createdAt.isEmpty() ? null : createdAt, false, 0,
+                file, offset, null);
+    }
+
+    /**
+     * Inserts a batch in one transaction, in rounds: each round COPYs one row per short url into the staging table,
+     * inserts them, and sorts out the ones which were not, the re-salted ones and repeated short urls go into the
+     * next round.
+     */
+    private void importBatch(Transfer transfer, List<ImportRow> batch, BufferedWriter rejected, boolean populateL2)
+            throws Exception {
+        Map<String, String> inserted = new HashMap<>();
+        List<String> insertedShortUrls = new ArrayList<>();
+        Map<ImportRow, String> conflicts = new LinkedHashMap<>();
+        long[] existing = new long[1];
+        transaction(false, connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TEMP TABLE IF NOT EXISTS " + STAGING_TABLE + " (short_url VARCHAR(9)"
+                        + " NOT NULL, long_url VARCHAR(2048) NOT NULL, long_url_digest BIGINT NOT NULL,"
+                        + " created_at TIMESTAMP, generated BOOLEAN NOT NULL) ON COMMIT DELETE ROWS");
+            }
+            CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+            List<ImportRow> pending = batch;
+            while (!pending.isEmpty()) {
+                Map<String, ImportRow> round = new LinkedHashMap<>();
+                List<ImportRow> next = new ArrayList<>();
+                for (ImportRow row : pending) {
+                    if (round.putIfAbsent(row.shortUrl(), row) != null) {
+                        next.add(row);
+                    }
+                }
+                copyManager.copyIn("COPY " + STAGING_TABLE + " (short_url, long_url, long_url_digest, created_at,"
+                        + " generated) FROM STDIN WITH (FORMAT csv)", new StringReader(csv(round.values())));
+                Set<String> roundInserted = new HashSet<>();
+                try (PreparedStatement ps = connection.prepareStatement(INSERT_FROM_STAGING)) {
+                    ps.setBoolean(1, config.isSkipStoredLongUrls());
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            roundInserted.add(rs.getString(1));
+                        }
+                    }
+                }
+                List<ImportRow> skipped = new ArrayList<>();
+                for (ImportRow row : round.values()) {
+                    if (roundInserted.contains(row.shortUrl())) {
+                        insertedShortUrls.add(row.shortUrl());
+                        inserted.put(row.longUrl(), row.shortUrl());
+                    } else {
+                        skipped.add(row);
+                    }
+                }
+                if (!skipped.isEmpty()) {
+                    next.addAll(resolve(connection, skipped, existing, conflicts));
+                }
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("TRUNCATE " + STAGING_TABLE);
+                }
+                pending = next;
+            }
+            return null;
+        });
+
+        count(transfer, Result.INSERTED, insertedShortUrls.size());
+        count(transfer, Result.EXISTING, existing[0]);
+        if (bloomFilter != null) {
+            insertedShortUrls.forEach(bloomFilter::put);
+        }
+        for (Map.Entry<ImportRow, String> conflict : conflicts.entrySet()) {
+            ImportRow row = conflict.getKey();
+            reject(transfer, rejected, Result.CONFLICT, row.source(), conflict.getValue(),
+                    row.shortUrl() + "," + row.longUrl());
+        }
+        if (populateL2) {
+            try {
+                cache.putL2UrlMappings(inserted);
+            } catch (RuntimeException e) {
+                log.warn("Failed to write {} imported url mappings into L2", inserted.size(), e);
+            }
+        }
+    }
+
+    /**
+     * Tells why rows were not inserted.
+     *
+     * @return the rows to insert again
+     */
+    private List<ImportRow> resolve(Connection connection, List<ImportRow> skipped, long[] existing,
+                                    Map<ImportRow, String> conflicts) throws SQLException {
+        Map<String, String> storedByShortUrl = new HashMap<>();
+        Map<String, String> storedByLongUrl = new HashMap<>();
+        Set<String> longUrls = new HashSet<>();
+        skipped.forEach(row -> longUrls.add(row.longUrl()));
+        query(connection, "SELECT short_url, long_url FROM t_url_mappings WHERE short_url = ANY(?)",
+                connection.createArrayOf("varchar", skipped.stream().map(ImportRow::shortUrl).toArray()),
+                (shortUrl, longUrl) -> storedByShortUrl.put(shortUrl, longUrl));
+        query(connection, "SELECT short_url, long_url FROM t_url_mappings WHERE long_url_digest = ANY(?)",
+                connection.createArrayOf("bigint", skipped.stream().map(ImportRow::longUrlDigest).toArray()),
+                (shortUrl, longUrl) -> {
+                    // digests may collide, only an equal long url is a match
+                    if (longUrls.contains(longUrl)) {
+                        storedByLongUrl.putIfAbsent(longUrl, shortUrl);
+                    }
+                });
+
+        List<ImportRow> retry = new ArrayList<>();
+        for (ImportRow row : skipped) {
+            String stored = storedByShortUrl.get(row.shortUrl());
+            boolean skipsStoredLongUrl = row.generated() || config.isSkipStoredLongUrls();
+            if (row.longUrl().equals(stored) || skipsStoredLongUrl && storedByLongUrl.containsKey(row.longUrl())) {
+                existing[0]++;
+            } else if (stored == null) {
+                // deleted since the insert
+                retry.add(row);
+            } else if (row.generated() && row.salt() + 1 < MAX_SALT) {
+                retry.add(row.resalted());
+            } else {
+                conflicts.put(row, "short url " + row.shortUrl() + " is stored for another long url");
+            }
+        }
+        return retry;
+    }
+
+    private static String csv(Iterable<ImportRow> rows) {
+        StringBuilder csv = new StringBuilder(1 << 16);
+        for (ImportRow row : rows) {
+            UrlMappingCsv.append(csv, row.shortUrl());
+            csv.append(',');
+            UrlMappingCsv.append(csv, row.longUrl());
+            csv.append(',').append(row.longUrlDigest()).append(',');
+            UrlMappingCsv.append(csv, row.createdAt());
+            csv.append(',').append(row.generated() ? 't' : 'f').append('\n');
+        }
+        return csv.toString();
+    }
+
+    private void reject(Transfer transfer, BufferedWriter rejected, Result result, String source, String reason,
+                        String line) throws IOException {
+        count(transfer, result, 1);
+        synchronized (rejected) {
+            rejected.write(source + ": " + reason + ": " + line);
+            rejected.newLine();
+        }
+    }
+
+    // export
+
+    private Void exportFiles(Transfer transfer) throws Exception {
+        Files.createDirectories(transfer.path);
+        transfer.estimatedRows = jdbcTemplate.queryForObject("SELECT greatest(reltuples, 0)::bigint FROM pg_class"
+                + " WHERE oid = 't_url_mappings'::regclass", Long.class);
+        // the snapshot the workers read is valid while this transaction runs
+        transaction(true, connection -> {
+            String snapshot;
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT pg_export_snapshot()")) {
+                rs.next();
+                snapshot = rs.getString(1);
+            }
+            int parts = Math.max(1, config.getConcurrency());
+            List<Callable<Void>> workers = new ArrayList<>(parts);
+            for (int i = 0; i < parts; i++) {
+                int slotFrom = ShardMap.SLOTS * i / parts;
+                int slotTo = ShardMap.SLOTS * (i + 1) / parts;
+                Path file = transfer.path.resolve("t_url_mappings-%02d.csv".formatted(i));
+                workers.add(() -> exportSlots(transfer, snapshot, slotFrom, slotTo, file));
+            }
+            runWorkers(transfer, workers);
+            return null;
+        });
+        return null;
+    }
+
+    private Void exportSlots(Transfer transfer, String snapshot, int slotFrom, int slotTo, Path file)
+            throws Exception {
+        checkStopped(transfer);
+        transaction(true, connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+            }
+            try (OutputStream out = new LineCountingOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(file), 1 << 16),
+                    lines -> count(transfer, Result.EXPORTED, lines))) {
+                connection.unwrap(PGConnection.class).getCopyAPI().copyOut(("COPY (SELECT short_url, long_url,"
+                        + " created_at FROM t_url_mappings WHERE short_url_slot(short_url) >= %d"
+                        + " AND short_url_slot(short_url) < %d) TO STDOUT WITH (FORMAT csv)")
+                        .formatted(slotFrom, slotTo), out);
+            }
+            return null;
+        });
+        return null;
+    }
+
+    /**
+     * Runs {@code work} on a connection of its own in a transaction, {@code REPEATABLE READ} if {@code snapshot}.
+     */
+    private <T> T transaction(boolean snapshot, TransactionWork<T> work) throws Exception {
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            int isolation = connection.getTransactionIsolation();
+            // before the transaction begins
+            if (snapshot) {
+                connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            }
+            connection.setAutoCommit(false);
+            try {
+                T result = work.run(connection);
+                connection.commit();
+                return result;
+            } catch (Exception e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+                connection.setTransactionIsolation(isolation);
+            }
+        }
+    }
+
+    private static void query(Connection connection, String sql, Array parameter, RowConsumer consumer)
+            throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setArray(1, parameter);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(rs.getString("short_url"), rs.getString("long_url"));
+                }
+            }
+        }
+    }
+
+    private interface TransactionWork<T> {
+        T run(Connection connection) throws Exception;
+    }
+
+    private interface RowConsumer {
+        void accept(String shortUrl, String longUrl);
+    }
+
+    /**
+     * A line to import, with its short url generated if it had none.
+     *
+     * @param salt    the salt of a generated short url
+     * @param offset  the file offset of the line
+     * @param invalid why the line cannot be imported, {@code null} if it can
+     */
+    private record ImportRow(String shortUrl, String longUrl, long longUrlDigest, String createdAt, boolean generated,
+                             int salt, String file, long offset, String invalid) {
+
+        static ImportRow invalid(String file, long offset, String reason) {
+            return new ImportRow(null, null, 0, null, false, 0, file, offset, reason);
+        }
+
+        ImportRow resalted() {
+            return new ImportRow(UrlHashUtil.hashUrl(longUrl, salt + 1), longUrl, longUrlDigest, createdAt, true,
+                    salt + 1, file, offset, null);
+        }
+
+        String source() {
+            return file + "@" + offset;
+        }
+    }
+
+    /**
+     * Counts the line breaks written, the rows COPY exported.
+     */
+    private static final class LineCountingOutputStream extends FilterOutputStream {
+        private final LongConsumer lines;
+
+        LineCountingOutputStream(OutputStream out, LongConsumer lines) {
+            super(out);
+            this.lines = lines;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long count = 0;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    count++;
+                }
+            }
+            out.write(b, off, len);
+            lines.accept(count);
+        }
+    }
+
+    /**
+     * An import or export, and how far it got.
+     */
+    private static final class Transfer {
+        private final String operation;
+        private final Path path;
+        private final long startNanos = System.nanoTime();
+        private final LongAdder[] rows = Stream.generate(LongAdder::new).limit(Result.values().length)
+                .toArray(LongAdder[]::new);
+        private final LongAdder bytesRead = new LongAdder();
+        // written before the workers start
+        private long totalBytes;
+        private long estimatedRows;
+        private volatile boolean failed;
+        private volatile String state = "running";
+        private volatile long endNanos;
+
+        Transfer(String operation, Path path) {
+            this.operation = operation;
+            this.path = path;
+        }
+
+        void finish(String state) {
+            this.endNanos = System.nanoTime();
+            this.state = state;
+        }
+
+        long rows() {
+            return operation.equals("import")
+                    ? rows[Result.INSERTED.ordinal()].sum() + rows[Result.EXISTING.ordinal()].sum()
+                    + rows[Result.CONFLICT.ordinal()].sum() + rows[Result.INVALID.ordinal()].sum()
+                    : rows[Result.EXPORTED.ordinal()].sum();
+        }
+
+        long rowsPerSecond() {
+            long elapsedNanos = (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+            return elapsedNanos <= 0 ? 0 : rows() * 1_000_000_000L / elapsedNanos;
+        }
+
+        /**
+         * @return the share of the bytes read, or of the rows estimated by the statistics
+         */
+        double done() {
+            if (endNanos != 0 && state.equals("done")) {
+                return 1;
+            }
+            return operation.equals("import")
+                    ? totalBytes == 0 ? 0 : (double) bytesRead.sum() / totalBytes
+                    : estimatedRows == 0 ? 0 : Math.min(0.99, (double) rows() / estimatedRows);
+        }
+
+        Map<String, Object> describe() {
+            Map<String, Object> description = new LinkedHashMap<>();
+            description.put("operation", operation);
+            description.put("path", path.toString());
+            description.put("state", state);
+            description.put("done", Math.round(done() * 1000) / 10.0 + "%");
+            description.put("rows", rows());
+            description.put("rowsPerSecond", rowsPerSecond());
+            for (Result result : Result.values()) {
+                if ((result == Result.EXPORTED) != operation.equals("import")) {
+                    description.put(result.name().toLowerCase(Locale.ROOT), rows[result.ordinal()].sum());
+                }
+            }
+            description.put("elapsed", Duration.ofNanos((endNanos != 0 ? endNanos : System.nanoTime())
+                    - startNanos).toSeconds() + "s");
+            return description;
+        }
+
+        @Override
+        public String toString() {
+            return state + ", " + Math.round(done() * 1000) / 10.0 + "% done, " + rows() + " rows, "
+                    + rowsPerSecond() + " rows/s";
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package duoan.github.com.tinyurl;
+
+import lombok.experimental.UtilityClass;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The CSV files {@link UrlMappingBulkTransfer} imports and exports: {@code short_url,long_url,created_at} per line,
+ * in PostgreSQL's CSV format, where a field with a comma, a quote or a line break is quoted and its quotes doubled.
+ */
+@UtilityClass
+class UrlMappingCsv {
+
+    /**
+     * Cuts a file into {@code parts} byte ranges, which {@link LineReader} reads in parallel.
+     */
+    List<Split> split(Path file, int parts) throws IOException {
+        long size = Files.size(file);
+        int count = (int) Math.max(1, Math.min(parts, size));
+        List<Split> splits = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            splits.add(new Split(file, size * i / count, size * (i + 1) / count));
+        }
+        return splits;
+    }
+
+    /**
+     * @return the fields of a line, or {@code null} if a quoted field is not closed
+     */
+    List<String> parse(String line) {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Appends a field the way {@link #parse} reads it back, and COPY reads {@code null} as SQL {@code NULL}.
+     */
+    void append(StringBuilder line, String field) {
+        if (field == null) {
+            return;
+        }
+        boolean quote = field.isEmpty();
+        for (int i = 0; i < field.length() && !quote; i++) {
+            char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            line.append(field);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            line.append(c);
+            if (c == '"') {
+                line.append('"');
+            }
+        }
+        line.append('"');
+    }
+
+    record Split(Path file, long start, long end) {
+    }
+
+    /**
+     * Reads the lines starting within a {@link Split}: a split starting within a line skips it, and the line running
+     * over its end is read to the end, so that the splits of a file read every line exactly once.
+     */
+    static final class LineReader implements Closeable {
+        private final FileChannel channel;
+        private final InputStream in;
+        private final long end;
+        private byte[] buffer = new byte[4096];
+        private long position;
+        private long lineStart;
+
+        LineReader(Split split) throws IOException {
+            this.channel = FileChannel.open(split.file(), StandardOpenOption.READ);
+            this.end = split.end();
+            long start = Math.max(0, split.start() - 1);
+            this.in = new BufferedInputStream(Channels.newInputStream(channel.position(start)), 1 << 16);
+            this.position = start;
+            if (split.start() > 0) {
+                // the rest of the line before the split, only its line break if the split starts a line
+                nextLine();
+            }
+        }
+
+        /**
+         * @return the next line without its line break, or {@code null} past the end of the split
+         */
+        String readLine() throws IOException {
+            return position < end ? nextLine() : null;
+        }
+
+        /**
+         * @return the file offset of the line {@link #readLine} returned last
+         */
+        long lineStart() {
+            return lineStart;
+        }
+
+        /**
+         * @return the file offset of the next line
+         */
+        long position() {
+            return position;
+        }
+
+        private String nextLine() throws IOException {
+            lineStart = position;
+            int length = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                position++;
+                if (b == '\n') {
+                    break;
+                }
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, 2 * length);
+                }
+                buffer[length++] = (byte) b;
+            }
+            if (b < 0 && length == 0) {
+                return null;
+            }
+            if (length > 0 && buffer[length - 1] == '\r') {
+                length--;
+            }
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package duoan.github.com.tinyurl;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inserts many new url mappings with one <code>INSERT ... SELECT FROM unnest(...) ON CONFLICT DO NOTHING</code>, for
+ * {@link UrlMappingBatchWriter} and {@link TinyUrlService#createShortUrls}.
+ * <p>
+ * Long urls are deduplicated like {@link TinyUrlService} does for a single create: the advisory lock of every long
+ * url digest is taken first, then rows whose long url is stored already are not inserted, and get the existing short
+ * url.
+ */
+@Component
+class UrlMappingInserter {
+    private final JdbcTemplate jdbcTemplate;
+
+    UrlMappingInserter(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Has to run in a write transaction, which holds the locks until it ends.
+     *
+     * @param rows rows with distinct long urls
+     * @return the short url stored for each long url of {@code rows}, which is missing if the row's short url is
+     * taken by another long url
+     */
+    Map<String, String> insert(List<Row> rows) {
+        // In ascending order, so that batches waiting on each other's locks never deadlock
+        Long[] digests = rows.stream().map(Row::longUrlDigest).distinct().sorted().toArray(Long[]::new);
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(
+                    "SELECT pg_advisory_xact_lock(d) FROM (SELECT unnest(?) AS d ORDER BY d) digests");
+            ps.setArray(1, con.createArrayOf("bigint", digests));
+            return ps;
+        }, rs -> {
+        });
+
+        Map<String, String> storedShortUrls = new HashMap<>();
+        Set<String> longUrls = new HashSet<>();
+        rows.forEach(row -> longUrls.add(row.longUrl()));
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(
+                    "SELECT short_url, long_url FROM t_url_mappings WHERE long_url_digest = ANY(?)");
+            ps.setArray(1, con.createArrayOf("bigint", digests));
+            return ps;
+        }, rs -> {
+            String longUrl = rs.getString("long_url");
+            // digests may collide, only an equal long url is a match
+            if (longUrls.contains(longUrl)) {
+                storedShortUrls.putIfAbsent(longUrl, rs.getString("short_url"));
+            }
+        });
+        List<Row> newRows = rows.stream().filter(row -> !storedShortUrls.containsKey(row.longUrl())).toList();
+        if (newRows.isEmpty()) {
+            return storedShortUrls;
+        }
+
+        Timestamp now = Timestamp.from(Instant.now());
+        // Rows of the batch may share a short url, only the one inserted returns its long url
+        Map<String, String> inserted = new HashMap<>();
+        jdbcTemplate.query(con -> {
+            // arrays instead of a VALUES list: the same statement for every batch size, with no parameter limit
+            PreparedStatement ps = con.prepareStatement(
+                    "INSERT INTO t_url_mappings (short_url, long_url, long_url_digest, created_at)"
+                            + " SELECT *, ?::timestamp FROM unnest(?::varchar[], ?::varchar[], ?::bigint[])"
+                            + " ON CONFLICT DO NOTHING RETURNING short_url, long_url");
+            ps.setTimestamp(1, now);
+            ps.setArray(2, con.createArrayOf("varchar", newRows.stream().map(Row::shortUrl).toArray()));
+            ps.setArray(3, con.createArrayOf("varchar", newRows.stream().map(Row::longUrl).toArray()));
+            ps.setArray(4, con.createArrayOf("bigint", newRows.stream().map(Row::longUrlDigest).toArray()));
+            return ps;
+        }, rs -> {
+            inserted.put(rs.getString("short_url"), rs.getString("long_url"));
+        });
+        for (Row row : newRows) {
+            if (row.longUrl().equals(inserted.get(row.shortUrl()))) {
+                storedShortUrls.put(row.longUrl(), row.shortUrl());
+            }
+        }
+        return storedShortUrls;
+    }
+
+    record Row(String shortUrl, String longUrl, long longUrlDigest) {
+    }
+}
@@ -0,0 +1,20 @@
+package duoan.github.com.tinyurl;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The database reads on the redirect path: long urls of cache misses and the existence checks of short url
+ * generation. They run in the caller's transaction, which picks the primary or a replica and, with sharding, the shard.
+ */
+interface UrlMappingLookup {
+    Optional<String> findLongUrl(String shortUrl);
+
+    /**
+     * @return the long urls of the stored short urls among {@code shortUrls}, read in one query
+     */
+    Map<String, String> findLongUrls(Collection<String> shortUrls);
+
+    boolean exists(String shortUrl);
+}
@@ -0,0 +1,359 @@
+package duoan.github.com.tinyurl;
+
+import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Deletes url mappings older than {@code retention}, in the background and without hurting redirects.
+ * <p>
+ * In {@link TinyUrlProperties.PurgeMode#ROWS} mode, each pass walks the expired rows in {@code created_at} order
+ * with keyset pagination and deletes them in small batches, each its own transaction. The delete rate is capped by
+ * {@code max-rows-per-second}, halved whenever a batch takes longer than {@code max-batch-latency} and slowly raised
+ * again after, and deletes pause while the replica lags more than {@code max-replica-lag} behind.
+ * <p>
+ * In {@link TinyUrlProperties.PurgeMode#PARTITIONS} mode, {@code t_url_mappings} is partitioned by year of
+ * {@code created_at} (see {@code db/partitioning/partition_url_mappings.sql}), and partitions are detached and dropped
+ * once all of their rows expired, so expired rows are kept up to a year longer. Upcoming partitions are created ahead.
+ * <p>
+ * Purged mappings are replaced by negative entries in both cache levels. Only one node purges at a time, the others
+ * skip their pass while it holds the purge's advisory lock. With sharding, each pass visits the shards one after the
+ * other, each with its own lock, replica and partitions.
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(name = "tinyurl.purge.enabled", havingValue = "true")
+class UrlMappingPurger {
+    private static final String METRIC_PREFIX = "tinyurl.purge";
+    // "tinyurl" + "purge", any constant shared by all nodes
+    private static final long ADVISORY_LOCK_KEY = 0x7475726C70757267L;
+    private static final String PARTITION_PREFIX = "t_url_mappings_y";
+    // must match the LIKE pattern in purgePartitions
+    private static final String DETACHED_SUFFIX = "_detached";
+    private static final Pattern PARTITION_UPPER_BOUND = Pattern.compile("TO \\('([^']+)'\\)");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate writeTransaction;
+    private final TransactionTemplate replicaTransaction;
+    private final TinyUrlCache cache;
+    private final TinyUrlProperties.Purge config;
+    private final int shardCount;
+    private final ScheduledExecutorService executor;
+    private final RateLimiter rateLimiter;
+    private final Counter deleted;
+    private final Timer batchLatency;
+    private final MeterRegistry meterRegistry;
+    private final AtomicLong rowsPerSecond = new AtomicLong();
+    private final AtomicLong lagSeconds = new AtomicLong();
+    private final AtomicLong replicaLagMillis = new AtomicLong();
+    private final AtomicLong progressEpochSeconds = new AtomicLong();
+    private volatile boolean running = true;
+
+    UrlMappingPurger(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, TinyUrlCache cache,
+                     ObjectProvider<ShardRouter> shardRouter, TinyUrlProperties properties,
+                     MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        // read-only transactions are routed to the replica
+        this.replicaTransaction = new TransactionTemplate(transactionManager);
+        this.replicaTransaction.setReadOnly(true);
+        this.cache = cache;
+        this.config = properties.getPurge();
+        ShardRouter router = shardRouter.getIfAvailable();
+        this.shardCount = router == null ? 1 : router.shardCount();
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("url-mapping-purger").factory());
+        this.rateLimiter = RateLimiter.create(config.getMaxRowsPerSecond());
+        this.meterRegistry = meterRegistry;
+        this.deleted = Counter.builder(METRIC_PREFIX + ".deleted")
+                .description("Url mappings purged")
+                .register(meterRegistry);
+        this.batchLatency = Timer.builder(METRIC_PREFIX + ".batch")
+                .description("Time taken to delete and commit a batch")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        meterRegistry.gauge(METRIC_PREFIX + ".rows_per_second", rowsPerSecond, AtomicLong::get);
+        meterRegistry.gauge(METRIC_PREFIX + ".rate_limit", rateLimiter, RateLimiter::getRate);
+        // how far the oldest expired row is past its retention
+        meterRegistry.gauge(METRIC_PREFIX + ".lag.seconds", lagSeconds, AtomicLong::get);
+        meterRegistry.gauge(METRIC_PREFIX + ".replica_lag.seconds", replicaLagMillis, l -> l.get() / 1000.0);
+        // created_at of the last purged row
+        meterRegistry.gauge(METRIC_PREFIX + ".progress", progressEpochSeconds, AtomicLong::get);
+    }
+
+    @PostConstruct
+    void start() {
+        executor.scheduleWithFixedDelay(this::purge, config.getInterval().toMillis(), config.getInterval().toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    void purge() {
+        for (int shard = 0; shard < shardCount && running; shard++) {
+            ShardContext.run(shard, this::purgeShard);
+        }
+    }
+
+    private void purgeShard() {
+        try {
+            Boolean purged = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+                if (!advisoryLock(connection, "pg_try_advisory_lock")) {
+                    return false;
+                }
+                try {
+                    Instant cutoff = Instant.now().minus(config.getRetention());
+                    if (config.getMode() == TinyUrlProperties.PurgeMode.PARTITIONS) {
+                        List<Partition> partitions = partitions();
+                        try {
+                            createPartitionsAhead(partitions);
+                        } catch (RuntimeException e) {
+                            // expired partitions are still purged
+                            log.error("Creating the partitions ahead of shard {} failed", ShardContext.current(), e);
+                        }
+                        purgePartitions(partitions, cutoff);
+                    } else {
+                        purgeRows(cutoff);
+                    }
+                    return true;
+                } finally {
+                    advisoryLock(connection, "pg_advisory_unlock");
+                }
+            });
+            if (Boolean.FALSE.equals(purged)) {
+                log.debug("Another node is purging shard {}, skipping this pass", ShardContext.current());
+            }
+        } catch (RuntimeException e) {
+            log.error("Purge pass of shard {} failed", ShardContext.current(), e);
+        }
+    }
+
+    private void purgeRows(Instant cutoff) {
+        Timestamp cutoffTimestamp = Timestamp.from(cutoff);
+        Timestamp cursorCreatedAt = new Timestamp(0);
+        String cursorShortUrl = "";
+        long passStart = System.nanoTime();
+        long passDeleted = 0;
+        while (running) {
+            List<ExpiredRow> chunk = jdbcTemplate.query(
+                    "SELECT short_url, long_url, created_at FROM t_url_mappings WHERE created_at < ?"
+                            + " AND (created_at, short_url) > (?, ?) ORDER BY created_at, short_url LIMIT ?",
+                    (rs, rowNum) -> new ExpiredRow(rs.getString(1), rs.getString(2), rs.getTimestamp(3)),
+                    cutoffTimestamp, cursorCreatedAt, cursorShortUrl, config.getChunkSize());
+            if (chunk.isEmpty()) {
+                lagSeconds.set(0);
+                break;
+            }
+            lagSeconds.set(Duration.between(chunk.getFirst().createdAt.toInstant(), cutoff).toSeconds());
+            for (int from = 0; from < chunk.size() && running; from += config.getBatchSize()) {
+                List<ExpiredRow> batch = chunk.subList(from, Math.min(from + config.getBatchSize(), chunk.size()));
+                awaitReplica();
+                rateLimiter.acquire(batch.size());
+                passDeleted += delete(batch, cutoffTimestamp);
+                rowsPerSecond.set(passDeleted * 1_000_000_000L / Math.max(1, System.nanoTime() - passStart));
+            }
+            ExpiredRow last = chunk.getLast();
+            cursorCreatedAt = last.createdAt;
+            cursorShortUrl = last.shortUrl;
+            progressEpochSeconds.set(last.createdAt.toInstant().getEpochSecond());
+        }
+        if (passDeleted > 0) {
+            log.info("Purged {} url mappings created before {}", passDeleted, cutoff);
+        }
+    }
+
+    private int delete(List<ExpiredRow> batch, Timestamp cutoff) {
+        long start = System.nanoTime();
+        // created_at is checked again, the purge must never delete a row which is not expired
+        List<ExpiredRow> deletedRows = writeTransaction.execute(status -> jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(
+                    "DELETE FROM t_url_mappings WHERE short_url = ANY(?) AND created_at < ?"
+                            + " RETURNING short_url, long_url, created_at");
+            ps.setArray(1, con.createArrayOf("varchar", batch.stream().map(ExpiredRow::shortUrl).toArray()));
+            ps.setTimestamp(2, cutoff);
+            return ps;
+        }, (rs, rowNum) -> new ExpiredRow(rs.getString(1), rs.getString(2), rs.getTimestamp(3))));
+        long latency = System.nanoTime() - start;
+        batchLatency.record(latency, TimeUnit.NANOSECONDS);
+        adaptRate(latency);
+        deletedRows.forEach(row -> cache.invalidateUrlMapping(row.shortUrl, row.longUrl));
+        deleted.increment(deletedRows.size());
+        return deletedRows.size();
+    }
+
+    /**
+     * Additive increase, multiplicative decrease of the delete rate between 1% and 100% of its maximum.
+     */
+    private void adaptRate(long batchLatencyNanos) {
+        double max = config.getMaxRowsPerSecond();
+        double rate = rateLimiter.getRate();
+        if (batchLatencyNanos > config.getMaxBatchLatency().toNanos()) {
+            count("throttled", "batch_latency");
+            rateLimiter.setRate(Math.max(max / 100, rate / 2));
+        } else if (rate < max) {
+            rateLimiter.setRate(Math.min(max, rate + max / 20));
+        }
+    }
+
+    private void awaitReplica() {
+        while (running) {
+            Long lagMillis = replicaTransaction.execute(status -> jdbcTemplate.queryForObject(
+                    "SELECT CASE WHEN pg_is_in_recovery()"
+                            + " THEN (EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000)::BIGINT"
+                            + " ELSE 0 END",
+                    Long.class));
+            replicaLagMillis.set(lagMillis == null ? 0 : lagMillis);
+            if (lagMillis == null || lagMillis <= config.getMaxReplicaLag().toMillis()) {
+                return;
+            }
+            count("throttled", "replica_lag");
+            try {
+                Thread.sleep(Math.min(1_000, config.getMaxReplicaLag().toMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Creates the yearly partitions up to {@code partitions-ahead} years from now, from where the existing ones end:
+     * until the cutover year, the partition of everything before partitioning covers the current year.
+     */
+    private void createPartitionsAhead(List<Partition> partitions) {
+        int currentYear = Year.now(ZoneOffset.UTC).getValue();
+        int firstYear = currentYear;
+        for (Partition partition : partitions) {
+            LocalDateTime upperBound = partition.upperBound().toLocalDateTime();
+            // a bound within a year leaves the rest of it uncovered, which no yearly partition can fill
+            firstYear = Math.max(firstYear, upperBound.getYear() + (upperBound.getDayOfYear() == 1
+                    && upperBound.toLocalTime().equals(LocalTime.MIDNIGHT) ? 0 : 1));
+        }
+        for (int year = firstYear; year <= currentYear + config.getPartitionsAhead(); year++) {
+            jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + PARTITION_PREFIX + year
+                    + " PARTITION OF t_url_mappings FOR VALUES FROM ('" + year + "-01-01') TO ('" + (year + 1)
+                    + "-01-01')");
+        }
+    }
+
+    /**
+     * @return the attached partitions with an upper bound, which all but a {@code MAXVALUE} one have
+     */
+    private List<Partition> partitions() {
+        List<Partition> partitions = new ArrayList<>();
+        jdbcTemplate.query("SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i"
+                + " JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = 't_url_mappings'::regclass", rs -> {
+            Matcher upperBound = PARTITION_UPPER_BOUND.matcher(rs.getString(2));
+            if (upperBound.find()) {
+                partitions.add(new Partition(rs.getString(1), Timestamp.valueOf(upperBound.group(1))));
+            }
+        });
+        return partitions;
+    }
+
+    /**
+     * Detaches every partition whose rows all expired, then purges the detached partitions: their rows are already
+     * gone for redirects, what is left is to invalidate their cache entries before dropping them. A pass which
+     * stopped in between resumes with the partitions left detached.
+     */
+    private void purgePartitions(List<Partition> partitions, Instant cutoff) {
+        List<String> expired = partitions.stream()
+                .filter(partition -> !partition.upperBound().toInstant().isAfter(cutoff))
+                .map(Partition::name)
+                .toList();
+        for (String partition : expired) {
+            log.info("Detaching expired partition {}", partition);
+            // CONCURRENTLY does not block redirects on the parent table, it cannot run inside a transaction
+            jdbcTemplate.execute("ALTER TABLE t_url_mappings DETACH PARTITION " + partition + " CONCURRENTLY");
+            jdbcTemplate.execute("ALTER TABLE " + partition + " RENAME TO " + partition + DETACHED_SUFFIX);
+        }
+
+        // yearly partitions, and the one of everything before partitioning
+        List<String> detached = jdbcTemplate.queryForList(
+                "SELECT tablename FROM pg_tables WHERE tablename LIKE 't!_url!_mappings!_%!_detached' ESCAPE '!'"
+                        + " ORDER BY tablename", String.class);
+        for (String partition : detached) {
+            if (!running) {
+                return;
+            }
+            invalidatePartition(partition);
+            jdbcTemplate.execute("DROP TABLE " + partition);
+            log.info("Dropped expired partition {}", partition);
+        }
+    }
+
+    private void invalidatePartition(String partition) {
+        String cursorShortUrl = "";
+        long passStart = System.nanoTime();
+        long invalidated = 0;
+        while (running) {
+            List<ExpiredRow> chunk = jdbcTemplate.query("SELECT short_url, long_url, created_at FROM " + partition
+                            + " WHERE short_url > ? ORDER BY short_url LIMIT ?",
+                    (rs, rowNum) -> new ExpiredRow(rs.getString(1), rs.getString(2), rs.getTimestamp(3)),
+                    cursorShortUrl, config.getChunkSize());
+            if (chunk.isEmpty()) {
+                return;
+            }
+            // only Redis is written here, the rate limit keeps that from competing with redirects
+            rateLimiter.acquire(chunk.size());
+            chunk.forEach(row -> cache.invalidateUrlMapping(row.shortUrl, row.longUrl));
+            deleted.increment(chunk.size());
+            invalidated += chunk.size();
+            rowsPerSecond.set(invalidated * 1_000_000_000L / Math.max(1, System.nanoTime() - passStart));
+            cursorShortUrl = chunk.getLast().shortUrl;
+        }
+    }
+
+    /**
+     * Session-level, held on the connection of the pass while the purge itself uses other connections.
+     */
+    private static boolean advisoryLock(Connection connection, String function) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT " + function + "(?)")) {
+            ps.setLong(1, ADVISORY_LOCK_KEY);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    private void count(String name, String reason) {
+        meterRegistry.counter(METRIC_PREFIX + "." + name, "reason", reason).increment();
+    }
+
+    private record ExpiredRow(String shortUrl, String longUrl, Timestamp createdAt) {
+    }
+
+    private record Partition(String name, Timestamp upperBound) {
+    }
+}
@@ -1,25 +1,37 @@
 package duoan.github.com.tinyurl;
 
-import io.micrometer.core.annotation.Timed;
-import io.micrometer.observation.annotation.Observed;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
-@Observed(name = "tinyurl.observed.repository")
-@Timed(value = "tinyurl.timed.repository",
-        percentiles = {0.5, 0.95, 0.99},
-        description = "Time taken for repository")
 interface UrlMappingRepository extends JpaRepository<UrlMapping, Long> {
 
     boolean existsByShortUrl(String shortUrl);
 
     Optional<UrlMapping> findByShortUrl(String shortUrl);
 
-    Optional<UrlMapping> findByLongUrl(String longUrl);
+    List<UrlMapping> findByShortUrlIn(Collection<String> shortUrls);
+
+    /**
+     * @return the mappings of every long url with this digest, usually one at most
+     */
+    List<UrlMapping> findByLongUrlDigest(long longUrlDigest);
+
+    List<UrlMapping> findByLongUrlDigestIn(Collection<Long> longUrlDigests);
+
+    /**
+     * Serializes creates of long urls with the same digest until the current transaction ends, which the unique
+     * constraint on {@code long_url} used to do.
+     */
+    @Query(value = "SELECT 1 FROM pg_advisory_xact_lock(:longUrlDigest)", nativeQuery = true)
+    int lockLongUrlDigest(@Param("longUrlDigest") long longUrlDigest);
 
     Page<Long> findByCreatedAtBefore(Timestamp createdAt, Pageable pageable);
 }
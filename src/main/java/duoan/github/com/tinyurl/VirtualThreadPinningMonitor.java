@@ -0,0 +1,73 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the JFR {@code jdk.VirtualThreadPinned} event, emitted when a virtual thread blocks while it cannot unmount
+ * from its carrier (typically inside a {@code synchronized} block of Jedis or a JDBC driver), so such sections show
+ * up in metrics and logs instead of silently starving the carrier pool.
+ * <p>
+ * Every event is timed as {@code tinyurl.vthreads.pinned}, tagged with the first non-JDK class on the stack.
+ * The stack of the first event per second is logged.
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(name = "tinyurl.virtual-threads.pinning-monitor.enabled", havingValue = "true")
+class VirtualThreadPinningMonitor {
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final List<String> JDK_PACKAGES = List.of("java.", "javax.", "jdk.", "sun.");
+
+    private final MeterRegistry meterRegistry;
+    private final RecordingStream recordingStream;
+    private final AtomicLong lastLoggedMillis = new AtomicLong();
+
+    VirtualThreadPinningMonitor(TinyUrlProperties properties, MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.recordingStream = new RecordingStream();
+        this.recordingStream.enable(PINNED_EVENT)
+                .withThreshold(properties.getVirtualThreads().getPinningThreshold())
+                .withStackTrace();
+        this.recordingStream.onEvent(PINNED_EVENT, this::onPinned);
+        this.recordingStream.startAsync();
+    }
+
+    @PreDestroy
+    void close() {
+        recordingStream.close();
+    }
+
+    private void onPinned(RecordedEvent event) {
+        List<RecordedFrame> frames = event.getStackTrace() == null ? List.of() : event.getStackTrace().getFrames();
+        String source = frames.stream()
+                .map(frame -> frame.getMethod().getType().getName())
+                .filter(type -> JDK_PACKAGES.stream().noneMatch(type::startsWith))
+                .findFirst()
+                .orElse("jdk");
+        Timer.builder("tinyurl.vthreads.pinned")
+                .description("Time virtual threads spent pinned to their carrier while blocked")
+                .tag("source", source)
+                .register(meterRegistry)
+                .record(event.getDuration());
+
+        long now = System.currentTimeMillis();
+        long last = lastLoggedMillis.get();
+        if (now - last >= 1_000 && lastLoggedMillis.compareAndSet(last, now)) {
+            StringBuilder stack = new StringBuilder();
+            frames.stream().limit(16).forEach(frame -> stack.append("\n\tat ")
+                    .append(frame.getMethod().getType().getName()).append('.')
+                    .append(frame.getMethod().getName()).append(':').append(frame.getLineNumber()));
+            log.warn("Virtual thread pinned for {} ms in {}{}", event.getDuration().toMillis(), source, stack);
+        }
+    }
+}
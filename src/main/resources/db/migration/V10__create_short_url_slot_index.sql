@@ -0,0 +1,3 @@
+-- Lets ShardRangeMover walk the rows of a slot range in key order instead of scanning the whole table
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_t_url_mappings_short_url_slot
+    ON t_url_mappings (short_url_slot(short_url), short_url);
@@ -0,0 +1,8 @@
+-- Clicks per short url and minute, upserted by ClickCounter
+CREATE TABLE IF NOT EXISTS t_url_clicks
+(
+    short_url VARCHAR(9)                  NOT NULL,
+    bucket    TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    clicks    BIGINT                      NOT NULL,
+    CONSTRAINT pk_t_url_clicks PRIMARY KEY (short_url, bucket)
+);
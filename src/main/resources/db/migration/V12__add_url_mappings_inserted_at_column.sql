@@ -0,0 +1,7 @@
+-- When a row was inserted into this database. Unlike created_at, which the writer sets, it follows the insertion,
+-- so the catch-up scan of ShortUrlBloomFilter follows it instead.
+-- Nullable, and the default only applies to rows inserted from now on, so adding it does not rewrite the table.
+ALTER TABLE t_url_mappings
+    ADD COLUMN IF NOT EXISTS inserted_at TIMESTAMP WITHOUT TIME ZONE;
+ALTER TABLE t_url_mappings
+    ALTER COLUMN inserted_at SET DEFAULT NOW();
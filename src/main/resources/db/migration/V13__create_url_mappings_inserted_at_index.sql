@@ -0,0 +1 @@
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_t_url_mappings_inserted_at ON t_url_mappings (inserted_at);
@@ -0,0 +1,9 @@
+CREATE TABLE t_id_blocks
+(
+    name    VARCHAR(32) NOT NULL,
+    next_id BIGINT      NOT NULL,
+    CONSTRAINT pk_t_id_blocks PRIMARY KEY (name)
+);
+
+INSERT INTO t_id_blocks (name, next_id)
+VALUES ('short_url', 1);
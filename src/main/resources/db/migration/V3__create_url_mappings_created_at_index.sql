@@ -0,0 +1 @@
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_t_url_mappings_created_at ON t_url_mappings (created_at);
@@ -0,0 +1,27 @@
+-- Digest of the long url, indexed instead of the long url itself. Must match LongUrlDigest.dbKey():
+-- the leading 64 bits of the SHA-256 of the UTF-8 bytes, as a signed big-endian bigint.
+CREATE OR REPLACE FUNCTION long_url_digest(long_url TEXT) RETURNS BIGINT AS
+$$
+SELECT ('x' || encode(substring(sha256(convert_to(long_url, 'UTF8')) FROM 1 FOR 8), 'hex'))::BIT(64)::BIGINT
+$$ LANGUAGE SQL IMMUTABLE STRICT PARALLEL SAFE;
+
+-- Nullable and without default, so adding it does not rewrite the table
+ALTER TABLE t_url_mappings
+    ADD COLUMN IF NOT EXISTS long_url_digest BIGINT;
+
+-- Rows inserted without a digest, by nodes still running the previous version during a rollout, get it here
+CREATE OR REPLACE FUNCTION t_url_mappings_fill_long_url_digest() RETURNS TRIGGER AS
+$$
+BEGIN
+    NEW.long_url_digest := long_url_digest(NEW.long_url);
+    RETURN NEW;
+END
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS trg_t_url_mappings_fill_long_url_digest ON t_url_mappings;
+CREATE TRIGGER trg_t_url_mappings_fill_long_url_digest
+    BEFORE INSERT
+    ON t_url_mappings
+    FOR EACH ROW
+    WHEN (NEW.long_url_digest IS NULL)
+EXECUTE FUNCTION t_url_mappings_fill_long_url_digest();
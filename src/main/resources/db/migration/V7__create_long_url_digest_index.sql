@@ -0,0 +1,2 @@
+-- Not unique: different long urls may share a digest, the application verifies the long url on a match
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_t_url_mappings_long_url_digest ON t_url_mappings (long_url_digest);
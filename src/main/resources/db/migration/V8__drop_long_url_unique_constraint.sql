@@ -0,0 +1,4 @@
+-- Long urls are deduplicated through idx_t_url_mappings_long_url_digest and an advisory lock per digest now.
+-- Dropping the constraint also drops its B-tree over the full VARCHAR(2048) values.
+ALTER TABLE t_url_mappings
+    DROP CONSTRAINT IF EXISTS uc_t_url_mappings_long_url;
@@ -0,0 +1,28 @@
+-- Slot of a short url for sharding, must match ShardMap.slotOf(CharSequence): the 6-bit values of its first two
+-- base64url characters, unknown or missing characters count as 0.
+CREATE OR REPLACE FUNCTION short_url_slot(short_url TEXT) RETURNS INT AS
+$$
+SELECT greatest(strpos('ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_',
+                       substr(short_url, 1, 1)) - 1, 0) * 64
+           + greatest(strpos('ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_',
+                             nullif(substr(short_url, 2, 1), '')) - 1, 0)
+$$ LANGUAGE SQL IMMUTABLE STRICT PARALLEL SAFE;
+
+-- Shard catalog of the sharded profile, see ShardMap. Created on every shard, only read on shard 0.
+CREATE TABLE IF NOT EXISTS t_shard_ranges
+(
+    slot_from    INT         NOT NULL,
+    slot_to      INT         NOT NULL,
+    shard        INT         NOT NULL,
+    target_shard INT,
+    state        VARCHAR(16) NOT NULL DEFAULT 'OWNED',
+    updated_at   TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT NOW(),
+    CONSTRAINT pk_t_shard_ranges PRIMARY KEY (slot_from),
+    CONSTRAINT chk_t_shard_ranges_state CHECK (state IN ('OWNED', 'COPYING', 'SWITCHING')),
+    CONSTRAINT chk_t_shard_ranges_target CHECK ((state = 'OWNED') = (target_shard IS NULL))
+);
+
+-- Everything stored so far lives in this one database, which becomes shard 0
+INSERT INTO t_shard_ranges (slot_from, slot_to, shard)
+VALUES (0, 4096, 0)
+ON CONFLICT DO NOTHING;
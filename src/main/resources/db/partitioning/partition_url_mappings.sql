@@ -0,0 +1,63 @@
+-- Converts t_url_mappings into a table partitioned by year of created_at, for tinyurl.purge.mode=partitions.
+-- Not a Flyway migration: run it by hand with psql, once, on the primary:
+--
+--   psql -v cutover=2027-01-01 -f partition_url_mappings.sql
+--
+-- cutover must be a future January 1st. The existing table becomes the partition of everything created before it,
+-- rows from the cutover on go to yearly partitions t_url_mappings_y<year>, which the purger creates ahead and drops
+-- (after invalidating their cache entries) once all of their rows are past the retention. The old table is only
+-- dropped once the newest row in it expired, until then the purger's row mode can still run against it.
+--
+-- Caveats:
+-- * The primary key must include the partition key, it becomes (short_url, created_at). Short urls are no longer
+--   unique in the database, which is only safe with tinyurl.short-url.generator=id-range.
+-- * Lookups by short url probe every partition's index, one more per year kept.
+
+-- Step 1, online: prove that every existing row belongs before the cutover, so attaching needs no table scan.
+-- Rows inserted until the cutover still pass the check.
+ALTER TABLE t_url_mappings
+    ADD CONSTRAINT chk_t_url_mappings_before_cutover
+        CHECK (created_at IS NOT NULL AND created_at < :'cutover') NOT VALID;
+ALTER TABLE t_url_mappings
+    VALIDATE CONSTRAINT chk_t_url_mappings_before_cutover;
+-- the partitioned primary key needs a matching unique index on the partition
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS uk_t_url_mappings_short_url_created_at
+    ON t_url_mappings (short_url, created_at);
+
+-- Step 2, one short transaction: swap in the partitioned table.
+BEGIN;
+LOCK TABLE t_url_mappings IN ACCESS EXCLUSIVE MODE;
+ALTER TABLE t_url_mappings
+    RENAME TO t_url_mappings_before_cutover;
+ALTER TABLE t_url_mappings_before_cutover
+    ALTER COLUMN created_at SET NOT NULL;
+-- recreated on the partitioned table below, which clones it onto every partition
+DROP TRIGGER IF EXISTS trg_t_url_mappings_fill_long_url_digest ON t_url_mappings_before_cutover;
+
+CREATE TABLE t_url_mappings
+(
+    short_url       VARCHAR(9)    NOT NULL,
+    long_url        VARCHAR(2048) NOT NULL,
+    created_at      TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT NOW(),
+    long_url_digest BIGINT,
+    inserted_at     TIMESTAMP WITHOUT TIME ZONE DEFAULT NOW(),
+    CONSTRAINT pk_t_url_mappings_partitioned PRIMARY KEY (short_url, created_at)
+) PARTITION BY RANGE (created_at);
+CREATE INDEX idx_t_url_mappings_partitioned_created_at ON t_url_mappings (created_at);
+CREATE INDEX idx_t_url_mappings_partitioned_inserted_at ON t_url_mappings (inserted_at);
+CREATE INDEX idx_t_url_mappings_partitioned_long_url_digest ON t_url_mappings (long_url_digest);
+
+ALTER TABLE t_url_mappings
+    ATTACH PARTITION t_url_mappings_before_cutover FOR VALUES FROM (MINVALUE) TO (:'cutover');
+SELECT format('CREATE TABLE t_url_mappings_y%s PARTITION OF t_url_mappings FOR VALUES FROM (%L) TO (%L)',
+              extract(YEAR FROM :'cutover'::DATE), :'cutover'::DATE, :'cutover'::DATE + INTERVAL '1 year')
+\gexec
+
+-- see V5__add_long_url_digest_column.sql
+CREATE TRIGGER trg_t_url_mappings_fill_long_url_digest
+    BEFORE INSERT
+    ON t_url_mappings
+    FOR EACH ROW
+    WHEN (NEW.long_url_digest IS NULL)
+EXECUTE FUNCTION t_url_mappings_fill_long_url_digest();
+COMMIT;
@@ -0,0 +1,186 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControllerTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final TinyUrlProperties properties = new TinyUrlProperties();
+
+    AdmissionControllerTest() {
+        properties.getAdmission().setMaxQueueTime(Duration.ZERO);
+    }
+
+    @Test
+    void testShedsCreatesFirst() {
+        properties.getAdmission().setInitialLimit(10);
+        AdmissionController admission = new AdmissionController(properties, meterRegistry, clock::get);
+
+        for (int i = 0; i < 5; i++) {
+            admission.acquire(AdmissionController.Priority.CREATE);
+        }
+        TinyUrlOverloadedException shed = assertThrows(TinyUrlOverloadedException.class,
+                () -> admission.acquire(AdmissionController.Priority.CREATE));
+        assertEquals(Duration.ofSeconds(1), shed.getRetryAfter());
+        for (int i = 0; i < 5; i++) {
+            admission.acquire(AdmissionController.Priority.REDIRECT);
+        }
+        assertThrows(TinyUrlOverloadedException.class, () -> admission.acquire(AdmissionController.Priority.REDIRECT));
+
+        assertEquals(10, admission.inFlight());
+        assertEquals(1, rejected("create"));
+        assertEquals(1, rejected("redirect"));
+    }
+
+    @Test
+    void testRedirectsWaitForARequestToFinish() throws Exception {
+        properties.getAdmission().setMinLimit(1);
+        properties.getAdmission().setInitialLimit(1);
+        properties.getAdmission().setMaxQueueTime(Duration.ofSeconds(10));
+        AdmissionController admission = new AdmissionController(properties, meterRegistry);
+        long admitted = admission.acquire(AdmissionController.Priority.REDIRECT);
+        assertThrows(TinyUrlOverloadedException.class, () -> admission.acquire(AdmissionController.Priority.CREATE));
+
+        CompletableFuture<Long> waiting = CompletableFuture.supplyAsync(
+                () -> admission.acquire(AdmissionController.Priority.REDIRECT));
+        while (meterRegistry.get("tinyurl.admission.queued").gauge().value() == 0) {
+            Thread.onSpinWait();
+        }
+        assertFalse(waiting.isDone());
+        admission.release(admitted);
+        admission.release(waiting.get(10, TimeUnit.SECONDS));
+
+        assertEquals(0, admission.inFlight());
+        assertEquals(1, meterRegistry.get("tinyurl.admission.queue").timer().count());
+        assertEquals(0, rejected("redirect"));
+    }
+
+    @Test
+    void testShrinksTheLimitWhenTheDependencySlowsDown() {
+        AdmissionController admission = new AdmissionController(properties, meterRegistry, clock::get);
+        Simulation simulation = new Simulation(admission, new StandInDependency(20, TimeUnit.MILLISECONDS.toNanos(1)));
+
+        // 10k requests per second, well within the 20k the dependency takes
+        simulation.run(1, Duration.ofSeconds(10));
+        assertEquals(100, admission.limit());
+        assertEquals(0, simulation.rejected);
+        assertEquals(1.0, simulation.averageLatencyMillis(), 0.01);
+
+        // the dependency takes 5 ms now, 4k requests per second at most
+        simulation.dependency.latencyNanos = TimeUnit.MILLISECONDS.toNanos(5);
+        // a decrease is not stepped, it takes effect within a few windows
+        simulation.run(1, Duration.ofMillis(300));
+        assertTrue(admission.limit() < 50, "limit " + admission.limit());
+        simulation.run(1, Duration.ofSeconds(2));
+        assertTrue(admission.limit() <= 20, "limit " + admission.limit());
+
+        simulation.run(1, Duration.ofSeconds(10));
+        assertTrue(admission.limit() <= 20, "limit " + admission.limit());
+        assertTrue(simulation.maxInFlight <= 20, "in flight " + simulation.maxInFlight);
+        // the excess was shed instead of queueing in front of the dependency
+        assertEquals(5.0, simulation.averageLatencyMillis(), 0.01);
+        assertTrue(simulation.rejected > 50_000, "rejected " + simulation.rejected);
+        assertTrue(rejected("create") / 10 > rejected("redirect") / 90,
+                "creates shed first: " + rejected("create") + " of 10%, " + rejected("redirect") + " of 90%");
+    }
+
+    @Test
+    void testKeepsLatencyCloseToTheBaselineUnderOverload() {
+        AdmissionController admission = new AdmissionController(properties, meterRegistry, clock::get);
+        Simulation simulation = new Simulation(admission, new StandInDependency(20, TimeUnit.MILLISECONDS.toNanos(1)));
+        simulation.run(1, Duration.ofSeconds(10));
+
+        // twice as many requests as the dependency takes
+        simulation.run(4, Duration.ofSeconds(10));
+        simulation.run(4, Duration.ofSeconds(10));
+        assertTrue(admission.limit() < 60, "limit " + admission.limit());
+        assertTrue(simulation.averageLatencyMillis() < 2.5, "latency " + simulation.averageLatencyMillis());
+        assertTrue(simulation.completed > 150_000, "completed " + simulation.completed);
+    }
+
+    private double rejected(String priority) {
+        return meterRegistry.counter("tinyurl.admission.rejected", "priority", priority).count();
+    }
+
+    /**
+     * Serves {@code capacity} requests at once in {@code latencyNanos}, more take proportionally longer.
+     */
+    private static final class StandInDependency {
+        private final int capacity;
+        private long latencyNanos;
+
+        StandInDependency(int capacity, long latencyNanos) {
+            this.capacity = capacity;
+            this.latencyNanos = latencyNanos;
+        }
+
+        long latencyNanos(int inFlight) {
+            return latencyNanos * Math.max(capacity, inFlight) / capacity;
+        }
+    }
+
+    /**
+     * Sends requests through the limiter to the dependency in steps of 100 µs of the test clock, one create for
+     * nine redirects; {@link #run} counts what happened in the last run.
+     */
+    private final class Simulation {
+        private static final long TICK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+        private final AdmissionController admission;
+        private final StandInDependency dependency;
+        // completion and admission time of the requests in flight
+        private final PriorityQueue<long[]> inFlight = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        private long requests;
+        private long rejected;
+        private long completed;
+        private long latencyNanos;
+        private int maxInFlight;
+
+        Simulation(AdmissionController admission, StandInDependency dependency) {
+            this.admission = admission;
+            this.dependency = dependency;
+        }
+
+        void run(int requestsPerTick, Duration duration) {
+            rejected = 0;
+            completed = 0;
+            latencyNanos = 0;
+            maxInFlight = 0;
+            long end = clock.get() + duration.toNanos();
+            while (clock.get() < end) {
+                long now = clock.get() + TICK_NANOS;
+                while (!inFlight.isEmpty() && inFlight.peek()[0] <= now) {
+                    long[] request = inFlight.poll();
+                    clock.set(request[0]);
+                    admission.release(request[1]);
+                    completed++;
+                    latencyNanos += request[0] - request[1];
+                }
+                clock.set(now);
+                for (int i = 0; i < requestsPerTick; i++) {
+                    AdmissionController.Priority priority = requests++ % 10 == 0
+                            ? AdmissionController.Priority.CREATE : AdmissionController.Priority.REDIRECT;
+                    try {
+                        long admitted = admission.acquire(priority);
+                        inFlight.add(new long[]{now + dependency.latencyNanos(admission.inFlight()), admitted});
+                        maxInFlight = Math.max(maxInFlight, admission.inFlight());
+                    } catch (TinyUrlOverloadedException e) {
+                        rejected++;
+                    }
+                }
+            }
+        }
+
+        double averageLatencyMillis() {
+            return latencyNanos / 1e6 / completed;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryRedisCacheManagerTest {
+
+    @Test
+    void testShortUrlKeysArePacked() {
+        byte[] key = BinaryRedisCacheManager.key(TinyUrlCache.SHORT_URL_TO_LONG_URL, "abcdefghi");
+        assertEquals(TinyUrlCache.L2_KEY_PREFIX.length() + 1 + Long.BYTES, key.length);
+        assertEquals('s', key[TinyUrlCache.L2_KEY_PREFIX.length()]);
+        assertArrayEquals(key, BinaryRedisCacheManager.key(TinyUrlCache.SHORT_URL_TO_LONG_URL, "abcdefghi"));
+        // the length is part of the packed form
+        assertFalse(Arrays.equals(key,
+                BinaryRedisCacheManager.key(TinyUrlCache.SHORT_URL_TO_LONG_URL, "Aabcdefgh")));
+    }
+
+    @Test
+    void testUnpackableKeysKeepTheirText() {
+        byte[] key = BinaryRedisCacheManager.key(TinyUrlCache.SHORT_URL_TO_LONG_URL, "not/a/short/url");
+        assertEquals(TinyUrlCache.L2_KEY_PREFIX + "Snot/a/short/url", new String(key, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testLongUrlDigestKeysAreBinary() {
+        LongUrlDigest digest = LongUrlDigest.of("https://spring.io");
+        byte[] key = BinaryRedisCacheManager.key(TinyUrlCache.LONG_URL_TO_SHORT_URL, digest.cacheKey());
+        assertEquals(TinyUrlCache.L2_KEY_PREFIX.length() + 1 + 16, key.length);
+        assertEquals('l', key[TinyUrlCache.L2_KEY_PREFIX.length()]);
+    }
+
+    @Test
+    void testValuesAreUtf8() {
+        String longUrl = "https://example.com/ünïcode";
+        assertEquals(longUrl, BinaryRedisCacheManager.value(BinaryRedisCacheManager.value(longUrl)));
+        assertNull(BinaryRedisCacheManager.value((byte[]) null));
+    }
+}
@@ -0,0 +1,66 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheInvalidationBusTest {
+
+    @Test
+    void testCreateDropsNegativeEntriesOnOtherNodes() {
+        LocalCacheInvalidationTransport transport = new LocalCacheInvalidationTransport();
+        ConcurrentMapCacheManager l2 = new ConcurrentMapCacheManager();
+        CacheInvalidationBus busA = new CacheInvalidationBus(transport, new TinyUrlProperties(),
+                new SimpleMeterRegistry());
+        SimpleMeterRegistry meterRegistryB = new SimpleMeterRegistry();
+        CacheInvalidationBus busB = new CacheInvalidationBus(transport, new TinyUrlProperties(), meterRegistryB);
+        TinyUrlCache nodeA = new TinyUrlCache(new CaffeineCacheManager(), l2, new TinyUrlProperties(), busA, null,
+                null, new SimpleMeterRegistry());
+        TinyUrlCache nodeB = new TinyUrlCache(new CaffeineCacheManager(), l2, new TinyUrlProperties(), busB, null,
+                null, new SimpleMeterRegistry());
+
+        nodeB.dualPutUrlMapping("abcdefghi", TinyUrlCache.NULL_LONG_URL);
+        assertEquals(Optional.of(TinyUrlCache.NULL_LONG_URL), nodeB.getLongUrl("abcdefghi"));
+
+        nodeA.dualPutUrlMapping("abcdefghi", "https://spring.io", LongUrlDigest.of("https://spring.io"));
+        assertEquals(Optional.of(TinyUrlCache.NULL_LONG_URL), nodeB.getLocalLongUrl("abcdefghi"));
+        busA.flush();
+        assertEquals(Optional.empty(), nodeB.getLocalLongUrl("abcdefghi"));
+        assertEquals(Optional.of("https://spring.io"), nodeB.getLongUrl("abcdefghi"));
+        assertEquals(2, meterRegistryB.counter("tinyurl.cache.invalidation.received").count());
+
+        nodeA.invalidateUrlMapping("abcdefghi", "https://spring.io");
+        busA.flush();
+        assertEquals(Optional.of(TinyUrlCache.NULL_LONG_URL), nodeB.getLongUrl("abcdefghi"));
+    }
+
+    @Test
+    void testPublishCoalescesAndBatches() {
+        List<String> messages = new ArrayList<>();
+        LocalCacheInvalidationTransport transport = new LocalCacheInvalidationTransport();
+        transport.subscribe(messages::add);
+        TinyUrlProperties properties = new TinyUrlProperties();
+        properties.getCache().getInvalidation().setBatchSize(2);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        CacheInvalidationBus bus = new CacheInvalidationBus(transport, properties, meterRegistry);
+
+        bus.publish(TinyUrlCache.SHORT_URL_TO_LONG_URL, "abcdefghi");
+        bus.publish(TinyUrlCache.SHORT_URL_TO_LONG_URL, "abcdefghi");
+        bus.publish(TinyUrlCache.SHORT_URL_TO_LONG_URL, "bcdefghij");
+        bus.publish(TinyUrlCache.LONG_URL_TO_SHORT_URL, "abcdefghi");
+        bus.flush();
+        bus.flush();
+
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(0).endsWith("\nS2L abcdefghi\nS2L bcdefghij"));
+        assertTrue(messages.get(1).endsWith("\nL2S abcdefghi"));
+        assertEquals(1, meterRegistry.counter("tinyurl.cache.invalidation.coalesced").count());
+    }
+}
@@ -0,0 +1,125 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class CacheWarmUpTest {
+    private final TinyUrlCache cache = mock(TinyUrlCache.class);
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+    private final ZSetOperations<String, String> zSet = mock();
+    private final TinyUrlProperties properties = new TinyUrlProperties();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    CacheWarmUpTest() {
+        when(redisTemplate.opsForZSet()).thenReturn(zSet);
+        properties.getCache().getWarmUp().setEnabled(true);
+        properties.getCache().getWarmUp().setMaxKeys(3);
+    }
+
+    @Test
+    void testLoadsTheHottestKeysOfAllSnapshots() {
+        snapshots(Set.of(
+                ZSetOperations.TypedTuple.of("AAAAAAAAX", 1.0), ZSetOperations.TypedTuple.of("AAAAAAAAY", 0.5)), Set.of(
+                ZSetOperations.TypedTuple.of("AAAAAAAAY", 1.0), ZSetOperations.TypedTuple.of("AAAAAAAAZ", 0.9),
+                ZSetOperations.TypedTuple.of("AAAAAAAAW", 0.1)));
+        when(cache.warmUp(anyList())).thenReturn(2);
+
+        new CacheWarmUp(cache, redisTemplate, properties, meterRegistry).run(null);
+
+        // ranked by summed score, the top max-keys only
+        verify(cache).warmUp(List.of("AAAAAAAAY", "AAAAAAAAX", "AAAAAAAAZ"));
+        verify(zSet).reverseRangeWithScores("tinyurl:hot-keys:a", 0, 2);
+        assertEquals(2, meterRegistry.counter("tinyurl.cache.warm_up.keys", "result", "loaded").count());
+        assertEquals(1, meterRegistry.counter("tinyurl.cache.warm_up.keys", "result", "missed").count());
+        assertNotNull(meterRegistry.find("tinyurl.cache.startup.l1.hit_ratio").tag("start", "warm").gauge());
+    }
+
+    @Test
+    void testStartsColdWhenTheHotKeysCannotBeRead() {
+        when(zSet.rangeByScore(eq(CacheWarmUp.HOT_KEYS_INDEX), anyDouble(), anyDouble()))
+                .thenThrow(new IllegalStateException("redis down"));
+
+        new CacheWarmUp(cache, redisTemplate, properties, meterRegistry).run(null);
+
+        verify(cache, never()).warmUp(anyList());
+        assertNotNull(meterRegistry.find("tinyurl.cache.startup.l1.hit_ratio").tag("start", "cold").gauge());
+    }
+
+    @Test
+    void testGivesUpOnAStuckWarmUpAfterTheTimeBudget() {
+        properties.getCache().getWarmUp().setTimeBudget(Duration.ofMillis(100));
+        snapshots(Set.of(ZSetOperations.TypedTuple.of("AAAAAAAAX", 1.0)));
+        CountDownLatch stuck = new CountDownLatch(1);
+        when(cache.warmUp(anyList())).thenAnswer(invocation -> {
+            // a multi-get which does not answer to interrupts
+            while (stuck.getCount() > 0) {
+                Thread.onSpinWait();
+            }
+            return 1;
+        });
+        try {
+            assertTimeout(Duration.ofSeconds(5),
+                    () -> new CacheWarmUp(cache, redisTemplate, properties, meterRegistry).run(null));
+            assertNotNull(meterRegistry.find("tinyurl.cache.startup.l1.hit_ratio").tag("start", "cold").gauge());
+        } finally {
+            stuck.countDown();
+        }
+    }
+
+    @Test
+    void testPublishesThroughAStagingKey() {
+        when(cache.hottestShortUrls(3)).thenReturn(List.of("AAAAAAAAX", "AAAAAAAAY"));
+        CacheWarmUp warmUp = new CacheWarmUp(cache, redisTemplate, properties, meterRegistry);
+
+        warmUp.publish();
+
+        InOrder inOrder = inOrder(zSet, redisTemplate);
+        inOrder.verify(zSet).add(startsWith("tinyurl:hot-keys-staging:"), eq(Set.of(
+                ZSetOperations.TypedTuple.of("AAAAAAAAX", 1.0), ZSetOperations.TypedTuple.of("AAAAAAAAY", 0.5))));
+        inOrder.verify(redisTemplate).rename(startsWith("tinyurl:hot-keys-staging:"),
+                startsWith(CacheWarmUp.HOT_KEYS_PREFIX));
+        inOrder.verify(redisTemplate).expire(startsWith(CacheWarmUp.HOT_KEYS_PREFIX), eq(Duration.ofMinutes(3)));
+        inOrder.verify(zSet).add(eq(CacheWarmUp.HOT_KEYS_INDEX), startsWith(CacheWarmUp.HOT_KEYS_PREFIX),
+                anyDouble());
+        // the snapshots expired by now
+        inOrder.verify(zSet).removeRangeByScore(eq(CacheWarmUp.HOT_KEYS_INDEX), eq(Double.NEGATIVE_INFINITY),
+                anyDouble());
+        inOrder.verify(redisTemplate).expire(CacheWarmUp.HOT_KEYS_INDEX, Duration.ofMinutes(3));
+    }
+
+    @Test
+    void testPublishesNothingWhenDisabled() {
+        properties.getCache().getWarmUp().setEnabled(false);
+
+        new CacheWarmUp(cache, redisTemplate, properties, meterRegistry).publish();
+
+        verifyNoInteractions(cache, zSet);
+    }
+
+    /**
+     * Lists snapshots {@code a}, {@code b}, ... with the given hot keys.
+     */
+    @SafeVarargs
+    private void snapshots(Set<ZSetOperations.TypedTuple<String>>... hotKeys) {
+        Set<String> snapshots = new LinkedHashSet<>();
+        for (int i = 0; i < hotKeys.length; i++) {
+            String snapshot = CacheWarmUp.HOT_KEYS_PREFIX + (char) ('a' + i);
+            snapshots.add(snapshot);
+            when(zSet.reverseRangeWithScores(snapshot, 0, 2)).thenReturn(hotKeys[i]);
+        }
+        when(zSet.rangeByScore(eq(CacheWarmUp.HOT_KEYS_INDEX), anyDouble(), anyDouble())).thenReturn(snapshots);
+    }
+}
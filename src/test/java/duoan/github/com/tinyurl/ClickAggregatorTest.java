@@ -0,0 +1,99 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClickAggregatorTest {
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Test
+    void testCountsPerShortUrlAndMinute() {
+        AtomicLong clock = new AtomicLong(10 * MINUTE);
+        ClickAggregator aggregator = new ClickAggregator(100, clock::get);
+        aggregator.record("AAAAAAAAB");
+        aggregator.record("AAAAAAAAB");
+        aggregator.record("AAAAAAAAC");
+        clock.addAndGet(MINUTE);
+        // counted into the previous minute until it rolls over
+        aggregator.record("AAAAAAAAC");
+        aggregator.rollOver();
+        aggregator.record("AAAAAAAAB");
+
+        Map<ClickAggregator.Bucket, Long> clicks = aggregator.drain();
+        assertEquals(Map.of(
+                new ClickAggregator.Bucket("AAAAAAAAB", 10), 2L,
+                new ClickAggregator.Bucket("AAAAAAAAC", 10), 2L,
+                new ClickAggregator.Bucket("AAAAAAAAB", 11), 1L), clicks);
+        assertTrue(aggregator.drain().isEmpty());
+    }
+
+    @Test
+    void testCutsOffLinksBeyondTheLimit() {
+        ClickAggregator aggregator = new ClickAggregator(2, () -> 0);
+        aggregator.record("AAAAAAAAB");
+        aggregator.record("AAAAAAAAC");
+        aggregator.record("AAAAAAAAD");
+        // links tracked already keep counting
+        aggregator.record("AAAAAAAAB");
+        assertEquals(2, aggregator.trackedLinks());
+        assertEquals(1, aggregator.takeCutOff());
+        assertEquals(0, aggregator.takeCutOff());
+
+        assertEquals(Map.of(
+                new ClickAggregator.Bucket("AAAAAAAAB", 0), 2L,
+                new ClickAggregator.Bucket("AAAAAAAAC", 0), 1L), aggregator.drain());
+        // a new window tracks new links again
+        aggregator.record("AAAAAAAAD");
+        assertEquals(1, aggregator.trackedLinks());
+    }
+
+    @Test
+    void testEvictsTheSmallestLinkForALateHeavyHitter() {
+        ClickAggregator aggregator = new ClickAggregator(10, () -> 0);
+        for (int i = 0; i < 10; i++) {
+            aggregator.record("AAAAAAAA" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            aggregator.record("BBBBBBBBB");
+        }
+
+        assertEquals(10, aggregator.trackedLinks());
+        // its first click, and the one of the link it replaced
+        assertEquals(2, aggregator.takeCutOff());
+        Map<ClickAggregator.Bucket, Long> clicks = aggregator.drain();
+        assertEquals(99L, clicks.get(new ClickAggregator.Bucket("BBBBBBBBB", 0)));
+        assertEquals(108L, clicks.values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Test
+    void testConcurrentClicksAreNotLost() throws Exception {
+        ClickAggregator aggregator = new ClickAggregator(1_000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        long[] drained = {0};
+        try {
+            for (int t = 0; t < 8; t++) {
+                executor.submit(() -> {
+                    for (int i = 0; i < 100_000; i++) {
+                        aggregator.record("AAAAAAA" + (char) ('A' + i % 20));
+                    }
+                });
+            }
+            executor.shutdown();
+            // drains while clicks are being recorded
+            while (!executor.awaitTermination(50, TimeUnit.MILLISECONDS)) {
+                aggregator.drain().values().forEach(c -> drained[0] += c);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        aggregator.drain().values().forEach(c -> drained[0] += c);
+        assertEquals(800_000, drained[0]);
+    }
+}
@@ -0,0 +1,102 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactUrlIndexTest {
+    private static final Duration EXPIRY = Duration.ofHours(1);
+
+    @Test
+    void testPutGetRemove() {
+        CompactUrlIndex index = new CompactUrlIndex(4, 1 << 16, 1_000, EXPIRY);
+        long key = ShortUrlCodec.pack("abcdefghi");
+        assertNull(index.get(key));
+        assertTrue(index.put(key, "spring.io/projects/spring-boot"));
+        assertEquals("spring.io/projects/spring-boot", index.get(key));
+        // unicode survives the UTF-8 round trip
+        assertTrue(index.put(key, "例子.测试/路径"));
+        assertEquals("例子.测试/路径", index.get(key));
+        assertEquals(1, index.size());
+
+        index.remove(key);
+        assertNull(index.get(key));
+        assertEquals(0, index.size());
+        assertNull(index.get(ShortUrlCodec.pack("bad$code")));
+    }
+
+    @Test
+    void testPackKeepsShortCodesDistinct() {
+        assertNotEquals(ShortUrlCodec.pack("A"), ShortUrlCodec.pack("AA"));
+        assertTrue(ShortUrlCodec.pack("A") > 0);
+        assertEquals(-1, ShortUrlCodec.pack(""));
+        assertEquals(-1, ShortUrlCodec.pack("abcdefghij"));
+    }
+
+    @Test
+    void testEvictsOldestWhenArenaIsFull() {
+        // ~37 records of 109 bytes fit a 4 KiB arena
+        CompactUrlIndex index = new CompactUrlIndex(1, 4_096, 10_000, EXPIRY);
+        String longUrl = "x".repeat(88);
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue(index.put(ShortUrlCodec.pack(ShortUrlCodec.encode(i)), longUrl + i % 10));
+            assertTrue(index.arenaBytesUsed() <= index.arenaBytesCapacity());
+        }
+        assertTrue(index.size() > 30 && index.size() <= 41, "size: " + index.size());
+        // the newest entries survived, the oldest ones were evicted
+        assertEquals(longUrl + 9, index.get(ShortUrlCodec.pack(ShortUrlCodec.encode(999))));
+        assertNull(index.get(ShortUrlCodec.pack(ShortUrlCodec.encode(0))));
+    }
+
+    @Test
+    void testEvictsOldestWhenIndexIsFull() {
+        CompactUrlIndex index = new CompactUrlIndex(1, 1 << 20, 100, EXPIRY);
+        for (int i = 0; i < 1_000; i++) {
+            index.put(ShortUrlCodec.pack(ShortUrlCodec.encode(i)), "spring.io/" + i);
+        }
+        assertEquals(100, index.size());
+        assertEquals("spring.io/999", index.get(ShortUrlCodec.pack(ShortUrlCodec.encode(999))));
+    }
+
+    @Test
+    void testHotEntriesGetASecondChance() {
+        CompactUrlIndex index = new CompactUrlIndex(1, 1 << 20, 100, EXPIRY);
+        long hot = ShortUrlCodec.pack("hot");
+        index.put(hot, "spring.io/hot");
+        for (int i = 0; i < 10_000; i++) {
+            index.put(ShortUrlCodec.pack(ShortUrlCodec.encode(i)), "spring.io/" + i);
+            assertEquals("spring.io/hot", index.get(hot));
+        }
+        assertEquals(100, index.size());
+    }
+
+    @Test
+    void testExpiresEntriesAfterWriteEvenIfRead() {
+        AtomicLong now = new AtomicLong();
+        CompactUrlIndex index = new CompactUrlIndex(1, 1 << 20, 100, Duration.ofNanos(100), now::get);
+        long key = ShortUrlCodec.pack("abc");
+        index.put(key, "spring.io/old");
+        // kept alive by second chances, but not beyond its expiry
+        for (int i = 0; i < 99; i++) {
+            index.put(ShortUrlCodec.pack(ShortUrlCodec.encode(i)), "spring.io/" + i);
+            now.incrementAndGet();
+            assertEquals("spring.io/old", index.get(key));
+        }
+
+        now.incrementAndGet();
+        assertNull(index.get(key));
+        index.put(key, "spring.io/new");
+        now.addAndGet(99);
+        assertEquals("spring.io/new", index.get(key));
+    }
+
+    @Test
+    void testRejectsRecordsLargerThanASegment() {
+        CompactUrlIndex index = new CompactUrlIndex(1, 64, 10, EXPIRY);
+        assertFalse(index.put(ShortUrlCodec.pack("abc"), "x".repeat(100)));
+        assertNull(index.get(ShortUrlCodec.pack("abc")));
+    }
+}
@@ -0,0 +1,58 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ConnectionBulkheadDataSourceTest {
+    private final DataSource pool = mock(DataSource.class);
+    private final ConnectionBulkheadDataSource bulkhead = new ConnectionBulkheadDataSource(pool, 2,
+            Duration.ofMillis(50));
+
+    @Test
+    void testHoldsAPermitUntilTheConnectionIsClosed() throws SQLException {
+        Connection connection = mock(Connection.class);
+        when(pool.getConnection()).thenReturn(connection);
+
+        Connection borrowed = bulkhead.getConnection();
+        assertEquals(1, bulkhead.availablePermits());
+        borrowed.close();
+        // closed twice, released once
+        borrowed.close();
+
+        assertEquals(2, bulkhead.availablePermits());
+        verify(connection, times(2)).close();
+    }
+
+    @Test
+    void testReleasesThePermitWhenThePoolFails() throws SQLException {
+        SQLException failure = new SQLException("pool exhausted");
+        when(pool.getConnection()).thenThrow(failure);
+        when(pool.getConnection("user", "password")).thenThrow(new IllegalStateException("pool closed"));
+
+        assertSame(failure, assertThrows(SQLException.class, bulkhead::getConnection));
+        assertThrows(IllegalStateException.class, () -> bulkhead.getConnection("user", "password"));
+
+        assertEquals(2, bulkhead.availablePermits());
+    }
+
+    @Test
+    void testTimesOutCallersBeyondThePoolSize() throws SQLException {
+        when(pool.getConnection()).thenAnswer(invocation -> mock(Connection.class));
+        Connection first = bulkhead.getConnection();
+        bulkhead.getConnection();
+
+        assertThrows(SQLTransientConnectionException.class, bulkhead::getConnection);
+
+        first.close();
+        assertNotNull(bulkhead.getConnection());
+        assertEquals(0, bulkhead.availablePermits());
+    }
+}
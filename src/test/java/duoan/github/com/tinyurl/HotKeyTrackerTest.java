@@ -0,0 +1,78 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotKeyTrackerTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final TinyUrlProperties properties = new TinyUrlProperties();
+
+    @Test
+    void testFindsTheHeavyHittersOfAZipfianStream() {
+        properties.getCache().getHeavyHitters().setTopK(100);
+        HotKeyTracker tracker = new HotKeyTracker(properties, meterRegistry, clock::get);
+        // rank r read with a probability proportional to 1 / r
+        int keys = 100_000;
+        double[] cdf = new double[keys];
+        double sum = 0;
+        for (int rank = 0; rank < keys; rank++) {
+            sum += 1.0 / (rank + 1);
+            cdf[rank] = sum;
+        }
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 1; i <= 500_000; i++) {
+            int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            tracker.record(shortUrl(Math.min(rank < 0 ? -rank - 1 : rank, keys - 1)));
+            if (i % 50_000 == 0) {
+                assertTrue(meterRegistry.get("tinyurl.cache.heavy_hitters.candidates").gauge().value() <= 200);
+                tracker.update();
+            }
+        }
+
+        List<String> top = tracker.hotKeys().stream().map(HotKeyTracker.HotKey::shortUrl).toList();
+        assertEquals(100, top.size());
+        assertEquals(IntStream.range(0, 10).mapToObj(HotKeyTrackerTest::shortUrl).toList(), top.subList(0, 10));
+        // around rank 100 reads differ by less than their sampling noise, so only the clear cases are checked
+        IntStream.range(0, 50).mapToObj(HotKeyTrackerTest::shortUrl)
+                .forEach(shortUrl -> assertTrue(top.contains(shortUrl), shortUrl));
+        top.forEach(shortUrl -> assertTrue(Integer.parseInt(shortUrl) < 200, shortUrl));
+        int reads = tracker.estimate(shortUrl(0));
+        assertEquals(500_000 / sum, reads, reads * 0.05);
+    }
+
+    @Test
+    void testForgetsShortUrlsNoLongerRead() {
+        properties.getCache().getHeavyHitters().setTopK(1);
+        HotKeyTracker tracker = new HotKeyTracker(properties, meterRegistry, clock::get);
+        for (int i = 0; i < 1_000; i++) {
+            tracker.record("viral0000");
+        }
+        tracker.update();
+        assertEquals(List.of(new HotKeyTracker.HotKey("viral0000", 1_000)), tracker.hotKeys());
+
+        int decays = 0;
+        while (!tracker.hotKeys().getFirst().shortUrl().equals("steady000")) {
+            assertTrue(++decays <= 5, "still " + tracker.hotKeys());
+            clock.addAndGet(Duration.ofSeconds(10).toNanos());
+            for (int i = 0; i < 50; i++) {
+                tracker.record("steady000");
+            }
+            tracker.update();
+        }
+        assertTrue(tracker.estimate("viral0000") < tracker.estimate("steady000"));
+    }
+
+    private static String shortUrl(int rank) {
+        return "%09d".formatted(rank);
+    }
+}
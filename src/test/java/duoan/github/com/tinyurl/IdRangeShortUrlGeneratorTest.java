@@ -0,0 +1,47 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdRangeShortUrlGeneratorTest {
+
+    @Test
+    void testGenerateIsUniqueAcrossBlocks() {
+        IdRangeShortUrlGenerator generator = new IdRangeShortUrlGenerator(new LocalIdBlockLeaser(), 10);
+        Set<String> shortUrls = new HashSet<>();
+        for (int i = 0; i < 1_000; i++) {
+            String shortUrl = generator.generate("https://spring.io/projects/spring-boot");
+            assertEquals(9, shortUrl.length());
+            assertTrue(shortUrls.add(shortUrl));
+        }
+    }
+
+    @Test
+    void testGenerateIntoSlot() {
+        IdRangeShortUrlGenerator generator = new IdRangeShortUrlGenerator(new LocalIdBlockLeaser(), 10);
+        LongUrlDigest digest = LongUrlDigest.of("https://spring.io/projects/spring-boot");
+        int slot = ShardMap.slotOf(digest);
+        Set<String> shortUrls = new HashSet<>();
+        for (int i = 0; i < 1_000; i++) {
+            String shortUrl = generator.generate("https://spring.io/projects/spring-boot", slot);
+            assertEquals(9, shortUrl.length());
+            assertEquals(slot, ShardMap.slotOf(shortUrl));
+            assertTrue(shortUrls.add(shortUrl));
+        }
+    }
+
+    @Test
+    void testCodecRoundTrip() {
+        long bits = ShortUrlCodec.scramble(42);
+        assertEquals(bits, ShortUrlCodec.decode(ShortUrlCodec.encode(bits)));
+        assertEquals(-1, ShortUrlCodec.decode("short"));
+        assertEquals(-1, ShortUrlCodec.decode("abc$efghi"));
+        // same layout as the hash based short urls
+        String hashed = UrlHashUtil.hashUrl("https://spring.io/projects/spring-boot", 0);
+        assertEquals(hashed, ShortUrlCodec.encode(ShortUrlCodec.decode(hashed)));
+    }
+}
@@ -0,0 +1,25 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongUrlDigestTest {
+
+    @Test
+    void testDigestIsLeadingBitsOfSha256() {
+        // SHA-256("abc") = ba7816bf8f01cfea414140de5dae2223 b00361a396177a9cb410ff61f20015ad
+        LongUrlDigest digest = LongUrlDigest.of("abc");
+        assertEquals(0xba7816bf8f01cfeaL, digest.dbKey());
+        assertEquals(0x414140de5dae2223L, digest.low());
+        assertEquals("ungWv48Bz-pBQUDeXa4iIw", digest.cacheKey());
+    }
+
+    @Test
+    void testDigestIsStable() {
+        String url = "https://spring.io/projects/spring-boot";
+        assertEquals(LongUrlDigest.of(url), LongUrlDigest.of(url));
+        assertNotEquals(LongUrlDigest.of(url), LongUrlDigest.of(url + "/"));
+        assertEquals(22, LongUrlDigest.of(url).cacheKey().length());
+    }
+}
@@ -0,0 +1,47 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapBloomFilterTest {
+
+    @Test
+    void testMightContain() {
+        OffHeapBloomFilter filter = OffHeapBloomFilter.create(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.put(ShortUrlCodec.encode(i));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain(ShortUrlCodec.encode(i)));
+        }
+        int falsePositives = 0;
+        for (int i = 10_000; i < 20_000; i++) {
+            if (filter.mightContain(ShortUrlCodec.encode(i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 200, "false positives: " + falsePositives);
+        assertEquals(0.01, filter.expectedFpp(), 0.005);
+    }
+
+    @Test
+    void testSnapshotRoundTrip(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("filter.bin");
+        OffHeapBloomFilter filter = OffHeapBloomFilter.create(1_000, 0.01);
+        filter.put("abcdefghi");
+        filter.writeTo(path, 42L);
+
+        OffHeapBloomFilter.Snapshot snapshot = OffHeapBloomFilter.readFrom(path, 1_000, 0.01);
+        assertNotNull(snapshot);
+        assertEquals(42L, snapshot.syncedUntilEpochMillis());
+        assertTrue(snapshot.filter().mightContain("abcdefghi"));
+        assertEquals(filter.bitsSet(), snapshot.filter().bitsSet());
+        // dimensions changed, the snapshot is unusable
+        assertNull(OffHeapBloomFilter.readFrom(path, 2_000, 0.01));
+    }
+}
@@ -0,0 +1,117 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.r2dbc.spi.Readable;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.redisson.api.RScript;
+import org.redisson.api.RScriptReactive;
+import org.redisson.api.RedissonReactiveClient;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.r2dbc.core.RowsFetchSpec;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ReactiveTinyUrlServiceTest {
+    private static final String SHORT_URL = "abc";
+    private static final String LONG_URL = "https://example.com/reactive";
+
+    private final TinyUrlCache cache = mock(TinyUrlCache.class);
+    private final RScriptReactive script = mock(RScriptReactive.class);
+    private final DatabaseClient databaseClient = mock(DatabaseClient.class, RETURNS_DEEP_STUBS);
+    private final RowsFetchSpec<String> rows = mock();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    /**
+     * Values of the L2 writes, the ttl of each left out.
+     */
+    private final List<List<Object>> l2Writes = new ArrayList<>();
+    private final ReactiveTinyUrlService service;
+    private Mono<byte[]> l2Read = Mono.empty();
+
+    ReactiveTinyUrlServiceTest() {
+        when(cache.getLocalLongUrl(anyString())).thenReturn(Optional.empty());
+        when(script.eval(any(RScript.Mode.class), anyString(), any(RScript.ReturnType.class), anyList(),
+                any(Object[].class))).thenAnswer(invocation -> {
+            if (invocation.getArgument(0) == RScript.Mode.READ_ONLY) {
+                return l2Read;
+            }
+            Object[] values = Arrays.copyOfRange(invocation.getArguments(), 4, invocation.getArguments().length);
+            l2Writes.add(Arrays.stream(values, 0, values.length - 1).map(value -> (Object) BinaryRedisCacheManager
+                    .value((byte[]) value)).toList());
+            return Mono.empty();
+        });
+        RedissonReactiveClient redisson = mock(RedissonReactiveClient.class);
+        when(redisson.getScript()).thenReturn(script);
+        when(databaseClient.sql(anyString()).bind(0, SHORT_URL)
+                .map(ArgumentMatchers.<Function<? super Readable, String>>any())).thenReturn(rows);
+        StaticListableBeanFactory beans = new StaticListableBeanFactory();
+        service = new ReactiveTinyUrlService(cache, redisson, databaseClient,
+                beans.getBeanProvider(ShortUrlBloomFilter.class), beans.getBeanProvider(ShardRouter.class),
+                new TinyUrlProperties(), meterRegistry);
+    }
+
+    @Test
+    void testRefusesToStartSharded() {
+        StaticListableBeanFactory beans = new StaticListableBeanFactory();
+        beans.addBean("shardRouter", mock(ShardRouter.class));
+
+        assertThrows(IllegalStateException.class, () -> new ReactiveTinyUrlService(cache,
+                mock(RedissonReactiveClient.class), databaseClient, beans.getBeanProvider(ShortUrlBloomFilter.class),
+                beans.getBeanProvider(ShardRouter.class), new TinyUrlProperties(), meterRegistry));
+    }
+
+    @Test
+    void testServesL2HitsWithoutTheDatabase() {
+        l2Read = Mono.just(BinaryRedisCacheManager.value(LONG_URL));
+
+        assertEquals(LONG_URL, service.getLongUrl(SHORT_URL).block());
+
+        verify(cache).putLocalUrlMapping(SHORT_URL, LONG_URL);
+        verify(cache).recordRemoteLongUrlLookup(eq(true), anyLong());
+        verifyNoInteractions(rows);
+        assertEquals(1, meterRegistry.counter("tinyurl.service.get.cache.hits").count());
+    }
+
+    @Test
+    void testCachesDatabaseHitsInBothLevels() {
+        when(rows.one()).thenReturn(Mono.just(LONG_URL));
+
+        assertEquals(LONG_URL, service.getLongUrl(SHORT_URL).block());
+
+        verify(cache).putLocalUrlMapping(SHORT_URL, LONG_URL, LongUrlDigest.of(LONG_URL));
+        assertEquals(List.of(List.of(LONG_URL, SHORT_URL)), l2Writes);
+        assertEquals(1, meterRegistry.counter("tinyurl.service.get.db.hits").count());
+    }
+
+    @Test
+    void testCachesDatabaseMissesAsNull() {
+        when(rows.one()).thenReturn(Mono.empty());
+
+        assertThrows(TinyUrlNotFoundException.class, () -> service.getLongUrl(SHORT_URL).block());
+
+        verify(cache).putLocalUrlMapping(SHORT_URL, TinyUrlCache.NULL_LONG_URL);
+        assertEquals(List.of(List.of(TinyUrlCache.NULL_LONG_URL)), l2Writes);
+        assertEquals(1, meterRegistry.counter("tinyurl.service.get.not_found").count());
+    }
+
+    @Test
+    void testFallsBackToTheDatabaseWhenRedisFails() {
+        l2Read = Mono.error(new IllegalStateException("redis down"));
+        when(rows.one()).thenReturn(Mono.just(LONG_URL));
+
+        assertEquals(LONG_URL, service.getLongUrl(SHORT_URL).block());
+
+        assertEquals(1, meterRegistry.counter("tinyurl.service.get.cache.misses").count());
+        assertEquals(1, meterRegistry.counter("tinyurl.service.get.db.hits").count());
+    }
+}
@@ -0,0 +1,136 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicaPoolTest {
+    private final List<String> served = new ArrayList<>();
+    private final Map<String, DataSource> replicas = new LinkedHashMap<>();
+    private final Map<DataSource, Long> lagMillis = new HashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    ReplicaPoolTest() {
+        replicas.put("replica-0", fakeDataSource("replica-0"));
+        replicas.put("replica-1", fakeDataSource("replica-1"));
+    }
+
+    private ReplicaPool replicaPool() {
+        return new ReplicaPool(fakeDataSource("primary"), replicas, new TinyUrlProperties(), meterRegistry,
+                dataSource -> lagMillis.getOrDefault(dataSource, 0L), clock::get);
+    }
+
+    @Test
+    void testPicksTheReplicaWithFewestOutstandingConnections() throws Exception {
+        ReplicaPool pool = replicaPool();
+
+        try (Connection first = pool.getConnection()) {
+            for (int i = 0; i < 10; i++) {
+                pool.getConnection().close();
+            }
+        }
+        assertEquals(11, served.size());
+        // while one replica held the first connection, every other one went to the other replica
+        assertTrue(served.subList(1, 11).stream().allMatch(name -> !name.equals(served.getFirst())));
+    }
+
+    @Test
+    void testWeighsOutstandingConnectionsByLatency() throws Exception {
+        ReplicaPool pool = replicaPool();
+        Connection slow = pool.getConnection();
+        String slowReplica = served.getFirst();
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        slow.close();
+        served.clear();
+
+        // the fast replica takes connections until it has as many outstanding as its hold times make up for
+        List<Connection> held = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            held.add(pool.getConnection());
+        }
+        assertFalse(served.contains(slowReplica));
+        for (Connection connection : held) {
+            connection.close();
+        }
+        assertEquals(1.0, meterRegistry.timer("tinyurl.datasource.replica.latency", "replica", slowReplica)
+                .totalTime(TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testEjectsLaggingReplicasAndFallsBackToThePrimary() throws Exception {
+        ReplicaPool pool = replicaPool();
+        lagMillis.put(replicas.get("replica-0"), 10_000L);
+        pool.checkLag();
+        for (int i = 0; i < 5; i++) {
+            pool.getConnection().close();
+        }
+        assertEquals(List.of("replica-1", "replica-1", "replica-1", "replica-1", "replica-1"), served);
+        assertEquals(10.0, meterRegistry.get("tinyurl.datasource.replica.lag").tag("replica", "replica-0")
+                .gauge().value());
+
+        lagMillis.put(replicas.get("replica-1"), 10_000L);
+        pool.checkLag();
+        served.clear();
+        pool.getConnection().close();
+        assertEquals(List.of("primary"), served);
+        assertEquals(1, meterRegistry.counter("tinyurl.datasource.replica.primary_fallbacks").count());
+
+        lagMillis.clear();
+        pool.checkLag();
+        served.clear();
+        pool.getConnection().close();
+        assertTrue(served.getFirst().startsWith("replica-"));
+    }
+
+    @Test
+    void testPassesCredentialsOnToTheReplicaOrThePrimary() throws Exception {
+        ReplicaPool pool = replicaPool();
+        pool.getConnection("reader", "secret").close();
+        assertTrue(served.getFirst().matches("replica-[01] as reader"), served::toString);
+
+        lagMillis.put(replicas.get("replica-0"), 10_000L);
+        lagMillis.put(replicas.get("replica-1"), 10_000L);
+        pool.checkLag();
+        served.clear();
+        pool.getConnection("reader", "secret").close();
+        assertEquals(List.of("primary as reader"), served);
+        assertEquals(0, meterRegistry.get("tinyurl.datasource.replica.outstanding").tag("replica", "replica-0")
+                .gauge().value() + meterRegistry.get("tinyurl.datasource.replica.outstanding")
+                .tag("replica", "replica-1").gauge().value());
+    }
+
+    private DataSource fakeDataSource(String name) {
+        return new AbstractDataSource() {
+            @Override
+            public Connection getConnection() {
+                served.add(name);
+                return fakeConnection();
+            }
+
+            @Override
+            public Connection getConnection(String username, String password) {
+                served.add(name + " as " + username);
+                return fakeConnection();
+            }
+        };
+    }
+
+    private static Connection fakeConnection() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> null);
+    }
+}
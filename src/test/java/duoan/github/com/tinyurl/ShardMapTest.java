@@ -0,0 +1,62 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardMapTest {
+
+    @Test
+    void testSlotOfShortUrl() {
+        assertEquals(0, ShardMap.slotOf("AAAAAAAAA"));
+        assertEquals(ShardMap.SLOTS - 1, ShardMap.slotOf("__AAAAAAA"));
+        assertEquals(1 << 6 | 2, ShardMap.slotOf("BCxxxxxxx"));
+        // leading bits of the 54-bit code
+        long bits = ShortUrlCodec.scramble(42);
+        assertEquals(bits >>> ShardMap.CODE_BITS, ShardMap.slotOf(ShortUrlCodec.encode(bits)));
+        // short and malformed short urls still get a slot
+        assertEquals(1 << 6, ShardMap.slotOf("B"));
+        assertEquals(0, ShardMap.slotOf(""));
+        assertEquals(2, ShardMap.slotOf("$C"));
+    }
+
+    @Test
+    void testPlaceInSlot() {
+        String hashed = UrlHashUtil.hashUrl("https://spring.io/projects/spring-boot", 0);
+        String placed = ShardMap.placeInSlot(hashed, 1234);
+        assertEquals(1234, ShardMap.slotOf(placed));
+        assertEquals(hashed.substring(2), placed.substring(2));
+    }
+
+    @Test
+    void testRoute() {
+        ShardMap shardMap = ShardMap.of(List.of(
+                new ShardMap.Range(2048, 3072, 0, 1, ShardMap.State.SWITCHING),
+                new ShardMap.Range(0, 1024, 0, null, ShardMap.State.OWNED),
+                new ShardMap.Range(1024, 2048, 0, 2, ShardMap.State.COPYING),
+                new ShardMap.Range(3072, 4096, 1, null, ShardMap.State.OWNED)), 3);
+        assertEquals(new ShardMap.Route(0, -1), shardMap.route(0));
+        // copying ranges are still served by the source
+        assertEquals(new ShardMap.Route(0, -1), shardMap.route(1024));
+        // switching ranges are written to the target and read from the source on a miss
+        assertEquals(new ShardMap.Route(1, 0), shardMap.route(3071));
+        assertEquals(new ShardMap.Route(1, -1), shardMap.route(4095));
+        assertEquals(0, shardMap.ranges().getFirst().slotFrom());
+    }
+
+    @Test
+    void testRejectsInvalidCatalogs() {
+        // gap
+        assertThrows(IllegalArgumentException.class, () -> ShardMap.of(List.of(
+                new ShardMap.Range(0, 1024, 0, null, ShardMap.State.OWNED),
+                new ShardMap.Range(2048, 4096, 0, null, ShardMap.State.OWNED)), 1));
+        // short of the last slot
+        assertThrows(IllegalArgumentException.class, () -> ShardMap.of(List.of(
+                new ShardMap.Range(0, 4095, 0, null, ShardMap.State.OWNED)), 1));
+        // unknown shard
+        assertThrows(IllegalArgumentException.class, () -> ShardMap.of(List.of(
+                new ShardMap.Range(0, 4096, 0, 2, ShardMap.State.COPYING)), 2));
+    }
+}
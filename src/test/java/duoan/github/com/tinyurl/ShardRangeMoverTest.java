@@ -0,0 +1,187 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ShardRangeMoverTest {
+    private static final String SPLIT = "0: DELETE FROM t_shard_ranges WHERE slot_from = ? [0]";
+    private static final String SWITCHING = "0: UPDATE t_shard_ranges [1, 2, SWITCHING, 1024]";
+    private static final String OWNED = "0: UPDATE t_shard_ranges [2, null, OWNED, 1024]";
+    private static final String COPY = "2: INSERT INTO t_url_mappings";
+    private static final String DELETE = "1: DELETE FROM t_url_mappings";
+
+    private final TinyUrlProperties properties = new TinyUrlProperties();
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final ShardRouter shardRouter = mock(ShardRouter.class);
+    /**
+     * Statements run, each prefixed with the shard it ran on.
+     */
+    private final List<String> statements = Collections.synchronizedList(new ArrayList<>());
+    private ShardRangeMover mover;
+
+    ShardRangeMoverTest() throws Exception {
+        properties.getSharding().setRefreshInterval(Duration.ofMillis(1));
+        properties.getSharding().setSwitchDelay(Duration.ofMillis(10));
+        when(shardRouter.shardCount()).thenReturn(3);
+        when(shardRouter.shardMap()).thenReturn(ShardMap.of(List.of(
+                new ShardMap.Range(0, ShardMap.SLOTS, 1, null, ShardMap.State.OWNED)), 3));
+        when(shardRouter.write(anyInt(), any())).thenAnswer(invocation ->
+                ShardContext.call(invocation.getArgument(0), invocation.<Supplier<?>>getArgument(1)));
+
+        PreparedStatement lock = mock(PreparedStatement.class);
+        ResultSet locked = mock(ResultSet.class);
+        when(locked.next()).thenReturn(true);
+        when(locked.getBoolean(1)).thenReturn(true);
+        when(lock.executeQuery()).thenReturn(locked);
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenAnswer(invocation -> {
+            String sql = invocation.getArgument(0);
+            if (!sql.startsWith("SELECT pg_")) {
+                statements.add(ShardContext.current() + ": " + sql);
+            }
+            return sql.startsWith("SELECT pg_") ? lock : mock(PreparedStatement.class);
+        });
+        when(jdbcTemplate.execute(ArgumentMatchers.<ConnectionCallback<Boolean>>any())).thenAnswer(invocation ->
+                invocation.<ConnectionCallback<Boolean>>getArgument(0).doInConnection(connection));
+        when(jdbcTemplate.update(anyString(), any(Object[].class))).thenAnswer(invocation -> {
+            String sql = invocation.getArgument(0);
+            Object[] args = Arrays.copyOfRange(invocation.getArguments(), 1, invocation.getArguments().length);
+            statements.add(ShardContext.current() + ": " + (sql.startsWith("UPDATE t_shard_ranges")
+                    ? "UPDATE t_shard_ranges" : sql) + " " + Arrays.toString(args));
+            return 1;
+        });
+        when(jdbcTemplate.update(any(PreparedStatementCreator.class))).thenAnswer(invocation -> {
+            invocation.<PreparedStatementCreator>getArgument(0).createPreparedStatement(connection);
+            return 1;
+        });
+        when(jdbcTemplate.queryForObject("SELECT LOCALTIMESTAMP", Timestamp.class))
+                .thenAnswer(invocation -> Timestamp.from(Instant.now()));
+        // every page of the range is one row
+        ResultSet row = mock(ResultSet.class);
+        when(row.getString("short_url")).thenReturn("AQxxxxxxx");
+        when(jdbcTemplate.query(any(PreparedStatementCreator.class), ArgumentMatchers.<RowMapper<Object>>any()))
+                .thenAnswer(invocation -> List.of(invocation.<RowMapper<?>>getArgument(1).mapRow(row, 0)));
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        mover.stop();
+    }
+
+    @Test
+    void testSplitsTheRangeOffAndSwitchesItOver() throws InterruptedException {
+        catalog(new ShardMap.Range(0, 4096, 1, null, ShardMap.State.OWNED));
+
+        move(1024, 2048, 2, "moved");
+
+        List<String> ranges = statements.stream().filter(statement -> statement.contains("t_shard_ranges")).toList();
+        assertEquals(List.of(SPLIT,
+                "0: INSERT INTO t_shard_ranges (slot_from, slot_to, shard, target_shard, state) VALUES (?, ?, ?, ?, ?)"
+                        + " [0, 1024, 1, null, OWNED]",
+                "0: INSERT INTO t_shard_ranges (slot_from, slot_to, shard, target_shard, state) VALUES (?, ?, ?, ?, ?)"
+                        + " [1024, 2048, 1, 2, COPYING]",
+                "0: INSERT INTO t_shard_ranges (slot_from, slot_to, shard, target_shard, state) VALUES (?, ?, ?, ?, ?)"
+                        + " [2048, 4096, 1, null, OWNED]",
+                SWITCHING, OWNED), ranges);
+        // copied before the switch, and once more after it; deleted from the source once the target owns the range
+        assertTrue(indexOf(COPY) < statements.indexOf(SWITCHING), statements::toString);
+        assertTrue(lastIndexOf(COPY) > statements.indexOf(SWITCHING), statements::toString);
+        assertTrue(indexOf(DELETE) > statements.indexOf(OWNED), statements::toString);
+        verify(shardRouter, atLeast(3)).refresh();
+    }
+
+    @Test
+    void testResumesAnInterruptedMove() throws InterruptedException {
+        catalog(new ShardMap.Range(1024, 2048, 1, 2, ShardMap.State.SWITCHING));
+
+        move(1024, 2048, 2, "moved");
+
+        assertFalse(statements.contains(SPLIT), statements::toString);
+        assertTrue(statements.indexOf(SWITCHING) < statements.indexOf(OWNED), statements::toString);
+        assertTrue(indexOf(DELETE) > statements.indexOf(OWNED), statements::toString);
+    }
+
+    @Test
+    void testRefusesMovesOverlappingAnotherOne() throws InterruptedException {
+        catalog(new ShardMap.Range(1024, 2048, 1, 2, ShardMap.State.COPYING));
+
+        move(1024, 3072, 2, "failed: Slots [1024, 3072) overlap the move of");
+
+        assertEquals(List.of(), statements);
+    }
+
+    @Test
+    void testKeepsTheSourceRowsOfAStoppedMove() throws InterruptedException {
+        properties.getSharding().setSwitchDelay(Duration.ofMinutes(1));
+        catalog(new ShardMap.Range(0, 4096, 1, null, ShardMap.State.OWNED));
+
+        move(1024, 2048, 2, "switching");
+        mover.stop();
+
+        assertEquals("interrupted, start the same move again to resume", mover.ranges().get("move"));
+        assertTrue(statements.contains(SWITCHING), statements::toString);
+        assertFalse(statements.contains(OWNED), statements::toString);
+        assertEquals(-1, indexOf(DELETE), statements::toString);
+    }
+
+    private void catalog(ShardMap.Range range) {
+        when(jdbcTemplate.query(startsWith("SELECT slot_from"), ArgumentMatchers.<RowMapper<ShardMap.Range>>any(),
+                any(Object[].class))).thenReturn(List.of(range));
+    }
+
+    /**
+     * Starts the move and waits until its status starts with {@code status}.
+     */
+    private void move(int slotFrom, int slotTo, int targetShard, String status) throws InterruptedException {
+        mover = new ShardRangeMover(jdbcTemplate, shardRouter, properties, new SimpleMeterRegistry());
+        mover.move(slotFrom, slotTo, targetShard);
+        for (int i = 0; i < 500 && !mover.ranges().get("move").toString().startsWith(status); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(mover.ranges().get("move").toString().startsWith(status), () -> mover.ranges().toString());
+    }
+
+    private int indexOf(String prefix) {
+        synchronized (statements) {
+            for (int i = 0; i < statements.size(); i++) {
+                if (statements.get(i).startsWith(prefix)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private int lastIndexOf(String prefix) {
+        synchronized (statements) {
+            for (int i = statements.size() - 1; i >= 0; i--) {
+                if (statements.get(i).startsWith(prefix)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    @Test
+    void testConcurrentLoadsAreCoalesced() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SingleFlight<String, String> singleFlight = new SingleFlight<>("test", meterRegistry);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Future<String> leader = executor.submit(() -> singleFlight.load("key", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                await(release);
+                return "value";
+            }));
+            loading.await();
+            List<Future<String>> waiters = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                waiters.add(executor.submit(() -> singleFlight.load("key", () -> {
+                    loads.incrementAndGet();
+                    return "other";
+                })));
+            }
+            // wait until every waiter joined the in-flight load
+            while (meterRegistry.counter("tinyurl.single_flight.coalesced", "name", "test").count() < 7) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            assertEquals("value", leader.get());
+            for (Future<String> waiter : waiters) {
+                assertEquals("value", waiter.get());
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        // nothing is cached once the load completed
+        assertEquals("again", singleFlight.load("key", () -> "again"));
+    }
+
+    @Test
+    void testLoaderExceptionIsPropagated() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>("test", new SimpleMeterRegistry());
+        assertThrows(TinyUrlNotFoundException.class, () -> singleFlight.load("key", () -> {
+            throw new TinyUrlNotFoundException("key");
+        }));
+        assertEquals("value", singleFlight.load("key", () -> "value"));
+    }
+
+    @Test
+    void testCheckedLoaderExceptionIsSharedWithWaiters() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SingleFlight<String, String> singleFlight = new SingleFlight<>("test", meterRegistry);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = executor.submit(() -> singleFlight.load("key", () -> {
+                loading.countDown();
+                await(release);
+                return sneakyThrow(new TimeoutException("checked"));
+            }));
+            loading.await();
+            Future<String> waiter = executor.submit(() -> singleFlight.load("key", () -> "other"));
+            while (meterRegistry.counter("tinyurl.single_flight.coalesced", "name", "test").count() < 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            for (Future<String> load : List.of(leader, waiter)) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> load.get(5, TimeUnit.SECONDS));
+                assertInstanceOf(TimeoutException.class, e.getCause());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testConcurrentAsyncLoadsAreCoalesced() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SingleFlight<String, String> singleFlight = new SingleFlight<>("test", meterRegistry);
+        AtomicInteger loads = new AtomicInteger();
+        Sinks.One<String> result = Sinks.one();
+
+        CompletableFuture<String> leader = singleFlight.loadAsync("key", () -> {
+            loads.incrementAndGet();
+            return result.asMono();
+        }).toFuture();
+        CompletableFuture<String> follower = singleFlight.loadAsync("key", () -> {
+            loads.incrementAndGet();
+            return Mono.just("other");
+        }).toFuture();
+        assertFalse(follower.isDone());
+
+        result.tryEmitValue("value");
+        assertEquals("value", leader.join());
+        assertEquals("value", follower.join());
+        assertEquals(1, loads.get());
+        assertEquals(1, meterRegistry.counter("tinyurl.single_flight.coalesced", "name", "test").count());
+        // empty loads complete empty, and nothing is cached
+        assertNull(singleFlight.loadAsync("key", Mono::empty).block());
+        assertEquals("again", singleFlight.loadAsync("key", () -> Mono.just("again")).block());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable, V> V sneakyThrow(Throwable e) throws T {
+        throw (T) e;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
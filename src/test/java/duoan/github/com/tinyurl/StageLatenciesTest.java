@@ -0,0 +1,107 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StageLatenciesTest {
+
+    @Test
+    void testBucketsAreContiguousAndNarrow() {
+        for (int i = 0; i < StageLatencies.BUCKETS - 1; i++) {
+            long lowest = StageLatencies.lowestValue(i);
+            long next = StageLatencies.lowestValue(i + 1);
+            assertEquals(i, StageLatencies.index(lowest));
+            assertEquals(i, StageLatencies.index(next - 1));
+            assertTrue(next - lowest <= Math.max(1, lowest / 16), "bucket " + i);
+        }
+        assertEquals(StageLatencies.BUCKETS - 1, StageLatencies.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    void testExportsCumulativeBuckets() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        StageLatencies stageLatencies = new StageLatencies(new TinyUrlProperties(), meterRegistry);
+        stageLatencies.record(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.DB, 200_000);
+        stageLatencies.record(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.DB, 3_000_000);
+        stageLatencies.record(StageLatencies.Operation.CREATE, StageLatencies.Stage.DB, 50_000_000);
+        assertEquals(0, bucket(meterRegistry, "redirect", "db", "+Inf"));
+
+        stageLatencies.export();
+        assertEquals(0, bucket(meterRegistry, "redirect", "db", "0.0001"));
+        assertEquals(1, bucket(meterRegistry, "redirect", "db", "0.00025"));
+        assertEquals(1, bucket(meterRegistry, "redirect", "db", "0.0025"));
+        assertEquals(2, bucket(meterRegistry, "redirect", "db", "0.005"));
+        assertEquals(2, bucket(meterRegistry, "redirect", "db", "+Inf"));
+        assertEquals(2, meterRegistry.get("tinyurl.stage.latency.count")
+                .tag("operation", "redirect").tag("stage", "db").functionCounter().count());
+        assertEquals(0.0032, meterRegistry.get("tinyurl.stage.latency.sum")
+                .tag("operation", "redirect").tag("stage", "db").functionCounter().count(), 0.0032 / 16);
+        assertEquals(1, bucket(meterRegistry, "create", "db", "+Inf"));
+        assertNull(meterRegistry.find("tinyurl.stage.latency.count")
+                .tag("operation", "create").tag("stage", "bloom_filter").functionCounter());
+    }
+
+    @Test
+    void testSamplesSlowRequestsWithTheirStages() throws InterruptedException {
+        TinyUrlProperties properties = new TinyUrlProperties();
+        properties.getInstrumentation().setSlowRequestThreshold(Duration.ofMillis(5));
+        properties.getInstrumentation().setSlowRequestSampleInterval(Duration.ZERO);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        StageLatencies stageLatencies = new StageLatencies(properties, meterRegistry);
+
+        long start = stageLatencies.begin(StageLatencies.Operation.REDIRECT);
+        stageLatencies.record(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.L1, 1_000);
+        stageLatencies.end(StageLatencies.Operation.REDIRECT, "fast", start, System.nanoTime());
+
+        start = stageLatencies.begin(StageLatencies.Operation.REDIRECT);
+        stageLatencies.record(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.L1, 1_000);
+        stageLatencies.record(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.L2, 2_000_000);
+        // not part of this request's trace
+        stageLatencies.record(StageLatencies.Operation.CREATE, StageLatencies.Stage.L2, 3_000_000);
+        Thread.sleep(10);
+        stageLatencies.end(StageLatencies.Operation.REDIRECT, "slow", start, 0);
+        // not traced
+        stageLatencies.record(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.DB, 4_000_000);
+
+        List<StageLatencies.SlowRequest> slowRequests = stageLatencies.slowRequests();
+        assertEquals(1, slowRequests.size());
+        StageLatencies.SlowRequest slowRequest = slowRequests.getFirst();
+        assertEquals("redirect", slowRequest.operation());
+        assertEquals("slow", slowRequest.key());
+        assertTrue(slowRequest.totalMicros() >= 10_000);
+        assertEquals(1, slowRequest.stageMicros().get("l1"));
+        assertEquals(2_000, slowRequest.stageMicros().get("l2"));
+        assertEquals(0, slowRequest.stageMicros().get("db"));
+        assertEquals(0, slowRequest.stageMicros().get("response"));
+        assertEquals(1, meterRegistry.counter("tinyurl.stage.slow_requests", "operation", "redirect").count());
+    }
+
+    @Test
+    void testLeavesSkippedRequestsOutOfTheTotal() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        StageLatencies stageLatencies = new StageLatencies(new TinyUrlProperties(), meterRegistry);
+
+        long start = stageLatencies.begin(StageLatencies.Operation.REDIRECT);
+        stageLatencies.end(StageLatencies.Operation.REDIRECT, "found", start, System.nanoTime());
+        start = stageLatencies.begin(StageLatencies.Operation.REDIRECT);
+        stageLatencies.record(StageLatencies.Operation.REDIRECT, StageLatencies.Stage.L1, 1_000);
+        stageLatencies.skip();
+        stageLatencies.end(StageLatencies.Operation.REDIRECT, "unknown", start, 0);
+
+        stageLatencies.export();
+        assertEquals(1, bucket(meterRegistry, "redirect", "total", "+Inf"));
+        assertEquals(1, bucket(meterRegistry, "redirect", "response", "+Inf"));
+        assertEquals(1, bucket(meterRegistry, "redirect", "l1", "+Inf"));
+    }
+
+    private static double bucket(SimpleMeterRegistry meterRegistry, String operation, String stage, String le) {
+        return meterRegistry.get("tinyurl.stage.latency.bucket")
+                .tag("operation", operation).tag("stage", stage).tag("le", le)
+                .functionCounter().count();
+    }
+}
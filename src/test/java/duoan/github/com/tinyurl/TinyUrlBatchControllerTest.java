@@ -0,0 +1,130 @@
+package duoan.github.com.tinyurl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+class TinyUrlBatchControllerTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final TinyUrlProperties properties = new TinyUrlProperties();
+    private final TinyUrlService tinyUrlService = mock(TinyUrlService.class);
+    private final StaticListableBeanFactory beans = new StaticListableBeanFactory();
+
+    TinyUrlBatchControllerTest() {
+        properties.getBatchCreate().setBatchSize(2);
+        when(tinyUrlService.createShortUrls(anyList())).thenAnswer(invocation -> invocation.<List<String>>getArgument(0)
+                .stream().map(longUrl -> "s" + longUrl.substring(longUrl.lastIndexOf('/') + 1)).toList());
+    }
+
+    @Test
+    void testAnswersEveryLineInOrderBatchByBatch() throws Exception {
+        String response = send("""
+                {"longUrl": "https://example.com/1"}
+
+                {"longUrl": "https://example.com/2"}
+                {"longUrl": "https://example.com/3"}
+                not json
+                {"url": "https://example.com/4"}
+                {"longUrl": "https://example.com/5"}
+                """);
+
+        assertEquals("""
+                {"longUrl":"https://example.com/1","shortUrl":"http://localhost/s1"}
+                {"longUrl":"https://example.com/2","shortUrl":"http://localhost/s2"}
+                {"longUrl":"https://example.com/3","shortUrl":"http://localhost/s3"}
+                {"error":"Malformed JSON"}
+                {"error":"Expected {\\"longUrl\\": \\"...\\"}"}
+                {"longUrl":"https://example.com/5","shortUrl":"http://localhost/s5"}
+                """, response);
+        verify(tinyUrlService).createShortUrls(List.of("https://example.com/1", "https://example.com/2"));
+        verify(tinyUrlService).createShortUrls(List.of("https://example.com/3"));
+        verify(tinyUrlService).createShortUrls(List.of("https://example.com/5"));
+        verifyNoMoreInteractions(tinyUrlService);
+        assertEquals(4, meterRegistry.counter("tinyurl.controller.batch.lines", "result", "created").count());
+        assertEquals(2, meterRegistry.counter("tinyurl.controller.batch.lines", "result", "failed").count());
+    }
+
+    @Test
+    void testAnswersTheLinesOfAShedBatchWithAnError() throws Exception {
+        properties.getAdmission().setMinLimit(1);
+        properties.getAdmission().setInitialLimit(1);
+        properties.getAdmission().setMaxQueueTime(Duration.ZERO);
+        AdmissionController admission = new AdmissionController(properties, meterRegistry);
+        beans.addBean("admissionController", admission);
+        admission.acquire(AdmissionController.Priority.REDIRECT);
+
+        String response = send("""
+                {"longUrl": "https://example.com/1"}
+                {"longUrl": "https://example.com/2"}
+                """);
+
+        assertEquals("""
+                {"longUrl":"https://example.com/1","error":"Too many requests, create shed"}
+                {"longUrl":"https://example.com/2","error":"Too many requests, create shed"}
+                """, response);
+        verifyNoInteractions(tinyUrlService);
+    }
+
+    @Test
+    void testAnswersTheLinesOfAFailedBatchWithAnError() throws Exception {
+        when(tinyUrlService.createShortUrls(List.of("https://example.com/3", "https://example.com/4")))
+                .thenThrow(new IllegalStateException("database down"));
+
+        String response = send("""
+                {"longUrl": "https://example.com/1"}
+                {"longUrl": "https://example.com/2"}
+                {"longUrl": "https://example.com/3"}
+                {"longUrl": "https://example.com/4"}
+                """);
+
+        assertEquals("""
+                {"longUrl":"https://example.com/1","shortUrl":"http://localhost/s1"}
+                {"longUrl":"https://example.com/2","shortUrl":"http://localhost/s2"}
+                {"longUrl":"https://example.com/3","error":"Failed to create the short url"}
+                {"longUrl":"https://example.com/4","error":"Failed to create the short url"}
+                """, response);
+    }
+
+    @Test
+    void testAnswersTooLongUrlsAndLinesWithAnError() throws Exception {
+        properties.getBatchCreate().setMaxLineLength(3_000);
+        // within the limit, but not once its spaces are percent-encoded
+        String longUrl = "https://example.com/" + "a ".repeat(700) + "a";
+        String longLine = "{\"longUrl\": \"https://example.com/" + "x".repeat(3_000) + "\"}";
+
+        String response = send("{\"longUrl\": \"" + longUrl + "\"}\r\n" + longLine + "\r\n"
+                + "{\"longUrl\": \"https://example.com/1\"}\r\n");
+
+        assertEquals("""
+                {"longUrl":"%s","error":"Long url longer than 2048 characters"}
+                {"error":"Line longer than 3000 characters"}
+                {"longUrl":"https://example.com/1","shortUrl":"http://localhost/s1"}
+                """.formatted(longUrl), response);
+        verify(tinyUrlService).createShortUrls(List.of("https://example.com/1"));
+        verifyNoMoreInteractions(tinyUrlService);
+    }
+
+    private String send(String lines) throws Exception {
+        TinyUrlBatchController controller = new TinyUrlBatchController(tinyUrlService,
+                beans.getBeanProvider(AdmissionController.class), new ObjectMapper(), properties, meterRegistry);
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+        return mockMvc.perform(post("/api/tinyurl/batch")
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .content(lines))
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+    }
+}
@@ -0,0 +1,194 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TinyUrlCacheTest {
+
+    @Test
+    void testReadThroughPromotesL2Hits() {
+        CaffeineCacheManager l1 = new CaffeineCacheManager();
+        ConcurrentMapCacheManager l2 = new ConcurrentMapCacheManager();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        TinyUrlCache cache = new TinyUrlCache(l1, l2, new TinyUrlProperties(), meterRegistry);
+
+        l2.getCache("S2L").put("abcdefghi", "spring.io");
+        assertNull(l1.getCache("S2L").get("abcdefghi"));
+        assertEquals(Optional.of("spring.io"), cache.getLongUrl("abcdefghi"));
+        assertEquals("spring.io", l1.getCache("S2L").get("abcdefghi", String.class));
+        assertEquals(Optional.of("spring.io"), cache.getLongUrl("abcdefghi"));
+        assertEquals(1, meterRegistry.counter("tinyurl.cache.requests",
+                "cache", "S2L", "tier", "l1", "result", "hit").count());
+        assertEquals(1, meterRegistry.counter("tinyurl.cache.requests",
+                "cache", "S2L", "tier", "l2", "result", "hit").count());
+
+        assertEquals(Optional.empty(), cache.getShortUrl(LongUrlDigest.of("spring.io")));
+    }
+
+    @Test
+    void testDualPutWritesBothLevels() {
+        CaffeineCacheManager l1 = new CaffeineCacheManager();
+        ConcurrentMapCacheManager l2 = new ConcurrentMapCacheManager();
+        TinyUrlCache cache = new TinyUrlCache(l1, l2, new TinyUrlProperties(), new SimpleMeterRegistry());
+
+        cache.dualPutUrlMapping("abcdefghi", "spring.io");
+        for (CacheManager cacheManager : new CacheManager[]{l1, l2}) {
+            assertEquals("spring.io", cacheManager.getCache("S2L").get("abcdefghi", String.class));
+            assertEquals("abcdefghi", cacheManager.getCache("L2S")
+                    .get(LongUrlDigest.of("spring.io").cacheKey(), String.class));
+        }
+        assertEquals(Optional.of("abcdefghi"), cache.getShortUrl(LongUrlDigest.of("spring.io")));
+    }
+
+    @Test
+    void testInvalidateReplacesMappingWithNegativeEntries() {
+        CaffeineCacheManager l1 = new CaffeineCacheManager();
+        ConcurrentMapCacheManager l2 = new ConcurrentMapCacheManager();
+        TinyUrlProperties properties = new TinyUrlProperties();
+        properties.getCache().getCompactL1().setEnabled(true);
+        properties.getCache().getCompactL1().setArenaSize(DataSize.ofMegabytes(1));
+        TinyUrlCache cache = new TinyUrlCache(l1, l2, properties, new SimpleMeterRegistry());
+
+        cache.dualPutUrlMapping("abcdefghi", "https://spring.io");
+        assertEquals(Optional.of("https://spring.io"), cache.getLongUrl("abcdefghi"));
+
+        cache.invalidateUrlMapping("abcdefghi", "https://spring.io");
+        assertEquals(Optional.of(TinyUrlCache.NULL_LONG_URL), cache.getLongUrl("abcdefghi"));
+        assertEquals(TinyUrlCache.NULL_LONG_URL, l2.getCache("S2L").get("abcdefghi", String.class));
+        assertEquals(Optional.of(TinyUrlCache.NULL_SHORT_URL),
+                cache.getShortUrl(LongUrlDigest.of("https://spring.io")));
+    }
+
+    @Test
+    void testWarmUpLoadsL2IntoL1WithoutCountingLookups() {
+        CaffeineCacheManager l1 = new CaffeineCacheManager();
+        ConcurrentMapCacheManager l2 = new ConcurrentMapCacheManager();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        TinyUrlCache cache = new TinyUrlCache(l1, l2, new TinyUrlProperties(), meterRegistry);
+
+        l2.getCache("S2L").put("abcdefghi", "spring.io");
+        l2.getCache("S2L").put("bcdefghij", TinyUrlCache.NULL_LONG_URL);
+        assertEquals(1, cache.warmUp(List.of("abcdefghi", "bcdefghij", "cdefghijk")));
+        assertEquals(0, cache.l1HitCount() + cache.l1MissCount());
+
+        cache.putLocalUrlMapping("bcdefghij", TinyUrlCache.NULL_LONG_URL);
+        assertEquals(List.of("abcdefghi"), cache.hottestShortUrls(10));
+        assertEquals(Optional.of("spring.io"), cache.getLocalLongUrl("abcdefghi"));
+        assertEquals(1, cache.l1HitCount());
+    }
+
+    @Test
+    void testGetLongUrlsReadsL1ThenL2() {
+        CaffeineCacheManager l1 = new CaffeineCacheManager();
+        ConcurrentMapCacheManager l2 = new ConcurrentMapCacheManager();
+        TinyUrlCache cache = new TinyUrlCache(l1, l2, new TinyUrlProperties(), new SimpleMeterRegistry());
+
+        cache.putLocalUrlMapping("abcdefghi", "spring.io");
+        l2.getCache("S2L").put("bcdefghij", "gradle.org");
+        l2.getCache("S2L").put("cdefghijk", TinyUrlCache.NULL_LONG_URL);
+        assertEquals(Map.of("abcdefghi", "spring.io", "bcdefghij", "gradle.org",
+                        "cdefghijk", TinyUrlCache.NULL_LONG_URL),
+                cache.getLongUrls(List.of("abcdefghi", "bcdefghij", "cdefghijk", "defghijkl")));
+        // promoted
+        assertEquals(Optional.of("gradle.org"), cache.getLocalLongUrl("bcdefghij"));
+    }
+
+    @Test
+    void testRefreshDropsL1EntriesL2Lost() throws InterruptedException {
+        CaffeineCacheManager l1 = new CaffeineCacheManager();
+        ConcurrentMapCacheManager l2 = new ConcurrentMapCacheManager();
+        TinyUrlProperties properties = new TinyUrlProperties();
+        properties.getCache().setL1RefreshAfterWrite(Duration.ofMillis(1));
+        TinyUrlCache cache = new TinyUrlCache(l1, l2, properties, new SimpleMeterRegistry());
+
+        cache.dualPutUrlMapping("abcdefghi", "spring.io");
+        // e.g. removed by a purge racing with the refresh
+        l2.getCache("S2L").evict("abcdefghi");
+        Thread.sleep(5);
+        // served once more while the refresh runs
+        assertEquals(Optional.of("spring.io"), cache.getLongUrl("abcdefghi"));
+        for (int i = 0; i < 500 && l1.getCache("S2L").get("abcdefghi") != null; i++) {
+            Thread.sleep(10);
+        }
+        assertNull(l1.getCache("S2L").get("abcdefghi"));
+        assertNull(l2.getCache("S2L").get("abcdefghi"));
+        assertEquals(Optional.empty(), cache.getLongUrl("abcdefghi"));
+    }
+
+    @Test
+    void testPinsHotKeysWhereTheyAreNotEvicted() throws InterruptedException {
+        CaffeineCacheManager l1 = new CaffeineCacheManager();
+        ConcurrentMapCacheManager l2 = new ConcurrentMapCacheManager();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        TinyUrlProperties properties = new TinyUrlProperties();
+        properties.getCache().getHeavyHitters().setEnabled(true);
+        properties.getCache().getHeavyHitters().setTopK(1);
+        HotKeyTracker tracker = new HotKeyTracker(properties, meterRegistry);
+        TinyUrlCache cache = new TinyUrlCache(l1, l2, properties, null, null, tracker, meterRegistry);
+
+        cache.dualPutUrlMapping("abcdefghi", "spring.io");
+        cache.dualPutUrlMapping("bcdefghij", "gradle.org");
+        for (int i = 0; i < 3; i++) {
+            cache.getLongUrl("abcdefghi");
+        }
+        cache.getLongUrl("bcdefghij");
+        tracker.update();
+        awaitPinned(meterRegistry, 1);
+        assertEquals(List.of("abcdefghi", "bcdefghij"), cache.hottestShortUrls(2));
+
+        l1.getCache("S2L").clear();
+        l2.getCache("S2L").clear();
+        assertEquals(Optional.of("spring.io"), cache.getLongUrl("abcdefghi"));
+        assertEquals(Optional.empty(), cache.getLongUrl("bcdefghij"));
+
+        cache.invalidateUrlMapping("abcdefghi", "spring.io");
+        assertEquals(Optional.of(TinyUrlCache.NULL_LONG_URL), cache.getLongUrl("abcdefghi"));
+        awaitPinned(meterRegistry, 0);
+    }
+
+    @Test
+    void testDoesNotPinHotKeysL2Lost() throws InterruptedException {
+        CaffeineCacheManager l1 = new CaffeineCacheManager();
+        ConcurrentMapCacheManager l2 = new ConcurrentMapCacheManager();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        TinyUrlProperties properties = new TinyUrlProperties();
+        properties.getCache().getHeavyHitters().setEnabled(true);
+        properties.getCache().getHeavyHitters().setTopK(2);
+        HotKeyTracker tracker = new HotKeyTracker(properties, meterRegistry);
+        TinyUrlCache cache = new TinyUrlCache(l1, l2, properties, null, null, tracker, meterRegistry);
+
+        cache.dualPutUrlMapping("abcdefghi", "spring.io");
+        cache.dualPutUrlMapping("bcdefghij", "gradle.org");
+        // e.g. removed by a purge
+        l2.getCache("S2L").evict("bcdefghij");
+        for (int i = 0; i < 3; i++) {
+            cache.getLongUrl("abcdefghi");
+            cache.getLongUrl("bcdefghij");
+        }
+        tracker.update();
+        awaitPinned(meterRegistry, 1);
+
+        l1.getCache("S2L").clear();
+        assertEquals(Optional.of("spring.io"), cache.getLongUrl("abcdefghi"));
+        assertEquals(Optional.empty(), cache.getLongUrl("bcdefghij"));
+        assertNull(l2.getCache("S2L").get("bcdefghij"));
+    }
+
+    private static void awaitPinned(SimpleMeterRegistry meterRegistry, int entries) throws InterruptedException {
+        for (int i = 0; i < 500 && meterRegistry.get("tinyurl.cache.l1.pinned.entries").gauge().value() != entries; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(entries, meterRegistry.get("tinyurl.cache.l1.pinned.entries").gauge().value());
+    }
+}
@@ -0,0 +1,92 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class TinyUrlServiceTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final TinyUrlProperties properties = new TinyUrlProperties();
+    private final UrlMappingRepository repository = mock(UrlMappingRepository.class);
+    private final UrlMappingLookup lookup = mock(UrlMappingLookup.class);
+    private final StaticListableBeanFactory beans = new StaticListableBeanFactory();
+    private final CaffeineCacheManager l1CacheManager = new CaffeineCacheManager();
+    private final ConcurrentMapCacheManager l2CacheManager = new ConcurrentMapCacheManager();
+
+    @Test
+    void testRetriesACreateWhoseShortUrlIsTaken() {
+        List<String> saved = new ArrayList<>();
+        when(repository.save(any())).thenAnswer(invocation -> {
+            UrlMapping urlMapping = invocation.getArgument(0);
+            saved.add(urlMapping.getShortUrl());
+            if (saved.size() == 1) {
+                // a short url hashed before ids were used
+                throw new DuplicateKeyException("duplicate key value violates unique constraint");
+            }
+            return urlMapping;
+        });
+
+        String shortUrl = service().createShortUrl("https://spring.io/projects/spring-boot");
+
+        assertEquals(2, saved.size());
+        assertNotEquals(saved.get(0), saved.get(1));
+        assertEquals(saved.get(1), shortUrl);
+        assertEquals(1, meterRegistry.counter("tinyurl.service.create.collisions").count());
+    }
+
+    @Test
+    void testGivesUpAfterRepeatedCollisions() {
+        when(repository.save(any())).thenThrow(new DuplicateKeyException("duplicate key value"));
+
+        assertThrows(DuplicateKeyException.class,
+                () -> service().createShortUrl("https://spring.io/projects/spring-boot"));
+        verify(repository, times(3)).save(any());
+    }
+
+    @Test
+    void testReadsOnlyItsOwnRecentCreatesFromThePrimary() {
+        beans.addBean("replicaPool", mock(ReplicaPool.class));
+        when(repository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        TinyUrlService service = service();
+        String longUrl = "https://spring.io/projects/spring-boot";
+        String created = service.createShortUrl(longUrl);
+        l1CacheManager.getCache(TinyUrlCache.SHORT_URL_TO_LONG_URL).clear();
+        l2CacheManager.getCache(TinyUrlCache.SHORT_URL_TO_LONG_URL).clear();
+        // the replica has not replayed the create yet, the primary has
+        when(lookup.findLongUrl(created)).thenReturn(Optional.empty()).thenReturn(Optional.of(longUrl));
+
+        assertEquals(longUrl, service.getLongUrl(created));
+        assertEquals(1, meterRegistry.counter("tinyurl.service.get.primary_reads").count());
+
+        // created through another node: not read from the primary, and the miss is not cached in L2
+        String other = created.equals("abcdefghi") ? "bcdefghij" : "abcdefghi";
+        when(lookup.findLongUrl(other)).thenReturn(Optional.empty());
+        assertThrows(TinyUrlNotFoundException.class, () -> service.getLongUrl(other));
+        assertThrows(TinyUrlNotFoundException.class, () -> service.getLongUrl(other));
+        assertEquals(1, meterRegistry.counter("tinyurl.service.get.primary_reads").count());
+        verify(lookup).findLongUrl(other);
+        assertNull(l2CacheManager.getCache(TinyUrlCache.SHORT_URL_TO_LONG_URL).get(other));
+    }
+
+    private TinyUrlService service() {
+        TinyUrlCache cache = new TinyUrlCache(l1CacheManager, l2CacheManager, properties, meterRegistry);
+        return new TinyUrlService(repository, lookup, mock(UrlMappingInserter.class), cache,
+                new IdRangeShortUrlGenerator(new LocalIdBlockLeaser(), 10),
+                beans.getBeanProvider(UrlMappingBatchWriter.class), beans.getBeanProvider(ShortUrlBloomFilter.class),
+                beans.getBeanProvider(ShardRouter.class), beans.getBeanProvider(ReplicaPool.class),
+                beans.getBeanProvider(ClickCounter.class), beans.getBeanProvider(StageLatencies.class), properties,
+                mock(PlatformTransactionManager.class), meterRegistry);
+    }
+}
@@ -0,0 +1,40 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UrlCanonicalizerTest {
+
+    @Test
+    void testCanonicalize() {
+        assertEquals("https://spring.io/projects", UrlCanonicalizer.canonicalize("spring.io/projects"));
+        assertEquals("https://spring.io/projects", UrlCanonicalizer.canonicalize(" HTTPS://spring.io/projects\n"));
+        assertEquals("http://spring.io", UrlCanonicalizer.canonicalize("http://spring.io"));
+        assertEquals("https://spring.io/a%20b?q=%C3%BC%F0%9F%98%80%7C",
+                UrlCanonicalizer.canonicalize("https://spring.io/a b?q=ü😀|"));
+        // already encoded, reserved characters and header injection
+        assertEquals("https://spring.io/a%20b?q=1&r=%2F#x", UrlCanonicalizer.canonicalize("https://spring.io/a%20b?q=1&r=%2F#x"));
+        assertEquals("https://spring.io/%0D%0ASet-Cookie:x", UrlCanonicalizer.canonicalize("https://spring.io/\r\nSet-Cookie:x"));
+    }
+
+    @Test
+    void testCanonicalUrlIsReturnedAsIs() {
+        String url = "https://spring.io/projects/spring-boot?tab=learn";
+        assertSame(url, UrlCanonicalizer.canonicalize(url));
+        assertSame(url, UrlCanonicalizer.toLocation(url));
+        assertTrue(UrlCanonicalizer.isCanonical(url));
+    }
+
+    @Test
+    void testLegacyUrlRedirectsWhereItDidBefore() {
+        String longUrl = "spring.io/search?q=spring boot&lang=ü";
+        String legacy = URLEncoder.encode(longUrl, StandardCharsets.UTF_8);
+        assertFalse(UrlCanonicalizer.isCanonical(legacy));
+        assertEquals(UrlCanonicalizer.canonicalize("https://" + longUrl), UrlCanonicalizer.toLocation(legacy));
+        assertEquals("https://spring.io/search?q=spring%20boot&lang=%C3%BC", UrlCanonicalizer.fromLegacy(legacy));
+    }
+}
@@ -18,4 +18,16 @@ class UrlHashUtilTest {
         assertEquals(UrlHashUtil.hashUrl(url, 0), UrlHashUtil.hashUrl(url, 0));
     }
 
+    @Test
+    void testHashUrlIntoBuffer() {
+        String url = "https://spring.io/projects/spring-boot";
+        char[] buffer = new char[Constants.MAX_SHORT_URL_LENGTH];
+        UrlHashUtil.hashUrl(url, 3, buffer);
+        assertEquals(UrlHashUtil.hashUrl(url, 3), new String(buffer));
+        assertEquals(ShortUrlCodec.decode(new String(buffer)), UrlHashUtil.hashUrlBits(url, 3));
+        // salts beyond the precomputed hash functions
+        assertNotEquals(UrlHashUtil.hashUrl(url, 500), UrlHashUtil.hashUrl(url, 501));
+        assertNull(UrlHashUtil.hashUrl("", 0));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+class UrlMappingBatchWriterTest {
+    private final TinyUrlProperties properties = new TinyUrlProperties();
+    private final UrlMappingInserter inserter = mock(UrlMappingInserter.class);
+    private UrlMappingBatchWriter writer;
+
+    UrlMappingBatchWriterTest() {
+        properties.getBatchWrite().setBatchSize(3);
+        // only a full batch or stop() flushes
+        properties.getBatchWrite().setMaxDelay(Duration.ofMinutes(1));
+        when(inserter.insert(anyList())).thenAnswer(invocation -> {
+            Map<String, String> stored = new HashMap<>();
+            for (UrlMappingInserter.Row row : invocation.<List<UrlMappingInserter.Row>>getArgument(0)) {
+                stored.put(row.longUrl(), row.shortUrl());
+            }
+            return stored;
+        });
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        if (writer != null) {
+            writer.stop();
+        }
+    }
+
+    @Test
+    void testFlushesAFullBatchInOneInsert() throws Exception {
+        start();
+        CompletableFuture<String> a = writer.write("aaaaaaaaa", "https://example.com/a", 1, ShardMap.CATALOG_SHARD);
+        CompletableFuture<String> b = writer.write("bbbbbbbbb", "https://example.com/b", 2, ShardMap.CATALOG_SHARD);
+        // the same long url queued twice is inserted once, both get the short url of the first
+        CompletableFuture<String> c = writer.write("ccccccccc", "https://example.com/a", 1, ShardMap.CATALOG_SHARD);
+
+        assertEquals("aaaaaaaaa", a.get(5, TimeUnit.SECONDS));
+        assertEquals("bbbbbbbbb", b.get(5, TimeUnit.SECONDS));
+        assertEquals("aaaaaaaaa", c.get(5, TimeUnit.SECONDS));
+        verify(inserter).insert(List.of(new UrlMappingInserter.Row("aaaaaaaaa", "https://example.com/a", 1),
+                new UrlMappingInserter.Row("bbbbbbbbb", "https://example.com/b", 2)));
+    }
+
+    @Test
+    void testStopFlushesQueuedWrites() throws Exception {
+        start();
+        CompletableFuture<String> a = writer.write("aaaaaaaaa", "https://example.com/a", 1, ShardMap.CATALOG_SHARD);
+
+        writer.stop();
+
+        assertEquals("aaaaaaaaa", a.getNow(null));
+        assertThrows(IllegalStateException.class,
+                () -> writer.write("bbbbbbbbb", "https://example.com/b", 2, ShardMap.CATALOG_SHARD));
+    }
+
+    @Test
+    void testStopFailsWritesTheWriterDidNotTake() throws Exception {
+        writer = new UrlMappingBatchWriter(inserter, mock(PlatformTransactionManager.class), properties,
+                new SimpleMeterRegistry());
+        // never started, as if it had exited before the write was queued
+        CompletableFuture<String> a = writer.write("aaaaaaaaa", "https://example.com/a", 1, ShardMap.CATALOG_SHARD);
+
+        writer.stop();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> a.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        verifyNoInteractions(inserter);
+    }
+
+    @Test
+    void testRejectsAnEmptyBatchSize() {
+        properties.getBatchWrite().setBatchSize(0);
+
+        assertThrows(IllegalArgumentException.class, () -> new UrlMappingBatchWriter(inserter,
+                mock(PlatformTransactionManager.class), properties, new SimpleMeterRegistry()));
+    }
+
+    @Test
+    void testFailsTheWritesOfAFailedBatch() throws Exception {
+        IllegalStateException failure = new IllegalStateException("database down");
+        reset(inserter);
+        when(inserter.insert(anyList())).thenThrow(failure);
+        start();
+        CompletableFuture<String> a = writer.write("aaaaaaaaa", "https://example.com/a", 1, ShardMap.CATALOG_SHARD);
+        CompletableFuture<String> b = writer.write("bbbbbbbbb", "https://example.com/b", 2, ShardMap.CATALOG_SHARD);
+        CompletableFuture<String> c = writer.write("ccccccccc", "https://example.com/c", 3, ShardMap.CATALOG_SHARD);
+
+        for (CompletableFuture<String> write : List.of(a, b, c)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> write.get(5, TimeUnit.SECONDS));
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    void testFailsAWriteWhoseShortUrlIsTaken() throws Exception {
+        reset(inserter);
+        when(inserter.insert(anyList())).thenReturn(Map.of("https://example.com/a", "aaaaaaaaa",
+                "https://example.com/b", "xxxxxxxxx"));
+        start();
+        CompletableFuture<String> a = writer.write("aaaaaaaaa", "https://example.com/a", 1, ShardMap.CATALOG_SHARD);
+        CompletableFuture<String> b = writer.write("bbbbbbbbb", "https://example.com/b", 2, ShardMap.CATALOG_SHARD);
+        CompletableFuture<String> c = writer.write("aaaaaaaaa", "https://example.com/c", 3, ShardMap.CATALOG_SHARD);
+
+        assertEquals("aaaaaaaaa", a.get(5, TimeUnit.SECONDS));
+        // stored for the long url already
+        assertEquals("xxxxxxxxx", b.get(5, TimeUnit.SECONDS));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> c.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(DuplicateKeyException.class, e.getCause());
+    }
+
+    private void start() {
+        writer = new UrlMappingBatchWriter(inserter, mock(PlatformTransactionManager.class), properties,
+                new SimpleMeterRegistry());
+        writer.start();
+    }
+}
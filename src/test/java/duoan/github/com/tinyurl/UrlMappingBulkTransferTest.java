@@ -0,0 +1,42 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class UrlMappingBulkTransferTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testOnlyTransfersWithinItsDirectory() throws InterruptedException {
+        TinyUrlProperties properties = new TinyUrlProperties();
+        properties.getBulkTransfer().setDirectory(directory.resolve("bulk").toString());
+        JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.getDataSource()).thenReturn(mock(DataSource.class));
+        StaticListableBeanFactory beans = new StaticListableBeanFactory();
+        UrlMappingBulkTransfer bulkTransfer = new UrlMappingBulkTransfer(jdbcTemplate, mock(TinyUrlCache.class),
+                beans.getBeanProvider(ShortUrlBloomFilter.class), beans.getBeanProvider(ShardRouter.class),
+                properties, new SimpleMeterRegistry());
+        try {
+            for (String path : new String[]{"../links.csv", "export/../../links.csv", "/etc/passwd", "", "."}) {
+                assertThrows(IllegalArgumentException.class, () -> bulkTransfer.start("import", path, null), path);
+                assertThrows(IllegalArgumentException.class, () -> bulkTransfer.start("export", path, null), path);
+            }
+            IllegalArgumentException missing = assertThrows(IllegalArgumentException.class,
+                    () -> bulkTransfer.start("import", "export/../links.csv", null));
+            assertEquals("No file export/../links.csv", missing.getMessage());
+        } finally {
+            bulkTransfer.stop();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package duoan.github.com.tinyurl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UrlMappingCsvTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testSplitsReadEveryLineOnce() throws Exception {
+        SplittableRandom random = new SplittableRandom(42);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            // empty, short and long lines, some of them not ASCII
+            lines.add(i % 97 == 0 ? "" : "%d,https://example.com/%s%s".formatted(i, "é".repeat(i % 3),
+                    "x".repeat(random.nextInt(200))));
+        }
+        Path file = directory.resolve("links.csv");
+        Files.writeString(file, String.join("\r\n", lines), StandardCharsets.UTF_8);
+
+        for (int parts : new int[]{1, 2, 3, 7, 64}) {
+            List<String> read = new ArrayList<>();
+            List<UrlMappingCsv.Split> splits = UrlMappingCsv.split(file, parts);
+            assertEquals(parts, splits.size());
+            for (UrlMappingCsv.Split split : splits) {
+                try (UrlMappingCsv.LineReader reader = new UrlMappingCsv.LineReader(split)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        read.add(line);
+                    }
+                }
+            }
+            assertEquals(lines, read, parts + " splits");
+        }
+    }
+
+    @Test
+    void testReportsTheOffsetOfEveryLine() throws Exception {
+        Path file = directory.resolve("links.csv");
+        Files.writeString(file, "a\nbb\n\nccc\n");
+        try (UrlMappingCsv.LineReader reader = new UrlMappingCsv.LineReader(new UrlMappingCsv.Split(file, 2, 7))) {
+            assertEquals("bb", reader.readLine());
+            assertEquals(2, reader.lineStart());
+            assertEquals("", reader.readLine());
+            assertEquals(5, reader.lineStart());
+            assertEquals("ccc", reader.readLine());
+            assertEquals(6, reader.lineStart());
+            // read past the end of the split, to the end of its last line
+            assertNull(reader.readLine());
+            assertEquals(10, reader.position());
+        }
+    }
+
+    @Test
+    void testParsesWhatItAppends() {
+        for (String[] fields : new String[][]{
+                {"abc", "https://example.com/a,b", "2025-01-02 03:04:05"},
+                {"", "https://example.com/\"quoted\"", ""},
+                {"abc", "https://example.com/plain"}}) {
+            StringBuilder line = new StringBuilder();
+            for (String field : fields) {
+                if (!line.isEmpty()) {
+                    line.append(',');
+                }
+                UrlMappingCsv.append(line, field);
+            }
+            assertEquals(Arrays.asList(fields), UrlMappingCsv.parse(line.toString()), line.toString());
+        }
+        assertEquals(List.of("abc", "https://example.com/?a=1,b=2", ""),
+                UrlMappingCsv.parse("abc,\"https://example.com/?a=1,b=2\","));
+        assertNull(UrlMappingCsv.parse("abc,\"https://example.com/"));
+    }
+}
@@ -0,0 +1,98 @@
+package duoan.github.com.tinyurl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Year;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class UrlMappingPurgerTest {
+    private static final int YEAR = Year.now(ZoneOffset.UTC).getValue();
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final TinyUrlProperties properties = new TinyUrlProperties();
+
+    UrlMappingPurgerTest() throws SQLException {
+        properties.getPurge().setMode(TinyUrlProperties.PurgeMode.PARTITIONS);
+        properties.getPurge().setPartitionsAhead(2);
+        // the advisory lock is always free
+        ResultSet locked = mock(ResultSet.class);
+        when(locked.next()).thenReturn(true);
+        when(locked.getBoolean(1)).thenReturn(true);
+        PreparedStatement lock = mock(PreparedStatement.class);
+        when(lock.executeQuery()).thenReturn(locked);
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(lock);
+        when(jdbcTemplate.execute(ArgumentMatchers.<ConnectionCallback<Boolean>>any())).thenAnswer(invocation ->
+                invocation.<ConnectionCallback<Boolean>>getArgument(0).doInConnection(connection));
+    }
+
+    @Test
+    void testCreatesPartitionsFromTheCutoverOn() {
+        partitions("t_url_mappings_before_cutover",
+                "FOR VALUES FROM (MINVALUE) TO ('" + (YEAR + 1) + "-01-01 00:00:00')",
+                "t_url_mappings_y" + (YEAR + 1),
+                "FOR VALUES FROM ('" + (YEAR + 1) + "-01-01 00:00:00') TO ('" + (YEAR + 2) + "-01-01 00:00:00')");
+
+        purger().purge();
+
+        // the current year is covered by the partition of everything before the cutover, the next one exists
+        verify(jdbcTemplate, never()).execute(startsWith("CREATE TABLE IF NOT EXISTS t_url_mappings_y" + YEAR + " "));
+        verify(jdbcTemplate, never()).execute(
+                startsWith("CREATE TABLE IF NOT EXISTS t_url_mappings_y" + (YEAR + 1) + " "));
+        verify(jdbcTemplate).execute("CREATE TABLE IF NOT EXISTS t_url_mappings_y" + (YEAR + 2)
+                + " PARTITION OF t_url_mappings FOR VALUES FROM ('" + (YEAR + 2) + "-01-01') TO ('" + (YEAR + 3)
+                + "-01-01')");
+        verify(jdbcTemplate, never()).execute(startsWith("CREATE TABLE IF NOT EXISTS t_url_mappings_y" + (YEAR + 3)));
+        verify(jdbcTemplate, never()).execute(contains("DETACH PARTITION"));
+    }
+
+    @Test
+    void testPurgesExpiredPartitionsWhenCreatingFails() {
+        partitions("t_url_mappings_y2000", "FOR VALUES FROM ('2000-01-01 00:00:00') TO ('2001-01-01 00:00:00')",
+                "t_url_mappings_y" + YEAR,
+                "FOR VALUES FROM ('" + YEAR + "-01-01 00:00:00') TO ('" + (YEAR + 1) + "-01-01 00:00:00')");
+        doThrow(new BadSqlGrammarException("create", "CREATE TABLE", new SQLException("overlaps")))
+                .when(jdbcTemplate).execute(startsWith("CREATE TABLE"));
+
+        purger().purge();
+
+        verify(jdbcTemplate).execute("ALTER TABLE t_url_mappings DETACH PARTITION t_url_mappings_y2000 CONCURRENTLY");
+        verify(jdbcTemplate, never()).execute(contains("DETACH PARTITION t_url_mappings_y" + YEAR));
+    }
+
+    private void partitions(String... nameAndBounds) {
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            for (int i = 0; i < nameAndBounds.length; i += 2) {
+                ResultSet rs = mock(ResultSet.class);
+                when(rs.getString(1)).thenReturn(nameAndBounds[i]);
+                when(rs.getString(2)).thenReturn(nameAndBounds[i + 1]);
+                handler.processRow(rs);
+            }
+            return null;
+        }).when(jdbcTemplate).query(contains("pg_inherits"), any(RowCallbackHandler.class));
+        when(jdbcTemplate.queryForList(contains("pg_tables"), eq(String.class))).thenReturn(List.of());
+    }
+
+    private UrlMappingPurger purger() {
+        return new UrlMappingPurger(jdbcTemplate, mock(PlatformTransactionManager.class), mock(TinyUrlCache.class),
+                new StaticListableBeanFactory().getBeanProvider(ShardRouter.class), properties,
+                new SimpleMeterRegistry());
+    }
+}